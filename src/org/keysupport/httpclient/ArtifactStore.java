@@ -0,0 +1,307 @@
+package org.keysupport.httpclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.keysupport.pki.validation.cache.CacheSnapshot;
+import org.keysupport.pki.validation.cache.URICache;
+import org.keysupport.pki.validation.cache.URICacheEntry;
+import org.keysupport.pki.validation.cache.UriCacheManager;
+
+/**
+ * A content-addressed directory of the artifact bodies we have fetched
+ * (certs-only CMS messages, CRLs, etc.), each stored once in a file
+ * named by the SHA-256 digest of its content.
+ *
+ * The URI cache records the digest of the last content received from
+ * each URI, so anything that needs an artifact again (to re-parse it,
+ * to debug it, or to serve it) can read it from here instead of
+ * fetching it.  Identical content published at several URIs is stored
+ * once.
+ *
+ * Files are never modified once they are in the store.  Content that no
+ * URI refers to anymore is removed by prune(), which runs when a cache
+ * generation is published, and periodically on the CRL refresh
+ * scheduler, since CRLs are replaced far more often than the cache is
+ * rebuilt.
+ *
+ * The store lives in the "artifacts" directory under the cache snapshot
+ * directory.  If that cannot be created, the store is not available and
+ * artifacts are kept in temporary files as before.
+ */
+public class ArtifactStore {
+
+	private static ArtifactStore instance = null;
+	private static final Log LOG = LogFactory.getLog(ArtifactStore.class);
+
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final String STORE_DIRECTORY = "artifacts";
+
+	/*
+	 * Content is not pruned until it is at least this old, so that
+	 * content stored by a fetch still in progress is not removed
+	 * before its URI cache entry refers to it.
+	 */
+	private static final long PRUNE_MIN_AGE = TimeUnit.HOURS.toMillis(1);
+
+	private final File directory;
+	private final AtomicLong stored = new AtomicLong(0);
+	private final AtomicLong duplicates = new AtomicLong(0);
+
+	public static synchronized ArtifactStore getInstance() {
+		if (instance == null) {
+			instance = new ArtifactStore();
+		}
+		return instance;
+	}
+
+	private ArtifactStore() {
+		LOG.info("Initializing Artifact Store");
+		File directory = new File(CacheSnapshot.getSnapshotDirectory(), STORE_DIRECTORY);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			LOG.fatal("Unable to create artifact store directory " + directory.getPath() + ", artifacts will not be stored");
+			directory = null;
+		}
+		this.directory = directory;
+	}
+
+	/**
+	 * @return true if content can be placed in the store
+	 */
+	public boolean isAvailable() {
+		return directory != null;
+	}
+
+	/**
+	 * @return a new digest for computing the name of content in the store
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+		}
+	}
+
+	/**
+	 * @param content
+	 * @return the hex encoded digest the content is stored under
+	 */
+	public static String digest(byte[] content) {
+		return Hex.encodeHexString(newDigest().digest(content));
+	}
+
+	/**
+	 * Moves a file holding content into the store.  If the store
+	 * already has the content, the file is deleted.
+	 *
+	 * @param file the file, which the store takes ownership of
+	 * @param digest the hex encoded digest of the content of the file
+	 * @return the stored file, or null if the store is not available (in which case the file is left as it is)
+	 */
+	public File put(File file, String digest) {
+		if (directory == null) {
+			return null;
+		}
+		File target = getFile(digest);
+		if (target.isFile()) {
+			duplicates.incrementAndGet();
+			touch(target);
+			if (!file.delete()) {
+				LOG.warn("Unable to delete temporary file: " + file.getAbsolutePath());
+			}
+			return target;
+		}
+		File staging = null;
+		try {
+			File parent = target.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Unable to create directory " + parent.getPath());
+			}
+			/*
+			 * The temporary file may be on another file system, so it
+			 * is moved next to the target first, and then renamed into
+			 * place, so the content is never visible half written.
+			 */
+			staging = File.createTempFile(digest, ".tmp", parent);
+			Files.move(file.toPath(), staging.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			try {
+				Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				stored.incrementAndGet();
+			} catch (FileAlreadyExistsException e) {
+				duplicates.incrementAndGet();
+			}
+			return target;
+		} catch (IOException e) {
+			LOG.fatal("Unable to store artifact " + digest + ": " + e.getMessage(), e);
+			return null;
+		} finally {
+			if (staging != null && staging.exists() && !staging.delete()) {
+				LOG.warn("Unable to delete temporary file: " + staging.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Writes content to the store, unless it is there already.
+	 *
+	 * @param content
+	 * @return the hex encoded digest of the content, or null if it could not be stored
+	 */
+	public String put(byte[] content) {
+		if (directory == null) {
+			return null;
+		}
+		String digest = digest(content);
+		if (getFile(digest).isFile()) {
+			duplicates.incrementAndGet();
+			touch(getFile(digest));
+			return digest;
+		}
+		try {
+			File temp = File.createTempFile("ksvs-", ".artifact", directory);
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+			if (put(temp, digest) == null) {
+				if (!temp.delete()) {
+					LOG.warn("Unable to delete temporary file: " + temp.getAbsolutePath());
+				}
+				return null;
+			}
+			return digest;
+		} catch (IOException e) {
+			LOG.fatal("Unable to store artifact " + digest + ": " + e.getMessage(), e);
+			return null;
+		}
+	}
+
+	/*
+	 * Content we just received again is not a candidate for pruning.
+	 */
+	private void touch(File file) {
+		if (!file.setLastModified(System.currentTimeMillis())) {
+			LOG.warn("Unable to update the time of artifact: " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @param digest the hex encoded digest of the content
+	 * @return the file the content is (or would be) stored in
+	 */
+	public File getFile(String digest) {
+		return new File(new File(directory, digest.substring(0, 2)), digest);
+	}
+
+	/**
+	 * @param digest the hex encoded digest of the content
+	 * @return true if the store has the content
+	 */
+	public boolean contains(String digest) {
+		return directory != null && digest != null && getFile(digest).isFile();
+	}
+
+	/**
+	 * @param uri
+	 * @return the file holding the last content received from the URI, or null if the store does not have it
+	 */
+	public File getLastContent(PkiUri uri) {
+		URICacheEntry entry = UriCacheManager.getInstance().getUriCache().getUriCacheEntry(uri);
+		if (entry == null || !contains(entry.getDigest())) {
+			return null;
+		}
+		return getFile(entry.getDigest());
+	}
+
+	/**
+	 * Removes any content that no entry in the URI cache refers to,
+	 * and has been in the store for a while.
+	 *
+	 * @return the number of files removed
+	 */
+	public int prune() {
+		List<String> live = new ArrayList<String>();
+		URICache uriCache = UriCacheManager.getInstance().getUriCache();
+		for (PkiUri uri: uriCache.getURIs()) {
+			URICacheEntry entry = uriCache.getUriCacheEntry(uri);
+			if (entry != null && entry.getDigest() != null) {
+				live.add(entry.getDigest());
+			}
+		}
+		return prune(live);
+	}
+
+	/**
+	 * Removes any content that is not in the given set of digests,
+	 * and has been in the store for a while.
+	 *
+	 * @param live the digests of the content still referred to
+	 * @return the number of files removed
+	 */
+	public synchronized int prune(Collection<String> live) {
+		if (directory == null) {
+			return 0;
+		}
+		Set<String> keep = new HashSet<String>(live);
+		long cutoff = System.currentTimeMillis() - PRUNE_MIN_AGE;
+		int removed = 0;
+		File[] buckets = directory.listFiles();
+		if (buckets == null) {
+			return 0;
+		}
+		for (File bucket: buckets) {
+			/*
+			 * Files at the top level are left over from writes
+			 * that did not finish.
+			 */
+			if (bucket.isFile()) {
+				if (bucket.lastModified() < cutoff && bucket.delete()) {
+					removed++;
+				}
+				continue;
+			}
+			File[] files = bucket.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file: files) {
+				if (!keep.contains(file.getName()) && file.lastModified() < cutoff) {
+					if (file.delete()) {
+						removed++;
+					} else {
+						LOG.warn("Unable to delete artifact: " + file.getAbsolutePath());
+					}
+				}
+			}
+		}
+		LOG.info("Pruned " + removed + " artifacts from the artifact store");
+		return removed;
+	}
+
+	public String toString() {
+		if (directory == null) {
+			return "[Artifact Store: Not Available]";
+		}
+		return "[Artifact Store: " + directory.getPath() + ", Stored: " + stored.get() + ", Duplicates: " + duplicates.get() + "]";
+	}
+
+}
@@ -0,0 +1,130 @@
+package org.keysupport.httpclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.keysupport.pki.validation.cache.URICacheEntry;
+
+/**
+ * Keeps a {@link HostCircuitBreaker} for every host we send requests to.
+ *
+ * The HttpClient reports every response it records in the URI cache
+ * here, along with every failure to connect to a host or timeout, and
+ * asks before each request whether the host may be sent one.  Requests
+ * that fail on our side are not reported, so they do not open the
+ * breaker for a healthy host.
+ */
+public class CircuitBreakerManager {
+
+	private static CircuitBreakerManager instance = null;
+	private static final Log LOG = LogFactory.getLog(CircuitBreakerManager.class);
+
+	private static final int FAILURE_THRESHOLD = 3;
+	private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+	private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+	private static final long PROBE_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+	private final ConcurrentHashMap<String, HostCircuitBreaker> breakers = new ConcurrentHashMap<String, HostCircuitBreaker>();
+
+	public static synchronized CircuitBreakerManager getInstance() {
+		if (instance == null) {
+			instance = new CircuitBreakerManager();
+		}
+		return instance;
+	}
+
+	private CircuitBreakerManager() {
+		LOG.info("Initializing Circuit Breakers");
+	}
+
+	/**
+	 * Asks to send a request to the host of the URI.
+	 *
+	 * @param uri
+	 * @throws HostUnavailableException if the breaker for the host is open
+	 */
+	public void checkRequest(PkiUri uri) throws HostUnavailableException {
+		HostCircuitBreaker breaker = getBreaker(uri);
+		if (!breaker.allowRequest()) {
+			LOG.warn("Circuit open for " + breaker.getHost() + ", not requesting " + uri);
+			throw new HostUnavailableException(uri, breaker.getRetryAt());
+		}
+	}
+
+	/**
+	 * Checks the breaker for the host of the URI without taking the
+	 * probe of a breaker that is ready to be probed.
+	 *
+	 * @param uri
+	 * @return true if a request to the host would fail fast right now
+	 */
+	public boolean isOpen(PkiUri uri) {
+		HostCircuitBreaker breaker = breakers.get(getHost(uri));
+		return breaker != null && breaker.isOpen();
+	}
+
+	/**
+	 * Records the outcome of a request in the breaker for its host.
+	 *
+	 * @param uri
+	 * @param entry the URI cache entry recorded for the request
+	 */
+	public void record(PkiUri uri, URICacheEntry entry) {
+		HostCircuitBreaker breaker = getBreaker(uri);
+		int statusCode = entry.getStatusCode();
+		if (statusCode == 0 || statusCode >= 500) {
+			HostCircuitBreaker.State before = breaker.getState();
+			breaker.recordFailure(statusCode + " " + entry.getReasonPhrase());
+			if (breaker.getState() == HostCircuitBreaker.State.OPEN && before != HostCircuitBreaker.State.OPEN) {
+				LOG.warn("Circuit opened for " + breaker.getHost() + " after " + breaker.getConsecutiveFailures() + " failures, retrying at " + breaker.getRetryAt());
+			}
+		} else {
+			if (breaker.getState() != HostCircuitBreaker.State.CLOSED) {
+				LOG.info("Circuit closed for " + breaker.getHost());
+			}
+			breaker.recordSuccess();
+		}
+	}
+
+	/**
+	 * @param uri
+	 * @return the breaker for the host of the URI
+	 */
+	public HostCircuitBreaker getBreaker(PkiUri uri) {
+		String host = getHost(uri);
+		HostCircuitBreaker breaker = breakers.get(host);
+		if (breaker == null) {
+			breaker = new HostCircuitBreaker(host, FAILURE_THRESHOLD, INITIAL_BACKOFF, MAX_BACKOFF, PROBE_TIMEOUT);
+			HostCircuitBreaker existing = breakers.putIfAbsent(host, breaker);
+			if (existing != null) {
+				breaker = existing;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * @return the breakers for all hosts, sorted by host
+	 */
+	public List<HostCircuitBreaker> getBreakers() {
+		List<HostCircuitBreaker> all = new ArrayList<HostCircuitBreaker>(breakers.values());
+		Collections.sort(all, new Comparator<HostCircuitBreaker>() {
+			public int compare(HostCircuitBreaker a, HostCircuitBreaker b) {
+				return a.getHost().compareTo(b.getHost());
+			}
+		});
+		return all;
+	}
+
+	private static String getHost(PkiUri uri) {
+		String host = uri.getUri().getHost();
+		return (host == null) ? "" : host.toLowerCase();
+	}
+
+}
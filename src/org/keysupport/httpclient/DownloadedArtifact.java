@@ -0,0 +1,216 @@
+package org.keysupport.httpclient;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.keysupport.pki.validation.cache.URICacheEntry;
+
+/**
+ * A PKI artifact (CRL, certs-only CMS message, etc.) that was streamed
+ * to a temporary file rather than buffered on the heap.
+ *
+ * The same artifact may be handed to several callers when concurrent
+ * downloads of a URI are coalesced, so the file is only deleted once
+ * every caller has closed it.  Callers must close the artifact when
+ * they are done with it, typically in a finally block.
+ *
+ * If the artifact was placed in the ArtifactStore, the file is the
+ * stored file, which is kept when the artifact is closed.
+ *
+ * New content is not recorded as the last content of the URI until a
+ * caller has processed it successfully and calls commit().  Until then
+ * the URI cache keeps the digest of the content before it, and sends
+ * no validators, so content that could not be processed is fetched and
+ * processed again next time, rather than reported unchanged.
+ */
+public class DownloadedArtifact implements Closeable, SingleFlight.SharedResult {
+
+	private static final Log LOG = LogFactory.getLog(DownloadedArtifact.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final PkiUri uri;
+	private final File file;
+	private final long length;
+	private final boolean notModified;
+	private final String digest;
+	private final boolean unchanged;
+	private final boolean stored;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final URICacheEntry entry;
+	private final String eTag;
+	private final String lastModified;
+
+	protected DownloadedArtifact(PkiUri uri, File file, long length) {
+		this(uri, file, length, null, false, false);
+	}
+
+	/**
+	 * Creates an artifact for content with a known digest.
+	 *
+	 * @param uri the URI the artifact was downloaded from
+	 * @param file the file holding the content
+	 * @param length the number of bytes in the artifact
+	 * @param digest the hex encoded SHA-256 digest of the content
+	 * @param unchanged true if the URI returned the same content last time
+	 * @param stored true if the file is in the ArtifactStore, and must not be deleted
+	 */
+	protected DownloadedArtifact(PkiUri uri, File file, long length, String digest, boolean unchanged, boolean stored) {
+		this.uri = uri;
+		this.file = file;
+		this.length = length;
+		this.notModified = false;
+		this.digest = digest;
+		this.unchanged = unchanged;
+		this.stored = stored;
+		this.entry = null;
+		this.eTag = null;
+		this.lastModified = null;
+	}
+
+	/**
+	 * Creates an artifact for new content, whose digest and validators
+	 * are recorded in the URI cache entry when a caller commits it.
+	 *
+	 * @param uri the URI the artifact was downloaded from
+	 * @param file the file holding the content
+	 * @param length the number of bytes in the artifact
+	 * @param digest the hex encoded SHA-256 digest of the content
+	 * @param stored true if the file is in the ArtifactStore, and must not be deleted
+	 * @param entry the URI cache entry for the response
+	 * @param eTag the ETag of the response
+	 * @param lastModified the Last-Modified value of the response
+	 */
+	protected DownloadedArtifact(PkiUri uri, File file, long length, String digest, boolean stored, URICacheEntry entry,
+			String eTag, String lastModified) {
+		this.uri = uri;
+		this.file = file;
+		this.length = length;
+		this.notModified = false;
+		this.digest = digest;
+		this.unchanged = false;
+		this.stored = stored;
+		this.entry = entry;
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Creates an artifact for a conditional request that was answered
+	 * with a 304, meaning the content we already have is current.
+	 */
+	protected DownloadedArtifact(PkiUri uri) {
+		this.uri = uri;
+		this.file = null;
+		this.length = 0;
+		this.notModified = true;
+		this.digest = null;
+		this.unchanged = true;
+		this.stored = false;
+		this.entry = null;
+		this.eTag = null;
+		this.lastModified = null;
+	}
+
+	/**
+	 * @return true if the server answered a conditional request with a
+	 * 304, in which case there is no content to read.
+	 */
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	/**
+	 * @return true if the content is the same as the last content we
+	 * received from the URI (or the server said so with a 304), in which
+	 * case whatever was derived from it last time is still good.
+	 */
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return the hex encoded SHA-256 digest of the content, or null if there is no content
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return the URI the artifact was downloaded from
+	 */
+	public PkiUri getPkiUri() {
+		return uri;
+	}
+
+	/**
+	 * @return the number of bytes in the artifact
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Opens a new stream over the artifact.  Each call returns an
+	 * independent stream positioned at the start of the artifact,
+	 * which the caller must close.
+	 *
+	 * @return a buffered stream over the artifact
+	 * @throws IOException
+	 */
+	public InputStream openStream() throws IOException {
+		if (notModified) {
+			throw new IOException("Artifact from " + uri + " was not modified, there is no content to read");
+		}
+		return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+	}
+
+	/**
+	 * Records the content as the last content received from the URI,
+	 * once it has been processed successfully.  Does nothing if the
+	 * content is unchanged.
+	 */
+	public void commit() {
+		if (entry == null) {
+			return;
+		}
+		entry.setDigest(digest);
+		entry.setETag(eTag);
+		entry.setLastModified(lastModified);
+	}
+
+	public void share(int callers) {
+		references.set(callers);
+	}
+
+	public void release() {
+		close();
+	}
+
+	/**
+	 * Releases this caller's reference to the artifact, deleting the
+	 * temporary file once the last reference is released.
+	 */
+	public void close() {
+		if (references.decrementAndGet() == 0 && file != null && !stored) {
+			if (!file.delete()) {
+				LOG.warn("Unable to delete temporary file: " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	public String toString() {
+		if (notModified) {
+			return "[" + uri + "] Not Modified";
+		}
+		return "[" + uri + "] " + length + " bytes";
+	}
+
+}
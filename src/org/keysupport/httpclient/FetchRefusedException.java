@@ -0,0 +1,30 @@
+package org.keysupport.httpclient;
+
+import java.util.Date;
+
+/**
+ * Thrown (or used to fail a future) when a fetch is refused because the
+ * server asked us, through Cache-Control, not to fetch the URI again yet.
+ */
+public class FetchRefusedException extends HttpClientException {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 2761094235526188716L;
+
+	private final Date notBefore;
+
+	public FetchRefusedException(PkiUri uri, Date notBefore) {
+		super("Fetch of [" + uri + "] refused until " + notBefore);
+		this.notBefore = new Date(notBefore.getTime());
+	}
+
+	/**
+	 * @return the earliest time the URI may be fetched again
+	 */
+	public Date getNotBefore() {
+		return new Date(notBefore.getTime());
+	}
+
+}
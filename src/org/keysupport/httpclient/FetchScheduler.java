@@ -0,0 +1,333 @@
+package org.keysupport.httpclient;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.keysupport.pki.validation.cache.URICacheEntry;
+import org.keysupport.pki.validation.cache.UriCacheManager;
+
+/**
+ * Queues artifact fetches per host, so that a sweep of many fetches is
+ * spread over the hosts it touches instead of all landing on the few
+ * repositories that publish most of the artifacts.
+ *
+ * Each host has a limit on the number of fetches in flight, and a
+ * minimum interval between the start of one fetch and the next.  A
+ * fetch that cannot start yet waits in its host's queue, and fetches
+ * for other hosts are not held up by it.
+ *
+ * Unless forced, a fetch of a URI is refused before the nextUpdate
+ * that the last successful response set through Cache-Control, with
+ * a {@link FetchRefusedException} that says when it may be fetched.
+ *
+ * Fetches for a host whose circuit breaker is open fail fast with a
+ * {@link HostUnavailableException}, and are not queued.
+ *
+ * The fetches themselves run on the asynchronous HttpClient, so
+ * queued fetches do not hold any threads.
+ */
+public class FetchScheduler {
+
+	private static FetchScheduler instance = null;
+	private static final Log LOG = LogFactory.getLog(FetchScheduler.class);
+
+	private static final int DEFAULT_MAX_PER_HOST = 4;
+	private static final long DEFAULT_MIN_INTERVAL = 250;
+
+	private final ConcurrentHashMap<String, HostQueue> hosts = new ConcurrentHashMap<String, HostQueue>();
+	private final ConcurrentHashMap<String, long[]> hostLimits = new ConcurrentHashMap<String, long[]>();
+	private final ScheduledExecutorService timer;
+	private volatile int defaultMaxPerHost = DEFAULT_MAX_PER_HOST;
+	private volatile long defaultMinInterval = DEFAULT_MIN_INTERVAL;
+
+	/**
+	 * Starts an asynchronous request once the scheduler lets it run.
+	 *
+	 * @param <T> the result type
+	 */
+	public interface Fetch<T> {
+		/**
+		 * @param callback to be called when the request completes
+		 * @return the future of the request
+		 */
+		public Future<T> start(FutureCallback<T> callback);
+	}
+
+	public static synchronized FetchScheduler getInstance() {
+		if (instance == null) {
+			instance = new FetchScheduler();
+		}
+		return instance;
+	}
+
+	private FetchScheduler() {
+		LOG.info("Initializing Fetch Scheduler");
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "fetch-scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		this.timer = executor;
+	}
+
+	/**
+	 * Downloads the URI through the asynchronous HttpClient once its
+	 * host can take another fetch.
+	 *
+	 * @param uri the URI to fetch
+	 * @param conditional true to revalidate using the cached validators
+	 * @param force true to fetch even if the URI's nextUpdate has not passed
+	 * @param callback called when the download completes, may be null
+	 * @return a future for the artifact, as from HttpClient.downloadAsync()
+	 */
+	public Future<DownloadedArtifact> download(final PkiUri uri, final boolean conditional, boolean force,
+			FutureCallback<DownloadedArtifact> callback) {
+		return submit(uri, force, new Fetch<DownloadedArtifact>() {
+			public Future<DownloadedArtifact> start(FutureCallback<DownloadedArtifact> callback) {
+				return HttpClient.getInstance().downloadAsync(uri, conditional, callback);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Queues a fetch for the host of the URI.
+	 *
+	 * @param uri the URI the fetch is for
+	 * @param force true to fetch even if the URI's nextUpdate has not passed
+	 * @param fetch starts the request
+	 * @param callback called when the fetch completes, may be null
+	 * @return a future for the result of the fetch
+	 */
+	public <T> Future<T> submit(PkiUri uri, boolean force, Fetch<T> fetch, FutureCallback<T> callback) {
+		BasicFuture<T> result = new BasicFuture<T>(callback);
+		if (!force) {
+			Date notBefore = getNotBefore(uri);
+			if (notBefore != null) {
+				LOG.info("Not fetching " + uri + " before " + notBefore);
+				result.failed(new FetchRefusedException(uri, notBefore));
+				return result;
+			}
+		}
+		/*
+		 * Fetches for a host whose circuit breaker is open fail
+		 * now, rather than waiting in the queue to fail fast.
+		 */
+		CircuitBreakerManager breakers = CircuitBreakerManager.getInstance();
+		if (breakers.isOpen(uri)) {
+			result.failed(new HostUnavailableException(uri, breakers.getBreaker(uri).getRetryAt()));
+			return result;
+		}
+		HostQueue queue = getHostQueue(uri);
+		synchronized (queue) {
+			queue.pending.add(new Pending<T>(fetch, result));
+		}
+		dispatch(queue);
+		return result;
+	}
+
+	/**
+	 * @param uri
+	 * @return the nextUpdate of the URI, if it is in the future and the last response was successful, otherwise null
+	 */
+	public Date getNotBefore(PkiUri uri) {
+		URICacheEntry entry = UriCacheManager.getInstance().getUriCache().getUriCacheEntry(uri);
+		if (entry == null || !UriCacheManager.isSuccessful(entry) || entry.getNextUpdate() == null) {
+			return null;
+		}
+		if (entry.getNextUpdate().getTime() <= System.currentTimeMillis()) {
+			return null;
+		}
+		return entry.getNextUpdate();
+	}
+
+	/**
+	 * Sets the limits for hosts that do not have limits of their own.
+	 *
+	 * @param maxConcurrent the maximum number of fetches in flight for a host
+	 * @param minInterval the minimum number of milliseconds between the start of fetches for a host
+	 */
+	public void setDefaultLimits(int maxConcurrent, long minInterval) {
+		this.defaultMaxPerHost = Math.max(1, maxConcurrent);
+		this.defaultMinInterval = Math.max(0, minInterval);
+		for (HostQueue queue: hosts.values()) {
+			if (!hostLimits.containsKey(queue.host)) {
+				setLimits(queue, defaultMaxPerHost, defaultMinInterval);
+			}
+		}
+	}
+
+	/**
+	 * Sets the limits for a single host.
+	 *
+	 * @param host the host name, as it appears in the URI
+	 * @param maxConcurrent the maximum number of fetches in flight for the host
+	 * @param minInterval the minimum number of milliseconds between the start of fetches for the host
+	 */
+	public void setHostLimits(String host, int maxConcurrent, long minInterval) {
+		String key = host.toLowerCase();
+		long[] limits = new long[] { Math.max(1, maxConcurrent), Math.max(0, minInterval) };
+		hostLimits.put(key, limits);
+		HostQueue queue = hosts.get(key);
+		if (queue != null) {
+			setLimits(queue, (int) limits[0], limits[1]);
+		}
+	}
+
+	private void setLimits(HostQueue queue, int maxConcurrent, long minInterval) {
+		synchronized (queue) {
+			queue.maxConcurrent = maxConcurrent;
+			queue.minInterval = minInterval;
+		}
+		dispatch(queue);
+	}
+
+	private HostQueue getHostQueue(PkiUri uri) {
+		String host = uri.getUri().getHost();
+		host = (host == null) ? "" : host.toLowerCase();
+		HostQueue queue = hosts.get(host);
+		if (queue == null) {
+			long[] limits = hostLimits.get(host);
+			if (limits != null) {
+				queue = new HostQueue(host, (int) limits[0], limits[1]);
+			} else {
+				queue = new HostQueue(host, defaultMaxPerHost, defaultMinInterval);
+			}
+			HostQueue existing = hosts.putIfAbsent(host, queue);
+			if (existing != null) {
+				queue = existing;
+			}
+		}
+		return queue;
+	}
+
+	/*
+	 * Starts as many queued fetches for the host as its limits allow,
+	 * and arranges to come back when the next one may start.
+	 */
+	private void dispatch(final HostQueue queue) {
+		while (true) {
+			Pending<?> next = null;
+			synchronized (queue) {
+				while (!queue.pending.isEmpty() && queue.pending.peek().result.isCancelled()) {
+					queue.pending.poll();
+				}
+				if (queue.pending.isEmpty() || queue.active >= queue.maxConcurrent) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				long wait = queue.lastStart + queue.minInterval - now;
+				if (wait > 0) {
+					if (!queue.timerSet) {
+						queue.timerSet = true;
+						timer.schedule(new Runnable() {
+							public void run() {
+								synchronized (queue) {
+									queue.timerSet = false;
+								}
+								dispatch(queue);
+							}
+						}, wait, TimeUnit.MILLISECONDS);
+					}
+					return;
+				}
+				next = queue.pending.poll();
+				queue.active++;
+				queue.started++;
+				queue.lastStart = now;
+			}
+			start(queue, next);
+		}
+	}
+
+	private <T> void start(final HostQueue queue, final Pending<T> pending) {
+		try {
+			pending.fetch.start(new FutureCallback<T>() {
+				public void completed(T response) {
+					release(queue);
+					if (!pending.result.completed(response) && response instanceof DownloadedArtifact) {
+						((DownloadedArtifact) response).close();
+					}
+				}
+				public void failed(Exception e) {
+					release(queue);
+					pending.result.failed(e);
+				}
+				public void cancelled() {
+					release(queue);
+					pending.result.cancel();
+				}
+			});
+		} catch (RuntimeException e) {
+			release(queue);
+			pending.result.failed(e);
+		}
+	}
+
+	private void release(HostQueue queue) {
+		synchronized (queue) {
+			queue.active--;
+		}
+		dispatch(queue);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[Fetch Scheduler:");
+		for (Map.Entry<String, HostQueue> entry: hosts.entrySet()) {
+			HostQueue queue = entry.getValue();
+			synchronized (queue) {
+				sb.append(" [" + entry.getKey() + ": Active: " + queue.active + ", Queued: " + queue.pending.size() + ", Started: " + queue.started + "]");
+			}
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+
+	private static class Pending<T> {
+
+		private final Fetch<T> fetch;
+		private final BasicFuture<T> result;
+
+		private Pending(Fetch<T> fetch, BasicFuture<T> result) {
+			this.fetch = fetch;
+			this.result = result;
+		}
+	}
+
+	/*
+	 * The queue and limits for a single host.  All fields are
+	 * guarded by the HostQueue itself.
+	 */
+	private static class HostQueue {
+
+		private final String host;
+		private final Deque<Pending<?>> pending = new ArrayDeque<Pending<?>>();
+		private int maxConcurrent;
+		private long minInterval;
+		private int active = 0;
+		private long started = 0;
+		private long lastStart = 0;
+		private boolean timerSet = false;
+
+		private HostQueue(String host, int maxConcurrent, long minInterval) {
+			this.host = host;
+			this.maxConcurrent = maxConcurrent;
+			this.minInterval = minInterval;
+		}
+	}
+
+}
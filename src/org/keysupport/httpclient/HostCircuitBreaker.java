@@ -0,0 +1,187 @@
+package org.keysupport.httpclient;
+
+import java.util.Date;
+
+/**
+ * The circuit breaker for a single host.
+ *
+ * The breaker is CLOSED while the host is answering.  After a number of
+ * consecutive failures it OPENs, and requests to the host fail fast
+ * until the backoff has passed.  The next request is then let through
+ * as a probe (HALF_OPEN); if it succeeds the breaker closes, and if it
+ * fails the breaker opens again with the backoff doubled.
+ *
+ * A failure is a request that got no response at all (a connection
+ * failure or timeout), or a 5xx.  Any other response, even a 404,
+ * shows the host is up.
+ */
+public class HostCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String host;
+	private final int failureThreshold;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final long probeTimeout;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long totalFailures = 0;
+	private long rejected = 0;
+	private long backoff = 0;
+	private long retryAt = 0;
+	private long probeStarted = 0;
+	private Date lastFailure = null;
+	private String lastReason = null;
+
+	HostCircuitBreaker(String host, int failureThreshold, long initialBackoff, long maxBackoff, long probeTimeout) {
+		this.host = host;
+		this.failureThreshold = failureThreshold;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.probeTimeout = probeTimeout;
+	}
+
+	/**
+	 * Asks to send a request to the host.  When the backoff of an open
+	 * breaker has passed, the first caller is let through as the probe.
+	 *
+	 * @return true if the request may be sent
+	 */
+	synchronized boolean allowRequest() {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (now >= retryAt) {
+				state = State.HALF_OPEN;
+				probeStarted = now;
+				return true;
+			}
+			break;
+		case HALF_OPEN:
+			/*
+			 * A probe that never reported back should not
+			 * keep the host closed off forever.
+			 */
+			if (now - probeStarted >= probeTimeout) {
+				probeStarted = now;
+				return true;
+			}
+			break;
+		}
+		rejected++;
+		return false;
+	}
+
+	/**
+	 * @return true if a request to the host would fail fast right now
+	 */
+	synchronized boolean isOpen() {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case OPEN:
+			return now < retryAt;
+		case HALF_OPEN:
+			return now - probeStarted < probeTimeout;
+		default:
+			return false;
+		}
+	}
+
+	synchronized void recordSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		backoff = 0;
+		retryAt = 0;
+	}
+
+	synchronized void recordFailure(String reason) {
+		long now = System.currentTimeMillis();
+		consecutiveFailures++;
+		totalFailures++;
+		lastFailure = new Date(now);
+		lastReason = reason;
+		if (state == State.HALF_OPEN) {
+			backoff = Math.min(backoff * 2, maxBackoff);
+		} else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+			backoff = initialBackoff;
+		} else {
+			return;
+		}
+		state = State.OPEN;
+		retryAt = now + backoff;
+	}
+
+	/**
+	 * @return the host this breaker is for
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the state of the breaker
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the number of failures since the last success
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return the number of failures recorded for the host
+	 */
+	public synchronized long getTotalFailures() {
+		return totalFailures;
+	}
+
+	/**
+	 * @return the number of requests that failed fast
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return the current backoff in milliseconds, 0 if the breaker is closed
+	 */
+	public synchronized long getBackoff() {
+		return backoff;
+	}
+
+	/**
+	 * @return the time the next probe may be sent, or null if the breaker is closed
+	 */
+	public synchronized Date getRetryAt() {
+		return (state == State.CLOSED) ? null : new Date(retryAt);
+	}
+
+	/**
+	 * @return the time of the last failure, or null if there has been none
+	 */
+	public synchronized Date getLastFailure() {
+		return (lastFailure == null) ? null : new Date(lastFailure.getTime());
+	}
+
+	/**
+	 * @return the reason given for the last failure
+	 */
+	public synchronized String getLastReason() {
+		return lastReason;
+	}
+
+	public synchronized String toString() {
+		return "[" + host + ": " + state + ", Consecutive Failures: " + consecutiveFailures + ", Rejected: " + rejected + ", Retry At: " + getRetryAt() + "]";
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.keysupport.httpclient;
+
+import java.util.Date;
+
+/**
+ * Thrown (or used to fail a future) when a request fails fast because
+ * the circuit breaker for its host is open.
+ */
+public class HostUnavailableException extends HttpClientException {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -5412770923164830521L;
+
+	private final Date retryAt;
+
+	public HostUnavailableException(PkiUri uri, Date retryAt) {
+		super("Host of [" + uri + "] is unavailable until " + retryAt);
+		this.retryAt = (retryAt == null) ? null : new Date(retryAt.getTime());
+	}
+
+	/**
+	 * @return the time the host will next be probed, may be null
+	 */
+	public Date getRetryAt() {
+		return (retryAt == null) ? null : new Date(retryAt.getTime());
+	}
+
+}
@@ -1,14 +1,33 @@
 package org.keysupport.httpclient;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
@@ -17,15 +36,29 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
 import org.keysupport.pki.validation.cache.HttpURICacheEntry;
+import org.keysupport.pki.validation.cache.URICacheEntry;
 import org.keysupport.pki.validation.cache.UriCacheManager;
 
 public class HttpClient {
@@ -33,15 +66,38 @@ public class HttpClient {
 	private static final Log LOG = LogFactory.getLog(HttpClient.class);
 
 	private static HttpClient instance = null;
-	private HttpClientContext context = null;
 	private CloseableHttpClient httpClient = null;
 	private PoolingHttpClientConnectionManager cm = null;
-	private UriCacheManager uriCm = null;
+	/*
+	 * The asynchronous client runs every request on a small number
+	 * of NIO reactor threads, so a slow repository does not hold a
+	 * thread while we wait on it.
+	 */
+	private CloseableHttpAsyncClient asyncClient = null;
+	private PoolingNHttpClientConnectionManager asyncCm = null;
+	private final SingleFlight<String, byte[]> inFlight = new SingleFlight<String, byte[]>();
+	private final SingleFlight<String, DownloadedArtifact> downloadsInFlight = new SingleFlight<String, DownloadedArtifact>();
 
 	/*
 	 * TODO:  Move the following to properties
 	 */
 	private int timeout = 30;
+	private int ioThreads = 2;
+	/*
+	 * Some FPKI CRLs are greater than 30 MB, so the
+	 * ceiling is set well above that.
+	 */
+	private long maxArtifactBytes = 128L * 1024 * 1024;
+	private File downloadDirectory = new File(System.getProperty("java.io.tmpdir"));
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/*
+	 * RFC 5019 asks for GET when the request URL is less than 255
+	 * bytes, so that it fits in the URLs that HTTP caches will store.
+	 */
+	private static final int MAX_OCSP_GET_LENGTH = 255;
+	private static final int MAX_OCSP_GET_RESPONSES = 4096;
+	private volatile boolean ocspGet = true;
+	private final OCSPGetCache ocspGetCache = new OCSPGetCache(MAX_OCSP_GET_RESPONSES);
 	
 	public static synchronized HttpClient getInstance() {
 		if (instance == null) {
@@ -59,7 +115,11 @@ public class HttpClient {
 		cm.setDefaultMaxPerRoute(20);
 		// Increase max connections for localhost:80 to 50
 
-		context = HttpClientContext.create();
+		/*
+		 * NOTE: HttpClientContext is not thread safe, and discovery
+		 * runs requests in parallel, so each request gets its own
+		 * context.
+		 */
 
 		/*
 		 * TODO: Since we implement a timeout, we should manage another
@@ -76,6 +136,24 @@ public class HttpClient {
 		        .setDefaultRequestConfig(config)
 		        .build();
 
+		try {
+			IOReactorConfig ioConfig = IOReactorConfig.custom()
+					.setIoThreadCount(ioThreads)
+					.setConnectTimeout(timeout * 1000)
+					.setSoTimeout(timeout * 1000).build();
+			asyncCm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig));
+			asyncCm.setMaxTotal(200);
+			asyncCm.setDefaultMaxPerRoute(20);
+			asyncClient = HttpAsyncClients.custom()
+					.setConnectionManager(asyncCm)
+					.setDefaultRequestConfig(config)
+					.build();
+			asyncClient.start();
+		} catch (IOReactorException e) {
+			LOG.fatal("Unable to start the asynchronous client, asynchronous requests will be sent synchronously: " + e.getMessage(), e);
+			asyncClient = null;
+		}
+
 		/*
 		 * TODO:  Build a trust manager and ALLOW_ANY hostname verifier.
 		 * 
@@ -99,12 +177,637 @@ public class HttpClient {
 		*/
 	}
 
+	/**
+	 * Performs an HTTP GET for the given URI.
+	 *
+	 * Concurrent requests for the same (normalized) URI are coalesced,
+	 * so that only one request is sent and every caller receives the
+	 * same response bytes.
+	 *
+	 * @param url the URI to fetch
+	 * @return the response body, or null if the status was not 200
+	 * @throws HttpClientException
+	 */
 	public byte[] getRequest(final PkiUri url) throws HttpClientException {
+		String key = "GET " + url.getNormalizedUri().toASCIIString();
+		return coalesce(key, url, new Callable<byte[]>() {
+			public byte[] call() throws HttpClientException {
+				return executeGet(url);
+			}
+		});
+	}
+
+	/**
+	 * Performs an HTTP POST of an OCSP request to the given URI.
+	 *
+	 * Concurrent posts of the same request to the same (normalized) URI
+	 * are coalesced, so that only one request is sent and every caller
+	 * receives the same response bytes.
+	 *
+	 * @param url the URI of the OCSP responder
+	 * @param reqBa the DER encoded OCSP request
+	 * @return the response body, or null if the status was not 200
+	 * @throws HttpClientException
+	 */
+	public byte[] ocspPost(final PkiUri url, final byte[] reqBa) throws HttpClientException {
+		String key = "POST " + url.getNormalizedUri().toASCIIString() + " " + Hex.encodeHexString(reqBa);
+		return coalesce(key, url, new Callable<byte[]>() {
+			public byte[] call() throws HttpClientException {
+				return executePost(url, reqBa);
+			}
+		});
+	}
+
+	/**
+	 * Performs an HTTP GET for the given URI, streaming the response
+	 * body to a temporary file as it arrives rather than buffering it
+	 * on the heap.  Downloads larger than the maximum artifact size are
+	 * aborted.
+	 *
+	 * Concurrent downloads of the same (normalized) URI are coalesced,
+	 * and every caller receives the same artifact.  Each caller must
+	 * close the artifact when done with it.
+	 *
+	 * @param url the URI to fetch
+	 * @return the downloaded artifact, or null if the status was not 200
+	 * @throws HttpClientException
+	 */
+	public DownloadedArtifact download(final PkiUri url) throws HttpClientException {
+		return download(url, false);
+	}
+
+	/**
+	 * Performs an HTTP GET for the given URI, as {@link #download(PkiUri)}.
+	 *
+	 * If conditional is true, and the URI cache holds an ETag or
+	 * Last-Modified value from a previous response, the request is sent
+	 * with If-None-Match and If-Modified-Since.  If the server answers
+	 * with a 304, the returned artifact reports isNotModified() and has
+	 * no content, and the caller should keep using what it already has.
+	 *
+	 * @param url the URI to fetch
+	 * @param conditional true to revalidate using the cached validators
+	 * @return the downloaded artifact, or null if the status was not 200 or 304
+	 * @throws HttpClientException
+	 */
+	public DownloadedArtifact download(final PkiUri url, final boolean conditional) throws HttpClientException {
+		String key = (conditional ? "CONDITIONAL GET " : "GET ") + url.getNormalizedUri().toASCIIString();
+		try {
+			return downloadsInFlight.execute(key, new Callable<DownloadedArtifact>() {
+				public DownloadedArtifact call() throws HttpClientException {
+					return executeDownload(url, conditional);
+				}
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof HttpClientException) {
+				throw (HttpClientException) e.getCause();
+			}
+			throw new HttpClientException("Exception while requesting [" + url + "]", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HttpClientException("Interrupted while requesting [" + url + "]", e);
+		}
+	}
+
+	/**
+	 * Performs an HTTP GET for the given URI without blocking, as
+	 * {@link #getRequest(PkiUri)}.
+	 *
+	 * The request runs on the NIO reactor, and the callback (if any)
+	 * is called on a reactor thread, so it must not block or do any
+	 * significant work.  Asynchronous requests are coalesced with any
+	 * request for the same URI already in flight, whether synchronous
+	 * or not.
+	 *
+	 * @param url the URI to fetch
+	 * @param callback called when the request completes, may be null
+	 * @return a future for the response body, which is null if the status was not 200
+	 */
+	public Future<byte[]> getRequestAsync(final PkiUri url, final FutureCallback<byte[]> callback) {
+		final HttpGet httpget = new HttpGet(url.getUri());
+		httpget.setHeader(HttpHeaders.USER_AGENT, "IDevity Client");
+		String key = "GET " + url.getNormalizedUri().toASCIIString();
+		return executeAsync(inFlight, key, url, httpget, new BufferingConsumer(url, true), callback, new Callable<byte[]>() {
+			public byte[] call() throws HttpClientException {
+				return getRequest(url);
+			}
+		});
+	}
+
+	/**
+	 * Performs an HTTP POST of an OCSP request without blocking, as
+	 * {@link #ocspPost(PkiUri, byte[])}.
+	 *
+	 * The callback (if any) is called on a reactor thread, so it must
+	 * not block or do any significant work.
+	 *
+	 * @param url the URI of the OCSP responder
+	 * @param reqBa the DER encoded OCSP request
+	 * @param callback called when the request completes, may be null
+	 * @return a future for the response body, which is null if the status was not 200
+	 */
+	public Future<byte[]> ocspPostAsync(final PkiUri url, final byte[] reqBa, final FutureCallback<byte[]> callback) {
+		final HttpPost httppost = new HttpPost(url.getUri());
+		httppost.setHeader(HttpHeaders.USER_AGENT, "IDevity Client");
+		httppost.setHeader(HttpHeaders.CONTENT_TYPE, "application/ocsp-request");
+		httppost.setEntity(new ByteArrayEntity(reqBa));
+		String key = "POST " + url.getNormalizedUri().toASCIIString() + " " + Hex.encodeHexString(reqBa);
+		return executeAsync(inFlight, key, url, httppost, new BufferingConsumer(url, false), callback, new Callable<byte[]>() {
+			public byte[] call() throws HttpClientException {
+				return ocspPost(url, reqBa);
+			}
+		});
+	}
+
+	/**
+	 * Sends an OCSP request to the given responder.
+	 *
+	 * If GET mode is enabled and the request URL is small enough, the
+	 * request is sent with GET as described in RFC 5019, so the
+	 * response can be cached by any HTTP cache between us and the
+	 * responder.  GET responses are kept in a bounded cache of their
+	 * own, rather than the URI cache, since each URL names a single
+	 * request.  While the max-age of a previous response has not
+	 * passed, that response is served without a request, and after
+	 * that it is revalidated with a conditional request.  Larger
+	 * requests are POSTed.
+	 *
+	 * @param url the URI of the OCSP responder
+	 * @param reqBa the DER encoded OCSP request
+	 * @return the response body, or null if the status was not 200
+	 * @throws HttpClientException
+	 */
+	public byte[] ocspRequest(final PkiUri url, final byte[] reqBa) throws HttpClientException {
+		final PkiUri getUrl = getOcspGetUri(url, reqBa);
+		if (getUrl == null) {
+			return ocspPost(url, reqBa);
+		}
+		final String key = getUrl.getNormalizedUri().toASCIIString();
+		byte[] fresh = readFresh(key);
+		if (fresh != null) {
+			return fresh;
+		}
+		return coalesce("OCSP GET " + key, getUrl, new Callable<byte[]>() {
+			public byte[] call() throws HttpClientException {
+				return executeOcspGet(getUrl, key);
+			}
+		});
+	}
+
+	/**
+	 * Sends an OCSP request without blocking, as
+	 * {@link #ocspRequest(PkiUri, byte[])}.
+	 *
+	 * The callback (if any) is called on a reactor thread, so it must
+	 * not block or do any significant work.
+	 *
+	 * @param url the URI of the OCSP responder
+	 * @param reqBa the DER encoded OCSP request
+	 * @param callback called when the request completes, may be null
+	 * @return a future for the response body, which is null if the status was not 200
+	 */
+	public Future<byte[]> ocspRequestAsync(final PkiUri url, final byte[] reqBa, final FutureCallback<byte[]> callback) {
+		PkiUri getUrl = getOcspGetUri(url, reqBa);
+		if (getUrl == null) {
+			return ocspPostAsync(url, reqBa, callback);
+		}
+		String key = getUrl.getNormalizedUri().toASCIIString();
+		byte[] fresh = readFresh(key);
+		if (fresh != null) {
+			BasicFuture<byte[]> result = new BasicFuture<byte[]>(callback);
+			result.completed(fresh);
+			return result;
+		}
+		OCSPGetCache.Response cached = ocspGetCache.get(key);
+		final HttpGet httpget = new HttpGet(getUrl.getUri());
+		httpget.setHeader(HttpHeaders.USER_AGENT, "IDevity Client");
+		setValidators(httpget, cached);
+		return executeAsync(inFlight, "OCSP GET " + key, getUrl, httpget, new OCSPGetConsumer(getUrl, key, cached), callback, new Callable<byte[]>() {
+			public byte[] call() throws HttpClientException {
+				return ocspRequest(url, reqBa);
+			}
+		});
+	}
+
+	/*
+	 * Returns the RFC 5019 GET form of an OCSP request, the responder
+	 * URI followed by the URL encoded base64 of the request, or null if
+	 * GET mode is disabled or the whole URL is too long to be sent with
+	 * GET.
+	 */
+	private PkiUri getOcspGetUri(PkiUri url, byte[] reqBa) {
+		if (!ocspGet) {
+			return null;
+		}
+		try {
+			String encoded = URLEncoder.encode(new String(Base64.encodeBase64(reqBa), "US-ASCII"), "US-ASCII");
+			String base = url.getUri().toASCIIString();
+			if (!base.endsWith("/")) {
+				base = base + "/";
+			}
+			String getUrl = base + encoded;
+			if (getUrl.length() >= MAX_OCSP_GET_LENGTH) {
+				return null;
+			}
+			return new PkiUri(new URI(getUrl), url.getReason(), url.getSubReason());
+		} catch (UnsupportedEncodingException | URISyntaxException e) {
+			LOG.warn("Unable to create GET request for " + url + ", using POST: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Returns the last response to an OCSP GET, if its max-age has not
+	 * passed.
+	 */
+	private byte[] readFresh(String key) {
+		OCSPGetCache.Response cached = ocspGetCache.get(key);
+		if (cached == null || !cached.isFresh(System.currentTimeMillis())) {
+			return null;
+		}
+		LOG.info("Serving fresh OCSP response for " + key);
+		return cached.getBody();
+	}
+
+	/*
+	 * Keeps the response to an OCSP GET, or on a 304 refreshes the
+	 * response we sent the validators of.
+	 */
+	private byte[] cacheOcspResponse(String key, OCSPGetCache.Response cached, URICacheEntry ce, int statusCode, byte[] body) {
+		if (statusCode == 304 && cached != null) {
+			LOG.info("Not Modified: " + key);
+			ocspGetCache.put(key, cached.revalidated(ce));
+			return cached.getBody();
+		} else if (statusCode != 200) {
+			return null;
+		}
+		ocspGetCache.put(key, new OCSPGetCache.Response(body, ce));
+		return body;
+	}
+
+	/**
+	 * @return true if small OCSP requests are sent with GET
+	 */
+	public boolean isOcspGet() {
+		return ocspGet;
+	}
+
+	/**
+	 * @param ocspGet true to send small OCSP requests with GET, false to always POST
+	 */
+	public void setOcspGet(boolean ocspGet) {
+		this.ocspGet = ocspGet;
+	}
+
+	/**
+	 * Downloads the given URI to a temporary file without blocking, as
+	 * {@link #download(PkiUri, boolean)}.  The response body is written
+	 * to the file by the reactor as it arrives.
+	 *
+	 * The callback (if any) is called on a reactor thread, so it must
+	 * hand the artifact off rather than parse it there.  The caller
+	 * must close the artifact, and if the future is cancelled before
+	 * the download completes, the artifact is closed for the caller.
+	 *
+	 * @param url the URI to fetch
+	 * @param conditional true to revalidate using the cached validators
+	 * @param callback called when the request completes, may be null
+	 * @return a future for the artifact, which is null if the status was not 200 or 304
+	 */
+	public Future<DownloadedArtifact> downloadAsync(final PkiUri url, final boolean conditional, final FutureCallback<DownloadedArtifact> callback) {
+		final HttpGet httpget = new HttpGet(url.getUri());
+		httpget.setHeader(HttpHeaders.USER_AGENT, "IDevity Client");
+		if (conditional) {
+			setValidators(httpget, url);
+		}
+		String key = (conditional ? "CONDITIONAL GET " : "GET ") + url.getNormalizedUri().toASCIIString();
+		return executeAsync(downloadsInFlight, key, url, httpget, new DownloadConsumer(url), callback, new Callable<DownloadedArtifact>() {
+			public DownloadedArtifact call() throws HttpClientException {
+				return download(url, conditional);
+			}
+		});
+	}
+
+	/*
+	 * Sends the request on the reactor, or joins the request already in
+	 * flight for the same key.  Each caller gets its own future, so one
+	 * caller cancelling does not affect the others.
+	 */
+	private <T> Future<T> executeAsync(SingleFlight<String, T> flights, String key, final PkiUri url, final HttpUriRequest request,
+			final ResponseConsumer<T> consumer, FutureCallback<T> callback, Callable<T> synchronous) {
+		final BasicFuture<T> result = new BasicFuture<T>(callback);
+		if (asyncClient == null) {
+			/*
+			 * The reactor could not be started, so we send the
+			 * request on the calling thread.
+			 */
+			try {
+				result.completed(synchronous.call());
+			} catch (Exception e) {
+				result.failed(e);
+			}
+			return result;
+		}
+		flights.executeAsync(key, new SingleFlight.AsyncCall<T>() {
+			public void start(final SingleFlight.Landing<T> landing) {
+				try {
+					CircuitBreakerManager.getInstance().checkRequest(url);
+				} catch (HostUnavailableException e) {
+					landing.failed(e);
+					return;
+				}
+				LOG.info("Executing asynchronous request " + request.getRequestLine());
+				asyncClient.execute(HttpAsyncMethods.create(request), consumer, HttpClientContext.create(), new FutureCallback<T>() {
+					public void completed(T response) {
+						landing.completed(response);
+					}
+					public void failed(Exception e) {
+						consumer.recordFailure(e);
+						LOG.fatal("Asynchronous request for [" + url + "] failed: " + e.getMessage());
+						landing.failed(new HttpClientException("Exception while requesting [" + url + "]", e));
+					}
+					public void cancelled() {
+						landing.failed(new HttpClientException("Request for [" + url + "] was cancelled"));
+					}
+				});
+			}
+		}, new SingleFlight.Listener<T>() {
+			public void completed(T response) {
+				if (!result.completed(response) && response instanceof DownloadedArtifact) {
+					((DownloadedArtifact) response).close();
+				}
+			}
+			public void failed(Throwable t) {
+				if (t instanceof Exception) {
+					result.failed((Exception) t);
+				} else {
+					result.failed(new HttpClientException("Exception while requesting [" + url + "]", t));
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Receives a response on the reactor, recording it in the URI cache
+	 * the same way the synchronous requests do, and enforcing the
+	 * maximum artifact size.
+	 */
+	private abstract class ResponseConsumer<T> extends AsyncByteConsumer<T> {
+
+		protected final PkiUri url;
+		private final long startTime = System.currentTimeMillis();
+		private long responseTime = 0;
+		private long numBytes = 0;
+		protected HttpURICacheEntry ce = null;
+		protected int statusCode = 0;
+
+		protected ResponseConsumer(PkiUri url) {
+			super(BUFFER_SIZE);
+			this.url = url;
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+			responseTime = System.currentTimeMillis() - startTime;
+			ce = new HttpURICacheEntry(response, responseTime);
+			record(ce);
+			statusCode = response.getStatusLine().getStatusCode();
+			LOG.info("Status Code " + statusCode + " for " + url.getUri().toASCIIString());
+			HttpEntity entity = response.getEntity();
+			if (entity != null && entity.getContentLength() > maxArtifactBytes) {
+				throw new IOException("Content-Length of " + entity.getContentLength() + " bytes from [" + url + "] exceeds maximum of " + maxArtifactBytes + " bytes");
+			}
+			if (statusCode == 200) {
+				open();
+			}
+		}
+
+		@Override
+		protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
+			numBytes += buf.remaining();
+			if (numBytes > maxArtifactBytes) {
+				throw new IOException("Response from [" + url + "] exceeds maximum of " + maxArtifactBytes + " bytes");
+			}
+			/*
+			 * Anything other than a 200 is discarded.
+			 */
+			if (statusCode == 200) {
+				write(buf);
+			}
+		}
+
+		@Override
+		protected T buildResult(HttpContext context) throws Exception {
+			if (statusCode == 200) {
+				ce.setLastNumBytes(numBytes);
+			}
+			return build(numBytes);
+		}
+
+		protected long getResponseTime() {
+			return (responseTime == 0) ? System.currentTimeMillis() - startTime : responseTime;
+		}
+
+		protected void record(HttpURICacheEntry ce) {
+			recordEntry(url, ce);
+		}
+
+		protected void recordFailure(Exception e) {
+			failedResponse(url, e, getResponseTime());
+		}
+
+		protected abstract void open() throws IOException;
+		protected abstract void write(ByteBuffer buf) throws IOException;
+		protected abstract T build(long numBytes) throws IOException;
+	}
+
+	private class BufferingConsumer extends ResponseConsumer<byte[]> {
+
+		private final boolean store;
+		private ByteArrayOutputStream baos = null;
+
+		private BufferingConsumer(PkiUri url, boolean store) {
+			super(url);
+			this.store = store;
+		}
+
+		protected void open() {
+			baos = new ByteArrayOutputStream();
+		}
+
+		protected void write(ByteBuffer buf) {
+			byte[] bytes = new byte[buf.remaining()];
+			buf.get(bytes);
+			baos.write(bytes, 0, bytes.length);
+		}
+
+		protected byte[] build(long numBytes) {
+			if (statusCode != 200) {
+				return null;
+			}
+			byte[] body = baos.toByteArray();
+			if (store) {
+				storeBody(ce, body);
+			}
+			return body;
+		}
+
+		protected void releaseResources() {
+			baos = null;
+		}
+	}
+
+	/**
+	 * Receives the response to an OCSP GET, which is kept in the OCSP
+	 * GET cache rather than the URI cache.  The response is still
+	 * reported to the circuit breaker for the host.
+	 */
+	private class OCSPGetConsumer extends BufferingConsumer {
+
+		private final String key;
+		private final OCSPGetCache.Response cached;
+
+		private OCSPGetConsumer(PkiUri url, String key, OCSPGetCache.Response cached) {
+			super(url, false);
+			this.key = key;
+			this.cached = cached;
+		}
+
+		protected void record(HttpURICacheEntry ce) {
+			CircuitBreakerManager.getInstance().record(url, ce);
+		}
+
+		protected void recordFailure(Exception e) {
+			if (isHostFailure(e)) {
+				CircuitBreakerManager.getInstance().record(url, failedEntry(e, getResponseTime()));
+			}
+		}
+
+		protected byte[] build(long numBytes) {
+			return cacheOcspResponse(key, cached, ce, statusCode, super.build(numBytes));
+		}
+	}
+
+	private class DownloadConsumer extends ResponseConsumer<DownloadedArtifact> {
+
+		private final URICacheEntry previous;
+		private final MessageDigest md = ArtifactStore.newDigest();
+		private File tmpFile = null;
+		private FileOutputStream out = null;
+		private FileChannel channel = null;
+		private boolean built = false;
+
+		private DownloadConsumer(PkiUri url) {
+			super(url);
+			this.previous = getPrevious(url);
+		}
+
+		protected void open() throws IOException {
+			tmpFile = File.createTempFile("ksvs-", ".download", downloadDirectory);
+			out = new FileOutputStream(tmpFile);
+			channel = out.getChannel();
+		}
+
+		protected void write(ByteBuffer buf) throws IOException {
+			md.update(buf.duplicate());
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}
+
+		protected DownloadedArtifact build(long numBytes) throws IOException {
+			if (statusCode == 304) {
+				LOG.info("Not Modified: " + url.getUri().toASCIIString());
+				return new DownloadedArtifact(url);
+			} else if (statusCode != 200) {
+				return null;
+			}
+			out.close();
+			built = true;
+			LOG.info("Downloaded " + numBytes + " bytes from " + url.getUri().toASCIIString());
+			return storeDownload(url, ce, previous, tmpFile, numBytes, Hex.encodeHexString(md.digest()));
+		}
+
+		protected void releaseResources() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warn("Error closing download of " + url + ": " + e.getMessage());
+				}
+			}
+			if (!built && tmpFile != null && !tmpFile.delete()) {
+				LOG.warn("Unable to delete temporary file: " + tmpFile.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * @return the maximum number of bytes accepted for a single artifact
+	 */
+	public long getMaxArtifactBytes() {
+		return maxArtifactBytes;
+	}
+
+	/**
+	 * @param maxArtifactBytes the maximum number of bytes accepted for a single artifact
+	 */
+	public void setMaxArtifactBytes(long maxArtifactBytes) {
+		this.maxArtifactBytes = maxArtifactBytes;
+	}
+
+	/**
+	 * @return the directory downloads are streamed to
+	 */
+	public File getDownloadDirectory() {
+		return downloadDirectory;
+	}
+
+	/**
+	 * @param downloadDirectory the directory downloads are streamed to
+	 */
+	public void setDownloadDirectory(File downloadDirectory) {
+		this.downloadDirectory = downloadDirectory;
+	}
+
+	private byte[] coalesce(String key, PkiUri url, Callable<byte[]> request) throws HttpClientException {
+		try {
+			return inFlight.execute(key, request);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof HttpClientException) {
+				throw (HttpClientException) e.getCause();
+			}
+			throw new HttpClientException("Exception while requesting [" + url + "]", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HttpClientException("Interrupted while requesting [" + url + "]", e);
+		}
+	}
+
+	/**
+	 * @return the number of requests that were answered by a request
+	 * already in flight for the same URI, rather than sent again.
+	 */
+	public long getCoalescedRequestCount() {
+		return inFlight.getCoalescedCount();
+	}
+
+	/**
+	 * @return the number of requests that were sent.
+	 */
+	public long getExecutedRequestCount() {
+		return inFlight.getExecutedCount();
+	}
+
+	private byte[] executeGet(final PkiUri url) throws HttpClientException {
+
+		CircuitBreakerManager.getInstance().checkRequest(url);
 
 		CloseableHttpResponse response = null;
 		long startTime = 0;
 		long responseTime = 0;
-		uriCm = UriCacheManager.getInstance();
+		UriCacheManager uriCm = UriCacheManager.getInstance();
 		
 
 		try {
@@ -112,10 +815,10 @@ public class HttpClient {
 			httpget.setHeader(HttpHeaders.USER_AGENT, "IDevity Client");
 			LOG.info("Executing request " + httpget.getRequestLine());
 			startTime = System.currentTimeMillis();
-			response = httpClient.execute(httpget, context);
+			response = httpClient.execute(httpget, HttpClientContext.create());
 			responseTime = System.currentTimeMillis() - startTime;
 			HttpURICacheEntry ce = new HttpURICacheEntry(response, responseTime);
-			uriCm.update(url, ce);
+			recordEntry(url, ce);
 
 			final int statusCode = response.getStatusLine().getStatusCode();
 			LOG.info("Status Code " + statusCode);
@@ -130,39 +833,41 @@ public class HttpClient {
 				response.close();
 				return null;
 			} else {
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				response.getEntity().writeTo(baos);
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(initialBufferSize(response.getEntity()));
+				ce.setLastNumBytes(copyEntity(response.getEntity(), baos, url));
 				response.close();
-				return baos.toByteArray();
+				byte[] body = baos.toByteArray();
+				storeBody(ce, body);
+				return body;
 			}
 		}
 		catch (final UnknownHostException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("DNS or Connectivity error?:");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch(final ConnectTimeoutException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch(final SocketTimeoutException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch(final ConnectException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch (final Exception e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Common Error? Catch and re-throw explicitly!:", e);
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
@@ -179,20 +884,318 @@ public class HttpClient {
 		}
 	}
 
-	private void failedResponse(PkiUri uri, String reason, long responseTime) {
-		uriCm = UriCacheManager.getInstance();
-		StatusLine fstatus = new BasicStatusLine(new ProtocolVersion("N/A", 0, 0), 0, reason);
+	/*
+	 * Sends an OCSP GET, conditional on the validators of the response
+	 * we already have for the URL, if any.  Like the asynchronous form,
+	 * this leaves the URI cache alone and only reports to the circuit
+	 * breaker.
+	 */
+	private byte[] executeOcspGet(final PkiUri url, String key) throws HttpClientException {
+
+		CircuitBreakerManager breakers = CircuitBreakerManager.getInstance();
+		breakers.checkRequest(url);
+
+		OCSPGetCache.Response cached = ocspGetCache.get(key);
+		CloseableHttpResponse response = null;
+		long startTime = System.currentTimeMillis();
+
+		try {
+			final HttpGet httpget = new HttpGet(url.getUri());
+			httpget.setHeader(HttpHeaders.USER_AGENT, "IDevity Client");
+			setValidators(httpget, cached);
+			LOG.info("Executing request " + httpget.getRequestLine());
+			response = httpClient.execute(httpget, HttpClientContext.create());
+			HttpURICacheEntry ce = new HttpURICacheEntry(response, System.currentTimeMillis() - startTime);
+			breakers.record(url, ce);
+
+			final int statusCode = response.getStatusLine().getStatusCode();
+			LOG.debug("Status Code " + statusCode);
+			byte[] body = null;
+			if (statusCode == 200) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(initialBufferSize(response.getEntity()));
+				copyEntity(response.getEntity(), baos, url);
+				body = baos.toByteArray();
+			}
+			return cacheOcspResponse(key, cached, ce, statusCode, body);
+		}
+		catch (final IOException e) {
+			if (isHostFailure(e)) {
+				breakers.record(url, failedEntry(e, System.currentTimeMillis() - startTime));
+			}
+			LOG.fatal("OCSP GET for [" + url + "] failed: " + e.getMessage());
+			throw new HttpClientException("Exception while requesting [" + url + "]", e);
+		}
+		finally {
+			try {
+				if (response != null) {
+					response.close();
+				}
+			}
+			catch (final IOException e) {
+				LOG.fatal("Exception when closing response in catch block:", e);
+			}
+		}
+	}
+
+	private DownloadedArtifact executeDownload(final PkiUri url, boolean conditional) throws HttpClientException {
+
+		CircuitBreakerManager.getInstance().checkRequest(url);
+
+		CloseableHttpResponse response = null;
+		long startTime = 0;
+		long responseTime = 0;
+		File tmpFile = null;
+		DownloadedArtifact artifact = null;
+		URICacheEntry previous = getPrevious(url);
+
+		try {
+			final HttpGet httpget = new HttpGet(url.getUri());
+			httpget.setHeader(HttpHeaders.USER_AGENT, "IDevity Client");
+			if (conditional) {
+				setValidators(httpget, url);
+			}
+			LOG.info("Executing request " + httpget.getRequestLine());
+			startTime = System.currentTimeMillis();
+			response = httpClient.execute(httpget, HttpClientContext.create());
+			responseTime = System.currentTimeMillis() - startTime;
+			HttpURICacheEntry ce = new HttpURICacheEntry(response, responseTime);
+			recordEntry(url, ce);
+
+			final int statusCode = response.getStatusLine().getStatusCode();
+			LOG.info("Status Code " + statusCode);
+			LOG.info("Full Response: " + response.toString());
+
+			/*
+			 * Any redirects should be automatically followed.
+			 * A 304 means the content we already have is current.
+			 * Anything other than a 200 or 304 will be considered a fail.
+			 */
+			if (statusCode == 304) {
+				LOG.info("Not Modified: " + url.getUri().toASCIIString());
+				artifact = new DownloadedArtifact(url);
+				return artifact;
+			} else if (statusCode != 200) {
+				return null;
+			}
+			tmpFile = File.createTempFile("ksvs-", ".download", downloadDirectory);
+			MessageDigest md = ArtifactStore.newDigest();
+			OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE), md);
+			long numBytes = 0;
+			try {
+				numBytes = copyEntity(response.getEntity(), out, url);
+			} finally {
+				out.close();
+			}
+			ce.setLastNumBytes(numBytes);
+			LOG.info("Downloaded " + numBytes + " bytes from " + url.getUri().toASCIIString());
+			artifact = storeDownload(url, ce, previous, tmpFile, numBytes, Hex.encodeHexString(md.digest()));
+			return artifact;
+		}
+		catch (final UnknownHostException e) {
+			responseTime = System.currentTimeMillis() - startTime;
+			failedResponse(url, e, responseTime);
+			LOG.fatal("DNS or Connectivity error?:");
+			throw new HttpClientException("Exception while requesting [" + url + "]", e);
+		}
+		catch(final ConnectTimeoutException e) {
+			responseTime = System.currentTimeMillis() - startTime;
+			failedResponse(url, e, responseTime);
+			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
+			throw new HttpClientException("Exception while requesting [" + url + "]", e);
+		}
+		catch(final SocketTimeoutException e) {
+			responseTime = System.currentTimeMillis() - startTime;
+			failedResponse(url, e, responseTime);
+			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
+			throw new HttpClientException("Exception while requesting [" + url + "]", e);
+		}
+		catch(final ConnectException e) {
+			responseTime = System.currentTimeMillis() - startTime;
+			failedResponse(url, e, responseTime);
+			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
+			throw new HttpClientException("Exception while requesting [" + url + "]", e);
+		}
+		catch (final Exception e) {
+			responseTime = System.currentTimeMillis() - startTime;
+			failedResponse(url, e, responseTime);
+			LOG.fatal("Common Error? Catch and re-throw explicitly!:", e);
+			throw new HttpClientException("Exception while requesting [" + url + "]", e);
+		}
+		finally {
+			if (artifact == null && tmpFile != null && !tmpFile.delete()) {
+				LOG.warn("Unable to delete temporary file: " + tmpFile.getAbsolutePath());
+			}
+			try {
+				if (response != null) {
+					response.close();
+				}
+			}
+			catch (final IOException e) {
+				LOG.fatal("Exception when closing response in catch block:", e);
+				throw new HttpClientException("Exception while closing response for [" + url + "]", e);
+			}
+		}
+	}
+
+	/*
+	 * Makes the request conditional on the ETag and Last-Modified
+	 * values from the last successful response for the URI, if any.
+	 * UriCacheManager.update() carries those across failed fetches.
+	 */
+	private void setValidators(HttpGet httpget, PkiUri url) {
+		URICacheEntry previous = UriCacheManager.getInstance().getUriCache().getUriCacheEntry(url);
+		if (previous != null) {
+			if (previous.getETag() != null) {
+				httpget.setHeader(HttpHeaders.IF_NONE_MATCH, previous.getETag());
+			}
+			if (previous.getLastModified() != null) {
+				httpget.setHeader(HttpHeaders.IF_MODIFIED_SINCE, previous.getLastModified());
+			}
+		}
+	}
+
+	/*
+	 * Makes an OCSP GET conditional on the validators of the response
+	 * we already have, if any.
+	 */
+	private static void setValidators(HttpGet httpget, OCSPGetCache.Response cached) {
+		if (cached != null) {
+			if (cached.getETag() != null) {
+				httpget.setHeader(HttpHeaders.IF_NONE_MATCH, cached.getETag());
+			}
+			if (cached.getLastModified() != null) {
+				httpget.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+			}
+		}
+	}
+
+	/**
+	 * Copies the response entity to the output stream, enforcing the
+	 * maximum artifact size both on the advertised Content-Length and
+	 * on the number of bytes actually received.
+	 *
+	 * @return the number of bytes copied
+	 */
+	private long copyEntity(HttpEntity entity, OutputStream out, PkiUri url) throws IOException, HttpClientException {
+		if (entity == null) {
+			return 0;
+		}
+		if (entity.getContentLength() > maxArtifactBytes) {
+			throw new HttpClientException("Content-Length of " + entity.getContentLength() + " bytes from [" + url + "] exceeds maximum of " + maxArtifactBytes + " bytes");
+		}
+		/*
+		 * NOTE: The content stream is only closed once it has been
+		 * fully read.  Closing it early would consume the rest of an
+		 * oversized body; instead, closing the response shuts down
+		 * the connection.
+		 */
+		InputStream in = entity.getContent();
+		long numBytes = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read = 0;
+		while ((read = in.read(buffer)) != -1) {
+			numBytes += read;
+			if (numBytes > maxArtifactBytes) {
+				throw new HttpClientException("Response from [" + url + "] exceeds maximum of " + maxArtifactBytes + " bytes");
+			}
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return numBytes;
+	}
+
+	private int initialBufferSize(HttpEntity entity) {
+		if (entity != null && entity.getContentLength() > 0 && entity.getContentLength() <= maxArtifactBytes) {
+			return (int) entity.getContentLength();
+		}
+		return 32;
+	}
+
+	private URICacheEntry getPrevious(PkiUri url) {
+		return UriCacheManager.getInstance().getUriCache().getUriCacheEntry(url);
+	}
+
+	/*
+	 * Places downloaded content in the ArtifactStore.  If the store is
+	 * not available, the artifact keeps its temporary file.
+	 *
+	 * New content is not recorded in the URI cache entry until the
+	 * caller commits the artifact, so until then the entry keeps the
+	 * digest of the last content that was processed, and has no
+	 * validators, since those it was sent with are for content we
+	 * have not processed.
+	 */
+	private DownloadedArtifact storeDownload(PkiUri url, URICacheEntry ce, URICacheEntry previous, File tmpFile, long numBytes, String digest) {
+		boolean unchanged = previous != null && digest.equals(previous.getDigest());
+		File stored = ArtifactStore.getInstance().put(tmpFile, digest);
+		File file = (stored == null) ? tmpFile : stored;
+		if (unchanged) {
+			LOG.info("Content from " + url.getUri().toASCIIString() + " is unchanged: " + digest);
+			return new DownloadedArtifact(url, file, numBytes, digest, true, stored != null);
+		}
+		String eTag = ce.getETag();
+		String lastModified = ce.getLastModified();
+		ce.setDigest((previous == null) ? null : previous.getDigest());
+		ce.setETag(null);
+		ce.setLastModified(null);
+		return new DownloadedArtifact(url, file, numBytes, digest, stored != null, ce, eTag, lastModified);
+	}
+
+	private void storeBody(URICacheEntry ce, byte[] body) {
+		String digest = ArtifactStore.getInstance().put(body);
+		if (digest != null) {
+			ce.setDigest(digest);
+		}
+	}
+
+	/*
+	 * Records the entry for a request in the URI cache, and reports it
+	 * to the circuit breaker for the host.
+	 */
+	private void recordEntry(PkiUri uri, URICacheEntry entry) {
+		UriCacheManager.getInstance().update(uri, entry);
+		CircuitBreakerManager.getInstance().record(uri, entry);
+	}
+
+	/*
+	 * Records a request that failed without a response in the URI
+	 * cache.  Only a failure to reach the host counts against its
+	 * circuit breaker; a failure on our side, such as a response that
+	 * is too large or a temporary file we could not write, says nothing
+	 * about the host.
+	 */
+	private void failedResponse(PkiUri uri, Exception e, long responseTime) {
+		HttpURICacheEntry fce = failedEntry(e, responseTime);
+		UriCacheManager.getInstance().update(uri, fce);
+		if (isHostFailure(e)) {
+			CircuitBreakerManager.getInstance().record(uri, fce);
+		}
+	}
+
+	private static HttpURICacheEntry failedEntry(Exception e, long responseTime) {
+		StatusLine fstatus = new BasicStatusLine(new ProtocolVersion("N/A", 0, 0), 0, e.getMessage());
 		HttpResponse fres = new BasicHttpResponse(fstatus);
-		HttpURICacheEntry fce = new HttpURICacheEntry(fres, responseTime);
-		uriCm.update(uri, fce);
+		return new HttpURICacheEntry(fres, responseTime);
 	}
 
-	public byte[] ocspPost(final PkiUri url, byte[] reqBa) throws HttpClientException {
+	/*
+	 * Connect errors (including DNS) and timeouts are the host's fault.
+	 */
+	private static boolean isHostFailure(Exception e) {
+		return e instanceof UnknownHostException ||
+				e instanceof ConnectException ||
+				e instanceof ConnectTimeoutException ||
+				e instanceof SocketTimeoutException;
+	}
+
+	private byte[] executePost(final PkiUri url, byte[] reqBa) throws HttpClientException {
+
+		CircuitBreakerManager.getInstance().checkRequest(url);
 
 		CloseableHttpResponse response = null;
 		long startTime = 0;
 		long responseTime = 0;
-		uriCm = UriCacheManager.getInstance();
+		UriCacheManager uriCm = UriCacheManager.getInstance();
 
 		try {
 			final HttpPost httppost = new HttpPost(url.getUri());
@@ -203,10 +1206,10 @@ public class HttpClient {
 			LOG.info("Executing request " + httppost.getRequestLine());
 
 			startTime = System.currentTimeMillis();
-			response = httpClient.execute(httppost, context);
+			response = httpClient.execute(httppost, HttpClientContext.create());
 			responseTime = System.currentTimeMillis() - startTime;
 			HttpURICacheEntry ce = new HttpURICacheEntry(response, responseTime);
-			uriCm.update(url, ce);
+			recordEntry(url, ce);
 
 			final int statusCode = response.getStatusLine().getStatusCode();
 			LOG.debug("Status Code " + statusCode);
@@ -221,39 +1224,39 @@ public class HttpClient {
 				response.close();
 				return null;
 			} else {
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				response.getEntity().writeTo(baos);
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(initialBufferSize(response.getEntity()));
+				ce.setLastNumBytes(copyEntity(response.getEntity(), baos, url));
 				response.close();
 				return baos.toByteArray();
 			}
 		}
 		catch (final UnknownHostException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("DNS or Connectivity error?:");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch(final ConnectTimeoutException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch(final SocketTimeoutException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch(final ConnectException e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Timeout Reached: Current Timeout: " + timeout + " seconds: ");
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
 		catch (final Exception e) {
 			responseTime = System.currentTimeMillis() - startTime;
-			failedResponse(url, e.getMessage(), responseTime);
+			failedResponse(url, e, responseTime);
 			LOG.fatal("Common Error? Catch and re-throw explicitly!:", e);
 			throw new HttpClientException("Exception while requesting [" + url + "]", e);
 		}
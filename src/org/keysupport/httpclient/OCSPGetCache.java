@@ -0,0 +1,105 @@
+package org.keysupport.httpclient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.keysupport.pki.validation.cache.URICacheEntry;
+
+/**
+ * The responses to OCSP requests sent with GET, keyed by the request
+ * URL.
+ *
+ * Each GET URL names a single request, so these are kept apart from
+ * the URI cache and the ArtifactStore, which hold one entry for each
+ * repository we fetch from and are persisted with the cache snapshot.
+ * The least recently used response is dropped once the cache is full.
+ */
+class OCSPGetCache {
+
+	private final Map<String, Response> entries;
+
+	OCSPGetCache(final int maxEntries) {
+		this.entries = new LinkedHashMap<String, Response>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param key the normalized GET URL
+	 * @return the last response for the URL, or null
+	 */
+	synchronized Response get(String key) {
+		return entries.get(key);
+	}
+
+	synchronized void put(String key, Response response) {
+		entries.put(key, response);
+	}
+
+	/**
+	 * A response body, with the validators and the max-age that came
+	 * with it.
+	 */
+	static class Response {
+
+		private final byte[] body;
+		private final String eTag;
+		private final String lastModified;
+		private final long freshUntil;
+
+		Response(byte[] body, URICacheEntry ce) {
+			this(body, ce.getETag(), ce.getLastModified(), ce);
+		}
+
+		private Response(byte[] body, String eTag, String lastModified, URICacheEntry ce) {
+			this.body = body;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.freshUntil = (ce.getNextUpdate() == null) ? 0 : ce.getNextUpdate().getTime();
+		}
+
+		/**
+		 * @param ce the entry for a 304 response to a conditional request
+		 * @return this response, fresh for the max-age of the 304
+		 */
+		Response revalidated(URICacheEntry ce) {
+			return new Response(body,
+					(ce.getETag() == null) ? eTag : ce.getETag(),
+					(ce.getLastModified() == null) ? lastModified : ce.getLastModified(), ce);
+		}
+
+		/**
+		 * @return true if the max-age of the response has not passed
+		 */
+		boolean isFresh(long now) {
+			return now < freshUntil;
+		}
+
+		/**
+		 * @return the body
+		 */
+		byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * @return the eTag
+		 */
+		String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * @return the lastModified
+		 */
+		String getLastModified() {
+			return lastModified;
+		}
+	}
+
+}
@@ -1,6 +1,8 @@
 package org.keysupport.httpclient;
 
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
 
 /**
  * There may be a CDP defined for a particular revocation reason.
@@ -101,6 +103,45 @@ public class PkiUri {
 		this.uri = uri;
 	}
 
+	/**
+	 * Returns the URI in a normalized form, suitable for use as a key
+	 * when comparing URIs found in different certificates.  The scheme
+	 * and host are lower cased, default ports are removed, and the path
+	 * is normalized.
+	 *
+	 * @return the normalized uri
+	 */
+	public URI getNormalizedUri() {
+		URI normalized = uri.normalize();
+		if (normalized.getScheme() == null || normalized.getHost() == null) {
+			return normalized;
+		}
+		String scheme = normalized.getScheme().toLowerCase(Locale.US);
+		String host = normalized.getHost().toLowerCase(Locale.US);
+		int port = normalized.getPort();
+		if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443)) {
+			port = -1;
+		}
+		StringBuffer sb = new StringBuffer();
+		sb.append(scheme + "://" + host);
+		if (port != -1) {
+			sb.append(":" + port);
+		}
+		if (normalized.getRawPath() == null || normalized.getRawPath().isEmpty()) {
+			sb.append("/");
+		} else {
+			sb.append(normalized.getRawPath());
+		}
+		if (normalized.getRawQuery() != null) {
+			sb.append("?" + normalized.getRawQuery());
+		}
+		try {
+			return new URI(sb.toString());
+		} catch (URISyntaxException e) {
+			return normalized;
+		}
+	}
+
 	/**
 	 * @return the reason
 	 */
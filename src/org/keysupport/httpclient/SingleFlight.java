@@ -0,0 +1,344 @@
+package org.keysupport.httpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution.
+ *
+ * The first caller for a key runs the call on its own thread, and any
+ * caller that arrives while that call is still in flight waits on the
+ * same future and receives the same result (or exception).  Once the
+ * call completes, the key is released and the next caller starts a
+ * new execution; nothing is cached beyond the life of the call.
+ *
+ * Calls may also be started without blocking, in which case the call
+ * reports its result through a {@link Landing}, and each caller is
+ * told of the result through its {@link Listener}.  Blocking and
+ * non-blocking callers for the same key share the same flight.
+ *
+ * If the result implements {@link SharedResult}, it is told how many
+ * callers received it before any of them can see it, so that results
+ * holding resources (such as a temporary file) can be released by the
+ * last caller to finish with them.  A caller that stops waiting for
+ * the result (because it was interrupted) gives up its share, so the
+ * result is still released once the others are done with it.
+ *
+ * @param <K> the key type
+ * @param <V> the result type
+ */
+public class SingleFlight<K, V> {
+
+	private static final Log LOG = LogFactory.getLog(SingleFlight.class);
+
+	private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<K, Flight<V>>();
+	private final AtomicLong executed = new AtomicLong(0);
+	private final AtomicLong coalesced = new AtomicLong(0);
+
+	/**
+	 * A result that is handed to more than one caller.
+	 */
+	public interface SharedResult {
+		/**
+		 * Called once, before the result is returned to any caller.
+		 *
+		 * @param callers the number of callers receiving this result
+		 */
+		public void share(int callers);
+		/**
+		 * Releases the share of a caller that was counted by share(),
+		 * but stopped waiting before it received the result.
+		 */
+		public void release();
+	}
+
+	/**
+	 * Receives the result of a call started with executeAsync().
+	 */
+	public interface Listener<V> {
+		/**
+		 * @param result the result of the call
+		 */
+		public void completed(V result);
+		/**
+		 * @param t the exception thrown by the call
+		 */
+		public void failed(Throwable t);
+	}
+
+	/**
+	 * Reports the result of a call started with executeAsync().  Exactly
+	 * one of the methods must be called, once, when the call finishes.
+	 */
+	public interface Landing<V> {
+		public void completed(V result);
+		public void failed(Throwable t);
+	}
+
+	/**
+	 * A call that runs without blocking the thread that starts it.
+	 */
+	public interface AsyncCall<V> {
+		/**
+		 * Start the call, which reports its result to the landing.
+		 *
+		 * @param landing the landing to report the result to
+		 */
+		public void start(Landing<V> landing);
+	}
+
+	/**
+	 * Execute the call, or wait for the call already in flight for
+	 * the same key.
+	 *
+	 * @param key the key identifying the call
+	 * @param call the call to execute if no call is in flight for the key
+	 * @return the result of the call
+	 * @throws ExecutionException if the call threw an exception
+	 * @throws InterruptedException if interrupted while waiting for the result
+	 */
+	public V execute(K key, Callable<V> call) throws ExecutionException, InterruptedException {
+		Flight<V> flight = new Flight<V>();
+		while (true) {
+			Flight<V> existing = inFlight.putIfAbsent(key, flight);
+			if (existing == null) {
+				break;
+			}
+			if (existing.join()) {
+				coalesced.incrementAndGet();
+				LOG.debug("Coalescing request for: " + key);
+				boolean received = false;
+				try {
+					V result = existing.get();
+					received = true;
+					return result;
+				} finally {
+					if (!received) {
+						existing.abandon();
+					}
+				}
+			}
+			/*
+			 * The flight we found landed before we could join it,
+			 * so wait for it to leave the map and try again.
+			 */
+			inFlight.remove(key, existing);
+		}
+		executed.incrementAndGet();
+		V result = null;
+		Throwable failure = null;
+		try {
+			result = call.call();
+		} catch (Throwable t) {
+			failure = t;
+		}
+		land(key, flight, result, failure);
+		return flight.get();
+	}
+
+	/**
+	 * Start the call without blocking, or join the call already in
+	 * flight for the same key.  The listener is called with the result
+	 * on whichever thread the call lands on, so it must not block.
+	 *
+	 * @param key the key identifying the call
+	 * @param call the call to start if no call is in flight for the key
+	 * @param listener told of the result of the call
+	 */
+	public void executeAsync(final K key, AsyncCall<V> call, Listener<V> listener) {
+		final Flight<V> flight = new Flight<V>();
+		flight.listen(listener);
+		while (true) {
+			Flight<V> existing = inFlight.putIfAbsent(key, flight);
+			if (existing == null) {
+				break;
+			}
+			if (existing.join(listener)) {
+				coalesced.incrementAndGet();
+				LOG.debug("Coalescing asynchronous request for: " + key);
+				return;
+			}
+			inFlight.remove(key, existing);
+		}
+		executed.incrementAndGet();
+		final AtomicBoolean landed = new AtomicBoolean(false);
+		Landing<V> landing = new Landing<V>() {
+			public void completed(V result) {
+				if (landed.compareAndSet(false, true)) {
+					land(key, flight, result, null);
+				}
+			}
+			public void failed(Throwable t) {
+				if (landed.compareAndSet(false, true)) {
+					land(key, flight, null, t);
+				}
+			}
+		};
+		try {
+			call.start(landing);
+		} catch (Throwable t) {
+			landing.failed(t);
+		}
+	}
+
+	/*
+	 * Closes the flight to new callers, releases the key, and hands
+	 * the result to every caller.
+	 */
+	private void land(K key, Flight<V> flight, V result, Throwable failure) {
+		int callers = flight.land();
+		inFlight.remove(key, flight);
+		if (failure != null) {
+			flight.fail(failure);
+		} else {
+			if (result instanceof SharedResult) {
+				((SharedResult) result).share(callers);
+			}
+			flight.complete(result);
+		}
+	}
+
+	/**
+	 * @return the number of calls that were actually executed
+	 */
+	public long getExecutedCount() {
+		return executed.get();
+	}
+
+	/**
+	 * @return the number of calls that waited on a call already in flight
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of calls currently in flight
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * A call in flight, the number of callers waiting on it, and the
+	 * listeners of the callers that are not blocked on it.
+	 */
+	private static class Flight<V> extends FutureTask<V> {
+
+		private static final Runnable NOOP = new Runnable() {
+			public void run() {
+			}
+		};
+
+		private int callers = 1;
+		private boolean landed = false;
+		private final List<Listener<V>> listeners = new ArrayList<Listener<V>>();
+
+		private Flight() {
+			super(NOOP, null);
+		}
+
+		private synchronized boolean join() {
+			if (landed) {
+				return false;
+			}
+			callers++;
+			return true;
+		}
+
+		private synchronized boolean join(Listener<V> listener) {
+			if (!join()) {
+				return false;
+			}
+			listeners.add(listener);
+			return true;
+		}
+
+		private synchronized void listen(Listener<V> listener) {
+			listeners.add(listener);
+		}
+
+		private synchronized int land() {
+			landed = true;
+			return callers;
+		}
+
+		/*
+		 * Gives up the share of a caller that stopped waiting.  If the
+		 * flight has not landed, the caller is just not counted.
+		 * Otherwise it was counted, and the result (which is set right
+		 * after the flight lands) is released on its behalf.
+		 */
+		private void abandon() {
+			synchronized (this) {
+				if (!landed) {
+					callers--;
+					return;
+				}
+			}
+			boolean interrupted = false;
+			while (true) {
+				try {
+					V result = get();
+					if (result instanceof SharedResult) {
+						((SharedResult) result).release();
+					}
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/*
+		 * No listener is added once the flight has landed, so the
+		 * list can be read without the lock once we are done.
+		 */
+		@Override
+		protected void done() {
+			V result = null;
+			Throwable failure = null;
+			try {
+				result = get();
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+			} catch (InterruptedException e) {
+				failure = e;
+			}
+			for (Listener<V> listener: listeners) {
+				try {
+					if (failure != null) {
+						listener.failed(failure);
+					} else {
+						listener.completed(result);
+					}
+				} catch (RuntimeException e) {
+					LOG.warn("Listener failed: " + e.getMessage(), e);
+				}
+			}
+		}
+
+		private void complete(V result) {
+			set(result);
+		}
+
+		private void fail(Throwable t) {
+			setException(t);
+		}
+	}
+
+}
@@ -1,15 +1,29 @@
 package org.keysupport.pki.ocsp;
 
 import java.io.IOException;
-import java.security.cert.CertificateException;
+import java.net.URI;
 import java.security.cert.X509Certificate;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
 import org.bouncycastle.asn1.ocsp.CertID;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cert.ocsp.BasicOCSPResp;
 import org.bouncycastle.cert.ocsp.CertificateID;
 import org.bouncycastle.cert.ocsp.CertificateStatus;
@@ -17,13 +31,15 @@ import org.bouncycastle.cert.ocsp.OCSPException;
 import org.bouncycastle.cert.ocsp.OCSPReq;
 import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
 import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
 import org.bouncycastle.cert.ocsp.SingleResp;
-import org.bouncycastle.ocsp.OCSPRespStatus;
-import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
 import org.keysupport.httpclient.HttpClient;
 import org.keysupport.httpclient.HttpClientException;
 import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.validation.ParsedCertificate;
+import org.keysupport.pki.validation.cache.CacheGeneration;
 import org.keysupport.pki.validation.cache.CertificateCache;
 import org.keysupport.pki.validation.cache.CertificateCacheManager;
 
@@ -36,119 +52,403 @@ public class OCSPClient {
 	public static final int REVOKED = 1;
 	public static final int UNKNOWN = 2;
 
+	private static final int DEFAULT_MAX_BATCH_SIZE = 20;
+	/*
+	 * Allowed difference between our clock and the responder's when
+	 * checking thisUpdate and nextUpdate.
+	 */
+	private static final long MAX_CLOCK_SKEW = TimeUnit.MINUTES.toMillis(5);
+
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
 	public OCSPClient() {
 		client = HttpClient.getInstance();
 	}
 
+	/**
+	 * @return the maximum number of certificates sent in a single request
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of certificates sent in a single request.
+	 * Some responders refuse requests with more than one certificate,
+	 * in which case this should be 1.
+	 *
+	 * @param maxBatchSize the maximum number of certificates sent in a single request
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+	}
+
 	public int checkRevocation(CertificateCache ca, X509Certificate clientCert,
 			PkiUri ocspUri) throws OCSPClientException {
 
-		int revocationStatus = OCSPClient.UNKNOWN;
 		long ocspStart = System.currentTimeMillis();
+		CertificateID id = getCertificateID(ca, clientCert);
+		Integer cached = OCSPResponseCache.getInstance().getStatus(id.toASN1Object());
+		if (cached != null) {
+			return cached.intValue();
+		}
+		byte[] resBa = null;
+		try {
+			resBa = client.ocspRequest(ocspUri, buildRequest(id));
+		} catch (HttpClientException e) {
+			throw new OCSPClientException(e);
+		}
+		int revocationStatus = processResponse(ca, id, clientCert, resBa);
+		LOG.info("OCSP Check for " + clientCert.getSubjectX500Principal().getName() + " took " + (System.currentTimeMillis() - ocspStart) + " milliseconds.");
+		return revocationStatus;
+	}
 
+	/**
+	 * Checks the revocation status of a certificate without blocking.
+	 *
+	 * The request is sent by the asynchronous HttpClient, so many
+	 * checks can be outstanding on a few threads.  The response is
+	 * processed, and the callback (if any) is called, on a reactor
+	 * thread, so the callback must not block.
+	 *
+	 * @param ca the issuer of the certificate
+	 * @param clientCert the certificate to check
+	 * @param ocspUri the URI of the OCSP responder
+	 * @param callback called with GOOD, REVOKED or UNKNOWN, may be null
+	 * @return a future for the revocation status
+	 */
+	public Future<Integer> checkRevocationAsync(final CertificateCache ca, final X509Certificate clientCert,
+			PkiUri ocspUri, FutureCallback<Integer> callback) {
+
+		final BasicFuture<Integer> result = new BasicFuture<Integer>(callback);
+		final long ocspStart = System.currentTimeMillis();
+		final CertificateID id;
+		byte[] reqBa = null;
+		try {
+			id = getCertificateID(ca, clientCert);
+			Integer cached = OCSPResponseCache.getInstance().getStatus(id.toASN1Object());
+			if (cached != null) {
+				result.completed(cached);
+				return result;
+			}
+			reqBa = buildRequest(id);
+		} catch (OCSPClientException e) {
+			result.failed(e);
+			return result;
+		}
+		client.ocspRequestAsync(ocspUri, reqBa, new FutureCallback<byte[]>() {
+			public void completed(byte[] resBa) {
+				try {
+					int revocationStatus = processResponse(ca, id, clientCert, resBa);
+					LOG.info("OCSP Check for " + clientCert.getSubjectX500Principal().getName() + " took " + (System.currentTimeMillis() - ocspStart) + " milliseconds.");
+					result.completed(Integer.valueOf(revocationStatus));
+				} catch (OCSPClientException e) {
+					result.failed(e);
+				}
+			}
+			public void failed(Exception e) {
+				result.failed(new OCSPClientException(e));
+			}
+			public void cancelled() {
+				result.cancel();
+			}
+		});
+		return result;
+	}
+
+	/*
+	 * The issuerNameHash and issuerKeyHash are hashes of the CA's own
+	 * subject DN and key.  The subject CertID of the CA's cache entry
+	 * is of no use here, since it has the hashes of the CA's issuer.
+	 */
+	private CertificateID getCertificateID(CertificateCache ca, X509Certificate clientCert) throws OCSPClientException {
+		if (!ca.getSubject().equals(clientCert.getIssuerX500Principal())) {
+			throw new OCSPClientException(ca.getSubject().getName() + " is not the issuer of " + clientCert.getSubjectX500Principal().getName());
+		}
+		return new CertificateID(new CertID(CertificateID.HASH_SHA1,
+				new DEROctetString(OCSPResponder.getNameHash(ca)),
+				new DEROctetString(OCSPResponder.getKeyHash(ca)),
+				new ASN1Integer(clientCert.getSerialNumber())));
+	}
+
+	/**
+	 * Checks the revocation status of many certificates, sending one
+	 * request for each group of certificates with the same issuer and
+	 * OCSP responder, of up to getMaxBatchSize() certificates each.  The
+	 * requests are all sent at once by the asynchronous HttpClient.
+	 *
+	 * Certificates with a current status in the OCSPResponseCache are
+	 * not requested again.
+	 *
+	 * @param certs the certificates to check, each mapped to its issuer
+	 * @return GOOD, REVOKED or UNKNOWN for each certificate that could be checked; certificates without an OCSP URI, or whose request failed, are left out
+	 */
+	public Map<X509Certificate, Integer> checkRevocation(Map<X509Certificate, CertificateCache> certs) {
+		long ocspStart = System.currentTimeMillis();
+		Map<X509Certificate, Integer> statuses = new LinkedHashMap<X509Certificate, Integer>();
+		/*
+		 * Group the certificates we have no status for by
+		 * issuer and responder.
+		 */
+		Map<SimpleImmutableEntry<CertID, URI>, List<PendingCheck>> groups = new LinkedHashMap<SimpleImmutableEntry<CertID, URI>, List<PendingCheck>>();
+		for (Map.Entry<X509Certificate, CertificateCache> entry: certs.entrySet()) {
+			X509Certificate cert = entry.getKey();
+			CertificateCache ca = entry.getValue();
+			PkiUri[] ocspUris = ParsedCertificate.parse(cert).getOcspUris();
+			if (ca == null || ocspUris == null || ocspUris.length == 0) {
+				continue;
+			}
+			CertificateID id = null;
+			try {
+				id = getCertificateID(ca, cert);
+			} catch (OCSPClientException e) {
+				LOG.warn(e.getMessage());
+				continue;
+			}
+			Integer cached = OCSPResponseCache.getInstance().getStatus(id.toASN1Object());
+			if (cached != null) {
+				statuses.put(cert, cached);
+				continue;
+			}
+			SimpleImmutableEntry<CertID, URI> key = new SimpleImmutableEntry<CertID, URI>(ca.getSubjectCertId(), ocspUris[0].getUri());
+			List<PendingCheck> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<PendingCheck>();
+				groups.put(key, group);
+			}
+			group.add(new PendingCheck(cert, ca, id, ocspUris[0]));
+		}
+		/*
+		 * Send a request for each batch, then wait for them all.
+		 */
+		List<List<PendingCheck>> batches = new ArrayList<List<PendingCheck>>();
+		List<Future<byte[]>> responses = new ArrayList<Future<byte[]>>();
+		int batchSize = this.maxBatchSize;
+		for (List<PendingCheck> group: groups.values()) {
+			for (int b = 0; b < group.size(); b += batchSize) {
+				List<PendingCheck> batch = group.subList(b, Math.min(b + batchSize, group.size()));
+				List<CertificateID> ids = new ArrayList<CertificateID>(batch.size());
+				for (PendingCheck check: batch) {
+					ids.add(check.id);
+				}
+				try {
+					responses.add(client.ocspRequestAsync(batch.get(0).ocspUri, buildRequest(ids), null));
+					batches.add(batch);
+				} catch (OCSPClientException e) {
+					LOG.fatal("Error building OCSP request for " + batch.get(0).ocspUri + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		for (int b = 0; b < batches.size(); b++) {
+			List<PendingCheck> batch = batches.get(b);
+			List<CertID> requested = new ArrayList<CertID>(batch.size());
+			for (PendingCheck check: batch) {
+				requested.add(check.id.toASN1Object());
+			}
+			Map<CertID, Integer> results = null;
+			try {
+				results = processResponse(responses.get(b).get(), batch.get(0).issuer, requested);
+			} catch (ExecutionException e) {
+				LOG.fatal("OCSP request to " + batch.get(0).ocspUri + " failed: " + e.getCause().getMessage(), e.getCause());
+				continue;
+			} catch (OCSPClientException e) {
+				LOG.fatal("Error processing OCSP response from " + batch.get(0).ocspUri + ": " + e.getMessage(), e);
+				continue;
+			} catch (InterruptedException e) {
+				LOG.fatal("Interrupted waiting for OCSP response: " + e.getMessage(), e);
+				Thread.currentThread().interrupt();
+				for (Future<byte[]> response: responses.subList(b, responses.size())) {
+					response.cancel(false);
+				}
+				break;
+			}
+			for (PendingCheck check: batch) {
+				Integer status = results.get(check.id.toASN1Object());
+				statuses.put(check.cert, (status == null) ? Integer.valueOf(OCSPClient.UNKNOWN) : status);
+			}
+		}
+		LOG.info("OCSP Check for " + certs.size() + " certificates took " + batches.size() + " requests and " + (System.currentTimeMillis() - ocspStart) + " milliseconds.");
+		return statuses;
+	}
+
+	/**
+	 * Checks the revocation status of every intermediate in a cache
+	 * generation that has an OCSP URI, in as few requests as the
+	 * responders allow.
+	 *
+	 * @param generation
+	 * @return GOOD, REVOKED or UNKNOWN for each intermediate that could be checked
+	 */
+	public Map<X509Certificate, Integer> checkRevocation(CacheGeneration generation) {
+		Map<CertID, CertificateCache> fCache = generation.getFlattenedCache();
+		Map<X509Certificate, CertificateCache> certs = new LinkedHashMap<X509Certificate, CertificateCache>();
+		for (CertificateCache entry: generation.getIntermediates()) {
+			CertificateCache issuer = fCache.get(entry.getIssuerCertId());
+			if (issuer == null && entry.getIssuerCertId().equals(generation.getCache().getSubjectCertId())) {
+				issuer = generation.getCache();
+			}
+			if (issuer != null) {
+				certs.put(entry.getCertificate(), issuer);
+			}
+		}
+		return checkRevocation(certs);
+	}
+
+	private byte[] buildRequest(CertificateID id) throws OCSPClientException {
+		return buildRequest(Collections.singletonList(id));
+	}
+
+	private byte[] buildRequest(List<CertificateID> ids) throws OCSPClientException {
 		try {
-			// writer.println("getOcspUris: " + uri.toString());
-			// HttpClient http = HttpClient.getInstance();
 			OCSPReqBuilder gen = new OCSPReqBuilder();
-			CertificateID id = new CertificateID(new CertID(ca
-					.getSubjectCertId().getHashAlgorithm(), ca
-					.getSubjectCertId().getIssuerNameHash(), ca
-					.getSubjectCertId().getIssuerKeyHash(), new ASN1Integer(
-					clientCert.getSerialNumber())));
-			// ca.getSubjectCertId().getIssuerNameHash()//ValidationUtils.getCertIdentifier(ca.getCertificate(),
-			// clientCert);
-			// new CertificateID(digCalcProv.get(CertificateID.HASH_SHA1),
-			// caCert, clientCert.getSerialNumber());
-			gen.addRequest(id);
+			for (CertificateID id: ids) {
+				gen.addRequest(id);
+			}
 			OCSPReq req = gen.build();
-			byte[] reqBa = req.getEncoded();
+			return req.getEncoded();
+		} catch (OCSPException e) {
+			throw new OCSPClientException(e);
+		} catch (IOException e) {
+			throw new OCSPClientException(e);
+		}
+	}
+
+	private int processResponse(CertificateCache ca, CertificateID id, X509Certificate clientCert, byte[] resBa) throws OCSPClientException {
+		Integer status = processResponse(resBa, ca, Collections.singletonList(id.toASN1Object())).get(id.toASN1Object());
+		int revocationStatus = (status == null) ? OCSPClient.UNKNOWN : status.intValue();
+		LOG.info("OCSP Response for " + clientCert.getSubjectX500Principal().getName() + ": " + getStatusName(revocationStatus));
+		return revocationStatus;
+	}
 
-			//ASN1InputStream bIn = null;
-			//ASN1Primitive obj = null;
-			// writer.println("OCSP Request:");
-			//bIn = new ASN1InputStream(new ByteArrayInputStream(reqBa));
-			//obj = bIn.readObject();
-			// writer.println(ASN1Dump.dumpAsString(obj, true));
+	/*
+	 * Verifies the response, and returns the status of each certificate
+	 * we asked about, by the CertID we asked with.
+	 *
+	 * A SingleResp is only used if its CertID is one we asked about,
+	 * and names the issuer the response was verified for, so a responder
+	 * for one CA cannot answer for another.  The response is rejected if
+	 * one of those SingleResps is not current.
+	 */
+	Map<CertID, Integer> processResponse(byte[] resBa, CertificateCache issuer, Collection<CertID> requested) throws OCSPClientException {
 
-			byte[] resBa = client.ocspPost(ocspUri, reqBa);
-			//TODO:  Add null check
+		Map<CertID, Integer> statuses = new HashMap<CertID, Integer>();
+
+		try {
 			if (resBa != null) {
 				OCSPResp resp = new OCSPResp(resBa);
-				if (OCSPRespStatus.SUCCESSFUL == resp.getStatus()) {
-
-					// writer.println("OCSP Response:");
-					//bIn = new ASN1InputStream(new ByteArrayInputStream(resBa));
-					//obj = bIn.readObject();
-					// writer.println(ASN1Dump.dumpAsString(obj, true));
+				if (OCSPRespBuilder.SUCCESSFUL == resp.getStatus()) {
 
 					BasicOCSPResp basicResponse = (BasicOCSPResp) resp
 							.getResponseObject();
 
 					/*
-					 * Do. Throw exception on fail.
-					 * 
+					 * The responder must be the CA, or a delegate the CA
+					 * authorized.  Responders we have checked before are
+					 * verified with the key we kept.
 					 */
-					X509CertificateHolder[] resCerts = basicResponse.getCerts();
-					JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
-					boolean signatureValid = false;
-					for (X509CertificateHolder ch: resCerts) {
-						LOG.info("Validating signature of OCSP Response with cert: " + ch.getSubject().toString());
-						X509Certificate thisCert = null;
-						try {
-							thisCert = converter.getCertificate(ch);
-							signatureValid = basicResponse.isSignatureValid(new JcaContentVerifierProviderBuilder().setProvider("BC").build(thisCert.getPublicKey()));
-							if (signatureValid) {
-								LOG.info("Signature on OCSP Response is valid.");
-								break;
-							}
-						} catch (CertificateException e) {
-							LOG.fatal("Error getting X509Certificate from X509CertificateHolder: " + e.getMessage());
-						} catch (OperatorCreationException e) {
-							LOG.fatal("Error creating signature verifier: " + e.getMessage());
-						}
-					}
-					if (signatureValid) {
-						//TODO: Check to see that the Certificate is either the CA, or signed by the CA
-					} else {
+					if (!OCSPResponderTrustCache.getInstance().verify(issuer, basicResponse)) {
 						throw new OCSPClientException("Invalid Signature.");
 					}
 
 					SingleResp[] responses = basicResponse.getResponses();
+					byte[] nameHash = OCSPResponder.getNameHash(issuer);
+					byte[] keyHash = OCSPResponder.getKeyHash(issuer);
+					long now = System.currentTimeMillis();
 					/*
-					 * Check each response object and match it to our client. If we
-					 * find a hit, then process, otherwise, throw exception
+					 * Collect the status of each certificate in the
+					 * response, so the caller can match them to the
+					 * certificates it asked about.
 					 */
 					for (SingleResp res : responses) {
-						if (res.getCertID().equals(id)) {
-							Object status = res.getCertStatus();
-							if (status == CertificateStatus.GOOD) {
-								LOG.info("OCSP Response for " + clientCert.getSubjectX500Principal().getName() + ": GOOD");
-								revocationStatus = OCSPClient.GOOD;
-							} else if (status instanceof org.bouncycastle.ocsp.RevokedStatus) {
-								LOG.info("OCSP Response for " + clientCert.getSubjectX500Principal().getName() + ": REVOKED");
-								revocationStatus = OCSPClient.REVOKED;
-							} else if (status instanceof org.bouncycastle.ocsp.UnknownStatus) {
-								LOG.info("OCSP Response for " + clientCert.getSubjectX500Principal().getName() + ": UNKNOWN");
-								revocationStatus = OCSPClient.UNKNOWN;
-							}
-							break;
+						CertID responseId = res.getCertID().toASN1Object();
+						CertID certId = findRequested(responseId, requested);
+						if (certId == null || !isIssuedBy(responseId, nameHash, keyHash)) {
+							LOG.warn("Ignoring OCSP response for a certificate we did not ask about: " + responseId.getSerialNumber().getValue());
+							continue;
 						}
+						if (res.getThisUpdate().getTime() > now + MAX_CLOCK_SKEW) {
+							throw new OCSPClientException("OCSP response thisUpdate is in the future: " + res.getThisUpdate());
+						}
+						if (res.getNextUpdate() != null && res.getNextUpdate().getTime() < now - MAX_CLOCK_SKEW) {
+							throw new OCSPClientException("OCSP response nextUpdate has passed: " + res.getNextUpdate());
+						}
+						Object status = res.getCertStatus();
+						int revocationStatus = OCSPClient.UNKNOWN;
+						if (status == CertificateStatus.GOOD) {
+							revocationStatus = OCSPClient.GOOD;
+						} else if (status instanceof RevokedStatus) {
+							revocationStatus = OCSPClient.REVOKED;
+						} else if (status instanceof UnknownStatus) {
+							revocationStatus = OCSPClient.UNKNOWN;
+						}
+						statuses.put(certId, Integer.valueOf(revocationStatus));
+						/*
+						 * The signature is verified, so the status
+						 * is good until the response's nextUpdate.
+						 */
+						OCSPResponseCache.getInstance().putStatus(certId, revocationStatus, res.getThisUpdate(), res.getNextUpdate());
 					}
-				} else {
-					revocationStatus = OCSPClient.UNKNOWN;
 				}
 			} else {
 				throw new OCSPClientException("Received a NULL response from the OCSP Responder.");
 			}
 		} catch (OCSPException e) {
 			throw new OCSPClientException(e);
-		} catch (HttpClientException e) {
-			throw new OCSPClientException(e);
 		} catch (IOException e) {
 			throw new OCSPClientException(e);
 		}
-		LOG.info("OCSP Check for " + clientCert.getSubjectX500Principal().getName() + " took " + (System.currentTimeMillis() - ocspStart) + " milliseconds.");
-		return revocationStatus;
+		return statuses;
+	}
+
+	/*
+	 * Responders may encode the hash algorithm with or without its NULL
+	 * parameters, so CertIDs are compared by their fields.
+	 */
+	private static CertID findRequested(CertID responseId, Collection<CertID> requested) {
+		for (CertID certId: requested) {
+			if (certId.getHashAlgorithm().getAlgorithm().equals(responseId.getHashAlgorithm().getAlgorithm()) &&
+					certId.getIssuerNameHash().equals(responseId.getIssuerNameHash()) &&
+					certId.getIssuerKeyHash().equals(responseId.getIssuerKeyHash()) &&
+					certId.getSerialNumber().equals(responseId.getSerialNumber())) {
+				return certId;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isIssuedBy(CertID certId, byte[] nameHash, byte[] keyHash) {
+		return OIWObjectIdentifiers.idSHA1.equals(certId.getHashAlgorithm().getAlgorithm()) &&
+				Arrays.equals(certId.getIssuerNameHash().getOctets(), nameHash) &&
+				Arrays.equals(certId.getIssuerKeyHash().getOctets(), keyHash);
+	}
+
+	private static String getStatusName(int revocationStatus) {
+		switch (revocationStatus) {
+		case OCSPClient.GOOD:
+			return "GOOD";
+		case OCSPClient.REVOKED:
+			return "REVOKED";
+		default:
+			return "UNKNOWN";
+		}
+	}
+
+	/**
+	 * A certificate waiting for its batch to be sent.
+	 */
+	private static class PendingCheck {
+
+		private final X509Certificate cert;
+		private final CertificateCache issuer;
+		private final CertificateID id;
+		private final PkiUri ocspUri;
+
+		private PendingCheck(X509Certificate cert, CertificateCache issuer, CertificateID id, PkiUri ocspUri) {
+			this.cert = cert;
+			this.issuer = issuer;
+			this.id = id;
+			this.ocspUri = ocspUri;
+		}
 	}
 
 }
@@ -0,0 +1,709 @@
+package org.keysupport.pki.ocsp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.RevokedInfo;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.keysupport.httpclient.HttpClient;
+import org.keysupport.httpclient.HttpClientException;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.validation.cache.CRLCacheManager;
+import org.keysupport.pki.validation.cache.CRLRevocationIndex;
+import org.keysupport.pki.validation.cache.CacheGeneration;
+import org.keysupport.pki.validation.cache.CertificateCache;
+import org.keysupport.pki.validation.cache.CertificateCacheManager;
+
+/**
+ * An OCSP responder for the CAs in the validation cache.
+ *
+ * When the CRL cache has a current, complete CRL from the CA, the
+ * status is answered from its CRLRevocationIndex, and the response is
+ * signed with the responder key named by the KEYSTORE_PROPERTY system
+ * properties.  Otherwise, or when no responder key is configured, the
+ * request is proxied to the OCSP responder of the CA, and the response
+ * is kept once its signature is verified.
+ *
+ * Responses are produced once per CertID and kept encoded, until their
+ * nextUpdate, or until the CRL they were produced from is replaced, so
+ * a request for a certificate we have answered before is a lookup and a
+ * copy.  Responses for the intermediates in the cache are produced
+ * ahead of time, when a cache generation is published and when a CRL
+ * is refreshed, and are kept apart from the other responses so that
+ * requests for end entities can not evict them.  Only a few responses
+ * are signed at once on the request threads; past that, requests we
+ * have no response for are asked to try later.
+ *
+ * Produced responses do not include a nonce, as RFC 5019 permits.  The
+ * responder key is not a delegate of the CAs it answers for, so relying
+ * parties must trust it as a locally configured responder (RFC 6960,
+ * section 4.2.2.2).
+ */
+public class OCSPResponder {
+
+	private static OCSPResponder instance = null;
+	private static final Log LOG = LogFactory.getLog(OCSPResponder.class);
+
+	public static final String KEYSTORE_PROPERTY = "org.keysupport.pki.ocsp.responder.keystore";
+	public static final String KEYSTORE_TYPE_PROPERTY = "org.keysupport.pki.ocsp.responder.keystore.type";
+	public static final String KEYSTORE_PASSWORD_PROPERTY = "org.keysupport.pki.ocsp.responder.keystore.password";
+	public static final String KEY_ALIAS_PROPERTY = "org.keysupport.pki.ocsp.responder.alias";
+
+	private static final int MAX_ENTRIES = 16384;
+	private static final int MAX_CONCURRENT_SIGNING = 4;
+	private static final long MAX_AGE_WITHOUT_NEXT_UPDATE = TimeUnit.HOURS.toMillis(1);
+	private static final long PROXY_MAX_AGE_WITHOUT_NEXT_UPDATE = TimeUnit.MINUTES.toMillis(5);
+
+	/*
+	 * An OCSPResponse without a responseBytes is the same five bytes
+	 * every time, so the error responses are encoded once.
+	 */
+	private static final byte[] MALFORMED_REQUEST = { 0x30, 0x03, 0x0A, 0x01, OCSPRespBuilder.MALFORMED_REQUEST };
+	private static final byte[] INTERNAL_ERROR = { 0x30, 0x03, 0x0A, 0x01, OCSPRespBuilder.INTERNAL_ERROR };
+	private static final byte[] TRY_LATER = { 0x30, 0x03, 0x0A, 0x01, OCSPRespBuilder.TRY_LATER };
+	private static final byte[] UNAUTHORIZED = { 0x30, 0x03, 0x0A, 0x01, OCSPRespBuilder.UNAUTHORIZED };
+
+	private final PrivateKey signerKey;
+	private final X509CertificateHolder[] signerChain;
+	private final RespID responderId;
+	private final String signatureAlgorithm;
+	private final Map<CertID, ProducedResponse> responses;
+	private final ConcurrentHashMap<CertID, ProducedResponse> preProduced = new ConcurrentHashMap<CertID, ProducedResponse>();
+	private volatile Set<CertID> intermediates = Collections.<CertID>emptySet();
+	private final Semaphore signing = new Semaphore(MAX_CONCURRENT_SIGNING);
+	private final ExecutorService producer;
+	private final OCSPClient client = new OCSPClient();
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong produced = new AtomicLong(0);
+	private final AtomicLong proxied = new AtomicLong(0);
+	private final AtomicLong refused = new AtomicLong(0);
+	private final AtomicLong throttled = new AtomicLong(0);
+
+	public static synchronized OCSPResponder getInstance() {
+		if (instance == null) {
+			instance = new OCSPResponder();
+		}
+		return instance;
+	}
+
+	private OCSPResponder() {
+		LOG.info("Initializing OCSP Responder");
+		PrivateKey key = null;
+		X509CertificateHolder[] chain = null;
+		String keystore = System.getProperty(KEYSTORE_PROPERTY);
+		if (keystore != null) {
+			try {
+				KeyStore ks = KeyStore.getInstance(System.getProperty(KEYSTORE_TYPE_PROPERTY, "PKCS12"));
+				char[] password = System.getProperty(KEYSTORE_PASSWORD_PROPERTY, "").toCharArray();
+				InputStream in = new FileInputStream(keystore);
+				try {
+					ks.load(in, password);
+				} finally {
+					in.close();
+				}
+				String alias = System.getProperty(KEY_ALIAS_PROPERTY);
+				if (alias == null) {
+					Enumeration<String> aliases = ks.aliases();
+					while (alias == null && aliases.hasMoreElements()) {
+						String candidate = aliases.nextElement();
+						if (ks.isKeyEntry(candidate)) {
+							alias = candidate;
+						}
+					}
+				}
+				Certificate[] certs = (alias == null) ? null : ks.getCertificateChain(alias);
+				if (certs == null || certs.length == 0) {
+					throw new GeneralSecurityException("No key entry found");
+				}
+				key = (PrivateKey) ks.getKey(alias, password);
+				/*
+				 * Only the responder certificate is sent, since the
+				 * relying party must already trust it.
+				 */
+				chain = new X509CertificateHolder[] { new JcaX509CertificateHolder((X509Certificate) certs[0]) };
+				LOG.info("OCSP Responder signing with " + chain[0].getSubject().toString());
+			} catch (GeneralSecurityException | IOException e) {
+				LOG.fatal("Unable to load OCSP Responder key from " + keystore + ", requests will be proxied: " + e.getMessage(), e);
+				key = null;
+				chain = null;
+			}
+		} else {
+			LOG.info("No OCSP Responder key configured, requests will be proxied");
+		}
+		this.signerKey = key;
+		this.signerChain = chain;
+		this.responderId = (chain == null) ? null : new RespID(chain[0].getSubject());
+		this.signatureAlgorithm = (key == null) ? null : getSignatureAlgorithm(key);
+		this.responses = new LinkedHashMap<CertID, ProducedResponse>(1024, 0.75f, true) {
+			private static final long serialVersionUID = -6032771958413069187L;
+			protected boolean removeEldestEntry(Map.Entry<CertID, ProducedResponse> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+		this.producer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ocsp-responder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return true if responses are produced from the CRL cache, false if they are all proxied
+	 */
+	public boolean isSigning() {
+		return signerKey != null;
+	}
+
+	/**
+	 * Answers a DER encoded OCSP request.
+	 *
+	 * @param request the OCSPRequest
+	 * @return the response, which is always encoded, even when the request could not be answered
+	 */
+	public ProducedResponse respond(byte[] request) {
+		OCSPReq req = null;
+		try {
+			req = new OCSPReq(request);
+		} catch (IOException e) {
+			LOG.warn("Malformed OCSP request: " + e.getMessage());
+			return new ProducedResponse(MALFORMED_REQUEST, 0, 0, null);
+		} catch (IllegalArgumentException e) {
+			LOG.warn("Malformed OCSP request: " + e.getMessage());
+			return new ProducedResponse(MALFORMED_REQUEST, 0, 0, null);
+		}
+		Req[] list = req.getRequestList();
+		if (list == null || list.length == 0) {
+			return new ProducedResponse(MALFORMED_REQUEST, 0, 0, null);
+		}
+		if (list.length == 1) {
+			CertID certId = list[0].getCertID().toASN1Object();
+			ProducedResponse response = get(certId);
+			if (response != null) {
+				hits.incrementAndGet();
+				return response;
+			}
+		}
+		CacheGeneration generation = CertificateCacheManager.getInstance().getGeneration();
+		if (generation == null) {
+			return new ProducedResponse(TRY_LATER, 0, 0, null);
+		}
+		boolean nonce = (req.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce) != null);
+		if (list.length == 1) {
+			CertID certId = list[0].getCertID().toASN1Object();
+			CertificateCache ca = getIssuer(generation, certId);
+			if (ca == null) {
+				refused.incrementAndGet();
+				return new ProducedResponse(UNAUTHORIZED, 0, 0, null);
+			}
+			ProducedResponse response = null;
+			if (isSigning()) {
+				if (!signing.tryAcquire()) {
+					throttled.incrementAndGet();
+					return new ProducedResponse(TRY_LATER, 0, 0, null);
+				}
+				try {
+					response = produce(ca, certId);
+				} finally {
+					signing.release();
+				}
+			}
+			if (response == null) {
+				response = proxy(generation, ca, Collections.singletonList(certId), request, nonce);
+			}
+			put(certId, response);
+			return response;
+		}
+		return respond(generation, list, request, nonce);
+	}
+
+	/*
+	 * A request for several certificates is answered in one response
+	 * from the CRLs if we can, or proxied if they all have the same
+	 * issuer.  Such responses are not kept.
+	 */
+	private ProducedResponse respond(CacheGeneration generation, Req[] list, byte[] request, boolean nonce) {
+		List<CertID> certIds = new ArrayList<CertID>(list.length);
+		CertificateCache[] issuers = new CertificateCache[list.length];
+		CRLRevocationIndex[] crls = new CRLRevocationIndex[list.length];
+		Date now = new Date();
+		boolean fromCrls = isSigning();
+		boolean sameIssuer = true;
+		for (int i = 0; i < list.length; i++) {
+			certIds.add(list[i].getCertID().toASN1Object());
+			issuers[i] = getIssuer(generation, certIds.get(i));
+			if (issuers[i] == null) {
+				refused.incrementAndGet();
+				return new ProducedResponse(UNAUTHORIZED, 0, 0, null);
+			}
+			sameIssuer &= (issuers[i] == issuers[0]);
+			if (fromCrls) {
+				crls[i] = getCRL(issuers[i], now);
+				fromCrls = (crls[i] != null);
+			}
+		}
+		if (fromCrls) {
+			if (!signing.tryAcquire()) {
+				throttled.incrementAndGet();
+				return new ProducedResponse(TRY_LATER, 0, 0, null);
+			}
+			try {
+				BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(responderId);
+				for (int i = 0; i < list.length; i++) {
+					addResponse(builder, certIds.get(i), crls[i]);
+				}
+				return sign(builder, 0, null);
+			} finally {
+				signing.release();
+			}
+		}
+		if (sameIssuer) {
+			return proxy(generation, issuers[0], certIds, request, nonce);
+		}
+		refused.incrementAndGet();
+		return new ProducedResponse(UNAUTHORIZED, 0, 0, null);
+	}
+
+	/**
+	 * Produces responses for the intermediates in a cache generation
+	 * that we do not have a current response for, in the background.
+	 *
+	 * @param generation
+	 */
+	public void preProduce(final CacheGeneration generation) {
+		if (!isSigning()) {
+			return;
+		}
+		producer.execute(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				Set<CertID> certIds = new HashSet<CertID>();
+				for (CertificateCache entry: generation.getIntermediates()) {
+					if (entry.getSubjectCertId() != null) {
+						certIds.add(entry.getSubjectCertId());
+					}
+				}
+				/*
+				 * Responses for intermediates that are no longer in
+				 * the cache go, and the rest are kept apart from now on.
+				 */
+				intermediates = certIds;
+				preProduced.keySet().retainAll(certIds);
+				int count = 0;
+				for (CertID certId: certIds) {
+					if (refresh(generation, certId)) {
+						count++;
+					}
+				}
+				LOG.info("Pre-produced " + count + " OCSP responses in " + (System.currentTimeMillis() - start) + " milliseconds");
+			}
+		});
+	}
+
+	/**
+	 * Produces new responses, in the background, for the certificates
+	 * whose responses came from an earlier CRL of the same issuer.
+	 *
+	 * @param crl the CRL that was placed in the cache
+	 */
+	public void crlUpdated(final CRLRevocationIndex crl) {
+		if (!isSigning()) {
+			return;
+		}
+		producer.execute(new Runnable() {
+			public void run() {
+				CacheGeneration generation = CertificateCacheManager.getInstance().getGeneration();
+				if (generation == null) {
+					return;
+				}
+				List<CertID> certIds = new ArrayList<CertID>();
+				for (Map.Entry<CertID, ProducedResponse> entry: preProduced.entrySet()) {
+					if (isReplacedBy(entry.getValue(), crl)) {
+						certIds.add(entry.getKey());
+					}
+				}
+				synchronized (responses) {
+					for (Map.Entry<CertID, ProducedResponse> entry: responses.entrySet()) {
+						if (isReplacedBy(entry.getValue(), crl)) {
+							certIds.add(entry.getKey());
+						}
+					}
+				}
+				int count = 0;
+				for (CertID certId: certIds) {
+					if (refresh(generation, certId)) {
+						count++;
+					}
+				}
+				if (count > 0) {
+					LOG.info("Produced " + count + " OCSP responses from the new CRL of " + crl.getIssuer().getName());
+				}
+			}
+		});
+	}
+
+	private static boolean isReplacedBy(ProducedResponse response, CRLRevocationIndex crl) {
+		CRLRevocationIndex source = response.source;
+		return source != null && source != crl && source.getIssuer().equals(crl.getIssuer());
+	}
+
+	/*
+	 * Replaces the response for a CertID if it is not current.
+	 */
+	private boolean refresh(CacheGeneration generation, CertID certId) {
+		if (get(certId) != null) {
+			return false;
+		}
+		CertificateCache ca = getIssuer(generation, certId);
+		ProducedResponse response = (ca == null) ? null : produce(ca, certId);
+		if (response == null) {
+			return false;
+		}
+		put(certId, response);
+		return true;
+	}
+
+	/*
+	 * Returns the kept response for a CertID, if it is still current.
+	 */
+	private ProducedResponse get(CertID certId) {
+		ProducedResponse response = preProduced.get(certId);
+		if (response == null) {
+			synchronized (responses) {
+				response = responses.get(certId);
+			}
+		}
+		if (response == null) {
+			return null;
+		}
+		if (response.expires <= System.currentTimeMillis() ||
+				(response.source != null && !CRLCacheManager.getInstance().getCRLCache().getCRLs(response.source.getIssuer()).contains(response.source))) {
+			preProduced.remove(certId, response);
+			synchronized (responses) {
+				responses.remove(certId);
+			}
+			return null;
+		}
+		return response;
+	}
+
+	/*
+	 * Responses for the intermediates go where the LRU can not evict
+	 * them.
+	 */
+	private void put(CertID certId, ProducedResponse response) {
+		if (!response.isCacheable()) {
+			return;
+		}
+		if (intermediates.contains(certId)) {
+			preProduced.put(certId, response);
+			return;
+		}
+		synchronized (responses) {
+			responses.put(certId, response);
+		}
+	}
+
+	/*
+	 * Produces a signed response from the CRL of the CA, or returns
+	 * null if we have no key or no current CRL.
+	 */
+	private ProducedResponse produce(CertificateCache ca, CertID certId) {
+		if (!isSigning()) {
+			return null;
+		}
+		CRLRevocationIndex crl = getCRL(ca, new Date());
+		if (crl == null) {
+			return null;
+		}
+		BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(responderId);
+		addResponse(builder, certId, crl);
+		long expires = (crl.getNextUpdate() != null) ? crl.getNextUpdate().getTime() : crl.getThisUpdate().getTime() + MAX_AGE_WITHOUT_NEXT_UPDATE;
+		return sign(builder, expires, crl);
+	}
+
+	private static void addResponse(BasicOCSPRespBuilder builder, CertID certId, CRLRevocationIndex crl) {
+		CertificateStatus status = CertificateStatus.GOOD;
+		int index = crl.indexOf(certId.getSerialNumber().getValue().toByteArray());
+		if (index >= 0) {
+			int reason = crl.getRevocationReason(index);
+			if (reason == CRLRevocationIndex.NO_REASON) {
+				status = new RevokedStatus(new RevokedInfo(new ASN1GeneralizedTime(crl.getRevocationDate(index)), null));
+			} else {
+				status = new RevokedStatus(crl.getRevocationDate(index), reason);
+			}
+		}
+		builder.addResponse(new CertificateID(certId), status, crl.getThisUpdate(), crl.getNextUpdate(), null);
+	}
+
+	private ProducedResponse sign(BasicOCSPRespBuilder builder, long expires, CRLRevocationIndex source) {
+		try {
+			/*
+			 * A ContentSigner is not thread safe, and signing is
+			 * done ahead of the requests, so one is built each time.
+			 */
+			ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm).setProvider("BC").build(signerKey);
+			Date producedAt = new Date();
+			BasicOCSPResp basic = builder.build(signer, signerChain, producedAt);
+			byte[] encoded = new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic).getEncoded();
+			produced.incrementAndGet();
+			return new ProducedResponse(encoded, producedAt.getTime(), expires, source);
+		} catch (OperatorCreationException | OCSPException | IOException e) {
+			LOG.fatal("Error signing OCSP response: " + e.getMessage(), e);
+			return new ProducedResponse(INTERNAL_ERROR, 0, 0, null);
+		}
+	}
+
+	/*
+	 * Sends the request to the OCSP responder of the CA, and checks
+	 * the signature of the response before it is passed on.
+	 *
+	 * The response is only kept if it answers for every certificate
+	 * requested, and the request had no nonce, since the upstream
+	 * response may echo it.
+	 */
+	private ProducedResponse proxy(CacheGeneration generation, CertificateCache ca, List<CertID> certIds, byte[] request, boolean nonce) {
+		PkiUri upstream = getUpstreamUri(generation, ca, certIds.get(0));
+		if (upstream == null) {
+			LOG.info("No CRL or OCSP responder to answer for " + ca.getSubject().getName());
+			refused.incrementAndGet();
+			return new ProducedResponse(UNAUTHORIZED, 0, 0, null);
+		}
+		byte[] encoded = null;
+		try {
+			encoded = HttpClient.getInstance().ocspRequest(upstream, request);
+		} catch (HttpClientException e) {
+			LOG.warn("OCSP request to " + upstream.getUri().toASCIIString() + " failed: " + e.getMessage());
+			return new ProducedResponse(TRY_LATER, 0, 0, null);
+		}
+		if (encoded == null) {
+			LOG.warn("OCSP request to " + upstream.getUri().toASCIIString() + " was not answered");
+			return new ProducedResponse(TRY_LATER, 0, 0, null);
+		}
+		try {
+			OCSPResp resp = new OCSPResp(encoded);
+			if (resp.getStatus() != OCSPRespBuilder.SUCCESSFUL) {
+				return new ProducedResponse(encoded, 0, 0, null);
+			}
+			Map<CertID, Integer> statuses = client.processResponse(encoded, ca, certIds);
+			BasicOCSPResp basic = (BasicOCSPResp) resp.getResponseObject();
+			proxied.incrementAndGet();
+			if (nonce) {
+				return new ProducedResponse(encoded, basic.getProducedAt().getTime(), 0, null);
+			}
+			if (!statuses.keySet().containsAll(certIds)) {
+				LOG.warn("OCSP response from " + upstream.getUri().toASCIIString() + " does not answer for every certificate requested");
+				return new ProducedResponse(encoded, basic.getProducedAt().getTime(), 0, null);
+			}
+			long expires = Long.MAX_VALUE;
+			for (SingleResp single: basic.getResponses()) {
+				long singleExpires = (single.getNextUpdate() != null) ? single.getNextUpdate().getTime() : single.getThisUpdate().getTime() + PROXY_MAX_AGE_WITHOUT_NEXT_UPDATE;
+				expires = Math.min(expires, singleExpires);
+			}
+			return new ProducedResponse(encoded, basic.getProducedAt().getTime(), expires, null);
+		} catch (IOException | OCSPException | OCSPClientException e) {
+			LOG.warn("Invalid OCSP response from " + upstream.getUri().toASCIIString() + ": " + e.getMessage());
+			return new ProducedResponse(INTERNAL_ERROR, 0, 0, null);
+		}
+	}
+
+	/*
+	 * The intermediates in the cache name their own responder, and the
+	 * other certificates issued by a CA usually name the same one.
+	 */
+	private static PkiUri getUpstreamUri(CacheGeneration generation, CertificateCache ca, CertID certId) {
+		CertificateCache entry = generation.getFlattenedCache().get(certId);
+		if (entry != null && entry.hasOcspAccessMethod()) {
+			return entry.getOcspUris()[0];
+		}
+		for (CertificateCache subject: ca.getSubjects()) {
+			if (subject.hasOcspAccessMethod()) {
+				return subject.getOcspUris()[0];
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Finds the CA a CertID refers to by its name and key hashes.
+	 */
+	private static CertificateCache getIssuer(CacheGeneration generation, CertID certId) {
+		if (!OIWObjectIdentifiers.idSHA1.equals(certId.getHashAlgorithm().getAlgorithm())) {
+			return null;
+		}
+		byte[] nameHash = certId.getIssuerNameHash().getOctets();
+		byte[] keyHash = certId.getIssuerKeyHash().getOctets();
+		for (CertificateCache candidate: generation.getByIssuerNameHash(nameHash)) {
+			if (Arrays.equals(getKeyHash(candidate), keyHash)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * The issuerNameHash is the SHA-1 of the DER encoded subject DN.
+	 */
+	static byte[] getNameHash(CertificateCache ca) {
+		return sha1(ca.getSubject().getEncoded());
+	}
+
+	/*
+	 * The issuerKeyHash is the SHA-1 of the subjectPublicKey BIT STRING
+	 * alone, not of the SubjectPublicKeyInfo.
+	 */
+	static byte[] getKeyHash(CertificateCache ca) {
+		return ca.getKeyHash();
+	}
+
+	static byte[] getKeyHash(PublicKey key) {
+		return sha1(SubjectPublicKeyInfo.getInstance(key.getEncoded()).getPublicKeyData().getBytes());
+	}
+
+	private static byte[] sha1(byte[] ba) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(ba);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	/*
+	 * Any full CRL from the CA will do, as long as it is current and
+	 * covers every certificate of the CA: not scoped by an
+	 * issuingDistributionPoint, not a delta or indirect CRL, and with
+	 * no critical extension we do not recognize.  The newest is used.
+	 */
+	static CRLRevocationIndex getCRL(CertificateCache ca, Date now) {
+		CRLRevocationIndex crl = null;
+		for (CRLRevocationIndex candidate: CRLCacheManager.getInstance().getCRLCache().getCRLs(ca.getSubject())) {
+			if (candidate.getIssuingDistributionPoint() == null &&
+					!candidate.isDeltaCrl() &&
+					!candidate.isIndirect() &&
+					!candidate.hasUnrecognizedCriticalExtension() &&
+					candidate.isSignedBy(ca.getCertificate().getPublicKey()) &&
+					candidate.isCurrent(now) &&
+					(crl == null || candidate.getThisUpdate().after(crl.getThisUpdate()))) {
+				crl = candidate;
+			}
+		}
+		return crl;
+	}
+
+	private static String getSignatureAlgorithm(PrivateKey key) {
+		if ("EC".equals(key.getAlgorithm()) || "ECDSA".equals(key.getAlgorithm())) {
+			return "SHA256withECDSA";
+		}
+		return "SHA256with" + key.getAlgorithm();
+	}
+
+	/**
+	 * @return the number of responses kept
+	 */
+	public int size() {
+		synchronized (responses) {
+			return responses.size() + preProduced.size();
+		}
+	}
+
+	public String toString() {
+		return "[OCSP Responder: " + size() + " responses (" + preProduced.size() + " pre-produced), Hits: " + hits.get() + ", Produced: " + produced.get() + ", Proxied: " + proxied.get() + ", Unauthorized: " + refused.get() + ", Try Later: " + throttled.get() + "]";
+	}
+
+	/**
+	 * An encoded OCSPResponse, and how long it may be served.
+	 */
+	public static final class ProducedResponse {
+
+		private final byte[] encoded;
+		private final long producedAt;
+		private final long expires;
+		private final CRLRevocationIndex source;
+
+		private ProducedResponse(byte[] encoded, long producedAt, long expires, CRLRevocationIndex source) {
+			this.encoded = encoded;
+			this.producedAt = producedAt;
+			this.expires = expires;
+			this.source = source;
+		}
+
+		/**
+		 * @return the DER encoded OCSPResponse, which is shared and SHALL NOT be modified
+		 */
+		public byte[] getEncoded() {
+			return encoded;
+		}
+
+		/**
+		 * @return the producedAt time of the response, or null if it is an error response
+		 */
+		public Date getProducedAt() {
+			return (producedAt == 0) ? null : new Date(producedAt);
+		}
+
+		/**
+		 * @return the time the response may be served until, or null if it should not be cached
+		 */
+		public Date getExpires() {
+			return isCacheable() ? new Date(expires) : null;
+		}
+
+		/**
+		 * @return true if the response may be served again
+		 */
+		public boolean isCacheable() {
+			return expires > System.currentTimeMillis();
+		}
+	}
+
+}
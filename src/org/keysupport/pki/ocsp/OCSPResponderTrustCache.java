@@ -0,0 +1,245 @@
+package org.keysupport.pki.ocsp;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.ResponderID;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.keysupport.pki.validation.cache.CRLRevocationIndex;
+import org.keysupport.pki.validation.cache.CertificateCache;
+import org.keysupport.pki.validation.cache.SignatureVerificationCache;
+
+/**
+ * Remembers which responders are trusted to sign OCSP responses for
+ * each CA, together with a ContentVerifierProvider for the key of each,
+ * so a response from a responder we have seen before is verified with
+ * a single signature check.
+ *
+ * A responder is trusted for a CA if it is the CA itself, or if its
+ * certificate is in the response, was issued by the CA, has the
+ * id-kp-OCSPSigning extended key usage, and is within its validity
+ * period (RFC 6960, section 4.2.2.2).  A responder is trusted until
+ * its certificate expires.  A delegate without id-pkix-ocsp-nocheck is
+ * also checked against a current CRL of the CA, if the CRL cache has
+ * one, and is checked again after MAX_AGE_WITHOUT_NOCHECK.
+ *
+ * Responders are keyed by the key of the CA, and then by the
+ * ResponderID that the response names.
+ */
+public class OCSPResponderTrustCache {
+
+	private static OCSPResponderTrustCache instance = null;
+	private static final Log LOG = LogFactory.getLog(OCSPResponderTrustCache.class);
+
+	private static final long MAX_AGE_WITHOUT_NOCHECK = TimeUnit.HOURS.toMillis(1);
+
+	private static final String OCSP_SIGNING = KeyPurposeId.id_kp_OCSPSigning.getId();
+	private static final String OCSP_NOCHECK = OCSPObjectIdentifiers.id_pkix_ocsp_nocheck.getId();
+
+	private final ConcurrentHashMap<ByteBuffer, ConcurrentHashMap<RespID, TrustedResponder>> responders;
+	private final JcaX509CertificateConverter converter;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+
+	public static synchronized OCSPResponderTrustCache getInstance() {
+		if (instance == null) {
+			instance = new OCSPResponderTrustCache();
+		}
+		return instance;
+	}
+
+	private OCSPResponderTrustCache() {
+		LOG.info("Initializing OCSP Responder Trust Cache");
+		this.responders = new ConcurrentHashMap<ByteBuffer, ConcurrentHashMap<RespID, TrustedResponder>>();
+		this.converter = new JcaX509CertificateConverter().setProvider("BC");
+	}
+
+	/**
+	 * Verifies that a response is signed by a responder trusted for
+	 * the CA.
+	 *
+	 * @param issuer the CA that issued the certificates in the response
+	 * @param response
+	 * @return true if the signature is valid and the responder is trusted
+	 */
+	public boolean verify(CertificateCache issuer, BasicOCSPResp response) {
+		ByteBuffer caKey = ByteBuffer.wrap(issuer.getParsedCertificate().getCalculatedSKI());
+		RespID responderId = response.getResponderId();
+		long now = System.currentTimeMillis();
+		ConcurrentHashMap<RespID, TrustedResponder> trusted = responders.get(caKey);
+		TrustedResponder responder = (trusted == null) ? null : trusted.get(responderId);
+		if (responder != null && responder.expires > now) {
+			if (isSignatureValid(response, responder.verifier)) {
+				hits.incrementAndGet();
+				return true;
+			}
+			/*
+			 * The responder may have a new key under the same name,
+			 * so look at the certificates in the response again.
+			 */
+			trusted.remove(responderId, responder);
+		}
+		misses.incrementAndGet();
+		responder = findResponder(issuer, response, responderId, now);
+		if (responder == null || !isSignatureValid(response, responder.verifier)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		if (trusted == null) {
+			ConcurrentHashMap<RespID, TrustedResponder> created = new ConcurrentHashMap<RespID, TrustedResponder>();
+			trusted = responders.putIfAbsent(caKey, created);
+			if (trusted == null) {
+				trusted = created;
+			}
+		}
+		trusted.put(responderId, responder);
+		return true;
+	}
+
+	/*
+	 * Finds the key the response should be signed with: the key of the
+	 * CA, or of a delegate the CA authorized.
+	 */
+	private TrustedResponder findResponder(CertificateCache issuer, BasicOCSPResp response, RespID responderId, long now) {
+		X509Certificate caCert = issuer.getCertificate();
+		if (isResponder(responderId, caCert)) {
+			return newResponder(caCert.getPublicKey(), caCert.getNotAfter().getTime());
+		}
+		X509CertificateHolder[] certs = response.getCerts();
+		if (certs == null) {
+			LOG.warn("OCSP Response for " + caCert.getSubjectX500Principal().getName() + " is not signed by the CA, and has no responder certificate");
+			return null;
+		}
+		for (X509CertificateHolder holder: certs) {
+			X509Certificate cert = null;
+			try {
+				cert = converter.getCertificate(holder);
+			} catch (CertificateException e) {
+				LOG.fatal("Error getting X509Certificate from X509CertificateHolder: " + e.getMessage());
+				continue;
+			}
+			if (!isResponder(responderId, cert)) {
+				continue;
+			}
+			if (!isDelegate(caCert, cert, now)) {
+				LOG.warn("OCSP Responder " + cert.getSubjectX500Principal().getName() + " is not authorized by " + caCert.getSubjectX500Principal().getName());
+				continue;
+			}
+			long expires = cert.getNotAfter().getTime();
+			if (cert.getExtensionValue(OCSP_NOCHECK) == null) {
+				CRLRevocationIndex crl = OCSPResponder.getCRL(issuer, new Date(now));
+				if (crl != null && crl.isRevoked(cert.getSerialNumber())) {
+					LOG.warn("OCSP Responder " + cert.getSubjectX500Principal().getName() + " is revoked");
+					continue;
+				}
+				expires = Math.min(expires, now + MAX_AGE_WITHOUT_NOCHECK);
+			}
+			LOG.info("Trusting OCSP Responder " + cert.getSubjectX500Principal().getName() + " for " + caCert.getSubjectX500Principal().getName());
+			return newResponder(cert.getPublicKey(), expires);
+		}
+		return null;
+	}
+
+	/*
+	 * The ResponderID names the responder by its subject DN, or by the
+	 * SHA-1 hash of its key.
+	 */
+	private static boolean isResponder(RespID responderId, X509Certificate cert) {
+		return responderId.equals(new RespID(X500Name.getInstance(cert.getSubjectX500Principal().getEncoded()))) ||
+				responderId.equals(new RespID(new ResponderID(new DEROctetString(OCSPResponder.getKeyHash(cert.getPublicKey())))));
+	}
+
+	private static boolean isDelegate(X509Certificate caCert, X509Certificate cert, long now) {
+		if (!cert.getIssuerX500Principal().equals(caCert.getSubjectX500Principal()) ||
+				!SignatureVerificationCache.getInstance().verify(cert, caCert.getPublicKey())) {
+			return false;
+		}
+		try {
+			List<String> eku = cert.getExtendedKeyUsage();
+			if (eku == null || !eku.contains(OCSP_SIGNING)) {
+				return false;
+			}
+			cert.checkValidity(new Date(now));
+		} catch (CertificateException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private static TrustedResponder newResponder(PublicKey key, long expires) {
+		try {
+			return new TrustedResponder(new JcaContentVerifierProviderBuilder().setProvider("BC").build(key), expires);
+		} catch (OperatorCreationException e) {
+			LOG.fatal("Error creating signature verifier: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static boolean isSignatureValid(BasicOCSPResp response, ContentVerifierProvider verifier) {
+		try {
+			return response.isSignatureValid(verifier);
+		} catch (OCSPException e) {
+			LOG.fatal("Error verifying OCSP Response signature: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of responses verified with a remembered responder
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of responses whose responder had to be checked
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public String toString() {
+		int count = 0;
+		for (ConcurrentHashMap<RespID, TrustedResponder> trusted: responders.values()) {
+			count += trusted.size();
+		}
+		return "[OCSP Responder Trust Cache: " + count + " responders for " + responders.size() + " CAs, Hits: " + getHitCount() + ", Misses: " + getMissCount() + ", Rejected: " + this.rejected.get() + "]";
+	}
+
+	/*
+	 * A ContentVerifierProvider from the JCA builder creates a new
+	 * verifier for each call, so one can be shared by all threads.
+	 */
+	private static class TrustedResponder {
+
+		private final ContentVerifierProvider verifier;
+		private final long expires;
+
+		private TrustedResponder(ContentVerifierProvider verifier, long expires) {
+			this.verifier = verifier;
+			this.expires = expires;
+		}
+	}
+
+}
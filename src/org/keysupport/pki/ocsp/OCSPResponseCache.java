@@ -0,0 +1,155 @@
+package org.keysupport.pki.ocsp;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ocsp.CertID;
+
+/**
+ * Remembers the revocation status from verified OCSP responses, so that
+ * a certificate that is checked again is answered without a request to
+ * the responder.
+ *
+ * Statuses are keyed by the CertID of the certificate, and kept until
+ * the nextUpdate of the response.  A response without a nextUpdate is
+ * kept for a maximum age after its thisUpdate.  UNKNOWN statuses are
+ * kept too, but only briefly, so a responder that does not know a
+ * certificate is not asked about it on every check.
+ *
+ * The cache is a bounded LRU map.
+ */
+public class OCSPResponseCache {
+
+	private static OCSPResponseCache instance = null;
+	private static final Log LOG = LogFactory.getLog(OCSPResponseCache.class);
+
+	private static final int MAX_ENTRIES = 65536;
+	private static final long MAX_AGE_WITHOUT_NEXT_UPDATE = TimeUnit.HOURS.toMillis(1);
+	private static final long UNKNOWN_MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+
+	private final Map<CertID, CachedStatus> statuses;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong expired = new AtomicLong(0);
+
+	public static synchronized OCSPResponseCache getInstance() {
+		if (instance == null) {
+			instance = new OCSPResponseCache();
+		}
+		return instance;
+	}
+
+	private OCSPResponseCache() {
+		LOG.info("Initializing OCSP Response Cache");
+		this.statuses = new LinkedHashMap<CertID, CachedStatus>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 2390384712215583637L;
+			protected boolean removeEldestEntry(Map.Entry<CertID, CachedStatus> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	/**
+	 * @param certId the CertID of the certificate
+	 * @return GOOD, REVOKED or UNKNOWN from a current response, or null if there is none
+	 */
+	public Integer getStatus(CertID certId) {
+		long now = System.currentTimeMillis();
+		CachedStatus cached = null;
+		synchronized (this.statuses) {
+			cached = this.statuses.get(certId);
+			if (cached != null && cached.expires <= now) {
+				this.statuses.remove(certId);
+				this.expired.incrementAndGet();
+				cached = null;
+			}
+		}
+		if (cached == null) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		this.hits.incrementAndGet();
+		return Integer.valueOf(cached.status);
+	}
+
+	/**
+	 * Remembers the status from a verified response.
+	 *
+	 * @param certId the CertID of the certificate
+	 * @param status GOOD, REVOKED or UNKNOWN
+	 * @param thisUpdate the thisUpdate of the response
+	 * @param nextUpdate the nextUpdate of the response, may be null
+	 */
+	public void putStatus(CertID certId, int status, Date thisUpdate, Date nextUpdate) {
+		long now = System.currentTimeMillis();
+		long expires;
+		if (nextUpdate != null) {
+			expires = nextUpdate.getTime();
+		} else {
+			long produced = (thisUpdate == null) ? now : thisUpdate.getTime();
+			expires = produced + MAX_AGE_WITHOUT_NEXT_UPDATE;
+		}
+		if (status == OCSPClient.UNKNOWN) {
+			expires = Math.min(expires, now + UNKNOWN_MAX_AGE);
+		}
+		if (expires <= now) {
+			return;
+		}
+		synchronized (this.statuses) {
+			this.statuses.put(certId, new CachedStatus(status, expires));
+		}
+	}
+
+	/**
+	 * Discards all remembered statuses.
+	 */
+	public void clear() {
+		synchronized (this.statuses) {
+			this.statuses.clear();
+		}
+	}
+
+	/**
+	 * @return the number of remembered statuses
+	 */
+	public int size() {
+		synchronized (this.statuses) {
+			return this.statuses.size();
+		}
+	}
+
+	/**
+	 * @return the number of checks answered from the cache
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of checks that needed a request
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public String toString() {
+		return "[OCSP Response Cache: " + size() + " statuses, Hits: " + getHitCount() + ", Misses: " + getMissCount() + ", Expired: " + this.expired.get() + "]";
+	}
+
+	private static class CachedStatus {
+
+		private final int status;
+		private final long expires;
+
+		private CachedStatus(int status, long expires) {
+			this.status = status;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package org.keysupport.pki.validation;
+
+import java.security.cert.CRLException;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertPathValidatorException.BasicReason;
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.validation.cache.CRLCacheManager;
+import org.keysupport.pki.validation.cache.CRLRevocationIndex;
+
+/**
+ * Checks the revocation status of each certificate in a path against
+ * the CRL indexes in the CRL cache, in place of the JDK revocation
+ * checker and a CertStore of X509CRL objects.
+ *
+ * The checker only runs in the reverse direction (from the trust anchor
+ * towards the target), so the issuer of each certificate is always the
+ * certificate checked before it.  A CRL is only used if it was issued
+ * by that issuer, verified with its key, and is current.
+ */
+public class CRLIndexRevocationChecker extends PKIXCertPathChecker {
+
+	private static final Log LOG = LogFactory.getLog(CRLIndexRevocationChecker.class);
+
+	private final X509Certificate trustAnchorCert;
+	private final CRLCacheManager crlManager;
+	private final Date validityDate;
+	private X509Certificate issuer = null;
+
+	public CRLIndexRevocationChecker(X509Certificate trustAnchorCert, CRLCacheManager crlManager, Date validityDate) {
+		this.trustAnchorCert = trustAnchorCert;
+		this.crlManager = crlManager;
+		this.validityDate = validityDate;
+	}
+
+	@Override
+	public void init(boolean forward) throws CertPathValidatorException {
+		if (forward) {
+			throw new CertPathValidatorException("Forward checking is not supported");
+		}
+		this.issuer = this.trustAnchorCert;
+	}
+
+	@Override
+	public boolean isForwardCheckingSupported() {
+		return false;
+	}
+
+	@Override
+	public Set<String> getSupportedExtensions() {
+		return null;
+	}
+
+	@Override
+	public void check(Certificate cert, Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+		X509Certificate xCert = (X509Certificate) cert;
+		Date date = (this.validityDate != null) ? this.validityDate : new Date();
+		PkiUri[] cdps = ValidationUtils.getHttpCdpUris(xCert);
+		if (cdps == null || cdps.length == 0) {
+			throw new CertPathValidatorException("No HTTP CRL Distribution Point for " + xCert.getSubjectX500Principal().getName(),
+					null, null, -1, BasicReason.UNDETERMINED_REVOCATION_STATUS);
+		}
+		CRLRevocationIndex crl = null;
+		for (PkiUri uri: cdps) {
+			CRLRevocationIndex candidate = null;
+			try {
+				candidate = this.crlManager.getCRL(uri, this.issuer);
+			} catch (CRLException e) {
+				LOG.fatal("Failed to obtain CRL: " + e.getMessage(), e);
+				continue;
+			}
+			if (candidate != null &&
+					candidate.getIssuer().equals(xCert.getIssuerX500Principal()) &&
+					candidate.isSignedBy(this.issuer.getPublicKey()) &&
+					candidate.isCurrent(date)) {
+				crl = candidate;
+				break;
+			}
+		}
+		/*
+		 * Any other full CRL from the same issuer will do, as
+		 * long as it is not scoped by an issuingDistributionPoint.
+		 */
+		if (crl == null) {
+			for (CRLRevocationIndex candidate: this.crlManager.getCRLCache().getCRLs(xCert.getIssuerX500Principal())) {
+				if (candidate.getIssuingDistributionPoint() == null &&
+						candidate.isSignedBy(this.issuer.getPublicKey()) &&
+						candidate.isCurrent(date)) {
+					crl = candidate;
+					break;
+				}
+			}
+		}
+		if (crl == null) {
+			throw new CertPathValidatorException("No current CRL for " + xCert.getSubjectX500Principal().getName(),
+					null, null, -1, BasicReason.UNDETERMINED_REVOCATION_STATUS);
+		}
+		int entry = crl.indexOf(xCert.getSerialNumber().toByteArray());
+		if (entry >= 0) {
+			throw new CertPathValidatorException("Certificate revoked on " + crl.getRevocationDate(entry) + ", reason: " + crl.getRevocationReason(entry),
+					null, null, -1, BasicReason.REVOKED);
+		}
+		this.issuer = xCert;
+	}
+
+}
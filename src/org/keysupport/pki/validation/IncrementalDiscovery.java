@@ -0,0 +1,400 @@
+package org.keysupport.pki.validation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.keysupport.httpclient.ArtifactStore;
+import org.keysupport.httpclient.DownloadedArtifact;
+import org.keysupport.httpclient.FetchRefusedException;
+import org.keysupport.httpclient.FetchScheduler;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.validation.cache.CacheGeneration;
+import org.keysupport.pki.validation.cache.CertificateCache;
+import org.keysupport.pki.validation.cache.CertificateCacheException;
+import org.keysupport.pki.validation.cache.URICacheEntry;
+import org.keysupport.pki.validation.cache.UriCacheManager;
+
+/**
+ * Refreshes a published cache generation without discovering the whole
+ * cache again.
+ *
+ * The SIA of every CA in the generation is fetched again, but unless a
+ * URI's nextUpdate has passed the FetchScheduler refuses the fetch, so
+ * each certs-only CMS message is fetched on its own schedule, and the
+ * fetches that do go out are conditional.  Only the CAs whose set of
+ * certificates changed are touched:
+ *
+ * -Subjects that are no longer published are pruned, with their subtrees.
+ * -New subjects are discovered and validated on their own.
+ * -Everything else is shared with the current generation.
+ *
+ * The entries of a published generation are never modified, so the
+ * entries on the path from the trust anchor to each changed CA are
+ * copied.
+ */
+public class IncrementalDiscovery {
+
+	private static final Log LOG = LogFactory.getLog(IncrementalDiscovery.class);
+
+	private IncrementalDiscovery() {
+		/*
+		 * Hidden Constructor.  All utility methods must be static.
+		 */
+	}
+
+	/**
+	 * A SIA has changed if the content we have from it now is not the
+	 * content the published generation was built from.  The URI cache
+	 * is not the reference, since it may have content that a refresh
+	 * read but could not publish.
+	 *
+	 * @param current the published generation
+	 * @return the new, validated generation, or null if no SIA has changed
+	 * @throws PKIXValidatorException
+	 * @throws CertificateCacheException
+	 */
+	public static CacheGeneration refresh(CacheGeneration current) throws PKIXValidatorException, CertificateCacheException {
+		CertificateCache root = current.getCache();
+		/*
+		 * Each SIA URI is refreshed for a single entry.  Discovery
+		 * only chases a URI once, so when a CA is in the tree more
+		 * than once (through cross certificates), only one of its
+		 * entries has subjects, and that is the one we refresh.
+		 * The URIs of CAs without subjects are claimed after.
+		 *
+		 * The claimed URIs also keep the discovery of new subjects
+		 * from chasing CAs we already have.
+		 */
+		ConcurrentHashMap<URI, Boolean> claimedUris = new ConcurrentHashMap<URI, Boolean>();
+		List<SiaRefresh> refreshes = new ArrayList<SiaRefresh>();
+		claim(root, new HashSet<byte[]>(), true, claimedUris, refreshes);
+		claim(root, new HashSet<byte[]>(), false, claimedUris, refreshes);
+		LOG.info("Refreshing " + claimedUris.size() + " SIA URIs for cache " + current.toString());
+		/*
+		 * All of the fetches are started before we wait on any.
+		 */
+		for (SiaRefresh refresh: refreshes) {
+			refresh.start();
+		}
+		Map<CertificateCache, ArrayList<CertificateCache>> changes = new IdentityHashMap<CertificateCache, ArrayList<CertificateCache>>();
+		List<CertificateCache> added = new ArrayList<CertificateCache>();
+		Map<URI, String> digests = new HashMap<URI, String>(current.getSiaDigests());
+		for (int r = 0; r < refreshes.size(); r++) {
+			SiaRefresh refresh = refreshes.get(r);
+			ArrayList<CertificateCache> subjects = null;
+			try {
+				subjects = refresh.getSubjects(current, claimedUris, added, digests);
+			} catch (InterruptedException e) {
+				LOG.fatal("Interrupted during SIA refresh: " + e.getMessage(), e);
+				Thread.currentThread().interrupt();
+				for (SiaRefresh remaining: refreshes.subList(r, refreshes.size())) {
+					remaining.cancel();
+				}
+				return null;
+			}
+			if (subjects != null) {
+				changes.put(refresh.getEntry(), subjects);
+			}
+		}
+		if (changes.isEmpty()) {
+			return null;
+		}
+		LOG.info("SIA changed for " + changes.size() + " CAs, " + added.size() + " new subjects discovered");
+		/*
+		 * The new subjects are validated in a generation that has
+		 * them, after their CRLs are downloaded, the same as a
+		 * rebuild.  CRLs for the rest of the cache are already in
+		 * the CRL cache, and are not fetched again.
+		 */
+		Map<CertificateCache, CertificateCache> validated = new IdentityHashMap<CertificateCache, CertificateCache>();
+		CacheGeneration discovered = new CacheGeneration(graft(root, changes, validated));
+		ValidationUtils.getCRLs(discovered.getCache(), discovered.getFlattenedCache());
+		for (CertificateCache subject: added) {
+			validated.put(subject, ValidationUtils.getValidatedCache(subject, discovered));
+		}
+		return new CacheGeneration(graft(root, changes, validated), digests);
+	}
+
+	/*
+	 * Walks the tree, creating a refresh for each entry with SIA URIs
+	 * that are not claimed yet.  The path holds the SKIs from the
+	 * trust anchor's subjects down to the entry, as in discovery.
+	 */
+	private static void claim(CertificateCache entry, Set<byte[]> path, boolean withSubjects,
+			ConcurrentHashMap<URI, Boolean> claimedUris, List<SiaRefresh> refreshes) {
+		PkiUri[] siaUris = entry.getParsedCertificate().getHttpSiaUris();
+		if (siaUris != null && entry.getSubjects().isEmpty() != withSubjects) {
+			List<PkiUri> owned = new ArrayList<PkiUri>();
+			for (PkiUri uri: siaUris) {
+				if (claimedUris.putIfAbsent(uri.getUri(), Boolean.TRUE) == null) {
+					owned.add(uri);
+				}
+			}
+			if (!owned.isEmpty()) {
+				refreshes.add(new SiaRefresh(entry, path, owned));
+			}
+		}
+		for (CertificateCache subject: entry.getSubjects()) {
+			Set<byte[]> subjectPath = new HashSet<byte[]>(path);
+			subjectPath.add(subject.getParsedCertificate().getSubjectKeyIdentifier());
+			claim(subject, subjectPath, withSubjects, claimedUris, refreshes);
+		}
+	}
+
+	/*
+	 * Returns the entry with the changed subjects below it, copying
+	 * only the entries that have changes below them.  Subjects found in
+	 * the replacements are replaced (or dropped, if replaced with null).
+	 */
+	static CertificateCache graft(CertificateCache entry, Map<CertificateCache, ArrayList<CertificateCache>> changes,
+			Map<CertificateCache, CertificateCache> replacements) {
+		ArrayList<CertificateCache> subjects = changes.get(entry);
+		boolean copy = (subjects != null);
+		if (subjects == null) {
+			subjects = entry.getSubjects();
+		}
+		ArrayList<CertificateCache> grafted = new ArrayList<CertificateCache>(subjects.size());
+		for (CertificateCache subject: subjects) {
+			CertificateCache result = null;
+			if (replacements.containsKey(subject)) {
+				result = replacements.get(subject);
+			} else {
+				result = graft(subject, changes, replacements);
+			}
+			if (result != subject) {
+				copy = true;
+			}
+			if (result != null) {
+				grafted.add(result);
+			}
+		}
+		return copy ? entry.withSubjects(grafted) : entry;
+	}
+
+	/*
+	 * Parses a certs-only CMS message, returning null if it cannot be
+	 * read.
+	 */
+	private static List<X509Certificate> readCertificates(InputStream in, PkiUri uri) {
+		try {
+			return IssuedByThisCADiscoveryTask.getCertificates(new CMSSignedData(in));
+		} catch (CMSException e) {
+			LOG.fatal("Error parsing certs-only CMS message from " + uri + ": " + e.getMessage(), e);
+			return null;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOG.warn("Error closing certs-only CMS stream: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The SIA URIs of a single cache entry, and what they hold now.
+	 */
+	private static class SiaRefresh {
+
+		private final CertificateCache entry;
+		private final Set<byte[]> path;
+		private final List<PkiUri> uris;
+		private final List<Future<DownloadedArtifact>> fetches;
+
+		private SiaRefresh(CertificateCache entry, Set<byte[]> path, List<PkiUri> uris) {
+			this.entry = entry;
+			this.path = path;
+			this.uris = uris;
+			this.fetches = new ArrayList<Future<DownloadedArtifact>>(uris.size());
+		}
+
+		private void start() {
+			for (PkiUri uri: uris) {
+				fetches.add(FetchScheduler.getInstance().download(uri, true, false, null));
+			}
+		}
+
+		private void cancel() {
+			for (Future<DownloadedArtifact> fetch: fetches) {
+				fetch.cancel(false);
+			}
+		}
+
+		private CertificateCache getEntry() {
+			return entry;
+		}
+
+		/**
+		 * Waits for the fetches, and works out the entry's subjects.
+		 *
+		 * @param current the published generation
+		 * @param claimedUris the SIA URIs that new subjects must not chase again
+		 * @param added receives the new subjects, with the subtrees discovered below them
+		 * @param digests receives the digest of the content read from each URI
+		 * @return the entry's new subjects, or null if they have not changed
+		 * @throws InterruptedException
+		 */
+		private ArrayList<CertificateCache> getSubjects(CacheGeneration current, ConcurrentHashMap<URI, Boolean> claimedUris,
+				List<CertificateCache> added, Map<URI, String> digests) throws InterruptedException {
+			List<DownloadedArtifact> artifacts = new ArrayList<DownloadedArtifact>(uris.size());
+			boolean changed = false;
+			try {
+				for (int i = 0; i < uris.size(); i++) {
+					DownloadedArtifact artifact = null;
+					try {
+						artifact = fetches.get(i).get();
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof FetchRefusedException) {
+							LOG.debug("SIA is not due for refresh: " + uris.get(i));
+						} else {
+							LOG.warn("Error refreshing SIA " + uris.get(i) + ": " + e.getCause().getMessage());
+						}
+					}
+					artifacts.add(artifact);
+					String digest = getDigest(uris.get(i), artifact);
+					if (digest != null && !digest.equals(current.getSiaDigest(uris.get(i).getUri()))) {
+						changed = true;
+					}
+				}
+				if (!changed) {
+					return null;
+				}
+				return diff(artifacts, claimedUris, added, digests);
+			} finally {
+				for (DownloadedArtifact artifact: artifacts) {
+					if (artifact != null) {
+						artifact.close();
+					}
+				}
+			}
+		}
+
+		private ArrayList<CertificateCache> diff(List<DownloadedArtifact> artifacts, ConcurrentHashMap<URI, Boolean> claimedUris,
+				List<CertificateCache> added, Map<URI, String> digests) {
+			/*
+			 * The entry's subjects come from all of its SIA URIs, so
+			 * the content of the ones that did not change is read
+			 * from the artifact store.  If we cannot see everything
+			 * the entry publishes, we only add subjects, and do not
+			 * prune any.
+			 */
+			boolean complete = true;
+			Map<X509Certificate, PkiUri> published = new LinkedHashMap<X509Certificate, PkiUri>();
+			for (int i = 0; i < uris.size(); i++) {
+				PkiUri uri = uris.get(i);
+				DownloadedArtifact artifact = artifacts.get(i);
+				List<X509Certificate> certs = null;
+				try {
+					if (artifact != null && !artifact.isNotModified()) {
+						certs = readCertificates(artifact.openStream(), uri);
+						if (certs != null) {
+							artifact.commit();
+						}
+					} else {
+						certs = readStored(uri);
+					}
+				} catch (IOException e) {
+					LOG.warn("Error reading SIA content from " + uri + ": " + e.getMessage());
+				}
+				if (certs == null) {
+					complete = false;
+					continue;
+				}
+				String digest = getDigest(uri, artifact);
+				if (digest != null && !digest.equals(digests.get(uri.getUri()))) {
+					LOG.info("SIA changed: " + uri);
+					digests.put(uri.getUri(), digest);
+				}
+				for (X509Certificate cert: certs) {
+					if (!published.containsKey(cert)) {
+						published.put(cert, uri);
+					}
+				}
+			}
+			/*
+			 * Subjects we have that are still published are kept
+			 * as they are, subtree and all.
+			 */
+			ArrayList<CertificateCache> subjects = new ArrayList<CertificateCache>();
+			Set<X509Certificate> existing = new HashSet<X509Certificate>();
+			boolean modified = false;
+			for (CertificateCache subject: entry.getSubjects()) {
+				X509Certificate cert = subject.getCertificate();
+				existing.add(cert);
+				if (!complete || published.containsKey(cert)) {
+					subjects.add(subject);
+				} else {
+					LOG.info("Pruning subject no longer in SIA: " + subject.getSubject().getName());
+					modified = true;
+				}
+			}
+			/*
+			 * New certificates are evaluated as discovery would,
+			 * and discovery is performed below the ones we keep.
+			 */
+			Set<byte[]> forkedPath = new HashSet<byte[]>(path);
+			for (Map.Entry<X509Certificate, PkiUri> candidate: published.entrySet()) {
+				X509Certificate cert = candidate.getKey();
+				if (existing.contains(cert)) {
+					continue;
+				}
+				byte[] childSKI = ParsedCertificate.decodeSubjectKeyIdentifier(cert);
+				if (!IssuedByThisCADiscoveryTask.isAcceptableChild(entry, cert, childSKI, forkedPath, candidate.getValue())) {
+					continue;
+				}
+				forkedPath.add(childSKI);
+				LOG.info("Grafting new subject from SIA: " + cert.getSubjectX500Principal().getName());
+				CertificateCache child = IssuedByThisCADiscoveryTask.newChild(entry, cert);
+				child = ValidationUtils.issuedByThisCADiscovery(child, new HashSet<byte[]>(forkedPath), claimedUris);
+				subjects.add(child);
+				added.add(child);
+				modified = true;
+			}
+			return modified ? subjects : null;
+		}
+
+		/*
+		 * Returns the digest of the content we have from the URI now:
+		 * the content just downloaded, or else the last content the
+		 * URI cache recorded.
+		 */
+		private String getDigest(PkiUri uri, DownloadedArtifact artifact) {
+			if (artifact != null && !artifact.isNotModified()) {
+				return artifact.getDigest();
+			}
+			URICacheEntry entry = UriCacheManager.getInstance().getUriCache().getUriCacheEntry(uri);
+			return (entry == null) ? null : entry.getDigest();
+		}
+
+		/*
+		 * Reads the content we last received from the URI, if the
+		 * artifact store has it.
+		 */
+		private List<X509Certificate> readStored(PkiUri uri) throws IOException {
+			File stored = ArtifactStore.getInstance().getLastContent(uri);
+			if (stored == null) {
+				return null;
+			}
+			return readCertificates(new FileInputStream(stored), uri);
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+package org.keysupport.pki.validation;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.cert.CRL;
+import java.security.cert.CRLSelector;
+import java.security.cert.CertSelector;
+import java.security.cert.CertStoreException;
+import java.security.cert.CertStoreParameters;
+import java.security.cert.CertStoreSpi;
+import java.security.cert.Certificate;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLSelector;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.keysupport.pki.validation.cache.CertificateCache;
+
+/**
+ * A CertStore that indexes its certificates by subject DN, subject key
+ * identifier and authority key identifier, and its CRLs by issuer DN.
+ *
+ * The Collection CertStore tests every certificate against the selector
+ * for each query, and the PKIX path builder makes a query for every step
+ * of every path it tries.  Here the selector criteria the builder sets
+ * (subject, SKI, AKI, or a specific certificate) are looked up in a map,
+ * and only the few certificates found are tested against the selector.
+ * Selectors without any of those criteria fall back to a full scan.
+ *
+ * The store holds certificate cache entries rather than certificates,
+ * and is indexed from the fields the entries keep, so a certificate is
+ * only decoded (from the CertificateStore) when it is a candidate for a
+ * query.  Certificates given to the store are placed in cache entries.
+ *
+ * The indexes are built once, when the store is created, and are never
+ * modified, so queries do not need any locking.
+ */
+public class IndexedCertStore extends CertStoreSpi {
+
+	private static final Collection<CertificateCache> SCAN = Collections.unmodifiableList(new ArrayList<CertificateCache>(0));
+
+	private final List<CertificateCache> certs = new ArrayList<CertificateCache>();
+	private final List<X509CRL> crls = new ArrayList<X509CRL>();
+	private final Map<X500Principal, List<CertificateCache>> bySubject = new HashMap<X500Principal, List<CertificateCache>>();
+	private final Map<ByteBuffer, List<CertificateCache>> bySki = new HashMap<ByteBuffer, List<CertificateCache>>();
+	private final Map<ByteBuffer, List<CertificateCache>> byAki = new HashMap<ByteBuffer, List<CertificateCache>>();
+	private final Map<X500Principal, List<X509CRL>> byIssuer = new HashMap<X500Principal, List<X509CRL>>();
+
+	public IndexedCertStore(CertStoreParameters params) throws InvalidAlgorithmParameterException {
+		super(params);
+		if (!(params instanceof IndexedCertStoreParameters)) {
+			throw new InvalidAlgorithmParameterException("IndexedCertStoreParameters required, got: " + params);
+		}
+		for (Object o: ((IndexedCertStoreParameters) params).getCollection()) {
+			if (o instanceof CertificateCache) {
+				add((CertificateCache) o);
+			} else if (o instanceof X509Certificate) {
+				add(new CertificateCache((X509Certificate) o));
+			} else if (o instanceof X509CRL) {
+				X509CRL crl = (X509CRL) o;
+				this.crls.add(crl);
+				put(this.byIssuer, crl.getIssuerX500Principal(), crl);
+			}
+		}
+	}
+
+	private void add(CertificateCache entry) {
+		this.certs.add(entry);
+		put(this.bySubject, entry.getSubject(), entry);
+		ParsedCertificate parsed = entry.getParsedCertificate();
+		if (parsed.getAssertedSKI() != null) {
+			put(this.bySki, ByteBuffer.wrap(parsed.getAssertedSKI()), entry);
+		}
+		if (parsed.getAssertedAKI() != null) {
+			put(this.byAki, ByteBuffer.wrap(parsed.getAssertedAKI()), entry);
+		}
+	}
+
+	@Override
+	public Collection<? extends Certificate> engineGetCertificates(CertSelector selector) throws CertStoreException {
+		if (selector == null) {
+			List<X509Certificate> all = new ArrayList<X509Certificate>(this.certs.size());
+			for (CertificateCache entry: this.certs) {
+				all.add(entry.getCertificate());
+			}
+			return all;
+		}
+		Collection<CertificateCache> candidates = this.certs;
+		if (selector instanceof X509CertSelector) {
+			X509CertSelector xsel = (X509CertSelector) selector;
+			if (xsel.getCertificate() != null) {
+				candidates = this.bySubject.get(xsel.getCertificate().getSubjectX500Principal());
+			} else if (xsel.getSubject() != null) {
+				candidates = this.bySubject.get(xsel.getSubject());
+			} else if (xsel.getSubjectKeyIdentifier() != null) {
+				candidates = lookup(this.bySki, getKeyIdentifiers(xsel.getSubjectKeyIdentifier(), false));
+			} else if (xsel.getAuthorityKeyIdentifier() != null) {
+				candidates = lookup(this.byAki, getKeyIdentifiers(xsel.getAuthorityKeyIdentifier(), true));
+			}
+		}
+		/*
+		 * A key identifier we could not decode; check everything.
+		 */
+		if (candidates == SCAN) {
+			candidates = this.certs;
+		}
+		if (candidates == null || candidates.isEmpty()) {
+			return Collections.emptySet();
+		}
+		Set<X509Certificate> matches = new LinkedHashSet<X509Certificate>();
+		for (CertificateCache entry: candidates) {
+			X509Certificate cert = entry.getCertificate();
+			if (selector.match(cert)) {
+				matches.add(cert);
+			}
+		}
+		return matches;
+	}
+
+	@Override
+	public Collection<? extends CRL> engineGetCRLs(CRLSelector selector) throws CertStoreException {
+		if (selector == null) {
+			return Collections.unmodifiableList(this.crls);
+		}
+		Collection<X509CRL> candidates = this.crls;
+		if (selector instanceof X509CRLSelector && ((X509CRLSelector) selector).getIssuers() != null) {
+			candidates = new ArrayList<X509CRL>();
+			for (X500Principal issuer: ((X509CRLSelector) selector).getIssuers()) {
+				List<X509CRL> issued = this.byIssuer.get(issuer);
+				if (issued != null) {
+					candidates.addAll(issued);
+				}
+			}
+		}
+		Set<X509CRL> matches = new LinkedHashSet<X509CRL>();
+		for (X509CRL crl: candidates) {
+			if (selector.match(crl)) {
+				matches.add(crl);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the number of certificates in the store
+	 */
+	public int size() {
+		return this.certs.size();
+	}
+
+	private static <K, V> void put(Map<K, List<V>> index, K key, V value) {
+		List<V> values = index.get(key);
+		if (values == null) {
+			values = new ArrayList<V>(1);
+			index.put(key, values);
+		}
+		values.add(value);
+	}
+
+	private static Collection<CertificateCache> lookup(Map<ByteBuffer, List<CertificateCache>> index, List<ByteBuffer> keys) {
+		if (keys.isEmpty()) {
+			return SCAN;
+		}
+		Set<CertificateCache> found = new LinkedHashSet<CertificateCache>();
+		for (ByteBuffer key: keys) {
+			List<CertificateCache> values = index.get(key);
+			if (values != null) {
+				found.addAll(values);
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * The selector key identifiers are DER encoded, but callers differ
+	 * on whether the extnValue OCTET STRING wrapper is included.  We
+	 * return every key identifier the value could represent, and leave
+	 * the exact comparison to the selector.
+	 */
+	private static List<ByteBuffer> getKeyIdentifiers(byte[] value, boolean authority) {
+		List<ByteBuffer> keys = new ArrayList<ByteBuffer>();
+		byte[] current = value;
+		for (int depth = 0; depth < 3 && current != null; depth++) {
+			if (authority) {
+				try {
+					byte[] keyId = AuthorityKeyIdentifier.getInstance(current).getKeyIdentifier();
+					if (keyId != null) {
+						keys.add(ByteBuffer.wrap(keyId));
+					}
+				} catch (IllegalArgumentException e) {
+					//Not an AuthorityKeyIdentifier at this depth
+				}
+			} else {
+				keys.add(ByteBuffer.wrap(current));
+			}
+			try {
+				current = ASN1OctetString.getInstance(current).getOctets();
+			} catch (IllegalArgumentException e) {
+				current = null;
+			}
+		}
+		return keys;
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.keysupport.pki.validation;
+
+import java.security.cert.CertStoreParameters;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Parameters for the KSIndexed CertStore.  Like the parameters for the
+ * Collection CertStore, this holds the certificates and CRLs that the
+ * store will serve, but they are indexed when the store is created,
+ * so the collection is copied rather than referenced.
+ *
+ * Certificates may also be given as CertificateCache entries, which the
+ * store decodes only when they are needed.
+ */
+public class IndexedCertStoreParameters implements CertStoreParameters {
+
+	private final Collection<?> coll;
+
+	public IndexedCertStoreParameters(Collection<?> coll) {
+		if (coll == null) {
+			throw new NullPointerException("Collection must not be null");
+		}
+		this.coll = Collections.unmodifiableCollection(new ArrayList<Object>(coll));
+	}
+
+	/**
+	 * @return the certificates, cache entries and CRLs held by the store
+	 */
+	public Collection<?> getCollection() {
+		return coll;
+	}
+
+	public Object clone() {
+		try {
+			return super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new InternalError(e.toString());
+		}
+	}
+
+	public String toString() {
+		return "IndexedCertStoreParameters: [" + coll.size() + " objects]";
+	}
+
+}
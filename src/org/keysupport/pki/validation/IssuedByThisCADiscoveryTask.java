@@ -0,0 +1,379 @@
+package org.keysupport.pki.validation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.util.Store;
+import org.keysupport.httpclient.DownloadedArtifact;
+import org.keysupport.httpclient.FetchScheduler;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.validation.cache.CertificateCache;
+import org.keysupport.pki.validation.cache.RejectedCertCacheManager;
+
+/**
+ * Performs issuedByThisCA (SIA) discovery below a single certificate
+ * cache entry, in two passes.
+ *
+ * The first pass fetches the certs-only CMS message of every SIA URI
+ * reachable from the entry, forking a new task for every CA certificate
+ * found, so the fetches run concurrently and the time they take follows
+ * the depth of the tree rather than the number of CAs.  Each URI is
+ * fetched once, by whichever task reaches it first.
+ *
+ * The second pass builds the tree from the fetched messages, depth
+ * first and in the order the certificates appear in them, the same as
+ * the sequential discovery did.  A CA that is in the tree more than
+ * once (through cross certificates) shares its SIA URIs, and a shared
+ * URI is owned by the first of its entries in that order: only that
+ * entry gets the subjects found in it.  Since this pass does no I/O,
+ * the tree is the same on every run, whichever fetch completes first.
+ */
+public class IssuedByThisCADiscoveryTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 4130496206811484394L;
+
+	private static final Log LOG = LogFactory.getLog(IssuedByThisCADiscoveryTask.class);
+
+	private final PkiUri[] siaUris;
+	private final ConcurrentHashMap<URI, Boolean> fetchedUris;
+	private final Map<URI, List<X509Certificate>> contents;
+
+	private IssuedByThisCADiscoveryTask(PkiUri[] siaUris, ConcurrentHashMap<URI, Boolean> fetchedUris,
+			Map<URI, List<X509Certificate>> contents) {
+		this.siaUris = siaUris;
+		this.fetchedUris = fetchedUris;
+		this.contents = contents;
+	}
+
+	/**
+	 * Discovers the subjects of a cache entry, and of each subject
+	 * found, skipping the SIA URIs that are already claimed.
+	 *
+	 * @param certCache the cache entry to discover the subjects of
+	 * @param currentPath the SKIs of the path to the cache entry, may be null
+	 * @param claimedUris the SIA URIs that must not be chased, to which
+	 * the URIs chased by this discovery are added
+	 * @param pool the pool the SIA URIs are fetched in
+	 * @return the cache entry, with its discovered subjects
+	 */
+	public static CertificateCache discover(CertificateCache certCache, Set<byte[]> currentPath,
+			ConcurrentHashMap<URI, Boolean> claimedUris, ForkJoinPool pool) {
+		PkiUri[] siaUris = certCache.getParsedCertificate().getHttpSiaUris();
+		if (siaUris == null || siaUris.length == 0) {
+			LOG.info("Certificate does not contain SIA extension.  End of path?");
+			return certCache;
+		}
+		ConcurrentHashMap<URI, Boolean> fetchedUris = new ConcurrentHashMap<URI, Boolean>(claimedUris);
+		Map<URI, List<X509Certificate>> contents = new ConcurrentHashMap<URI, List<X509Certificate>>();
+		pool.invoke(new IssuedByThisCADiscoveryTask(siaUris, fetchedUris, contents));
+		LOG.info("Fetched " + contents.size() + " SIA URIs, building the tree");
+		return assemble(certCache, currentPath, claimedUris, contents);
+	}
+
+	/*
+	 * The first pass: fetches our SIA URIs that no other task has
+	 * fetched, and forks a task for each CA certificate found in them.
+	 * The certificates are only checked for what does not depend on
+	 * where they are in the tree, so this pass may fetch a little more
+	 * than the second pass uses.
+	 */
+	@Override
+	protected void compute() {
+		List<SiaFetch> fetches = new ArrayList<SiaFetch>();
+		for (PkiUri uri: siaUris) {
+			/*
+			 * The URI cache is not consulted here, since it may
+			 * hold entries from a previous run (or a restored
+			 * snapshot), and a rebuild must fetch every SIA again
+			 * to see what has changed.
+			 */
+			if (fetchedUris.putIfAbsent(uri.getUri(), Boolean.TRUE) != null) {
+				LOG.debug("URI was already fetched in this discovery, Skipping: " + uri.toString());
+				continue;
+			}
+			LOG.info("We have not seen this URI yet, Fetching: " + uri.toString());
+			/*
+			 * All of our SIA URIs are requested at once from the
+			 * asynchronous HttpClient, which fetches them (and the
+			 * SIA URIs of every other task) concurrently, within
+			 * the FetchScheduler's limits for each host.  The fetch
+			 * is forced, since a rebuild must see every SIA.
+			 */
+			fetches.add(new SiaFetch(uri, FetchScheduler.getInstance().download(uri, false, true, null)));
+		}
+		List<IssuedByThisCADiscoveryTask> childTasks = new ArrayList<IssuedByThisCADiscoveryTask>();
+		for (int f = 0; f < fetches.size(); f++) {
+			SiaFetch fetch = fetches.get(f);
+			PkiUri uri = fetch.getUri();
+			/*
+			 * NOTE:  If we catch an exception here on the first SIA URI, we
+			 * are dead in the water for issuedByThisCA discovery, until the
+			 * periodic refresh (IncrementalDiscovery) fetches it again.
+			 */
+			try {
+				ForkJoinPool.managedBlock(fetch);
+			} catch (InterruptedException e) {
+				LOG.fatal("Interrupted during SIA chase: " + e.getMessage(), e);
+				Thread.currentThread().interrupt();
+				/*
+				 * Any downloads we will not process are closed
+				 * when they complete.
+				 */
+				for (SiaFetch remaining: fetches.subList(f, fetches.size())) {
+					remaining.cancel();
+				}
+				break;
+			}
+			DownloadedArtifact cmsArtifact = fetch.getResult();
+			if (cmsArtifact == null) {
+				continue;
+			}
+			CMSSignedData cms = null;
+			InputStream cmsStream = null;
+			try {
+				cmsStream = cmsArtifact.openStream();
+				cms = new CMSSignedData(cmsStream);
+				cmsArtifact.commit();
+			} catch (CMSException | IOException e) {
+				LOG.fatal("Error parsing certs-only CMS message: " + e.getMessage(), e);
+			} finally {
+				if (cmsStream != null) {
+					try {
+						cmsStream.close();
+					} catch (IOException e) {
+						LOG.warn("Error closing certs-only CMS stream: " + e.getMessage());
+					}
+				}
+				cmsArtifact.close();
+			}
+			if (cms == null) {
+				continue;
+			}
+			List<X509Certificate> certs = getCertificates(cms);
+			LOG.info("Discovered " + certs.size() + " certificates!");
+			contents.put(uri.getUri(), certs);
+			for (X509Certificate cert: certs) {
+				if (!ValidationUtils.isCa(cert) || !isValid(cert)) {
+					continue;
+				}
+				PkiUri[] childUris = ParsedCertificate.parse(cert).getHttpSiaUris();
+				if (childUris != null && childUris.length > 0) {
+					IssuedByThisCADiscoveryTask childTask = new IssuedByThisCADiscoveryTask(childUris, fetchedUris, contents);
+					childTask.fork();
+					childTasks.add(childTask);
+				}
+			}
+		}
+		for (IssuedByThisCADiscoveryTask childTask: childTasks) {
+			childTask.join();
+		}
+	}
+
+	/*
+	 * The second pass: adds the subjects found in the SIA URIs the
+	 * entry owns, and their subjects, to the entry.  An entry owns the
+	 * URIs that no entry before it (depth first) claimed.
+	 */
+	private static CertificateCache assemble(CertificateCache certCache, Set<byte[]> currentPath,
+			ConcurrentHashMap<URI, Boolean> claimedUris, Map<URI, List<X509Certificate>> contents) {
+		PkiUri[] siaUris = certCache.getParsedCertificate().getHttpSiaUris();
+		if (siaUris == null || siaUris.length == 0) {
+			return certCache;
+		}
+		/*
+		 * We are going to build a set of SKIs so we
+		 * can see all the keys in the path we are building.
+		 *
+		 * We will use this as we discover new certificates to
+		 * filter out any cross certificates that go in the
+		 * wrong direction for our needs.
+		 */
+		Set<byte[]> forkedPath = new HashSet<byte[]>();
+		if (currentPath != null) {
+			forkedPath.addAll(currentPath);
+		}
+		for (PkiUri uri: siaUris) {
+			if (claimedUris.putIfAbsent(uri.getUri(), Boolean.TRUE) != null) {
+				LOG.debug("URI is owned by another entry, Skipping: " + uri.toString());
+				continue;
+			}
+			List<X509Certificate> certs = contents.get(uri.getUri());
+			if (certs == null) {
+				certs = Collections.emptyList();
+			}
+			/*
+			 * We need to loop through the certificates we find,
+			 * and add them as children to the caller.
+			 */
+			for (X509Certificate thisCert: certs) {
+				/*
+				 * Let's determine the SKI so we can evaluate if
+				 * this is a certificate in the wrong direction
+				 * below.
+				 */
+				byte[] childSKI = ParsedCertificate.decodeSubjectKeyIdentifier(thisCert);
+				if (isAcceptableChild(certCache, thisCert, childSKI, forkedPath, uri)) {
+					/*
+					 * We are preparing to add this child to our
+					 * cache, so we will add the child's SKI
+					 * to the path.
+					 */
+					forkedPath.add(childSKI);
+					/*
+					 * Create a child CertCache Object, add its
+					 * subjects, and add it to the parent certCache.
+					 * The child gets its own copy of the path as it
+					 * stands right now, since later siblings will
+					 * keep adding to ours.
+					 */
+					CertificateCache childCertCache = newChild(certCache, thisCert);
+					certCache.addSubject(assemble(childCertCache, new HashSet<byte[]>(forkedPath), claimedUris, contents));
+				}
+			}
+		}
+		return certCache;
+	}
+
+	private static boolean isValid(X509Certificate cert) {
+		try {
+			cert.checkValidity();
+			return true;
+		} catch (CertificateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param cms a certs-only CMS message
+	 * @return the certificates in the message that could be decoded
+	 */
+	static List<X509Certificate> getCertificates(CMSSignedData cms) {
+		Store certStore = cms.getCertificates();
+		@SuppressWarnings("unchecked")
+		ArrayList<X509CertificateHolder> certC = (ArrayList<X509CertificateHolder>) certStore.getMatches(null);
+		JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+		List<X509Certificate> certs = new ArrayList<X509Certificate>(certC.size());
+		for (X509CertificateHolder ch: certC) {
+			LOG.info("Processing discovered cert: " + ch.getSubject().toString());
+			try {
+				certs.add(converter.getCertificate(ch));
+			} catch (CertificateException e) {
+				LOG.fatal("Error getting X509Certificate from X509CertificateHolder: " + e.getMessage(), e);
+			}
+		}
+		return certs;
+	}
+
+	/**
+	 * Make sure the certificate we are evaluating:
+	 * -Is a CA certificate
+	 * -Is not the CA we are performing the discovery on
+	 * -Is signed by the CA we are performing a discovery on
+	 * -Is not expired
+	 * -Does not go back up the path we are building
+	 *
+	 * If the certificate does not meet the requirements
+	 * above, it is placed in the rejected certificate cache.
+	 *
+	 * @param parent the CA we are performing the discovery on
+	 * @param cert the certificate found in the parent's SIA
+	 * @param childSKI the SKI of the certificate
+	 * @param path the SKIs of the path we are building
+	 * @param uri the SIA URI the certificate was found in
+	 * @return true if the certificate should become a child of the parent
+	 */
+	static boolean isAcceptableChild(CertificateCache parent, X509Certificate cert, byte[] childSKI, Set<byte[]> path, PkiUri uri) {
+		RejectedCertCacheManager rejectManager = RejectedCertCacheManager.getInstance();
+		return ValidationUtils.isCa(cert) &&
+				cert != parent.getCertificate() &&
+				parent.isSignerOf(cert) &&
+				rejectManager.isAcceptableCA(cert, uri.toString()) &&
+				rejectManager.isRightDirection(childSKI, cert, path, uri.toString());
+	}
+
+	/**
+	 * @param parent the CA that issued the certificate
+	 * @param cert the certificate of the child CA
+	 * @return a cache entry for the child, with its CertIDs set
+	 */
+	static CertificateCache newChild(CertificateCache parent, X509Certificate cert) {
+		CertificateCache childCertCache = new CertificateCache(cert);
+		childCertCache.setIssuerCertId(parent.getSubjectCertId());
+		CertID subjectCertId = null;
+		try {
+			subjectCertId = ValidationUtils.getCertIdentifier(parent.getCertificate(), childCertCache.getCertificate()).toASN1Object();
+		} catch (ValidationException e) {
+			LOG.fatal("Error generating CertID for child: " + e.getMessage(), e);
+		}
+		if (subjectCertId != null) {
+			childCertCache.setSubjectCertId(subjectCertId);
+		}
+		return childCertCache;
+	}
+
+	/**
+	 * Waits for the certs-only CMS message from an SIA URI, letting the
+	 * pool know that the worker thread is blocked on network I/O so
+	 * it can keep the remaining discovery tasks moving.
+	 */
+	private static class SiaFetch implements ForkJoinPool.ManagedBlocker {
+
+		private final PkiUri uri;
+		private final Future<DownloadedArtifact> future;
+		private volatile boolean done = false;
+		private volatile DownloadedArtifact result = null;
+
+		private SiaFetch(PkiUri uri, Future<DownloadedArtifact> future) {
+			this.uri = uri;
+			this.future = future;
+		}
+
+		public boolean block() throws InterruptedException {
+			try {
+				result = future.get();
+			} catch (ExecutionException e) {
+				LOG.fatal("Error getting during SIA chase: " + e.getCause().getMessage(), e.getCause());
+			}
+			done = true;
+			return true;
+		}
+
+		public boolean isReleasable() {
+			return done;
+		}
+
+		private void cancel() {
+			future.cancel(false);
+		}
+
+		private PkiUri getUri() {
+			return uri;
+		}
+
+		private DownloadedArtifact getResult() {
+			return result;
+		}
+	}
+
+}
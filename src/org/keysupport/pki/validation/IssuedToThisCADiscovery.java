@@ -0,0 +1,417 @@
+package org.keysupport.pki.validation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.keysupport.httpclient.ArtifactStore;
+import org.keysupport.httpclient.DownloadedArtifact;
+import org.keysupport.httpclient.FetchRefusedException;
+import org.keysupport.httpclient.FetchScheduler;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.httpclient.SingleFlight;
+import org.keysupport.pki.validation.cache.CacheGeneration;
+import org.keysupport.pki.validation.cache.CertificateCache;
+import org.keysupport.pki.validation.cache.CertificateCacheException;
+import org.keysupport.pki.validation.cache.CertificateCacheManager;
+import org.keysupport.pki.validation.cache.RejectedCertCacheManager;
+import org.keysupport.pki.validation.cache.SignatureVerificationCache;
+
+/**
+ * Performs issuedToThisCA (AIA) discovery for certificates whose issuer
+ * was not reached by the issuedByThisCA (SIA) discovery of the cache.
+ *
+ * Starting from the certificate, the caIssuers URIs are fetched (either
+ * a single DER certificate or a certs-only CMS message), and the CA
+ * certificates that verify the certificate are followed upward, until
+ * one of them is issued by a CA already in the cache.  The CAs found on
+ * the way are then grafted below that CA, validated, and published in
+ * a new cache generation.
+ *
+ * The issuer each AKI (or issuer DN, if there is no AKI) resolves to is
+ * remembered in a bounded LRU map, so the next certificate from the same
+ * CA is resolved without going to the network.  An AKI that could not be
+ * resolved is not chased again for a while, and concurrent requests for
+ * the same AKI share a single chase.
+ *
+ * Paths are not published by the chase itself.  They are queued with
+ * the CertificateCacheManager, which grafts the paths found at about
+ * the same time together and publishes them in a single generation.
+ */
+public class IssuedToThisCADiscovery {
+
+	private static IssuedToThisCADiscovery instance = null;
+	private static final Log LOG = LogFactory.getLog(IssuedToThisCADiscovery.class);
+
+	private static final int MAX_DEPTH = 8;
+	private static final int MAX_RESOLVED = 4096;
+	private static final long UNRESOLVED_TTL = TimeUnit.MINUTES.toMillis(10);
+
+	private final Map<String, Resolution> resolved;
+	private final SingleFlight<String, Resolution> chases = new SingleFlight<String, Resolution>();
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong grafted = new AtomicLong(0);
+	private final AtomicLong unresolved = new AtomicLong(0);
+
+	public static synchronized IssuedToThisCADiscovery getInstance() {
+		if (instance == null) {
+			instance = new IssuedToThisCADiscovery();
+		}
+		return instance;
+	}
+
+	private IssuedToThisCADiscovery() {
+		LOG.info("Initializing issuedToThisCA Discovery");
+		this.resolved = new LinkedHashMap<String, Resolution>(256, 0.75f, true) {
+			private static final long serialVersionUID = -4410963326812374205L;
+			protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+				return size() > MAX_RESOLVED;
+			}
+		};
+	}
+
+	/**
+	 * Finds the cache entry for the issuer of a certificate, performing
+	 * issuedToThisCA discovery if the issuer is not in the cache yet.
+	 *
+	 * @param cert the certificate
+	 * @return the issuer's entry in the current cache generation, or null if the issuer could not be found
+	 */
+	public CertificateCache getIssuer(final X509Certificate cert) {
+		CertificateCacheManager certManager = CertificateCacheManager.getInstance();
+		CacheGeneration generation = certManager.getGeneration();
+		if (generation == null) {
+			return null;
+		}
+		CertificateCache issuer = findSigner(generation, cert);
+		if (issuer != null) {
+			return issuer;
+		}
+		final String key = getKey(cert);
+		Resolution resolution = null;
+		synchronized (resolved) {
+			resolution = resolved.get(key);
+		}
+		if (resolution != null) {
+			issuer = resolution.getIssuer(generation, cert);
+			if (issuer != null || resolution.isUnresolved()) {
+				hits.incrementAndGet();
+				return issuer;
+			}
+			/*
+			 * The issuer we found last time is no longer in the
+			 * cache (e.g., it was rebuilt), or the time we wait to
+			 * chase an unresolved AKI again has passed.
+			 */
+			synchronized (resolved) {
+				if (resolved.get(key) == resolution) {
+					resolved.remove(key);
+				}
+			}
+		}
+		try {
+			resolution = chases.execute(key, new Callable<Resolution>() {
+				public Resolution call() throws Exception {
+					return chase(cert);
+				}
+			});
+		} catch (ExecutionException e) {
+			LOG.fatal("Error during issuedToThisCA discovery: " + e.getCause().getMessage(), e.getCause());
+			return null;
+		} catch (InterruptedException e) {
+			LOG.fatal("Interrupted during issuedToThisCA discovery: " + e.getMessage(), e);
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		synchronized (resolved) {
+			resolved.put(key, resolution);
+		}
+		return resolution.getIssuer(certManager.getGeneration(), cert);
+	}
+
+	/*
+	 * Chases the AIA of the certificate, and waits for the path found
+	 * to be published.
+	 */
+	private Resolution chase(X509Certificate cert) throws InterruptedException, ExecutionException {
+		LOG.info("Performing issuedToThisCA Discovery for: " + cert.getSubjectX500Principal().getName());
+		CertificateCacheManager certManager = CertificateCacheManager.getInstance();
+		/*
+		 * Another chase may have published the issuer while
+		 * we waited for our turn.
+		 */
+		CertificateCache issuer = findSigner(certManager.getGeneration(), cert);
+		if (issuer != null) {
+			return new Resolution(issuer.getSubjectCertId());
+		}
+		List<X509Certificate> path = findPath(cert, certManager.getGeneration(), new ArrayList<X509Certificate>(), new HashSet<URI>(), 0);
+		if (path == null) {
+			LOG.warn("Unable to find a path to the cache from: " + cert.getSubjectX500Principal().getName());
+			unresolved.incrementAndGet();
+			return new Resolution(null);
+		}
+		CacheGeneration generation = certManager.addIssuedToThisCaPath(path).get();
+		if (generation == null) {
+			unresolved.incrementAndGet();
+			return new Resolution(null);
+		}
+		issuer = findSigner(generation, cert);
+		if (issuer == null) {
+			unresolved.incrementAndGet();
+			return new Resolution(null);
+		}
+		grafted.incrementAndGet();
+		return new Resolution(issuer.getSubjectCertId());
+	}
+
+	/*
+	 * Depth first search up the AIA of the certificate.  The returned
+	 * path starts with the certificate issued by a CA in the cache, and
+	 * ends with the issuer of the certificate we started from.
+	 */
+	private static List<X509Certificate> findPath(X509Certificate cert, CacheGeneration generation,
+			List<X509Certificate> chain, Set<URI> visited, int depth) {
+		if (depth >= MAX_DEPTH) {
+			return null;
+		}
+		PkiUri[] aiaUris = ParsedCertificate.parse(cert).getHttpAiaUris();
+		if (aiaUris == null) {
+			return null;
+		}
+		RejectedCertCacheManager rejectManager = RejectedCertCacheManager.getInstance();
+		for (PkiUri uri: aiaUris) {
+			if (!visited.add(uri.getUri())) {
+				continue;
+			}
+			for (X509Certificate candidate: fetchCertificates(uri)) {
+				if (chain.contains(candidate) ||
+						!ValidationUtils.isCa(candidate) ||
+						!SignatureVerificationCache.getInstance().verify(cert, candidate.getPublicKey()) ||
+						!rejectManager.isAcceptableCA(candidate, uri.toString())) {
+					continue;
+				}
+				List<X509Certificate> next = new ArrayList<X509Certificate>(chain);
+				next.add(candidate);
+				if (findSigner(generation, candidate) != null) {
+					Collections.reverse(next);
+					return next;
+				}
+				List<X509Certificate> found = findPath(candidate, generation, next, visited, depth + 1);
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Fetches the certificates published at a caIssuers URI.  If the
+	 * server asked us not to fetch the URI again yet, the content we
+	 * received last time is read from the artifact store.
+	 */
+	private static Collection<X509Certificate> fetchCertificates(PkiUri uri) {
+		DownloadedArtifact artifact = null;
+		InputStream in = null;
+		try {
+			try {
+				artifact = FetchScheduler.getInstance().download(uri, false, false, null).get();
+				if (artifact == null) {
+					LOG.warn("No content returned from caIssuers " + uri);
+					return Collections.emptyList();
+				}
+				in = artifact.openStream();
+			} catch (ExecutionException e) {
+				File stored = ArtifactStore.getInstance().getLastContent(uri);
+				if (!(e.getCause() instanceof FetchRefusedException) || stored == null) {
+					LOG.warn("Error fetching caIssuers " + uri + ": " + e.getCause().getMessage());
+					return Collections.emptyList();
+				}
+				in = new FileInputStream(stored);
+			}
+			/*
+			 * The CertificateFactory reads both a DER encoded
+			 * certificate and a certs-only CMS message.
+			 */
+			CertificateFactory cf = CertificateFactory.getInstance("X509");
+			List<X509Certificate> certs = new ArrayList<X509Certificate>();
+			for (Certificate cert: cf.generateCertificates(in)) {
+				if (cert instanceof X509Certificate) {
+					certs.add((X509Certificate) cert);
+				}
+			}
+			LOG.info("Discovered " + certs.size() + " certificates at " + uri);
+			if (artifact != null) {
+				artifact.commit();
+			}
+			return certs;
+		} catch (IOException | CertificateException e) {
+			LOG.warn("Error reading caIssuers " + uri + ": " + e.getMessage());
+			return Collections.emptyList();
+		} catch (InterruptedException e) {
+			LOG.fatal("Interrupted fetching caIssuers " + uri + ": " + e.getMessage(), e);
+			Thread.currentThread().interrupt();
+			return Collections.emptyList();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOG.warn("Error closing caIssuers stream: " + e.getMessage());
+				}
+			}
+			if (artifact != null) {
+				artifact.close();
+			}
+		}
+	}
+
+	/**
+	 * Grafts a path of CAs below the cache entry that issued the first
+	 * of them, validating only the new entries.  CAs at the start of
+	 * the path that are in the generation already (such as those added
+	 * by another path in the same batch) are skipped.
+	 *
+	 * @param current the generation to graft onto
+	 * @param path the CAs, starting with the one issued by a CA in the generation
+	 * @return the new, validated cache tree, the tree of the generation
+	 * if the whole path is in it already, or null if the path could not
+	 * be added
+	 * @throws PKIXValidatorException
+	 * @throws CertificateCacheException
+	 */
+	public static CertificateCache graft(CacheGeneration current, List<X509Certificate> path) throws PKIXValidatorException, CertificateCacheException {
+		int start = 0;
+		while (start < path.size() && contains(current, path.get(start))) {
+			start++;
+		}
+		if (start == path.size()) {
+			return current.getCache();
+		}
+		path = path.subList(start, path.size());
+		CertificateCache anchor = findSigner(current, path.get(0));
+		if (anchor == null) {
+			return null;
+		}
+		CertificateCache top = null;
+		CertificateCache parent = anchor;
+		for (X509Certificate cert: path) {
+			CertificateCache child = IssuedByThisCADiscoveryTask.newChild(parent, cert);
+			if (parent == anchor) {
+				top = child;
+			} else {
+				parent.addSubject(child);
+			}
+			parent = child;
+		}
+		ArrayList<CertificateCache> subjects = new ArrayList<CertificateCache>(anchor.getSubjects());
+		subjects.add(top);
+		Map<CertificateCache, ArrayList<CertificateCache>> changes = new IdentityHashMap<CertificateCache, ArrayList<CertificateCache>>();
+		changes.put(anchor, subjects);
+		/*
+		 * As with a refresh, the new entries are validated in a
+		 * generation that has them, after their CRLs are downloaded.
+		 */
+		Map<CertificateCache, CertificateCache> validated = new IdentityHashMap<CertificateCache, CertificateCache>();
+		CacheGeneration discovered = new CacheGeneration(IncrementalDiscovery.graft(current.getCache(), changes, validated));
+		ValidationUtils.getCRLs(discovered.getCache(), discovered.getFlattenedCache());
+		CertificateCache validatedTop = ValidationUtils.getValidatedCache(top, discovered);
+		if (validatedTop == null) {
+			LOG.warn("issuedToThisCA path failed validation: " + top.getSubject().getName());
+			return null;
+		}
+		validated.put(top, validatedTop);
+		return IncrementalDiscovery.graft(current.getCache(), changes, validated);
+	}
+
+	private static boolean contains(CacheGeneration generation, X509Certificate cert) {
+		for (CertificateCache entry: generation.getBySubject(cert.getSubjectX500Principal())) {
+			if (entry.getCertificate().equals(cert)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Finds the entry in the generation that signed the certificate.
+	 */
+	private static CertificateCache findSigner(CacheGeneration generation, X509Certificate cert) {
+		for (CertificateCache candidate: generation.getCandidateIssuers(cert)) {
+			if (candidate.isSignerOf(cert)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private static String getKey(X509Certificate cert) {
+		byte[] aki = ValidationUtils.getAssertedAKI(cert);
+		if (aki != null) {
+			return "AKI:" + Hex.encodeHexString(aki);
+		}
+		return "DN:" + cert.getIssuerX500Principal().getName();
+	}
+
+	public String toString() {
+		int size = 0;
+		synchronized (resolved) {
+			size = resolved.size();
+		}
+		return "[issuedToThisCA Discovery: Resolved: " + size + ", Hits: " + hits.get() + ", Grafted: " + grafted.get() + ", Unresolved: " + unresolved.get() + ", Chases: " + chases.getExecutedCount() + ", Coalesced: " + chases.getCoalescedCount() + "]";
+	}
+
+	/**
+	 * The issuer an AKI resolved to, or the time until which an AKI
+	 * that could not be resolved is not chased again.
+	 */
+	private static class Resolution {
+
+		private final CertID issuerCertId;
+		private final long expires;
+
+		private Resolution(CertID issuerCertId) {
+			this.issuerCertId = issuerCertId;
+			this.expires = (issuerCertId == null) ? System.currentTimeMillis() + UNRESOLVED_TTL : Long.MAX_VALUE;
+		}
+
+		private boolean isUnresolved() {
+			return issuerCertId == null && System.currentTimeMillis() < expires;
+		}
+
+		private CertificateCache getIssuer(CacheGeneration generation, X509Certificate cert) {
+			if (issuerCertId == null || generation == null) {
+				return null;
+			}
+			CertificateCache issuer = generation.getFlattenedCache().get(issuerCertId);
+			if (issuer == null && issuerCertId.equals(generation.getCache().getSubjectCertId())) {
+				issuer = generation.getCache();
+			}
+			return (issuer != null && issuer.isSignerOf(cert)) ? issuer : null;
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package org.keysupport.pki.validation;
+
+import java.security.Provider;
+
+/**
+ * Provides the KSIndexed CertStore used by the PKIXValidator.
+ *
+ * The provider is not installed with Security.addProvider(), it is
+ * passed to CertStore.getInstance() directly, so it never changes
+ * the provider preferences of the container.
+ */
+public class KeySupportProvider extends Provider {
+
+	private static final long serialVersionUID = -2736508318452098541L;
+
+	public static final String PROVIDER_NAME = "KeySupport";
+	public static final String INDEXED_CERTSTORE = "KSIndexed";
+
+	private static KeySupportProvider instance = null;
+
+	public static synchronized KeySupportProvider getInstance() {
+		if (instance == null) {
+			instance = new KeySupportProvider();
+		}
+		return instance;
+	}
+
+	/*
+	 * Provider(String, String, String) only exists from Java 9, and
+	 * we build for Java 1.7, so the double version constructor is
+	 * the only one we can use, though it is deprecated on newer JDKs.
+	 */
+	@SuppressWarnings("deprecation")
+	private KeySupportProvider() {
+		super(PROVIDER_NAME, 1.0, "KeySupport Validation Provider (Indexed CertStore)");
+		put("CertStore." + INDEXED_CERTSTORE, IndexedCertStore.class.getName());
+	}
+
+}
@@ -25,6 +25,7 @@ import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.keysupport.pki.asn1.NameConstraints;
+import org.keysupport.pki.validation.cache.CRLCacheManager;
 
 public class PKIXValidator {
 
@@ -84,7 +85,7 @@ public class PKIXValidator {
 	
 	private TrustAnchor trustAnchor = null;
 	private CertStore intermediateStore = null;
-	private CertStore crlStore = null;
+	private CRLCacheManager crlManager = null;
 
 	/*
 	 * The following are needed for:
@@ -123,10 +124,10 @@ public class PKIXValidator {
 		 */
 	}
 
-	protected PKIXValidator(TrustAnchor trustAnchor, CertStore intermediateStore, CertStore crlStore) {
+	protected PKIXValidator(TrustAnchor trustAnchor, CertStore intermediateStore, CRLCacheManager crlManager) {
 		this.trustAnchor = trustAnchor;
 		this.intermediateStore = intermediateStore;
-		this.crlStore = crlStore;
+		this.crlManager = crlManager;
 	}
 
 	/**
@@ -144,10 +145,10 @@ public class PKIXValidator {
 	}
 
 	/**
-	 * @return the crlStore
+	 * @return the crlManager
 	 */
-	public CertStore getCrlStore() {
-		return crlStore;
+	public CRLCacheManager getCrlManager() {
+		return crlManager;
 	}
 
 	/**
@@ -350,7 +351,14 @@ public class PKIXValidator {
 		/*
 		 * Set the params from our globals
 		 */
-		params.setRevocationEnabled(checkRevocation);
+		/*
+		 * Revocation is checked against the CRL indexes in our
+		 * CRL cache rather than by the provider.
+		 */
+		params.setRevocationEnabled(false);
+		if (checkRevocation) {
+			params.addCertPathChecker(new CRLIndexRevocationChecker(this.trustAnchor.getTrustedCert(), this.crlManager, this.validityDate));
+		}
 		if (this.initialPolicySet != null && !this.initialPolicySet.isEmpty()) {
 			params.setInitialPolicies(this.initialPolicySet);
 		}
@@ -365,7 +373,6 @@ public class PKIXValidator {
 		params.setSigProvider(this.sigProvider);
 
 		params.addCertStore(this.intermediateStore);
-		params.addCertStore(this.crlStore);
 		LOG.debug("Parameters:\n" + params.toString());
 		LOG.debug("--- BEGIN PATH DISCOVERY ---");
 		CertPathBuilder cpb = null;
@@ -441,7 +448,14 @@ public class PKIXValidator {
 		/*
 		 * Set the params from our globals
 		 */
-		params.setRevocationEnabled(checkRevocation);
+		/*
+		 * Revocation is checked against the CRL indexes in our
+		 * CRL cache rather than by the provider.
+		 */
+		params.setRevocationEnabled(false);
+		if (checkRevocation) {
+			params.addCertPathChecker(new CRLIndexRevocationChecker(this.trustAnchor.getTrustedCert(), this.crlManager, this.validityDate));
+		}
 		if (this.initialPolicySet != null && !this.initialPolicySet.isEmpty()) {
 			params.setInitialPolicies(this.initialPolicySet);
 		}
@@ -456,7 +470,6 @@ public class PKIXValidator {
 		params.setSigProvider(this.sigProvider);
 
 		params.addCertStore(this.intermediateStore);
-		params.addCertStore(this.crlStore);
 		LOG.debug("Parameters:\n" + params.toString());
 		LOG.debug("--- BEGIN PATH VALIDATION ---");
 
@@ -1,18 +1,12 @@
 package org.keysupport.pki.validation;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertPath;
-import java.security.cert.CertStore;
-import java.security.cert.CertStoreParameters;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
-import java.security.cert.CollectionCertStoreParameters;
-import java.security.cert.TrustAnchor;
-import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -21,6 +15,7 @@ import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.keysupport.pki.validation.cache.CRLCacheManager;
+import org.keysupport.pki.validation.cache.CacheGeneration;
 import org.keysupport.pki.validation.cache.CertificateCache;
 import org.keysupport.pki.validation.cache.CertificateCacheException;
 import org.keysupport.pki.validation.cache.CertificateCacheManager;
@@ -29,12 +24,7 @@ public class PKIXValidatorManager {
 
 	private volatile static PKIXValidatorManager instance = null;
 	private static final Log LOG = LogFactory.getLog(PKIXValidatorManager.class);
-	private CertificateCacheManager certManager = null;
 	private CRLCacheManager crlManager = null;
-	private static TrustAnchor trustAnchor = null;
-	
-	private static CertStore intermediateStore = null;
-	private static CertStore crlStore = null;
 
 	public static synchronized PKIXValidatorManager getInstance() throws PKIXValidatorException {
 		if (instance == null) {
@@ -45,52 +35,38 @@ public class PKIXValidatorManager {
 
 	private PKIXValidatorManager() throws PKIXValidatorException {
 		LOG.info("Initializing PKIX Validator Manager");
-		certManager = CertificateCacheManager.getInstance();
 		crlManager = CRLCacheManager.getInstance();
 		/*
-		 * Get the trust anchor
+		 * The trust anchor and intermediate store are built with
+		 * each cache generation, so we do not keep our own.
 		 */
-		X509Certificate trustAnchorCert = certManager.getCache().getCertificate();
-		trustAnchor = new TrustAnchor(trustAnchorCert, null);
-		if (trustAnchor == null) {
+	}
+
+	/**
+	 * @return a PKIXValidator for the current cache generation
+	 * @throws PKIXValidatorException
+	 */
+	public PKIXValidator getPKIXValidator() throws PKIXValidatorException {
+		CacheGeneration generation = CertificateCacheManager.getInstance().getGeneration();
+		if (generation == null) {
 			LOG.fatal("Failed to initialize Trust Anchor");
 			throw new PKIXValidatorException("Failed to initialize Trust Anchor");
 		}
-		/*
-		 * Get intermediates into a CertStore
-		 */
-		ArrayList<X509Certificate> iCertList = new ArrayList<X509Certificate>();
-		Collection<CertificateCache> it = certManager.getAllIntermediateEntries();
-		for (CertificateCache entry: it) {
-			iCertList.add(entry.getCertificate());
-		}
-		CertStoreParameters intParams = new CollectionCertStoreParameters(iCertList);
-		try {
-			intermediateStore = CertStore.getInstance("Collection", intParams);
-		} catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException e) {
-			LOG.fatal("Failed to initialize Intermediate Store: " + e.getMessage());
-			throw new PKIXValidatorException("Failed to initialize Intermediate Store", e);
-		}
-		/*
-		 * Get CRLs into a store
-		 */
-		Collection<X509CRL> crlCol = crlManager.getCRLCache().getCRLs();
-		CertStoreParameters crls = new CollectionCertStoreParameters(crlCol);
-		try {
-			crlStore = CertStore.getInstance("Collection", crls);
-		} catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException e) {
-			LOG.fatal("Failed to initialize CRL Store: " + e.getMessage());
-			throw new PKIXValidatorException("Failed to initialize Intermediate Store", e);
-		}
+		return getPKIXValidator(generation);
 	}
 
-	public synchronized PKIXValidator getPKIXValidator() throws PKIXValidatorException {
+	/**
+	 * @param generation the cache generation to validate against
+	 * @return a PKIXValidator for the given cache generation
+	 * @throws PKIXValidatorException
+	 */
+	public PKIXValidator getPKIXValidator(CacheGeneration generation) throws PKIXValidatorException {
 		/*
 		 * Render default NameConstraints from properties,
 		 * and we will use a setter to recreate.  We will
 		 * use null NameConstraints to create the initial object.
 		 */
-		PKIXValidator pVdr = new PKIXValidator(trustAnchor, intermediateStore, crlStore);
+		PKIXValidator pVdr = new PKIXValidator(generation.getTrustAnchor(), generation.getIntermediateStore(), crlManager);
 		/*
 		 * TODO:  Initialize the PKIXValidator with the defaults
 		 * from the properties. Setting hard coded defaults for now
@@ -148,8 +124,30 @@ public class PKIXValidatorManager {
 	public CertPath[] getAllPaths(X509Certificate cert) {
 		Set<CertPath> paths = new HashSet<CertPath>();
 		
-		Collection<CertificateCache> allEntries = certManager.getAllIntermediateEntries();
-		for (CertificateCache entry: allEntries) {
+		CertificateCacheManager certManager = CertificateCacheManager.getInstance();
+		/*
+		 * Only the CAs whose SKI matches the AKI of the certificate
+		 * (or whose subject matches its issuer) are signature checked.
+		 */
+		Collection<CertificateCache> candidates = certManager.getGeneration().getCandidateIssuers(cert);
+		/*
+		 * If the issuer was not reached by the SIA chase, find it
+		 * through the AIA of the certificate.
+		 */
+		boolean issuerFound = false;
+		for (CertificateCache entry: candidates) {
+			if (entry.isSignerOf(cert)) {
+				issuerFound = true;
+				break;
+			}
+		}
+		if (!issuerFound) {
+			CertificateCache issuer = IssuedToThisCADiscovery.getInstance().getIssuer(cert);
+			if (issuer != null) {
+				candidates = Collections.singletonList(issuer);
+			}
+		}
+		for (CertificateCache entry: candidates) {
 			if (entry.isSignerOf(cert)) {
 				List<X509Certificate> setPath = new ArrayList<X509Certificate>();
 				setPath.add(cert);
@@ -0,0 +1,367 @@
+package org.keysupport.pki.validation;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CertificatePolicies;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.PolicyInformation;
+import org.bouncycastle.asn1.x509.ReasonFlags;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.asn1.SubjectInformationAccess;
+import org.keysupport.pki.validation.cache.URICacheEntry;
+
+/**
+ * The extensions of a certificate that discovery and validation use,
+ * decoded once into plain fields.
+ *
+ * Each extension is read from the certificate and decoded a single
+ * time when the descriptor is created, and the URIs are sorted by
+ * access method and protocol up front.  There is no shared table of
+ * descriptors: the CertificateCache entry of a CA keeps the descriptor
+ * for its certificate, and any other certificate is decoded where it
+ * is used, so lookups never contend on a lock.
+ *
+ * A descriptor is immutable, and the arrays and sets it returns are
+ * shared, so they SHALL NOT be modified by the caller.
+ */
+public class ParsedCertificate {
+
+	private static final Log LOG = LogFactory.getLog(ParsedCertificate.class);
+
+	private static final PkiUri[] NO_URIS = new PkiUri[0];
+
+	private final byte[] assertedSki;
+	private final byte[] calculatedSki;
+	private final byte[] assertedAki;
+	private final int basicConstraints;
+	private final Set<ASN1ObjectIdentifier> policies;
+	private final PkiUri[] httpSiaUris;
+	private final PkiUri[] ldapSiaUris;
+	private final PkiUri[] httpAiaUris;
+	private final PkiUri[] ldapAiaUris;
+	private final PkiUri[] ocspUris;
+	private final PkiUri[] httpCdpUris;
+	private final PkiUri[] ldapCdpUris;
+	private final PkiUri[] httpInfoUris;
+	private final PkiUri[] ldapInfoUris;
+
+	/**
+	 * Decodes the extensions of a certificate.  Callers that use the
+	 * descriptor more than once should keep it.
+	 *
+	 * @param cert
+	 * @return a new descriptor for the certificate
+	 */
+	public static ParsedCertificate parse(X509Certificate cert) {
+		return new ParsedCertificate(cert);
+	}
+
+	/**
+	 * Decodes only the subjectKeyIdentifier of a certificate.
+	 *
+	 * @param cert
+	 * @return the asserted subject key identifier, or null if the certificate has none
+	 */
+	public static byte[] decodeAssertedSKI(X509Certificate cert) {
+		ASN1Primitive ext = getExtension(cert, Extension.subjectKeyIdentifier);
+		return (ext == null) ? null : SubjectKeyIdentifier.getInstance(ext).getKeyIdentifier();
+	}
+
+	/**
+	 * Decodes only the authorityKeyIdentifier of a certificate.
+	 *
+	 * @param cert
+	 * @return the key identifier of the asserted authority key identifier, or null if the certificate has none
+	 */
+	public static byte[] decodeAssertedAKI(X509Certificate cert) {
+		ASN1Primitive ext = getExtension(cert, Extension.authorityKeyIdentifier);
+		return (ext == null) ? null : AuthorityKeyIdentifier.getInstance(ext).getKeyIdentifier();
+	}
+
+	/**
+	 * @param cert
+	 * @return the asserted subject key identifier, or the calculated one if the certificate has none
+	 */
+	public static byte[] decodeSubjectKeyIdentifier(X509Certificate cert) {
+		byte[] ski = decodeAssertedSKI(cert);
+		return (ski != null) ? ski : ValidationUtils.getPkixExOneSki(cert.getPublicKey());
+	}
+
+	private ParsedCertificate(X509Certificate cert) {
+		this.basicConstraints = cert.getBasicConstraints();
+		this.calculatedSki = ValidationUtils.getPkixExOneSki(cert.getPublicKey());
+		this.assertedSki = decodeAssertedSKI(cert);
+		this.assertedAki = decodeAssertedAKI(cert);
+
+		ASN1Primitive ext = null;
+
+		Set<ASN1ObjectIdentifier> policies = new LinkedHashSet<ASN1ObjectIdentifier>();
+		if ((ext = getExtension(cert, Extension.certificatePolicies)) != null) {
+			for (PolicyInformation pi: CertificatePolicies.getInstance(ext).getPolicyInformation()) {
+				policies.add(pi.getPolicyIdentifier());
+			}
+		}
+		this.policies = Collections.unmodifiableSet(policies);
+
+		/*
+		 * No SIA in BC, so we created our own
+		 */
+		Set<PkiUri> httpSia = new LinkedHashSet<PkiUri>();
+		Set<PkiUri> ldapSia = new LinkedHashSet<PkiUri>();
+		if ((ext = getExtension(cert, Extension.subjectInfoAccess)) != null) {
+			SubjectInformationAccess sia = SubjectInformationAccess.getInstance(ext);
+			for (AccessDescription ad: sia.getAccessDescriptions()) {
+				if (ad.getAccessMethod().equals(SubjectInformationAccess.id_ad_caRepository)) {
+					addUri(ad.getAccessLocation(), PkiUri.CERTSONLYCMS, PkiUri.SIA, httpSia, ldapSia);
+				}
+			}
+		}
+		this.httpSiaUris = toArray(httpSia);
+		this.ldapSiaUris = toArray(ldapSia);
+
+		Set<PkiUri> httpAia = new LinkedHashSet<PkiUri>();
+		Set<PkiUri> ldapAia = new LinkedHashSet<PkiUri>();
+		Set<PkiUri> ocsp = new LinkedHashSet<PkiUri>();
+		if ((ext = getExtension(cert, Extension.authorityInfoAccess)) != null) {
+			AuthorityInformationAccess aia = AuthorityInformationAccess.getInstance(ext);
+			for (AccessDescription ad: aia.getAccessDescriptions()) {
+				if (ad.getAccessMethod().equals(AccessDescription.id_ad_caIssuers)) {
+					addUri(ad.getAccessLocation(), PkiUri.CERTSONLYCMS, PkiUri.AIA, httpAia, ldapAia);
+				} else if (ad.getAccessMethod().equals(AccessDescription.id_ad_ocsp)) {
+					/*
+					 * Only HTTP is supported for OCSP
+					 */
+					addUri(ad.getAccessLocation(), PkiUri.OCSP, PkiUri.NOREASON, ocsp, null);
+				}
+			}
+		}
+		this.httpAiaUris = toArray(httpAia);
+		this.ldapAiaUris = toArray(ldapAia);
+		this.ocspUris = toArray(ocsp);
+
+		Set<PkiUri> httpCdp = new LinkedHashSet<PkiUri>();
+		Set<PkiUri> ldapCdp = new LinkedHashSet<PkiUri>();
+		if ((ext = getExtension(cert, Extension.cRLDistributionPoints)) != null) {
+			int subReason = PkiUri.NOREASON;
+			for (DistributionPoint dp: CRLDistPoint.getInstance(ext).getDistributionPoints()) {
+				GeneralNames gNames = null;
+				if ((gNames = dp.getCRLIssuer()) != null) {
+					ReasonFlags reasons = null;
+					if ((reasons = dp.getReasons()) != null) {
+						LOG.info("Certificate contains CDP URI with ReasonFlags.");
+						subReason = reasons.intValue();
+					}
+					for (GeneralName gn: gNames.getNames()) {
+						addUri(gn, PkiUri.CDP, subReason, httpCdp, ldapCdp);
+					}
+				}
+				DistributionPointName dpn = null;
+				if ((dpn = dp.getDistributionPoint()) != null) {
+					if (dpn.getType() == DistributionPointName.FULL_NAME) {
+						for (GeneralName gn: GeneralNames.getInstance(dpn.getName()).getNames()) {
+							addUri(gn, PkiUri.CDP, subReason, httpCdp, ldapCdp);
+						}
+					}
+				}
+			}
+		}
+		this.httpCdpUris = toArray(httpCdp);
+		this.ldapCdpUris = toArray(ldapCdp);
+
+		this.httpInfoUris = concat(this.httpSiaUris, this.httpAiaUris);
+		this.ldapInfoUris = concat(this.ldapSiaUris, this.ldapAiaUris);
+	}
+
+	/*
+	 * Reads and decodes the value of a single extension, or returns
+	 * null if the certificate does not have it.
+	 */
+	private static ASN1Primitive getExtension(X509Certificate cert, ASN1ObjectIdentifier extnId) {
+		byte[] extBytes = cert.getExtensionValue(extnId.getId());
+		if (extBytes == null) {
+			return null;
+		}
+		try {
+			return ASN1Primitive.fromByteArray(ASN1OctetString.getInstance(extBytes).getOctets());
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Error decoding extension " + extnId.getId() + ": " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Adds a URI to the set for its protocol.  Anything that is not a
+	 * URI, or not one of our protocols, is ignored.
+	 */
+	private static void addUri(GeneralName gn, int reason, int subReason, Set<PkiUri> http, Set<PkiUri> ldap) {
+		if (gn.getTagNo() != GeneralName.uniformResourceIdentifier) {
+			return;
+		}
+		URI thisURI = null;
+		try {
+			thisURI = new URI(gn.getName().toString());
+		} catch (URISyntaxException e) {
+			LOG.fatal("Error parsing URI from certificate: " + e.getMessage(), e);
+			/*
+			 * We will swallow this exception for now,
+			 * and simply not add it if thisURI is null
+			 */
+			return;
+		}
+		if (thisURI.getScheme() == null) {
+			return;
+		}
+		String scheme = thisURI.getScheme().toLowerCase();
+		if (scheme.startsWith(URICacheEntry.HTTP)) {
+			http.add(new PkiUri(thisURI, reason, subReason));
+		} else if (ldap != null && scheme.startsWith(URICacheEntry.LDAP)) {
+			ldap.add(new PkiUri(thisURI, reason, subReason));
+		}
+	}
+
+	private static PkiUri[] toArray(Set<PkiUri> uris) {
+		if (uris.isEmpty()) {
+			return NO_URIS;
+		}
+		return uris.toArray(new PkiUri[uris.size()]);
+	}
+
+	private static PkiUri[] concat(PkiUri[] a, PkiUri[] b) {
+		PkiUri[] uris = new PkiUri[a.length + b.length];
+		System.arraycopy(a, 0, uris, 0, a.length);
+		System.arraycopy(b, 0, uris, a.length, b.length);
+		return uris;
+	}
+
+	/**
+	 * @return the asserted subject key identifier, or null if the certificate has none
+	 */
+	public byte[] getAssertedSKI() {
+		return assertedSki;
+	}
+
+	/**
+	 * @return the RFC 5280 method 1 key identifier calculated from the public key
+	 */
+	public byte[] getCalculatedSKI() {
+		return calculatedSki;
+	}
+
+	/**
+	 * @return the asserted subject key identifier, or the calculated one if the certificate has none
+	 */
+	public byte[] getSubjectKeyIdentifier() {
+		return (assertedSki != null) ? assertedSki : calculatedSki;
+	}
+
+	/**
+	 * @return the key identifier of the asserted authority key identifier, or null if the certificate has none
+	 */
+	public byte[] getAssertedAKI() {
+		return assertedAki;
+	}
+
+	/**
+	 * @return the basic constraints path length, as in X509Certificate.getBasicConstraints()
+	 */
+	public int getBasicConstraints() {
+		return basicConstraints;
+	}
+
+	/**
+	 * @return true if the certificate is a CA certificate
+	 */
+	public boolean isCa() {
+		return basicConstraints > -1;
+	}
+
+	/**
+	 * @return the certificate policy OIDs asserted in the certificate
+	 */
+	public Set<ASN1ObjectIdentifier> getPolicies() {
+		return policies;
+	}
+
+	/**
+	 * @return the HTTP SIA caRepository URIs
+	 */
+	public PkiUri[] getHttpSiaUris() {
+		return httpSiaUris;
+	}
+
+	/**
+	 * @return the LDAP SIA caRepository URIs
+	 */
+	public PkiUri[] getLdapSiaUris() {
+		return ldapSiaUris;
+	}
+
+	/**
+	 * @return the HTTP AIA caIssuers URIs
+	 */
+	public PkiUri[] getHttpAiaUris() {
+		return httpAiaUris;
+	}
+
+	/**
+	 * @return the LDAP AIA caIssuers URIs
+	 */
+	public PkiUri[] getLdapAiaUris() {
+		return ldapAiaUris;
+	}
+
+	/**
+	 * @return the HTTP AIA OCSP URIs
+	 */
+	public PkiUri[] getOcspUris() {
+		return ocspUris;
+	}
+
+	/**
+	 * @return the HTTP CDP URIs
+	 */
+	public PkiUri[] getHttpCdpUris() {
+		return httpCdpUris;
+	}
+
+	/**
+	 * @return the LDAP CDP URIs
+	 */
+	public PkiUri[] getLdapCdpUris() {
+		return ldapCdpUris;
+	}
+
+	/**
+	 * @return the HTTP SIA caRepository URIs, followed by the HTTP AIA caIssuers URIs
+	 */
+	public PkiUri[] getHttpInfoUris() {
+		return httpInfoUris;
+	}
+
+	/**
+	 * @return the LDAP SIA caRepository URIs, followed by the LDAP AIA caIssuers URIs
+	 */
+	public PkiUri[] getLdapInfoUris() {
+		return ldapInfoUris;
+	}
+
+}
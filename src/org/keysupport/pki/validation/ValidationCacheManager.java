@@ -1,9 +1,14 @@
 package org.keysupport.pki.validation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.Iterator;
 
@@ -12,9 +17,14 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.codec.binary.Base64;
 import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.ocsp.CertID;
+import org.keysupport.httpclient.CircuitBreakerManager;
+import org.keysupport.httpclient.HostCircuitBreaker;
+import org.keysupport.httpclient.HttpClient;
 import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.ocsp.OCSPResponder;
 import org.keysupport.pki.validation.cache.CertificateCache;
 import org.keysupport.pki.validation.cache.CertificateCacheException;
 import org.keysupport.pki.validation.cache.CertificateCacheManager;
@@ -31,6 +41,10 @@ public final class ValidationCacheManager extends HttpServlet {
 	private final static String commandResetCache = "resetCache";
 	private final static String commandGetCacheAsPem = "getCacheAsPem";
 	private final static String commandGetCertPath = "getCertPath";
+	private final static String commandOcsp = "/ocsp/";
+	private final static String ocspRequestType = "application/ocsp-request";
+	private final static String ocspResponseType = "application/ocsp-response";
+	private final static int maxOcspRequestSize = 65536;
 	//TODO:  Add LOGGING!
 	
 	/**
@@ -54,6 +68,16 @@ public final class ValidationCacheManager extends HttpServlet {
 		writer.println("<tr>");
 		CertificateCacheManager manager = CertificateCacheManager.getInstance();
 		CertificateCache cache = manager.getCache();
+		if (cache == null) {
+			writer.println("<pre>");
+			writer.println("Cache Not Ready.  The first build of the cache is still in progress.");
+			writer.println("</pre>");
+			writer.println("</tr>");
+			writer.println("</table>");
+			writer.println("</body>");
+			writer.println("</html>");
+			return;
+		}
 		writer.println("<pre>");
 		writer.println("Trust Anchor:");
 		writer.println(cache.toString());
@@ -64,6 +88,13 @@ public final class ValidationCacheManager extends HttpServlet {
 		writer.println("URI Cache:");
 		writer.println("</tr>");
 
+		HttpClient httpClient = HttpClient.getInstance();
+		writer.println("<tr>");
+		writer.println("<pre>");
+		writer.println("HTTP Requests Sent: " + httpClient.getExecutedRequestCount() + ", Coalesced: " + httpClient.getCoalescedRequestCount());
+		writer.println("</pre>");
+		writer.println("</tr>");
+
 		URICache uriCache = UriCacheManager.getInstance().getSuccessfulURICache();
 		PkiUri[] uris = uriCache.getURIs();
 		writer.println("<tr>");
@@ -238,6 +269,39 @@ public final class ValidationCacheManager extends HttpServlet {
 		writer.println("</table><br>");
 		writer.println("</tr>");
 
+		writer.println("<tr>");
+		writer.println("Host Circuit Breakers:");
+		writer.println("</tr>");
+
+		writer.println("<tr>");
+		writer.println("<table align=center border=\"1\" width=\"100%\">");
+		writer.println("<tr>");
+		writer.println("<th> Host </th>");
+		writer.println("<th> State </th>");
+		writer.println("<th> Consecutive Failures </th>");
+		writer.println("<th> Total Failures </th>");
+		writer.println("<th> Rejected Requests </th>");
+		writer.println("<th> Last Failure </th>");
+		writer.println("<th> Last Reason </th>");
+		writer.println("<th> Backoff (ms) </th>");
+		writer.println("<th> Retry At </th>");
+		writer.println("</tr>");
+		for (HostCircuitBreaker breaker: CircuitBreakerManager.getInstance().getBreakers()) {
+			writer.println("<tr>");
+			writer.println("<td align=left>" + breaker.getHost() + "</td>");
+			writer.println("<td align=left>" + breaker.getState() + "</td>");
+			writer.println("<td align=left>" + breaker.getConsecutiveFailures() + "</td>");
+			writer.println("<td align=left>" + breaker.getTotalFailures() + "</td>");
+			writer.println("<td align=left>" + breaker.getRejected() + "</td>");
+			writer.println("<td align=left>" + breaker.getLastFailure() + "</td>");
+			writer.println("<td align=left>" + breaker.getLastReason() + "</td>");
+			writer.println("<td align=left>" + breaker.getBackoff() + "</td>");
+			writer.println("<td align=left>" + breaker.getRetryAt() + "</td>");
+			writer.println("</tr>");
+		}
+		writer.println("</table><br>");
+		writer.println("</tr>");
+
 		writer.println("<tr>");
 		writer.println("<pre>");
 		RejectedCertCacheManager rejectManager = RejectedCertCacheManager.getInstance();
@@ -385,7 +449,9 @@ public final class ValidationCacheManager extends HttpServlet {
 			throws IOException, ServletException {
 
 		String pathInfo = null;
-		if ((pathInfo = request.getPathInfo()) != null && pathInfo.contains("/")) {
+		if ((pathInfo = request.getPathInfo()) != null && pathInfo.startsWith(commandOcsp)) {
+			this.ocspGet(request, response);
+		} else if (pathInfo != null && pathInfo.contains("/")) {
 			String[] commands = pathInfo.split("/");
 			ArrayList<String> parsedCommands = new ArrayList<String>();
 			for (String command : commands) {
@@ -414,10 +480,82 @@ public final class ValidationCacheManager extends HttpServlet {
 	public void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws IOException, ServletException {
 
+		String contentType = request.getContentType();
+		if (contentType != null && contentType.toLowerCase().startsWith(ocspRequestType)) {
+			int length = request.getContentLength();
+			if (length > maxOcspRequestSize) {
+				response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+				return;
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream((length > 0) ? length : 512);
+			InputStream in = request.getInputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				if (body.size() + read > maxOcspRequestSize) {
+					response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+					return;
+				}
+				body.write(buf, 0, read);
+			}
+			this.ocspResponse(body.toByteArray(), false, response);
+			return;
+		}
 		response.setContentType("text/html");
 		PrintWriter writer = response.getWriter();
 		writer.println("<html>");
 		writer.println("Not Implemented.");
 		writer.println("</html>");
 	}
+
+	/*
+	 * Writes the response of the OCSP Responder.  Responses to GET
+	 * requests carry the RFC 5019 caching headers, so HTTP caches
+	 * can serve them until the response's nextUpdate.  A response the
+	 * responder will not serve again, such as a proxied response that
+	 * may echo the nonce of the request, is sent with no-cache.
+	 */
+	private void ocspResponse(byte[] ocspRequest, boolean get, HttpServletResponse response)
+			throws IOException, ServletException {
+		OCSPResponder.ProducedResponse ocspResponse = OCSPResponder.getInstance().respond(ocspRequest);
+		byte[] encoded = ocspResponse.getEncoded();
+		response.setContentType(ocspResponseType);
+		response.setContentLength(encoded.length);
+		Date expires = ocspResponse.getExpires();
+		if (get && expires != null) {
+			long maxAge = (expires.getTime() - System.currentTimeMillis()) / 1000;
+			response.setHeader("Cache-Control", "max-age=" + maxAge + ", public, no-transform, must-revalidate");
+			response.setDateHeader("Expires", expires.getTime());
+			response.setDateHeader("Last-Modified", ocspResponse.getProducedAt().getTime());
+		} else {
+			response.setHeader("Cache-Control", "no-cache");
+		}
+		OutputStream out = response.getOutputStream();
+		out.write(encoded);
+		out.flush();
+	}
+
+	/*
+	 * RFC 5019 GET: the base64 encoding of the DER request, URL
+	 * encoded, follows the responder URL.  The raw request URI is
+	 * used, since the container would already have decoded the
+	 * escaped "/" characters of the path info.
+	 */
+	private void ocspGet(HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		String prefix = request.getContextPath() + request.getServletPath() + commandOcsp;
+		String encoded = request.getRequestURI().substring(prefix.length());
+		byte[] ocspRequest = null;
+		try {
+			ocspRequest = Base64.decodeBase64(URLDecoder.decode(encoded.replace("+", "%2B"), "US-ASCII"));
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		if (ocspRequest.length == 0 || ocspRequest.length > maxOcspRequestSize) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		this.ocspResponse(ocspRequest, true, response);
+	}
 }
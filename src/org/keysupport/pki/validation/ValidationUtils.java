@@ -3,68 +3,49 @@ package org.keysupport.pki.validation;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.cert.CRLException;
 import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateException;
 import java.security.cert.PKIXCertPathBuilderResult;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
-import org.bouncycastle.asn1.ASN1OctetString;
-import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.ocsp.CertID;
-import org.bouncycastle.asn1.x509.AccessDescription;
-import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
-import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
-import org.bouncycastle.asn1.x509.CRLDistPoint;
-import org.bouncycastle.asn1.x509.DistributionPoint;
-import org.bouncycastle.asn1.x509.DistributionPointName;
-import org.bouncycastle.asn1.x509.Extension;
-import org.bouncycastle.asn1.x509.Extensions;
-import org.bouncycastle.asn1.x509.GeneralName;
-import org.bouncycastle.asn1.x509.GeneralNames;
-import org.bouncycastle.asn1.x509.ReasonFlags;
-import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
 import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.bouncycastle.cert.ocsp.CertificateID;
 import org.bouncycastle.cert.ocsp.OCSPException;
-import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
-import org.bouncycastle.util.Store;
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemWriter;
-import org.keysupport.httpclient.HttpClient;
-import org.keysupport.httpclient.HttpClientException;
 import org.keysupport.httpclient.PkiUri;
-import org.keysupport.pki.asn1.SubjectInformationAccess;
 import org.keysupport.pki.validation.cache.CRLCacheManager;
+import org.keysupport.pki.validation.cache.CRLRevocationIndex;
+import org.keysupport.pki.validation.cache.CacheGeneration;
 import org.keysupport.pki.validation.cache.CertificateCache;
-import org.keysupport.pki.validation.cache.DataUtil;
 import org.keysupport.pki.validation.cache.RejectedCertCacheManager;
-import org.keysupport.pki.validation.cache.URICacheEntry;
-import org.keysupport.pki.validation.cache.UriCacheManager;
 
 public class ValidationUtils {
 
 	private static final Log LOG = LogFactory.getLog(ValidationUtils.class);
 
+	private static final int DISCOVERY_PARALLELISM = 16;
+	private static final ForkJoinPool DISCOVERY_POOL = new ForkJoinPool(DISCOVERY_PARALLELISM);
+
 	private ValidationUtils() {
 		/*
 		 * Hidden Constructor.  All utility methods must be static.
@@ -72,11 +53,7 @@ public class ValidationUtils {
 	}
 	
 	public static boolean isCa(X509Certificate caCert) {
-		if (caCert.getBasicConstraints()>-1) {
-			return true;
-		} else {
-			return false;
-		}
+		return caCert.getBasicConstraints() > -1;
 	}
 
 	public static byte[][] getCalculatedSKIs(X509Certificate caCert) {
@@ -144,212 +121,45 @@ public class ValidationUtils {
 		return id;
 	}
 
-	private static Extensions getExtensions(X509Certificate cert) {
-		Set<String> critExt = cert.getCriticalExtensionOIDs();
-		Set<String> nonCritExt = cert.getNonCriticalExtensionOIDs();
-		Set<Extension> extensions = new HashSet<Extension>();
-		for (String oidStr: critExt) {
-			ASN1ObjectIdentifier extnId = new ASN1ObjectIdentifier(oidStr);
-			byte[] extBytes = cert.getExtensionValue(oidStr);
-			extensions.add(new Extension(extnId, true, ASN1OctetString.getInstance(extBytes)));
-		}
-		for (String oidStr: nonCritExt) {
-			ASN1ObjectIdentifier extnId = new ASN1ObjectIdentifier(oidStr);
-			byte[] extBytes = cert.getExtensionValue(oidStr);
-			extensions.add(new Extension(extnId, false, ASN1OctetString.getInstance(extBytes)));
-		}
-		Extension[] extArr = new Extension[critExt.size() + nonCritExt.size()];
-		return new Extensions(extensions.toArray(extArr));
-	}
-	
+	/*
+	 * The extension getters below decode the certificate each time
+	 * they are called.  For a CA in the cache, use the descriptor kept
+	 * by its CertificateCache entry instead.
+	 */
 	public static PkiUri[] getHttpInfoUris(X509Certificate cert) {
-		return getInfoUris(cert, URICacheEntry.HTTP);
+		return ParsedCertificate.parse(cert).getHttpInfoUris();
 	}
 
 	public static PkiUri[] getLdapInfoUris(X509Certificate cert) {
-		return getInfoUris(cert, URICacheEntry.LDAP);
-	}
-
-	private static PkiUri[] getInfoUris(X509Certificate cert, String protocol) {
-		PkiUri[] siaUri = getSiaUris(cert, protocol);
-		PkiUri[] aiaUri = getAiaUris(cert, protocol, AccessDescription.id_ad_caIssuers);
-		PkiUri[] infoUris = new PkiUri[siaUri.length + aiaUri.length];
-		System.arraycopy(siaUri, 0, infoUris, 0, siaUri.length);
-		System.arraycopy(aiaUri, 0, infoUris, siaUri.length, aiaUri.length);
-		return infoUris;
+		return ParsedCertificate.parse(cert).getLdapInfoUris();
 	}
 
 	public static PkiUri[] getHttpSiaUris(X509Certificate cert) {
-		return getSiaUris(cert, URICacheEntry.HTTP);
+		return ParsedCertificate.parse(cert).getHttpSiaUris();
 	}
 
 	public static PkiUri[] getLdapSiaUris(X509Certificate cert) {
-		return getSiaUris(cert, URICacheEntry.LDAP);
-	}
-
-	private static PkiUri[] getSiaUris(X509Certificate cert, String protocol) {
-		Set<PkiUri> uris = new HashSet<PkiUri>();
-		int reason = PkiUri.CERTSONLYCMS;
-		int subReason = PkiUri.SIA;
-
-		Extensions exts = getExtensions(cert);
-		AccessDescription[] ads = null;
-		/*
-		 * No SIA in BC, so we created our own
-		 */
-		Extension siaExt = null;
-		if ((siaExt = exts.getExtension(Extension.subjectInfoAccess)) != null) {
-			SubjectInformationAccess sia = SubjectInformationAccess.getInstance((ASN1Sequence)siaExt.getParsedValue());
-			ads = sia.getAccessDescriptions();
-			for (AccessDescription ad: ads) {
-				if (ad.getAccessMethod().equals(SubjectInformationAccess.id_ad_caRepository)) {
-					GeneralName al = ad.getAccessLocation();
-					if (al.getTagNo() == GeneralName.uniformResourceIdentifier) {
-						URI thisURI = null;
-						try {
-							thisURI = new URI(al.getName().toString());
-						} catch (URISyntaxException e) {
-							LOG.fatal("Error parsing URI from certificate: " + e.getMessage(), e);
-							/*
-							 * We will swallow this exception for now,
-							 * and simply not add it if thisURI is null
-							 */
-						}
-						if (thisURI != null && thisURI.getScheme().toLowerCase().startsWith(protocol)) {
-							uris.add(new PkiUri(thisURI, reason, subReason));
-						}
-					}
-				}
-			}
-		}
-		return uris.toArray(new PkiUri[uris.size()]);
+		return ParsedCertificate.parse(cert).getLdapSiaUris();
 	}
 
 	public static PkiUri[] getHttpCdpUris(X509Certificate cert) {
-		return getCdpUris(cert, URICacheEntry.HTTP);
+		return ParsedCertificate.parse(cert).getHttpCdpUris();
 	}
 
 	public static PkiUri[] getLdapCdpUris(X509Certificate cert) {
-		return getCdpUris(cert, URICacheEntry.LDAP);
-	}
-
-	private static PkiUri[] getCdpUris(X509Certificate cert, String protocol) {
-		Set<PkiUri> uris = new HashSet<PkiUri>();
-		int reason = PkiUri.CDP;
-		int subReason = PkiUri.NOREASON;
-		
-		Extensions exts = getExtensions(cert);
-		DistributionPoint[] dps = null;
-		Extension cdpExt = null;
-		if ((cdpExt = exts.getExtension(Extension.cRLDistributionPoints)) != null) {
-			CRLDistPoint cdp = CRLDistPoint.getInstance((ASN1Sequence)cdpExt.getParsedValue());
-			dps = cdp.getDistributionPoints();
-			for (DistributionPoint dp: dps) {
-				GeneralNames gNames = null;
-				if ((gNames = dp.getCRLIssuer()) != null) {
-					ReasonFlags reasons = null;
-					if ((reasons = dp.getReasons()) != null) {
-						LOG.info("Certificate contains CDP URI with ReasonFlags.");
-						subReason = reasons.intValue();
-					}
-					GeneralName[] gns = gNames.getNames();
-					for (GeneralName gn: gns) {
-						if (gn.getTagNo() == GeneralName.uniformResourceIdentifier) {
-							URI thisURI = null;
-							try {
-								thisURI = new URI(gn.getName().toString());
-							} catch (URISyntaxException e) {
-								LOG.fatal("Error parsing URI from certificate: " + e.getMessage(), e);
-								/*
-								 * We will swallow this exception for now,
-								 * and simply not add it is thisURI is null
-								 */
-							}
-							if (thisURI != null && thisURI.getScheme().toLowerCase().startsWith(protocol)) {
-								uris.add(new PkiUri(thisURI, reason, subReason));
-							}
-						}
-					}
-				}
-				DistributionPointName dpn = null;
-				if ((dpn = dp.getDistributionPoint()) != null) {
-					if (dpn.getType() == DistributionPointName.FULL_NAME) {
-						GeneralName[] gns = GeneralNames.getInstance(dpn.getName()).getNames();
-						for (GeneralName gn: gns) {
-							if (gn.getTagNo() == GeneralName.uniformResourceIdentifier) {
-								URI thisURI = null;
-								try {
-									thisURI = new URI(gn.getName().toString());
-								} catch (URISyntaxException e) {
-									LOG.fatal("Error parsing URI from certificate: " + e.getMessage(), e);
-									/*
-									 * We will swallow this exception for now,
-									 * and simply not add it is thisURI is null
-									 */
-								}
-								if (thisURI != null && thisURI.getScheme().toLowerCase().startsWith(protocol)) {
-									uris.add(new PkiUri(thisURI, reason, subReason));
-								}
-							}
-						}
-					}
-				}
-			}
-		}
-		return uris.toArray(new PkiUri[uris.size()]);
+		return ParsedCertificate.parse(cert).getLdapCdpUris();
 	}
 
 	public static PkiUri[] getHttpAiaUris(X509Certificate cert) {
-		return getAiaUris(cert, URICacheEntry.HTTP, AccessDescription.id_ad_caIssuers);
+		return ParsedCertificate.parse(cert).getHttpAiaUris();
 	}
 
 	public static PkiUri[] getLdapAiaUris(X509Certificate cert) {
-		return getAiaUris(cert, URICacheEntry.LDAP, AccessDescription.id_ad_caIssuers);
+		return ParsedCertificate.parse(cert).getLdapAiaUris();
 	}
 
 	public static PkiUri[] getOcspUris(X509Certificate cert) {
-		return getAiaUris(cert, URICacheEntry.HTTP, AccessDescription.id_ad_ocsp);
-	}
-
-	private static PkiUri[] getAiaUris(X509Certificate cert, String protocol, ASN1ObjectIdentifier accessMethod) {
-		Set<PkiUri> uris = new HashSet<PkiUri>();
-		int reason = PkiUri.NOREASON;
-		int subReason = PkiUri.NOREASON;
-
-		if (accessMethod.equals(AccessDescription.id_ad_ocsp)) {
-			reason = PkiUri.OCSP;
-		} else if (accessMethod.equals(AccessDescription.id_ad_caIssuers)) {
-			reason = PkiUri.CERTSONLYCMS;
-			subReason = PkiUri.AIA;
-		}
-
-		Extensions exts = getExtensions(cert);
-		AccessDescription[] ads = null;
-		Extension aiaExt = null;
-		if ((aiaExt = exts.getExtension(Extension.authorityInfoAccess)) != null) {
-			AuthorityInformationAccess aia = AuthorityInformationAccess.getInstance((ASN1Sequence)aiaExt.getParsedValue());
-			ads = aia.getAccessDescriptions();
-			for (AccessDescription ad: ads) {
-				if (ad.getAccessMethod().equals(accessMethod)) {
-					GeneralName al = ad.getAccessLocation();
-					if (al.getTagNo() == GeneralName.uniformResourceIdentifier) {
-						URI thisURI = null;
-						try {
-							thisURI = new URI(al.getName().toString());
-						} catch (URISyntaxException e) {
-							/*
-							 * We will swallow this exception for now,
-							 * and simply not add it is thisURI is null
-							 */
-						}
-						if (thisURI != null && thisURI.getScheme().toLowerCase().startsWith(protocol)) {
-							uris.add(new PkiUri(thisURI, reason, subReason));
-						}
-					}
-				}
-			}
-		}
-		return uris.toArray(new PkiUri[uris.size()]);
+		return ParsedCertificate.parse(cert).getOcspUris();
 	}
 
 	public static CertificateID getCertIdentifier(X509Certificate issuer, X509Certificate subject) throws ValidationException {
@@ -375,25 +185,12 @@ public class ValidationUtils {
 	}
 
 	public static byte[] getAssertedSKI(X509Certificate caCert) {
-		byte[] extBytes = null;
-		caCert.getExtensionValue("2.5.29.14");
-		if ((extBytes = caCert.getExtensionValue("2.5.29.14")) != null) {
-			byte[] extOctetString = ASN1OctetString.getInstance(extBytes).getOctets();
-			return SubjectKeyIdentifier.getInstance(extOctetString).getKeyIdentifier();
-		} else {
-			return null;
-		}
+		return ParsedCertificate.decodeAssertedSKI(caCert);
 	}
 
 	//"2.5.29.35"
 	public static byte[] getAssertedAKI(X509Certificate cert) {
-		byte[] extBytes = null;
-		if ((extBytes = cert.getExtensionValue(Extension.authorityKeyIdentifier.getId())) != null) {
-			byte[] extOctetString = ASN1OctetString.getInstance(extBytes).getOctets();
-			return AuthorityKeyIdentifier.getInstance(extOctetString).getKeyIdentifier();
-		} else {
-			return null;
-		}
+		return ParsedCertificate.decodeAssertedAKI(cert);
 	}
 
 	/**
@@ -410,148 +207,25 @@ public class ValidationUtils {
 	 */
 	public static CertificateCache issuedByThisCADiscovery(CertificateCache certCache, Set<byte[]> currentPath) {
 		/*
-		 * We are going to build a set of SKIs so we
-		 * can see all the keys in the path we are building.
-		 * 
-		 * We will use this as we discover new certificates to
-		 * filter out any cross certificates that go in the
-		 * wrong direction for our needs.
+		 * The SIA URIs are fetched by tasks in the discovery pool,
+		 * so the time to build the cache follows the depth of the
+		 * tree rather than the number of CAs.
 		 */
-		Set<byte[]> forkedPath = new HashSet<byte[]>();
-		if (currentPath != null) {
-			forkedPath.addAll(currentPath);
-		}
-		/*
-		 * Get the RejectedCertCacheManager instance so we can
-		 * manage rejected certificates as we discover.
-		 */
-		RejectedCertCacheManager rejectManager = RejectedCertCacheManager.getInstance();
-		/*
-		 * Get the HTTP SIA URIs from the certificate in the
-		 * certificate cache entry we are evaluating
-		 */
-		PkiUri[] siaUris = ValidationUtils.getHttpSiaUris(certCache.getCertificate());
-		/*
-		 * If there are HTTP SIA URIs, then process them,
-		 * otherwise, return our certificate cache entry
-		 * unmodified.
-		 */
-		HttpClient client = HttpClient.getInstance();
-		if (siaUris != null && siaUris.length>0)
-		for (PkiUri uri: siaUris) {
-			UriCacheManager uriCm = UriCacheManager.getInstance();
-			/*
-			 * Check our URI cache to see if we
-			 * have already fetched the data.  The
-			 * URI cache will have a scheduler attached
-			 * for periodic updates using a cache.refresh()
-			 */
-			if (uriCm.getUriCache().isInCache(uri)) {
-				LOG.info("URI is in URI Cache, Skipping: " + uri.toString());
-				break;
-			}
-			LOG.info("We have not seen this URI yet, Fetching: " + uri.toString());
-			byte[] cmsCertsBa = null;
-			/*
-			 * NOTE:  If we catch an exception here on the first SIA URI, we
-			 * are dead in the water for issuedByThisCA discovery.  TODO:  Add a timer and re-discover.
-			 */
-			try {
-				cmsCertsBa = client.getRequest(uri);
-			} catch (HttpClientException e) {
-				LOG.fatal("Error getting during SIA chase: " + e.getMessage(), e);
-			}
-			if (cmsCertsBa != null) {
-				CMSSignedData cms = null;
-				try {
-					cms = new CMSSignedData(cmsCertsBa);
-				} catch (CMSException e) {
-					LOG.fatal("Error parsing certs-only CMS message: " + e.getMessage(), e);
-				}
-				if (cms != null) {
-					Store certStore = cms.getCertificates();
-					@SuppressWarnings("unchecked")
-					ArrayList<X509CertificateHolder> certC = (ArrayList<X509CertificateHolder>) certStore.getMatches(null);
-					LOG.info("Discovered " + certC.size() + " certificates!");
-					LOG.debug("certs-only message: " + DataUtil.byteArrayToString(cmsCertsBa));
-					JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
-					/*
-					 * We need to loop through the certificates we find,
-					 * and add them as children to the caller.
-					 */
-					for (X509CertificateHolder ch: certC) {
-						LOG.info("Processing discovered cert: " + ch.getSubject().toString());
-						X509Certificate thisCert = null;
-						try {
-							thisCert = converter.getCertificate(ch);
-						} catch (CertificateException e) {
-							LOG.fatal("Error getting X509Certificate from X509CertificateHolder: " + e.getMessage(), e);
-						}
-						/*
-						 * Let's determine the SKI so we can evaluate if
-						 * this is a certificate in the wrong direction
-						 * below.
-						 */
-						byte[] childSKI = getAssertedSKI(thisCert);
-						if (childSKI == null) {
-							childSKI = getPkixExOneSki(thisCert.getPublicKey());
-						}
-						/*
-						 * Make sure the certificate we are evaluating:
-						 * -Is not null
-						 * -Is a CA certificate
-						 * -Is not the CA we are performing the discovery on
-						 * -Is signed by the CA we are performing a discovery on
-						 * -Is not expired
-						 * 
-						 * If the certificate does not meet the requirements
-						 * above, place it in the rejected certificate cache.
-						 */
-						if (thisCert != null &&
-								isCa(thisCert) &&
-								thisCert != certCache.getCertificate() &&
-								certCache.isSignerOf(thisCert) &&
-								rejectManager.isAcceptableCA(thisCert, uri.toString()) &&
-								rejectManager.isRightDirection(childSKI, thisCert, forkedPath, uri.toString())) {
-							/*
-							 * We are preparing to add this child to our
-							 * cache, so we will add the child's SKI
-							 * to the path.
-							 */
-							forkedPath.add(childSKI);
-							/*
-							 * Create a child CertCache Object,
-							 * and add it to the parent certCache.
-							 */
-							CertificateCache childCertCache = new CertificateCache(thisCert);
-							if (childCertCache != null) {
-								CertID issuerCertId = certCache.getSubjectCertId();
-								childCertCache.setIssuerCertId(issuerCertId);
-								CertID subjectCertId = null;
-								try {
-									subjectCertId = ValidationUtils.getCertIdentifier(certCache.getCertificate(), childCertCache.getCertificate()).toASN1Object();
-								} catch (ValidationException e) {
-									LOG.fatal("Error generating CertID for child: " + e.getMessage(), e);
-								}
-								if (subjectCertId != null) {
-									childCertCache.setSubjectCertId(subjectCertId);
-								}
-								//certManager.putfCacheEntry(childCertCache);
-								childCertCache = issuedByThisCADiscovery(childCertCache, forkedPath);
-								certCache.addSubject(childCertCache);
-							}
-						}
-					}
-				}
-			}
-		} else {
-			/*
-			 * No SIA!  Return our cacheEntry unmodified!
-			 */
-			LOG.info("Certificate does not contain SIA extension.  End of path?");
-			return certCache;
-		}
-		return certCache;
+		return issuedByThisCADiscovery(certCache, currentPath, new ConcurrentHashMap<URI, Boolean>());
+	}
+
+	/**
+	 * Performs issuedByThisCA discovery below a single cache entry,
+	 * skipping the SIA URIs that are already claimed, e.g., by the
+	 * entries of a cache that is being refreshed.
+	 * 
+	 * @param certCache
+	 * @param currentPath the SKIs of the path to the cache entry
+	 * @param claimedUris the SIA URIs that must not be chased again
+	 * @return the cache entry, with its discovered subjects
+	 */
+	public static CertificateCache issuedByThisCADiscovery(CertificateCache certCache, Set<byte[]> currentPath, ConcurrentHashMap<URI, Boolean> claimedUris) {
+		return IssuedByThisCADiscoveryTask.discover(certCache, currentPath, claimedUris, DISCOVERY_POOL);
 	}
 
 	public static String certToPem(final X509Certificate cert) throws ValidationException {
@@ -580,28 +254,56 @@ public class ValidationUtils {
 		return Base64.decodeBase64(b64);
 	}
 	
-	public static void getCRLs(ConcurrentHashMap<CertID, CertificateCache> fCache) {
+	public static void getCRLs(CertificateCache trustAnchor, Map<CertID, CertificateCache> fCache) {
 		Iterator<CertificateCache> certs = fCache.values().iterator();
 		CRLCacheManager crlManager = CRLCacheManager.getInstance();
+		/*
+		 * All of the CRLs are requested at once, and fetched
+		 * concurrently by the asynchronous HttpClient.  A CRL
+		 * distribution point shared by several certificates is
+		 * only requested once.
+		 */
+		Map<URI, Future<CRLRevocationIndex>> pending = new LinkedHashMap<URI, Future<CRLRevocationIndex>>();
 		while (certs.hasNext()) {
 			CertificateCache cert = certs.next();
 			if (cert != null) {
 				PkiUri[] httpCDP = cert.getHttpCdpUris();
 				if (httpCDP != null && httpCDP.length > 0) {
+					/*
+					 * The CRL is verified against the issuer of the
+					 * certificate when it is indexed.  The trust anchor
+					 * is not in the flattened cache, so it is the issuer
+					 * of any certificate whose issuer we do not find.
+					 */
+					CertificateCache issuer = null;
+					if (cert.getIssuerCertId() != null) {
+						issuer = fCache.get(cert.getIssuerCertId());
+					}
+					if (issuer == null) {
+						issuer = trustAnchor;
+					}
 					for (PkiUri uri: httpCDP) {
-						try {
-							crlManager.getCRL(uri);
-						} catch (CRLException e) {
-							LOG.fatal("Failed to obtain CRL: " + e.getMessage(), e);
-							e.printStackTrace();
+						if (!pending.containsKey(uri.getUri())) {
+							pending.put(uri.getUri(), crlManager.getCRLAsync(uri, issuer.getCertificate(), null));
 						}
 					}
 				}
 			}
 		}
+		for (Map.Entry<URI, Future<CRLRevocationIndex>> entry: pending.entrySet()) {
+			try {
+				entry.getValue().get();
+			} catch (InterruptedException e) {
+				LOG.fatal("Interrupted while obtaining CRLs: " + e.getMessage(), e);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				LOG.fatal("Failed to obtain CRL from " + entry.getKey().toASCIIString() + ": " + e.getCause().getMessage(), e.getCause());
+			}
+		}
 	}
 	
-	public static CertificateCache pkixValidateChild(CertificateCache child) throws PKIXValidatorException {
+	public static CertificateCache pkixValidateChild(CertificateCache child, CacheGeneration generation) throws PKIXValidatorException {
 
 		/*
 		 * Get the RejectedCertCacheManager instance so we can
@@ -619,7 +321,7 @@ public class ValidationUtils {
 		String pathError = null;
 		try {
 			pkixManager = PKIXValidatorManager.getInstance();
-			validator = pkixManager.getPKIXValidator();
+			validator = pkixManager.getPKIXValidator(generation);
 		} catch(PKIXValidatorException e) {
 			throw new PKIXValidatorException("Error initializing PKIX Validation", e);
 		}
@@ -679,7 +381,29 @@ public class ValidationUtils {
 		return clone;
 	}
 	
-	public static CertificateCache getValidatedCache(CertificateCache cache) throws PKIXValidatorException {
+	/**
+	 * Validates every entry in a cache generation, producing a new
+	 * cache tree with the entries that failed validation (and their
+	 * subjects) removed.  The generation itself is not modified.
+	 * 
+	 * @param generation
+	 * @return the validated cache tree
+	 * @throws PKIXValidatorException
+	 */
+	public static CertificateCache getValidatedCache(CacheGeneration generation) throws PKIXValidatorException {
+		return getValidatedCache(generation.getCache(), generation);
+	}
+
+	/**
+	 * Validates a single entry and the entries below it, producing a
+	 * new subtree with the entries that failed validation removed.
+	 * 
+	 * @param cache the entry to validate, which must be in the generation
+	 * @param generation the generation used to build the paths
+	 * @return the validated subtree, or null if the entry failed validation
+	 * @throws PKIXValidatorException
+	 */
+	public static CertificateCache getValidatedCache(CertificateCache cache, CacheGeneration generation) throws PKIXValidatorException {
 		
 		/*
 		 * There is no need to validate the root Cache entry, so we
@@ -688,25 +412,26 @@ public class ValidationUtils {
 		CertificateCache validatedEntry = null;
 		if (!cache.isSelfSigned()) {
 			LOG.info("Validating cache entry for: " + cache.getCertificate().getSubjectX500Principal().getName());
-			validatedEntry = pkixValidateChild(cache);
+			validatedEntry = pkixValidateChild(cache, generation);
 		} else {
-			validatedEntry = cache;
+			validatedEntry = new CertificateCache(cache.getCertificate());
+			validatedEntry.setIssuerCertId(cache.getIssuerCertId());
+			validatedEntry.setSubjectCertId(cache.getSubjectCertId());
+			validatedEntry.setPolicyTree(cache.getPolicyTree());
 		}
 		if (validatedEntry != null) {
-			ArrayList<CertificateCache> subjects = validatedEntry.getSubjects();
+			ArrayList<CertificateCache> subjects = cache.getSubjects();
+			ArrayList<CertificateCache> validatedSubjects = new ArrayList<CertificateCache>();
 			if (subjects != null && subjects.size() > 0) {
-				ArrayList<CertificateCache> validatedSubjects = new ArrayList<CertificateCache>();
 				for (CertificateCache entry: subjects) {
 					CertificateCache validatedChildEntry = null;
-					validatedChildEntry = getValidatedCache(entry);
+					validatedChildEntry = getValidatedCache(entry, generation);
 					if (validatedChildEntry != null) {
 						validatedSubjects.add(validatedChildEntry);
 					}
 				}
-				if (validatedSubjects.size() > 0) {
-					validatedEntry.setSubjects(validatedSubjects);
-				}
 			}
+			validatedEntry.setSubjects(validatedSubjects);
 		}
 		return validatedEntry;
 	}
@@ -1,48 +1,87 @@
 package org.keysupport.pki.validation.cache;
 
 import java.net.URI;
-import java.security.cert.X509CRL;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.security.auth.x500.X500Principal;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+/**
+ * Holds a CRLRevocationIndex for every CRL URI we have fetched, rather
+ * than the decoded X509CRL.
+ * 
+ * CRLs are also indexed by issuer, so a CRL can be found for a CA
+ * without knowing which of its distribution points it came from.
+ */
 public class CRLCache {
 
 	private static final Log LOG = LogFactory.getLog(CRLCache.class);
 
-	ConcurrentHashMap<URI, X509CRL> cache = null;
+	ConcurrentHashMap<URI, CRLRevocationIndex> cache = null;
+	ConcurrentHashMap<X500Principal, ConcurrentHashMap<URI, CRLRevocationIndex>> byIssuer = null;
 	
 	public CRLCache() {
-		this.cache = new ConcurrentHashMap<URI, X509CRL>();
+		this.cache = new ConcurrentHashMap<URI, CRLRevocationIndex>();
+		this.byIssuer = new ConcurrentHashMap<X500Principal, ConcurrentHashMap<URI, CRLRevocationIndex>>();
 	}
 
 	public boolean isInCache(URI uri) {
 		return cache.containsKey(uri);
 	}
 
-	public X509CRL getUriCacheEntry(URI uri) {
+	public CRLRevocationIndex getUriCacheEntry(URI uri) {
 		return cache.get(uri);
 	}
 	
-	public Collection<X509CRL> getCRLs() {
+	/**
+	 * @return the URIs of the CRLs in the cache
+	 */
+	public Set<URI> getURIs() {
+		return Collections.unmodifiableSet(cache.keySet());
+	}
+
+	public Collection<CRLRevocationIndex> getCRLs() {
 		return cache.values();
 	}
+
+	/**
+	 * @param issuer
+	 * @return the CRLs issued by the given issuer
+	 */
+	public Collection<CRLRevocationIndex> getCRLs(X500Principal issuer) {
+		ConcurrentHashMap<URI, CRLRevocationIndex> issued = byIssuer.get(issuer);
+		if (issued == null) {
+			return Collections.emptySet();
+		}
+		return issued.values();
+	}
 	
-	public void update(URI uri, X509CRL entry) {
-		Set<String> crits = entry.getCriticalExtensionOIDs();
-		if (crits != null && crits.size() > 0) {
-			StringBuffer sb = new StringBuffer();
-			for (String oid: crits) {
-				sb.append(oid + " ");
+	public void update(URI uri, CRLRevocationIndex entry) {
+		LOG.info("Indexed CRL from " + uri.toASCIIString() + ": " + entry.toString());
+		/*
+		 * A single put swaps the CRL atomically, so readers never
+		 * find the URI missing during a refresh.
+		 */
+		CRLRevocationIndex previous = cache.put(uri, entry);
+		ConcurrentHashMap<URI, CRLRevocationIndex> issued = byIssuer.get(entry.getIssuer());
+		if (issued == null) {
+			ConcurrentHashMap<URI, CRLRevocationIndex> created = new ConcurrentHashMap<URI, CRLRevocationIndex>();
+			issued = byIssuer.putIfAbsent(entry.getIssuer(), created);
+			if (issued == null) {
+				issued = created;
 			}
-			LOG.info("CRITICAL EXTENSION IN CRL: " + sb.toString());
 		}
-		if (cache.containsKey(uri)) {
-			cache.remove(uri);
+		issued.put(uri, entry);
+		if (previous != null && !previous.getIssuer().equals(entry.getIssuer())) {
+			ConcurrentHashMap<URI, CRLRevocationIndex> old = byIssuer.get(previous.getIssuer());
+			if (old != null) {
+				old.remove(uri, previous);
+			}
 		}
-		cache.put(uri, entry);
 	}
 }
@@ -1,13 +1,25 @@
 package org.keysupport.pki.validation.cache;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.PublicKey;
 import java.security.cert.CRLException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.keysupport.httpclient.DownloadedArtifact;
+import org.keysupport.httpclient.FetchScheduler;
 import org.keysupport.httpclient.HttpClient;
 import org.keysupport.httpclient.HttpClientException;
 import org.keysupport.httpclient.PkiUri;
@@ -15,9 +27,17 @@ import org.keysupport.httpclient.PkiUri;
 public class CRLCacheManager {
 
 	private static CRLCacheManager instance = null;
-	private CRLCache crlCache = null;
+	private final CRLCache crlCache;
 	private static final Log LOG = LogFactory.getLog(CRLCacheManager.class);
 
+	private static final int PARSE_THREADS = 4;
+
+	/*
+	 * CRLs fetched asynchronously are parsed here, rather than on
+	 * the reactor thread that completed the download.
+	 */
+	private final ExecutorService parsers;
+
 	public static synchronized CRLCacheManager getInstance() {
 		if (instance == null) {
 			instance = new CRLCacheManager();
@@ -28,37 +48,315 @@ public class CRLCacheManager {
 	private CRLCacheManager() {
 		LOG.info("Initializing CRL Cache");
 		this.crlCache = new CRLCache();
+		this.parsers = Executors.newFixedThreadPool(PARSE_THREADS, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "crl-parser-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 	
 	/**
 	 * @return the crlCache
 	 */
-	public synchronized CRLCache getCRLCache() {
+	public CRLCache getCRLCache() {
 		return this.crlCache;
 	}
 
-	public synchronized X509CRL getCRL(PkiUri uri) throws CRLException {
-		if (this.crlCache.isInCache(uri.getUri())) {
-			return this.crlCache.getUriCacheEntry(uri.getUri());
-		} else {
-			HttpClient http = HttpClient.getInstance();
-			byte[] crlBa = null;
-			try {
-				crlBa = http.getRequest(uri);
-			} catch (HttpClientException e) {
-				throw new CRLException("Error fetching CRL: " + e.getMessage(), e);
+	/**
+	 * Returns the cached CRL index for the URI, fetching it if we have
+	 * not seen it yet.
+	 * 
+	 * Cached CRLs are returned without locking.  A CRL being refreshed
+	 * in the background is swapped into the cache in a single put, so
+	 * callers get either the old or the new CRL, never nothing.
+	 * 
+	 * @param uri
+	 * @param issuer the CA that is expected to have signed the CRL
+	 * @return the CRL index for the URI
+	 * @throws CRLException
+	 */
+	public CRLRevocationIndex getCRL(PkiUri uri, X509Certificate issuer) throws CRLException {
+		CRLRevocationIndex crl = this.crlCache.getUriCacheEntry(uri.getUri());
+		if (crl != null) {
+			return crl;
+		}
+		return fetchCRL(uri, false, issuer.getPublicKey());
+	}
+
+	/**
+	 * Revalidates a CRL we already have using a conditional request.
+	 * 
+	 * If the server reports the CRL has not been modified, the cached
+	 * CRL is returned as is and nothing is downloaded or parsed.
+	 * Otherwise, the new CRL is verified with the key that signed the
+	 * cached one, and replaces it.
+	 * 
+	 * @param uri
+	 * @return the current CRL index for the URI
+	 * @throws CRLException
+	 */
+	public CRLRevocationIndex refreshCRL(PkiUri uri) throws CRLException {
+		CRLRevocationIndex current = this.crlCache.getUriCacheEntry(uri.getUri());
+		if (current == null) {
+			throw new CRLException("Error refreshing CRL: No CRL in cache for " + uri.getUri().toASCIIString());
+		}
+		return fetchCRL(uri, true, current.getSignerKey());
+	}
+
+	/**
+	 * Returns the cached CRL index for the URI, fetching it without
+	 * blocking if we have not seen it yet.  The CRL is downloaded by
+	 * the asynchronous HttpClient through the FetchScheduler, and
+	 * parsed on the CRL parser threads.
+	 * 
+	 * @param uri
+	 * @param issuer the CA that is expected to have signed the CRL
+	 * @param callback called when the CRL is available, may be null
+	 * @return a future for the CRL index for the URI
+	 */
+	public Future<CRLRevocationIndex> getCRLAsync(PkiUri uri, X509Certificate issuer, FutureCallback<CRLRevocationIndex> callback) {
+		CRLRevocationIndex crl = this.crlCache.getUriCacheEntry(uri.getUri());
+		if (crl != null) {
+			BasicFuture<CRLRevocationIndex> result = new BasicFuture<CRLRevocationIndex>(callback);
+			result.completed(crl);
+			return result;
+		}
+		/*
+		 * We have nothing to serve, so the fetch is forced.
+		 */
+		return fetchCRLAsync(uri, false, true, issuer.getPublicKey(), callback);
+	}
+
+	/**
+	 * Revalidates a CRL we already have without blocking, as
+	 * refreshCRL() does.
+	 * 
+	 * Unless forced, the refresh fails with a FetchRefusedException
+	 * (as the cause of a CRLException) if the server asked us not to
+	 * fetch the CRL again yet.
+	 * 
+	 * @param uri
+	 * @param force true to refresh even if the URI's nextUpdate has not passed
+	 * @param callback called when the refresh completes, may be null
+	 * @return a future for the current CRL index for the URI
+	 */
+	public Future<CRLRevocationIndex> refreshCRLAsync(PkiUri uri, boolean force, FutureCallback<CRLRevocationIndex> callback) {
+		CRLRevocationIndex current = this.crlCache.getUriCacheEntry(uri.getUri());
+		if (current == null) {
+			BasicFuture<CRLRevocationIndex> result = new BasicFuture<CRLRevocationIndex>(callback);
+			result.failed(new CRLException("Error refreshing CRL: No CRL in cache for " + uri.getUri().toASCIIString()));
+			return result;
+		}
+		return fetchCRLAsync(uri, true, force, current.getSignerKey(), callback);
+	}
+
+	/**
+	 * Places a CRL restored from a cache snapshot in the cache, and
+	 * schedules its refresh as if we had just fetched it.
+	 * 
+	 * @param uri
+	 * @param index
+	 */
+	public void restoreCRL(PkiUri uri, CRLRevocationIndex index) {
+		LOG.info("Placing CRL from " + uri.getUri().toASCIIString() + " in CRL Cache from snapshot");
+		this.crlCache.update(uri.getUri(), index);
+		CRLRefreshScheduler.getInstance().schedule(uri, index);
+	}
+
+	private CRLRevocationIndex fetchCRL(PkiUri uri, boolean conditional, PublicKey signerKey) throws CRLException {
+		HttpClient http = HttpClient.getInstance();
+		DownloadedArtifact crlArtifact = null;
+		try {
+			crlArtifact = http.download(uri, conditional);
+		} catch (HttpClientException e) {
+			throw new CRLException("Error fetching CRL: " + e.getMessage(), e);
+		}
+		return processCRL(uri, crlArtifact, signerKey);
+	}
+
+	private Future<CRLRevocationIndex> fetchCRLAsync(final PkiUri uri, boolean conditional, boolean force, final PublicKey signerKey,
+			FutureCallback<CRLRevocationIndex> callback) {
+		final BasicFuture<CRLRevocationIndex> result = new BasicFuture<CRLRevocationIndex>(callback);
+		FetchScheduler.getInstance().download(uri, conditional, force, new FutureCallback<DownloadedArtifact>() {
+			public void completed(final DownloadedArtifact crlArtifact) {
+				try {
+					parsers.execute(new Runnable() {
+						public void run() {
+							try {
+								result.completed(processCRL(uri, crlArtifact, signerKey));
+							} catch (CRLException e) {
+								result.failed(e);
+							} catch (RuntimeException e) {
+								result.failed(e);
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					if (crlArtifact != null) {
+						crlArtifact.close();
+					}
+					result.failed(e);
+				}
 			}
-			ByteArrayInputStream bais = new ByteArrayInputStream(crlBa);
-			CertificateFactory cf = null;
-			try {
-				cf = CertificateFactory.getInstance("X509");
-			} catch (CertificateException e) {
-				throw new CRLException(e);
+			public void failed(Exception e) {
+				result.failed(new CRLException("Error fetching CRL: " + e.getMessage(), e));
+			}
+			public void cancelled() {
+				result.cancel();
+			}
+		});
+		return result;
+	}
+
+	private CRLRevocationIndex processCRL(PkiUri uri, DownloadedArtifact crlArtifact, PublicKey signerKey) throws CRLException {
+		if (crlArtifact == null) {
+			throw new CRLException("Error fetching CRL: No CRL returned from " + uri.getUri().toASCIIString());
+		}
+		if (crlArtifact.isNotModified()) {
+			LOG.info("CRL from " + uri.getUri().toASCIIString() + " has not been modified");
+			crlArtifact.close();
+			CRLRevocationIndex current = this.crlCache.getUriCacheEntry(uri.getUri());
+			CRLRefreshScheduler.getInstance().schedule(uri, current);
+			return current;
+		}
+		/*
+		 * If the content is the same as the CRL we already have
+		 * (or as a CRL we parsed from another URI), there is
+		 * nothing to parse.
+		 */
+		CRLRevocationIndex current = this.crlCache.getUriCacheEntry(uri.getUri());
+		if (crlArtifact.isUnchanged() && current != null) {
+			LOG.info("CRL from " + uri.getUri().toASCIIString() + " is unchanged");
+			crlArtifact.close();
+			CRLRefreshScheduler.getInstance().schedule(uri, current);
+			return current;
+		}
+		CRLRevocationIndex same = getCRLByDigest(uri, crlArtifact.getDigest(), signerKey);
+		if (same != null) {
+			LOG.info("CRL from " + uri.getUri().toASCIIString() + " is the same CRL already parsed from another URI");
+			crlArtifact.commit();
+			crlArtifact.close();
+			this.crlCache.update(uri.getUri(), same);
+			CRLRefreshScheduler.getInstance().schedule(uri, same);
+			return same;
+		}
+		/*
+		 * The CRL is parsed and verified in a single pass over
+		 * the downloaded file, so we never hold the raw bytes or
+		 * the decoded revoked certificate entries on the heap.
+		 */
+		CRLRevocationIndex index = null;
+		CRLRevocationIndex newer = null;
+		InputStream crlStream = null;
+		try {
+			crlStream = crlArtifact.openStream();
+			index = CRLStreamParser.parse(crlStream, signerKey);
+			newer = getNewerCRL(uri, index, current);
+			/*
+			 * Only a CRL we could use is remembered as the last
+			 * content of the URI, so a CRL that was rejected is
+			 * fetched and parsed again, rather than reported
+			 * unchanged.
+			 */
+			if (newer == null) {
+				crlArtifact.commit();
+			}
+		} catch (IOException e) {
+			throw new CRLException("Error reading CRL: " + e.getMessage(), e);
+		} catch (CRLException e) {
+			throw new CRLException("CRL from " + uri.getUri().toASCIIString() + " was rejected: " + e.getMessage(), e);
+		} finally {
+			if (crlStream != null) {
+				try {
+					crlStream.close();
+				} catch (IOException e) {
+					LOG.warn("Error closing CRL stream: " + e.getMessage());
+				}
+			}
+			crlArtifact.close();
+		}
+		/*
+		 * A CRL older than one we have for the same CA and scope
+		 * (e.g., from a stale mirror, or replayed) would undo
+		 * revocations we already know of, so we keep the newer one.
+		 */
+		if (newer != null) {
+			LOG.warn("CRL from " + uri.getUri().toASCIIString() + " (thisUpdate: " + index.getThisUpdate() + ", cRLNumber: " + index.getCrlNumber() +
+					") is older than the CRL we have for its issuer and scope (thisUpdate: " + newer.getThisUpdate() + ", cRLNumber: " + newer.getCrlNumber() + "), keeping the CRL we have");
+			this.crlCache.update(uri.getUri(), newer);
+			CRLRefreshScheduler.getInstance().schedule(uri, newer);
+			return newer;
+		}
+		LOG.info("Placing CRL from " + uri.getUri().toASCIIString() + " in CRL Cache");
+		this.crlCache.update(uri.getUri(), index);
+		CRLRefreshScheduler.getInstance().schedule(uri, index);
+		return index;
+	}
+
+	/*
+	 * Finds the newest CRL we have for the same issuer and scope (IDP)
+	 * as a CRL we just parsed, if it is newer than that CRL: the CRL
+	 * already cached for the URI, or one fetched from another URI and
+	 * verified with the same key.
+	 */
+	private CRLRevocationIndex getNewerCRL(PkiUri uri, CRLRevocationIndex crl, CRLRevocationIndex current) {
+		CRLRevocationIndex newest = crl;
+		if (current != null && isSameScope(crl, current) && isOlder(newest, current)) {
+			newest = current;
+		}
+		for (URI other: this.crlCache.getURIs()) {
+			if (other.equals(uri.getUri())) {
+				continue;
+			}
+			CRLRevocationIndex index = this.crlCache.getUriCacheEntry(other);
+			if (index != null && crl.getSignerKey().equals(index.getSignerKey()) && isSameScope(crl, index) && isOlder(newest, index)) {
+				newest = index;
+			}
+		}
+		return (newest == crl) ? null : newest;
+	}
+
+	private static boolean isSameScope(CRLRevocationIndex crl, CRLRevocationIndex other) {
+		return crl.getIssuer().equals(other.getIssuer()) &&
+				Arrays.equals(crl.getIssuingDistributionPoint(), other.getIssuingDistributionPoint()) &&
+				crl.isDeltaCrl() == other.isDeltaCrl();
+	}
+
+	/*
+	 * A CRL is older than another of the same scope if it has a lower
+	 * cRLNumber, or an earlier thisUpdate.
+	 */
+	private static boolean isOlder(CRLRevocationIndex crl, CRLRevocationIndex other) {
+		if (crl.getCrlNumber() != null && other.getCrlNumber() != null && crl.getCrlNumber().compareTo(other.getCrlNumber()) < 0) {
+			return true;
+		}
+		return crl.getThisUpdate().before(other.getThisUpdate());
+	}
+
+	/*
+	 * Finds a CRL in the cache, fetched from another URI, whose content
+	 * has the given digest, and that was verified with the same key.
+	 */
+	private CRLRevocationIndex getCRLByDigest(PkiUri uri, String digest, PublicKey signerKey) {
+		if (digest == null) {
+			return null;
+		}
+		URICache uriCache = UriCacheManager.getInstance().getUriCache();
+		for (URI other: this.crlCache.getURIs()) {
+			if (other.equals(uri.getUri())) {
+				continue;
+			}
+			URICacheEntry entry = uriCache.getUriCacheEntry(new PkiUri(other, uri.getReason(), uri.getSubReason()));
+			if (entry != null && digest.equals(entry.getDigest())) {
+				CRLRevocationIndex index = this.crlCache.getUriCacheEntry(other);
+				if (index != null && index.getSignerKey().equals(signerKey)) {
+					return index;
+				}
 			}
-			X509CRL crl = (X509CRL) cf.generateCRL(bais);
-			LOG.info("Placing CRL from " + uri.getUri().toASCIIString() + " in CRL Cache");
-			this.crlCache.update(uri.getUri(), crl);
-			return crl;
 		}
+		return null;
 	}
-}
+}
\ No newline at end of file
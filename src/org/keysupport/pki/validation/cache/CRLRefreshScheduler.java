@@ -0,0 +1,218 @@
+package org.keysupport.pki.validation.cache;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.FutureCallback;
+import org.keysupport.httpclient.ArtifactStore;
+import org.keysupport.httpclient.FetchRefusedException;
+import org.keysupport.httpclient.HostUnavailableException;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.ocsp.OCSPResponder;
+
+/**
+ * Keeps the CRL cache current by refreshing each CRL ahead of its
+ * nextUpdate.
+ *
+ * Every CRL placed in the cache is scheduled for a refresh at the
+ * earlier of its nextUpdate (less a lead time) and the next update
+ * permitted by the HTTP Cache-Control max-age of its URI, with some
+ * random jitter so that CRLs published together are not all fetched
+ * at the same moment.  The executor's delay queue keeps the CRLs
+ * ordered by that due time, and a bounded pool of workers performs
+ * the refreshes.
+ *
+ * A refresh is a conditional request through the CRLCacheManager,
+ * sent without blocking the worker, and the new CRL replaces the old
+ * one in the CRLCache with a single put, so validations already in
+ * flight keep the CRL they started with.
+ */
+public class CRLRefreshScheduler {
+
+	private static CRLRefreshScheduler instance = null;
+	private static final Log LOG = LogFactory.getLog(CRLRefreshScheduler.class);
+
+	private static final int REFRESH_WORKERS = 4;
+	/*
+	 * Refresh no earlier than this after the last fetch, so a
+	 * URI that sends "no-cache" (or no Cache-Control at all)
+	 * is not fetched continuously.
+	 */
+	private static final long MIN_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(15);
+	/*
+	 * Used when the CRL has no nextUpdate.
+	 */
+	private static final long DEFAULT_REFRESH_INTERVAL = TimeUnit.HOURS.toMillis(6);
+	/*
+	 * How far ahead of nextUpdate we try to have the new CRL.
+	 * Limited to a quarter of the CRL's validity period.
+	 */
+	private static final long MAX_REFRESH_LEAD = TimeUnit.HOURS.toMillis(2);
+	private static final long MAX_JITTER = TimeUnit.MINUTES.toMillis(10);
+	private static final long RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+	/*
+	 * Each refresh may leave a replaced CRL in the ArtifactStore, so
+	 * the store is pruned on this schedule as well as at publish.
+	 */
+	private static final long PRUNE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final ConcurrentHashMap<URI, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<URI, ScheduledFuture<?>>();
+
+	public static synchronized CRLRefreshScheduler getInstance() {
+		if (instance == null) {
+			instance = new CRLRefreshScheduler();
+		}
+		return instance;
+	}
+
+	private CRLRefreshScheduler() {
+		LOG.info("Initializing CRL Refresh Scheduler");
+		this.executor = new ScheduledThreadPoolExecutor(REFRESH_WORKERS, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "crl-refresh-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					ArtifactStore.getInstance().prune();
+				} catch (RuntimeException e) {
+					LOG.warn("Error pruning the artifact store: " + e.getMessage(), e);
+				}
+			}
+		}, PRUNE_INTERVAL, PRUNE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedule the next refresh of a CRL we just placed in (or confirmed
+	 * in) the cache, replacing any refresh already scheduled for the URI.
+	 *
+	 * @param uri the URI the CRL was fetched from
+	 * @param crl the CRL now in the cache
+	 */
+	public void schedule(PkiUri uri, CRLRevocationIndex crl) {
+		long delay = getRefreshDelay(uri, crl);
+		scheduleIn(uri, delay);
+	}
+
+	/**
+	 * @return the number of CRLs with a refresh scheduled
+	 */
+	public int getScheduledCount() {
+		return scheduled.size();
+	}
+
+	/**
+	 * @param uri
+	 * @return the time of the next scheduled refresh for the URI, or null if none is scheduled.
+	 */
+	public Date getNextRefresh(PkiUri uri) {
+		ScheduledFuture<?> future = scheduled.get(uri.getUri());
+		if (future == null) {
+			return null;
+		}
+		return new Date(System.currentTimeMillis() + future.getDelay(TimeUnit.MILLISECONDS));
+	}
+
+	private void scheduleIn(final PkiUri uri, long delay) {
+		ScheduledFuture<?> future = executor.schedule(new Runnable() {
+			public void run() {
+				refresh(uri);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> previous = scheduled.put(uri.getUri(), future);
+		if (previous != null) {
+			previous.cancel(false);
+		}
+		LOG.info("Next refresh of CRL from " + uri.getUri().toASCIIString() + " in " + TimeUnit.MILLISECONDS.toMinutes(delay) + " minutes");
+	}
+
+	private void refresh(final PkiUri uri) {
+		LOG.info("Refreshing CRL from " + uri.getUri().toASCIIString());
+		/*
+		 * The refresh runs on the asynchronous HttpClient, so
+		 * the worker is free as soon as the request is sent.
+		 * A successful refresh reschedules itself through the
+		 * CRLCacheManager.
+		 *
+		 * The FetchScheduler will refuse the refresh if the
+		 * server's max-age has not passed, unless the CRL we
+		 * have is no longer current.
+		 */
+		CRLRevocationIndex current = CRLCacheManager.getInstance().getCRLCache().getUriCacheEntry(uri.getUri());
+		boolean force = current != null && current.getNextUpdate() != null && current.getNextUpdate().getTime() <= System.currentTimeMillis();
+		CRLCacheManager.getInstance().refreshCRLAsync(uri, force, new FutureCallback<CRLRevocationIndex>() {
+			public void completed(CRLRevocationIndex crl) {
+				LOG.info("Refreshed CRL from " + uri.getUri().toASCIIString());
+				OCSPResponder.getInstance().crlUpdated(crl);
+			}
+			public void failed(Exception e) {
+				if (e.getCause() instanceof FetchRefusedException) {
+					long delay = ((FetchRefusedException) e.getCause()).getNotBefore().getTime() - System.currentTimeMillis();
+					LOG.info("Refresh of CRL from " + uri.getUri().toASCIIString() + " deferred: " + e.getCause().getMessage());
+					scheduleIn(uri, Math.max(delay, 0) + jitter(MIN_REFRESH_INTERVAL));
+					return;
+				}
+				long retry = RETRY_INTERVAL;
+				if (e.getCause() instanceof HostUnavailableException && ((HostUnavailableException) e.getCause()).getRetryAt() != null) {
+					/*
+					 * No sense in trying before the host's circuit
+					 * breaker will let a probe through.
+					 */
+					retry = Math.max(retry, ((HostUnavailableException) e.getCause()).getRetryAt().getTime() - System.currentTimeMillis());
+				}
+				LOG.fatal("Failed to refresh CRL, retrying: " + e.getMessage(), e);
+				scheduleIn(uri, retry + jitter(RETRY_INTERVAL));
+			}
+			public void cancelled() {
+				LOG.warn("Refresh of CRL from " + uri.getUri().toASCIIString() + " was cancelled, retrying");
+				scheduleIn(uri, RETRY_INTERVAL + jitter(RETRY_INTERVAL));
+			}
+		});
+	}
+
+	private long getRefreshDelay(PkiUri uri, CRLRevocationIndex crl) {
+		long now = System.currentTimeMillis();
+		long due = now + DEFAULT_REFRESH_INTERVAL;
+		if (crl != null && crl.getNextUpdate() != null) {
+			long nextUpdate = crl.getNextUpdate().getTime();
+			long lead = MAX_REFRESH_LEAD;
+			if (crl.getThisUpdate() != null) {
+				lead = Math.min(lead, (nextUpdate - crl.getThisUpdate().getTime()) / 4);
+			}
+			due = nextUpdate - lead - jitter(lead);
+		}
+		/*
+		 * Honor the HTTP max-age if the server expects the
+		 * content to change before the CRL says it will.
+		 */
+		URICacheEntry entry = UriCacheManager.getInstance().getUriCache().getUriCacheEntry(uri);
+		if (entry != null && entry.getNextUpdate() != null && entry.getNextUpdate().getTime() < due) {
+			due = entry.getNextUpdate().getTime();
+		}
+		return Math.max(due - now, MIN_REFRESH_INTERVAL + jitter(MIN_REFRESH_INTERVAL));
+	}
+
+	private long jitter(long range) {
+		long bound = Math.min(range, MAX_JITTER);
+		if (bound <= 0) {
+			return 0;
+		}
+		return ThreadLocalRandom.current().nextLong(bound);
+	}
+
+}
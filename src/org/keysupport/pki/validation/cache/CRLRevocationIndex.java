@@ -0,0 +1,519 @@
+package org.keysupport.pki.validation.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A compact, immutable index of the certificates revoked by a single CRL.
+ *
+ * Rather than keeping a decoded X509CRL (and an X509CRLEntry, BigInteger
+ * and Date for every revoked certificate), the serial numbers are packed
+ * into a single byte array in sorted order, with an offset table and
+ * side tables for the revocation date and reason.  Lookups are a binary
+ * search over the packed serials, and do not allocate when the caller
+ * supplies the serial number as a byte array.
+ *
+ * Serial numbers are stored as the contents of their DER INTEGER encoding
+ * (i.e., BigInteger.toByteArray()), ordered by length and then by unsigned
+ * byte value.  This is not numeric order for negative serial numbers, but
+ * it is a total order with exact equality, which is all the search needs.
+ *
+ * The index only records CRLs whose signature was verified, and keeps
+ * the key it was verified with.  Indexes are built by CRLStreamParser
+ * as the CRL is read.
+ *
+ * The index also notes what it can not represent: whether the CRL is a
+ * delta CRL, is indirect (an entry names a certificateIssuer), or has a
+ * critical CRL or entry extension we do not recognize.  Such a CRL does
+ * not, on its own, give the status of every certificate of its issuer.
+ */
+public class CRLRevocationIndex {
+
+	public static final int NO_REASON = -1;
+
+	private final X500Principal issuer;
+	private final long thisUpdate;
+	private final long nextUpdate;
+	private final BigInteger crlNumber;
+	private final byte[] issuingDistributionPoint;
+	private final PublicKey signerKey;
+	private final boolean deltaCrl;
+	private final boolean indirect;
+	private final boolean unrecognizedCriticalExtension;
+
+	private final byte[] serials;
+	private final int[] offsets;
+	private final long[] revocationDates;
+	private final byte[] reasons;
+
+	private CRLRevocationIndex(Builder builder, byte[] serials, int[] offsets, long[] revocationDates, byte[] reasons) {
+		this.issuer = builder.issuer;
+		this.thisUpdate = builder.thisUpdate;
+		this.nextUpdate = builder.nextUpdate;
+		this.crlNumber = builder.crlNumber;
+		this.issuingDistributionPoint = builder.issuingDistributionPoint;
+		this.signerKey = builder.signerKey;
+		this.deltaCrl = builder.deltaCrl;
+		this.indirect = builder.indirect;
+		this.unrecognizedCriticalExtension = builder.unrecognizedCriticalExtension;
+		this.serials = serials;
+		this.offsets = offsets;
+		this.revocationDates = revocationDates;
+		this.reasons = reasons;
+	}
+
+	/**
+	 * @return the issuer of the CRL
+	 */
+	public X500Principal getIssuer() {
+		return issuer;
+	}
+
+	/**
+	 * @return the thisUpdate of the CRL
+	 */
+	public Date getThisUpdate() {
+		return new Date(thisUpdate);
+	}
+
+	/**
+	 * @return the nextUpdate of the CRL, or null if the CRL has none
+	 */
+	public Date getNextUpdate() {
+		if (nextUpdate < 0) {
+			return null;
+		}
+		return new Date(nextUpdate);
+	}
+
+	/**
+	 * @return the CRL number, or null if the CRL has none
+	 */
+	public BigInteger getCrlNumber() {
+		return crlNumber;
+	}
+
+	/**
+	 * @return the DER encoded issuingDistributionPoint extension value, or null if the CRL has none
+	 */
+	public byte[] getIssuingDistributionPoint() {
+		return issuingDistributionPoint;
+	}
+
+	/**
+	 * @return true if the CRL has a deltaCRLIndicator
+	 */
+	public boolean isDeltaCrl() {
+		return deltaCrl;
+	}
+
+	/**
+	 * @return true if an entry names a certificateIssuer, so the CRL is indirect
+	 */
+	public boolean isIndirect() {
+		return indirect;
+	}
+
+	/**
+	 * @return true if the CRL, or one of its entries, has a critical extension we do not recognize
+	 */
+	public boolean hasUnrecognizedCriticalExtension() {
+		return unrecognizedCriticalExtension;
+	}
+
+	/**
+	 * @return the key the CRL signature was verified with
+	 */
+	public PublicKey getSignerKey() {
+		return signerKey;
+	}
+
+	/**
+	 * @param key
+	 * @return true if the CRL signature was verified with the given key
+	 */
+	public boolean isSignedBy(PublicKey key) {
+		return (signerKey != null && Arrays.equals(signerKey.getEncoded(), key.getEncoded()));
+	}
+
+	/**
+	 * @param date
+	 * @return true if the CRL is current at the given date
+	 */
+	public boolean isCurrent(Date date) {
+		return (date.getTime() >= thisUpdate && (nextUpdate < 0 || date.getTime() < nextUpdate));
+	}
+
+	/**
+	 * @return the number of revoked certificates in the CRL
+	 */
+	public int size() {
+		return revocationDates.length;
+	}
+
+	/**
+	 * @param serialNumber
+	 * @return true if the serial number is on the CRL
+	 */
+	public boolean isRevoked(BigInteger serialNumber) {
+		return indexOf(serialNumber.toByteArray()) >= 0;
+	}
+
+	/**
+	 * @param serialNumber the serial number as returned by BigInteger.toByteArray()
+	 * @return true if the serial number is on the CRL
+	 */
+	public boolean isRevoked(byte[] serialNumber) {
+		return indexOf(serialNumber) >= 0;
+	}
+
+	/**
+	 * Finds a serial number in the index without allocating.
+	 *
+	 * @param serialNumber the serial number as returned by BigInteger.toByteArray()
+	 * @return the position of the serial number in the index, or -1 if it is not on the CRL
+	 */
+	public int indexOf(byte[] serialNumber) {
+		int low = 0;
+		int high = revocationDates.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(serials, offsets[mid], offsets[mid + 1] - offsets[mid], serialNumber, 0, serialNumber.length);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param index a position returned by indexOf()
+	 * @return the serial number at the position
+	 */
+	public BigInteger getSerialNumber(int index) {
+		return new BigInteger(Arrays.copyOfRange(serials, offsets[index], offsets[index + 1]));
+	}
+
+	/**
+	 * @param index a position returned by indexOf()
+	 * @return the revocation date at the position
+	 */
+	public Date getRevocationDate(int index) {
+		return new Date(revocationDates[index]);
+	}
+
+	/**
+	 * @param index a position returned by indexOf()
+	 * @return the RFC 5280 CRLReason code at the position, or NO_REASON
+	 */
+	public int getRevocationReason(int index) {
+		return reasons[index];
+	}
+
+	/**
+	 * @return the approximate number of heap bytes used by the revoked certificate tables
+	 */
+	public long getTableSize() {
+		return serials.length + (offsets.length * 4L) + (revocationDates.length * 8L) + reasons.length;
+	}
+
+	public String toString() {
+		return "[Issuer: " + issuer.getName() + ", Entries: " + size() + ", Table Size: " + getTableSize() + " bytes, Next Update: " + getNextUpdate() + "]";
+	}
+
+	/*
+	 * Writes the index to a cache snapshot.  The tables are written as
+	 * they are, so reading them back does not sort or allocate per entry.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		CacheSnapshot.writeBytes(out, issuer.getEncoded());
+		out.writeLong(thisUpdate);
+		out.writeLong(nextUpdate);
+		CacheSnapshot.writeBytes(out, (crlNumber == null) ? null : crlNumber.toByteArray());
+		CacheSnapshot.writeBytes(out, issuingDistributionPoint);
+		out.writeBoolean(deltaCrl);
+		out.writeBoolean(indirect);
+		out.writeBoolean(unrecognizedCriticalExtension);
+		out.writeUTF(signerKey.getAlgorithm());
+		CacheSnapshot.writeBytes(out, signerKey.getEncoded());
+		int count = revocationDates.length;
+		out.writeInt(count);
+		CacheSnapshot.writeBytes(out, serials);
+		for (int i = 0; i <= count; i++) {
+			out.writeInt(offsets[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			out.writeLong(revocationDates[i]);
+		}
+		out.write(reasons);
+	}
+
+	/*
+	 * Reads an index written by writeTo().
+	 */
+	static CRLRevocationIndex readFrom(DataInputStream in) throws IOException {
+		Builder builder = new Builder();
+		builder.issuer = new X500Principal(CacheSnapshot.readBytes(in));
+		builder.thisUpdate = in.readLong();
+		builder.nextUpdate = in.readLong();
+		byte[] crlNumber = CacheSnapshot.readBytes(in);
+		builder.crlNumber = (crlNumber == null) ? null : new BigInteger(crlNumber);
+		builder.issuingDistributionPoint = CacheSnapshot.readBytes(in);
+		builder.deltaCrl = in.readBoolean();
+		builder.indirect = in.readBoolean();
+		builder.unrecognizedCriticalExtension = in.readBoolean();
+		String keyAlgorithm = in.readUTF();
+		byte[] encodedKey = CacheSnapshot.readBytes(in);
+		try {
+			builder.signerKey = KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(encodedKey));
+		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+			throw new IOException("Error restoring CRL signer key: " + e.getMessage(), e);
+		}
+		int count = in.readInt();
+		byte[] serials = CacheSnapshot.readBytes(in);
+		/*
+		 * Every serial number takes at least one byte, so the serials
+		 * we actually read bound the count before we allocate for it.
+		 */
+		if (serials == null || count < 0 || count > serials.length) {
+			throw new IOException("Corrupt CRL index in snapshot");
+		}
+		int[] offsets = new int[count + 1];
+		for (int i = 0; i <= count; i++) {
+			offsets[i] = in.readInt();
+			if ((i == 0 && offsets[i] != 0) || (i > 0 && offsets[i] <= offsets[i - 1])) {
+				throw new IOException("Corrupt CRL index in snapshot");
+			}
+		}
+		if (offsets[count] != serials.length) {
+			throw new IOException("Corrupt CRL index in snapshot");
+		}
+		long[] revocationDates = new long[count];
+		for (int i = 0; i < count; i++) {
+			revocationDates[i] = in.readLong();
+		}
+		byte[] reasons = new byte[count];
+		in.readFully(reasons);
+		return new CRLRevocationIndex(builder, serials, offsets, revocationDates, reasons);
+	}
+
+	/*
+	 * Order by length, then by unsigned byte value.
+	 */
+	private static int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+		if (aLen != bLen) {
+			return (aLen < bLen) ? -1 : 1;
+		}
+		for (int i = 0; i < aLen; i++) {
+			int x = a[aOff + i] & 0xff;
+			int y = b[bOff + i] & 0xff;
+			if (x != y) {
+				return (x < y) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Collects revoked certificate entries in any order, and produces
+	 * a sorted index.
+	 */
+	public static class Builder {
+
+		private X500Principal issuer = null;
+		private long thisUpdate = 0;
+		private long nextUpdate = -1;
+		private BigInteger crlNumber = null;
+		private byte[] issuingDistributionPoint = null;
+		private PublicKey signerKey = null;
+		private boolean deltaCrl = false;
+		private boolean indirect = false;
+		private boolean unrecognizedCriticalExtension = false;
+
+		private byte[] serials = new byte[4096];
+		private int serialsLength = 0;
+		private int[] offsets = new int[257];
+		private long[] revocationDates = new long[256];
+		private byte[] reasons = new byte[256];
+		private int count = 0;
+
+		public Builder setIssuer(X500Principal issuer) {
+			this.issuer = issuer;
+			return this;
+		}
+
+		public Builder setThisUpdate(Date thisUpdate) {
+			this.thisUpdate = thisUpdate.getTime();
+			return this;
+		}
+
+		public Builder setNextUpdate(Date nextUpdate) {
+			this.nextUpdate = (nextUpdate == null) ? -1 : nextUpdate.getTime();
+			return this;
+		}
+
+		public Builder setCrlNumber(BigInteger crlNumber) {
+			this.crlNumber = crlNumber;
+			return this;
+		}
+
+		public Builder setIssuingDistributionPoint(byte[] issuingDistributionPoint) {
+			this.issuingDistributionPoint = issuingDistributionPoint;
+			return this;
+		}
+
+		public Builder setSignerKey(PublicKey signerKey) {
+			this.signerKey = signerKey;
+			return this;
+		}
+
+		public Builder setDeltaCrl(boolean deltaCrl) {
+			this.deltaCrl = deltaCrl;
+			return this;
+		}
+
+		public Builder setIndirect(boolean indirect) {
+			this.indirect = indirect;
+			return this;
+		}
+
+		public Builder setUnrecognizedCriticalExtension(boolean unrecognizedCriticalExtension) {
+			this.unrecognizedCriticalExtension = unrecognizedCriticalExtension;
+			return this;
+		}
+
+		/**
+		 * Adds a revoked certificate.
+		 *
+		 * @param serialNumber the serial number as returned by BigInteger.toByteArray()
+		 * @param revocationDate the revocation date in milliseconds
+		 * @param reason the RFC 5280 CRLReason code, or NO_REASON
+		 * @return this builder
+		 */
+		public Builder addEntry(byte[] serialNumber, long revocationDate, int reason) {
+			return addEntry(serialNumber, 0, serialNumber.length, revocationDate, reason);
+		}
+
+		/**
+		 * Adds a revoked certificate from a region of a buffer, so
+		 * that parsers can reuse their buffers.
+		 *
+		 * @return this builder
+		 */
+		public Builder addEntry(byte[] buffer, int offset, int length, long revocationDate, int reason) {
+			if (count == revocationDates.length) {
+				int capacity = count * 2;
+				offsets = Arrays.copyOf(offsets, capacity + 1);
+				revocationDates = Arrays.copyOf(revocationDates, capacity);
+				reasons = Arrays.copyOf(reasons, capacity);
+			}
+			if (serialsLength + length > serials.length) {
+				serials = Arrays.copyOf(serials, Math.max(serials.length * 2, serialsLength + length));
+			}
+			System.arraycopy(buffer, offset, serials, serialsLength, length);
+			offsets[count] = serialsLength;
+			serialsLength += length;
+			offsets[count + 1] = serialsLength;
+			revocationDates[count] = revocationDate;
+			reasons[count] = (byte) reason;
+			count++;
+			return this;
+		}
+
+		/**
+		 * @return the number of entries added so far
+		 */
+		public int size() {
+			return count;
+		}
+
+		public CRLRevocationIndex build() {
+			/*
+			 * Sort the entry positions by serial number, then lay
+			 * the tables out again in that order, trimmed to size.
+			 * Duplicate serial numbers keep their first entry.
+			 */
+			int[] order = new int[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			sort(order, new int[count], 0, count);
+			byte[] sSerials = new byte[serialsLength];
+			int[] sOffsets = new int[count + 1];
+			long[] sDates = new long[count];
+			byte[] sReasons = new byte[count];
+			int n = 0;
+			int pos = 0;
+			for (int i = 0; i < count; i++) {
+				int e = order[i];
+				int len = offsets[e + 1] - offsets[e];
+				if (n > 0 && compare(sSerials, sOffsets[n - 1], pos - sOffsets[n - 1], serials, offsets[e], len) == 0) {
+					continue;
+				}
+				System.arraycopy(serials, offsets[e], sSerials, pos, len);
+				sOffsets[n] = pos;
+				pos += len;
+				sOffsets[n + 1] = pos;
+				sDates[n] = revocationDates[e];
+				sReasons[n] = reasons[e];
+				n++;
+			}
+			if (n < count) {
+				sSerials = Arrays.copyOf(sSerials, pos);
+				sOffsets = Arrays.copyOf(sOffsets, n + 1);
+				sDates = Arrays.copyOf(sDates, n);
+				sReasons = Arrays.copyOf(sReasons, n);
+			}
+			return new CRLRevocationIndex(this, sSerials, sOffsets, sDates, sReasons);
+		}
+
+		/*
+		 * Merge sort of entry positions, without boxing.
+		 */
+		private void sort(int[] order, int[] scratch, int from, int to) {
+			if (to - from < 2) {
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			sort(order, scratch, from, mid);
+			sort(order, scratch, mid, to);
+			int i = from;
+			int j = mid;
+			int k = from;
+			while (i < mid && j < to) {
+				if (compareEntries(order[i], order[j]) <= 0) {
+					scratch[k++] = order[i++];
+				} else {
+					scratch[k++] = order[j++];
+				}
+			}
+			while (i < mid) {
+				scratch[k++] = order[i++];
+			}
+			while (j < to) {
+				scratch[k++] = order[j++];
+			}
+			System.arraycopy(scratch, from, order, from, to - from);
+		}
+
+		private int compareEntries(int a, int b) {
+			return compare(serials, offsets[a], offsets[a + 1] - offsets[a], serials, offsets[b], offsets[b + 1] - offsets[b]);
+		}
+	}
+
+}
@@ -0,0 +1,522 @@
+package org.keysupport.pki.validation.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.security.cert.CRLException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1UTCTime;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.operator.ContentVerifier;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+
+/**
+ * Reads a DER encoded CRL from a stream, one revoked certificate entry
+ * at a time, straight into a CRLRevocationIndex.
+ *
+ * The bytes of the TBSCertList are fed to a signature verifier as they
+ * are read, so the CRL is verified in the same pass that indexes it,
+ * and neither the encoded CRL nor its revokedCertificates sequence is
+ * ever held in memory.  Only the current entry, the issuer name and the
+ * CRL extensions are buffered.
+ *
+ * The index is only returned if the signature verifies.
+ */
+public class CRLStreamParser {
+
+	private static final Log LOG = LogFactory.getLog(CRLStreamParser.class);
+
+	/*
+	 * Upper bound for any single element we buffer, such as the
+	 * issuer name, a revoked certificate entry, or the CRL extensions.
+	 */
+	private static final int MAX_ELEMENT_LENGTH = 1024 * 1024;
+
+	private static final int BOOLEAN = 0x01;
+	private static final int INTEGER = 0x02;
+	private static final int BIT_STRING = 0x03;
+	private static final int OCTET_STRING = 0x04;
+	private static final int OBJECT_IDENTIFIER = 0x06;
+	private static final int ENUMERATED = 0x0a;
+	private static final int UTC_TIME = 0x17;
+	private static final int GENERALIZED_TIME = 0x18;
+	private static final int SEQUENCE = 0x30;
+	private static final int CRL_EXTENSIONS = 0xa0;
+
+	/*
+	 * Entry extension OIDs, without the tag and length:
+	 * 2.5.29.21 id-ce-cRLReasons, 2.5.29.24 id-ce-invalidityDate and
+	 * 2.5.29.29 id-ce-certificateIssuer
+	 */
+	private static final byte[] REASON_CODE_OID = { 0x55, 0x1d, 0x15 };
+	private static final byte[] INVALIDITY_DATE_OID = { 0x55, 0x1d, 0x18 };
+	private static final byte[] CERTIFICATE_ISSUER_OID = { 0x55, 0x1d, 0x1d };
+
+	/*
+	 * The critical CRL extensions we can act on.  A CRL with any other
+	 * critical extension is indexed, but marked.
+	 */
+	private static final ASN1ObjectIdentifier[] RECOGNIZED_CRL_EXTENSIONS = {
+		Extension.cRLNumber,
+		Extension.authorityKeyIdentifier,
+		Extension.issuingDistributionPoint,
+		Extension.deltaCRLIndicator
+	};
+
+	private final InputStream in;
+	/*
+	 * Where the bytes we read are copied to, if anywhere.
+	 */
+	private OutputStream sink = null;
+	private long position = 0;
+	/*
+	 * Reused for every revoked certificate entry
+	 */
+	private byte[] entry = new byte[256];
+	private int cursor = 0;
+
+	private CRLStreamParser(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Parses and verifies a CRL, producing its revocation index.
+	 *
+	 * @param in a stream positioned at the start of a DER encoded CRL, which the caller must close
+	 * @param signerKey the key the CRL is expected to be signed with
+	 * @return the index for the CRL
+	 * @throws CRLException if the CRL can not be parsed or the signature does not verify
+	 */
+	public static CRLRevocationIndex parse(InputStream in, PublicKey signerKey) throws CRLException {
+		try {
+			return new CRLStreamParser(in).parseCRL(signerKey);
+		} catch (IOException e) {
+			throw new CRLException("Error reading CRL: " + e.getMessage(), e);
+		}
+	}
+
+	private CRLRevocationIndex parseCRL(PublicKey signerKey) throws IOException, CRLException {
+		CRLRevocationIndex.Builder builder = new CRLRevocationIndex.Builder();
+		builder.setSignerKey(signerKey);
+		/*
+		 * CertificateList  ::=  SEQUENCE  {
+		 *      tbsCertList          TBSCertList,
+		 *      signatureAlgorithm   AlgorithmIdentifier,
+		 *      signatureValue       BIT STRING  }
+		 */
+		expectTag(SEQUENCE, "CertificateList");
+		readLength();
+		/*
+		 * We can not create the verifier until we have read the
+		 * signature algorithm inside the TBSCertList, so hold on
+		 * to the bytes read until then.
+		 */
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		this.sink = head;
+		expectTag(SEQUENCE, "TBSCertList");
+		long tbsEnd = readLength();
+		tbsEnd += this.position;
+		int tag = readTag();
+		if (tag == INTEGER) {
+			readContents(readLength());
+			tag = readTag();
+		}
+		if (tag != SEQUENCE) {
+			throw new CRLException("Malformed CRL: Expected TBSCertList signature");
+		}
+		byte[] tbsSigAlg = encode(SEQUENCE, readContents(readLength()));
+		ContentVerifier verifier = getVerifier(signerKey, tbsSigAlg);
+		OutputStream sigOut = verifier.getOutputStream();
+		sigOut.write(head.toByteArray());
+		this.sink = sigOut;
+		expectTag(SEQUENCE, "issuer");
+		builder.setIssuer(new X500Principal(encode(SEQUENCE, readContents(readLength()))));
+		tag = readTag();
+		builder.setThisUpdate(new Date(readTime(tag)));
+		tag = nextTag(tbsEnd);
+		if (tag == UTC_TIME || tag == GENERALIZED_TIME) {
+			builder.setNextUpdate(new Date(readTime(tag)));
+			tag = nextTag(tbsEnd);
+		}
+		if (tag == SEQUENCE) {
+			long revokedEnd = readLength();
+			revokedEnd += this.position;
+			while (this.position < revokedEnd) {
+				readEntry(builder);
+			}
+			tag = nextTag(tbsEnd);
+		}
+		if (tag == CRL_EXTENSIONS) {
+			readCrlExtensions(builder, readContents(readLength()));
+			tag = nextTag(tbsEnd);
+		}
+		if (tag != -1 || this.position != tbsEnd) {
+			throw new CRLException("Malformed CRL: Unexpected content in TBSCertList");
+		}
+		this.sink = null;
+		expectTag(SEQUENCE, "signatureAlgorithm");
+		byte[] sigAlg = encode(SEQUENCE, readContents(readLength()));
+		if (!Arrays.equals(sigAlg, tbsSigAlg)) {
+			throw new CRLException("Malformed CRL: signatureAlgorithm does not match TBSCertList signature");
+		}
+		expectTag(BIT_STRING, "signatureValue");
+		byte[] sigBits = readContents(readLength());
+		if (sigBits.length < 1 || sigBits[0] != 0) {
+			throw new CRLException("Malformed CRL: Invalid signatureValue");
+		}
+		if (!verifier.verify(Arrays.copyOfRange(sigBits, 1, sigBits.length))) {
+			throw new CRLException("CRL signature verification failed");
+		}
+		return builder.build();
+	}
+
+	private ContentVerifier getVerifier(PublicKey signerKey, byte[] sigAlg) throws CRLException {
+		try {
+			return new JcaContentVerifierProviderBuilder().build(signerKey).get(AlgorithmIdentifier.getInstance(ASN1Primitive.fromByteArray(sigAlg)));
+		} catch (OperatorCreationException e) {
+			throw new CRLException("Unable to verify CRL signature: " + e.getMessage(), e);
+		} catch (IOException | IllegalArgumentException e) {
+			throw new CRLException("Malformed CRL: Invalid signature algorithm", e);
+		}
+	}
+
+	/*
+	 * revokedCertificates     SEQUENCE OF SEQUENCE  {
+	 *      userCertificate         CertificateSerialNumber,
+	 *      revocationDate          Time,
+	 *      crlEntryExtensions      Extensions OPTIONAL }
+	 */
+	private void readEntry(CRLRevocationIndex.Builder builder) throws IOException, CRLException {
+		expectTag(SEQUENCE, "revoked certificate");
+		int limit = checkLength(readLength());
+		if (limit > this.entry.length) {
+			this.entry = new byte[Math.max(limit, this.entry.length * 2)];
+		}
+		readFully(this.entry, 0, limit);
+		this.cursor = 0;
+		expectEntryTag(INTEGER, limit);
+		int serialLen = entryLength(limit);
+		int serialOff = this.cursor;
+		this.cursor += serialLen;
+		if (this.cursor >= limit) {
+			throw new CRLException("Malformed CRL: Missing revocationDate");
+		}
+		int timeTag = this.entry[this.cursor++] & 0xff;
+		int timeLen = entryLength(limit);
+		long revocationDate = parseTime(timeTag, this.entry, this.cursor, timeLen);
+		this.cursor += timeLen;
+		int reason = CRLRevocationIndex.NO_REASON;
+		if (this.cursor < limit) {
+			expectEntryTag(SEQUENCE, limit);
+			int extsEnd = entryLength(limit);
+			extsEnd += this.cursor;
+			while (this.cursor < extsEnd) {
+				expectEntryTag(SEQUENCE, extsEnd);
+				int extEnd = entryLength(extsEnd);
+				extEnd += this.cursor;
+				expectEntryTag(OBJECT_IDENTIFIER, extEnd);
+				int oidLen = entryLength(extEnd);
+				int oidOff = this.cursor;
+				this.cursor += oidLen;
+				boolean critical = false;
+				if (this.cursor < extEnd && this.entry[this.cursor] == BOOLEAN) {
+					this.cursor++;
+					int criticalLen = entryLength(extEnd);
+					critical = (criticalLen == 1 && this.entry[this.cursor] != 0);
+					this.cursor += criticalLen;
+				}
+				expectEntryTag(OCTET_STRING, extEnd);
+				int valueLen = entryLength(extEnd);
+				/*
+				 * reasonCode ::= ENUMERATED
+				 */
+				if (isOid(oidOff, oidLen, REASON_CODE_OID)) {
+					if (valueLen == 3 && this.entry[this.cursor] == ENUMERATED && this.entry[this.cursor + 1] == 1) {
+						reason = this.entry[this.cursor + 2] & 0xff;
+					}
+				} else if (isOid(oidOff, oidLen, CERTIFICATE_ISSUER_OID)) {
+					builder.setIndirect(true);
+				} else if (critical && !isOid(oidOff, oidLen, INVALIDITY_DATE_OID)) {
+					builder.setUnrecognizedCriticalExtension(true);
+				}
+				this.cursor = extEnd;
+			}
+		}
+		builder.addEntry(this.entry, serialOff, serialLen, revocationDate, reason);
+	}
+
+	private void readCrlExtensions(CRLRevocationIndex.Builder builder, byte[] contents) throws CRLException {
+		Extensions exts = null;
+		try {
+			exts = Extensions.getInstance(contents);
+		} catch (IllegalArgumentException e) {
+			throw new CRLException("Malformed CRL: Invalid crlExtensions", e);
+		}
+		Extension ext = null;
+		if ((ext = exts.getExtension(Extension.cRLNumber)) != null) {
+			builder.setCrlNumber(ASN1Integer.getInstance(ext.getParsedValue()).getValue());
+		}
+		if ((ext = exts.getExtension(Extension.issuingDistributionPoint)) != null) {
+			builder.setIssuingDistributionPoint(ext.getExtnValue().getOctets());
+		}
+		if (exts.getExtension(Extension.deltaCRLIndicator) != null) {
+			builder.setDeltaCrl(true);
+		}
+		ASN1ObjectIdentifier[] crits = exts.getCriticalExtensionOIDs();
+		if (crits != null) {
+			for (ASN1ObjectIdentifier oid: crits) {
+				if (!Arrays.asList(RECOGNIZED_CRL_EXTENSIONS).contains(oid)) {
+					LOG.warn("Unrecognized critical extension in CRL: " + oid.getId());
+					builder.setUnrecognizedCriticalExtension(true);
+				}
+			}
+		}
+	}
+
+	private boolean isOid(int off, int len, byte[] oid) {
+		if (len != oid.length) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (this.entry[off + i] != oid[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void expectEntryTag(int tag, int limit) throws CRLException {
+		if (this.cursor >= limit || (this.entry[this.cursor] & 0xff) != tag) {
+			throw new CRLException("Malformed CRL: Unexpected tag in revoked certificate entry");
+		}
+		this.cursor++;
+	}
+
+	/*
+	 * Decodes a DER length from the entry buffer, and makes sure the
+	 * contents fit within the limit.
+	 */
+	private int entryLength(int limit) throws CRLException {
+		if (this.cursor >= limit) {
+			throw new CRLException("Malformed CRL: Truncated revoked certificate entry");
+		}
+		int b = this.entry[this.cursor++] & 0xff;
+		int len = b;
+		if (b > 0x80) {
+			int n = b & 0x7f;
+			if (n > 3 || this.cursor + n > limit) {
+				throw new CRLException("Malformed CRL: Invalid length in revoked certificate entry");
+			}
+			len = 0;
+			for (int i = 0; i < n; i++) {
+				len = (len << 8) | (this.entry[this.cursor++] & 0xff);
+			}
+		} else if (b == 0x80) {
+			throw new CRLException("Malformed CRL: Indefinite length in revoked certificate entry");
+		}
+		if (this.cursor + len > limit) {
+			throw new CRLException("Malformed CRL: Truncated revoked certificate entry");
+		}
+		return len;
+	}
+
+	private long readTime(int tag) throws IOException, CRLException {
+		byte[] contents = readContents(readLength());
+		return parseTime(tag, contents, 0, contents.length);
+	}
+
+	/*
+	 * Time ::= CHOICE {
+	 *      utcTime        UTCTime,
+	 *      generalTime    GeneralizedTime }
+	 *
+	 * DER requires YYMMDDHHMMSSZ and YYYYMMDDHHMMSS[.f]Z, which we
+	 * decode directly.  Anything else goes through BouncyCastle.
+	 */
+	private static long parseTime(int tag, byte[] buf, int off, int len) throws CRLException {
+		if (tag != UTC_TIME && tag != GENERALIZED_TIME) {
+			throw new CRLException("Malformed CRL: Expected Time");
+		}
+		int yearDigits = (tag == UTC_TIME) ? 2 : 4;
+		int fixed = yearDigits + 10;
+		if (len > fixed && buf[off + len - 1] == 'Z' && (len == fixed + 1 || buf[off + fixed] == '.')) {
+			int year = digits(buf, off, yearDigits);
+			int p = off + yearDigits;
+			int month = digits(buf, p, 2);
+			int day = digits(buf, p + 2, 2);
+			int hour = digits(buf, p + 4, 2);
+			int minute = digits(buf, p + 6, 2);
+			int second = digits(buf, p + 8, 2);
+			int millis = 0;
+			if (len > fixed + 1) {
+				int scale = 100;
+				for (int i = off + fixed + 1; i < off + len - 1 && scale > 0; i++) {
+					millis += digits(buf, i, 1) * scale;
+					scale /= 10;
+				}
+			}
+			if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 &&
+					hour >= 0 && hour <= 23 && minute >= 0 && minute <= 59 && second >= 0 && second <= 59 && millis >= 0) {
+				if (tag == UTC_TIME) {
+					year += (year >= 50) ? 1900 : 2000;
+				}
+				return ((((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60 + second) * 1000) + millis;
+			}
+		}
+		String time = new String(buf, off, len, StandardCharsets.US_ASCII);
+		try {
+			if (tag == UTC_TIME) {
+				return new ASN1UTCTime(time).getAdjustedDate().getTime();
+			}
+			return new ASN1GeneralizedTime(time).getDate().getTime();
+		} catch (ParseException | IllegalArgumentException e) {
+			throw new CRLException("Malformed CRL: Invalid Time " + time, e);
+		}
+	}
+
+	/*
+	 * Returns -1 if any character is not a digit
+	 */
+	private static int digits(byte[] buf, int off, int count) {
+		int value = 0;
+		for (int i = 0; i < count; i++) {
+			int d = buf[off + i] - '0';
+			if (d < 0 || d > 9) {
+				return -1;
+			}
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	/*
+	 * Days since 1970-01-01 in the proleptic Gregorian calendar
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = (month <= 2) ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097L + doe - 719468;
+	}
+
+	private int nextTag(long end) throws IOException, CRLException {
+		if (this.position >= end) {
+			return -1;
+		}
+		return readTag();
+	}
+
+	private void expectTag(int tag, String name) throws IOException, CRLException {
+		if (readTag() != tag) {
+			throw new CRLException("Malformed CRL: Expected " + name);
+		}
+	}
+
+	private int readTag() throws IOException, CRLException {
+		int tag = read();
+		if ((tag & 0x1f) == 0x1f) {
+			throw new CRLException("Malformed CRL: Unsupported high tag number");
+		}
+		return tag;
+	}
+
+	private long readLength() throws IOException, CRLException {
+		int b = read();
+		if (b < 0x80) {
+			return b;
+		}
+		int n = b & 0x7f;
+		if (n == 0) {
+			throw new CRLException("Malformed CRL: Indefinite length encoding");
+		}
+		if (n > 7) {
+			throw new CRLException("Malformed CRL: Length too long");
+		}
+		long len = 0;
+		for (int i = 0; i < n; i++) {
+			len = (len << 8) | read();
+		}
+		return len;
+	}
+
+	private int checkLength(long len) throws CRLException {
+		if (len > MAX_ELEMENT_LENGTH) {
+			throw new CRLException("Malformed CRL: Element of " + len + " bytes exceeds " + MAX_ELEMENT_LENGTH);
+		}
+		return (int) len;
+	}
+
+	private byte[] readContents(long len) throws IOException, CRLException {
+		byte[] contents = new byte[checkLength(len)];
+		readFully(contents, 0, contents.length);
+		return contents;
+	}
+
+	private int read() throws IOException {
+		int b = this.in.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of CRL");
+		}
+		this.position++;
+		if (this.sink != null) {
+			this.sink.write(b);
+		}
+		return b;
+	}
+
+	private void readFully(byte[] buf, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int count = this.in.read(buf, off + total, len - total);
+			if (count < 0) {
+				throw new EOFException("Unexpected end of CRL");
+			}
+			total += count;
+		}
+		this.position += len;
+		if (this.sink != null) {
+			this.sink.write(buf, off, len);
+		}
+	}
+
+	private static byte[] encode(int tag, byte[] contents) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length + 6);
+		out.write(tag);
+		int len = contents.length;
+		if (len < 0x80) {
+			out.write(len);
+		} else {
+			int n = 0;
+			for (int v = len; v != 0; v >>>= 8) {
+				n++;
+			}
+			out.write(0x80 | n);
+			for (int i = n - 1; i >= 0; i--) {
+				out.write(len >>> (i * 8));
+			}
+		}
+		out.write(contents, 0, contents.length);
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,295 @@
+package org.keysupport.pki.validation.cache;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertStore;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.keysupport.httpclient.PkiUri;
+import org.keysupport.pki.validation.IndexedCertStoreParameters;
+import org.keysupport.pki.validation.KeySupportProvider;
+import org.keysupport.pki.validation.ValidationUtils;
+
+/**
+ * An immutable snapshot of the certificate cache.
+ *
+ * A generation holds the cache tree, the flattened cache derived from
+ * it, and the PKIX inputs (trust anchor and intermediate CertStore),
+ * all built once when the generation is created.  The
+ * CertificateCacheManager publishes the current generation through a
+ * volatile reference, so readers take a snapshot without locking and
+ * see a consistent tree, flattened cache and store, while a rebuild
+ * creates a new generation and swaps it in.
+ *
+ * The flattened cache is also indexed by subject key identifier, subject
+ * DN and subject name hash, so the issuer of a certificate can be found
+ * with a lookup on its AKI or issuer DN, rather than by trying the
+ * signature of every CA in the cache.
+ *
+ * A generation also records the digest of the SIA content each CA's
+ * subjects were discovered from, so a refresh can tell whether the SIA
+ * has changed since the generation was built, whatever the URI cache
+ * has seen in the meantime.
+ *
+ * The CertificateCache entries in a generation SHALL NOT be modified
+ * once the generation is created.
+ */
+public class CacheGeneration {
+
+	private static final AtomicLong GENERATIONS = new AtomicLong(0);
+
+	private final long generation;
+	private final Date created;
+	private final CertificateCache cache;
+	private final Map<CertID, CertificateCache> fCache;
+	private final Collection<CertificateCache> intermediates;
+	private final TrustAnchor trustAnchor;
+	private final CertStore intermediateStore;
+	private final Map<ByteBuffer, List<CertificateCache>> bySki = new HashMap<ByteBuffer, List<CertificateCache>>();
+	private final Map<X500Principal, List<CertificateCache>> bySubject = new HashMap<X500Principal, List<CertificateCache>>();
+	private final Map<ByteBuffer, List<CertificateCache>> bySubjectNameHash = new HashMap<ByteBuffer, List<CertificateCache>>();
+	private final Map<URI, String> siaDigests;
+
+	/**
+	 * Creates a generation whose SIA digests are the last content the
+	 * URI cache has from each SIA URI, as after a full discovery.
+	 *
+	 * @param cache the cache tree
+	 * @throws CertificateCacheException
+	 */
+	public CacheGeneration(CertificateCache cache) throws CertificateCacheException {
+		this(cache, null);
+	}
+
+	/**
+	 * @param cache the cache tree
+	 * @param siaDigests the digest of the SIA content each URI was
+	 * discovered from, with any SIA URI not in the map taken from the
+	 * URI cache, may be null
+	 * @throws CertificateCacheException
+	 */
+	public CacheGeneration(CertificateCache cache, Map<URI, String> siaDigests) throws CertificateCacheException {
+		this.generation = GENERATIONS.incrementAndGet();
+		this.created = new Date();
+		this.cache = cache;
+		this.fCache = Collections.unmodifiableMap(cache.getFlattentedCache());
+		this.intermediates = Collections.unmodifiableCollection(this.fCache.values());
+		this.trustAnchor = new TrustAnchor(cache.getCertificate(), null);
+		MessageDigest sha1 = null;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new CertificateCacheException("Failed to index cache", e);
+		}
+		/*
+		 * The indexes are built from the subject and the subject key
+		 * identifier each cache entry keeps, and the intermediate store
+		 * and the SIA digests from the extensions it keeps, so only the
+		 * trust anchor is decoded from the CertificateStore here.
+		 * The trust anchor is indexed along with the intermediates,
+		 * since it is the issuer of the CAs directly below it.
+		 */
+		List<CertificateCache> entries = new ArrayList<CertificateCache>(this.intermediates.size() + 1);
+		entries.add(cache);
+		entries.addAll(this.intermediates);
+		for (CertificateCache entry: entries) {
+			put(this.bySki, ByteBuffer.wrap(entry.getSubjectKeyIdentifier()), entry);
+			put(this.bySubject, entry.getSubject(), entry);
+			put(this.bySubjectNameHash, ByteBuffer.wrap(sha1.digest(entry.getSubject().getEncoded())), entry);
+		}
+		this.siaDigests = Collections.unmodifiableMap(collectSiaDigests(entries, siaDigests));
+		try {
+			this.intermediateStore = CertStore.getInstance(KeySupportProvider.INDEXED_CERTSTORE,
+					new IndexedCertStoreParameters(this.intermediates), KeySupportProvider.getInstance());
+		} catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException e) {
+			throw new CertificateCacheException("Failed to initialize Intermediate Store", e);
+		}
+	}
+
+	/**
+	 * @return the generation number, which increases with every rebuild
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return the time this generation was created
+	 */
+	public Date getCreated() {
+		return new Date(created.getTime());
+	}
+
+	/**
+	 * @return the cache tree, rooted at the trust anchor
+	 */
+	public CertificateCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return the flattened cache, which does not include the trust anchor
+	 */
+	public Map<CertID, CertificateCache> getFlattenedCache() {
+		return fCache;
+	}
+
+	/**
+	 * @return all of the intermediate entries in the flattened cache
+	 */
+	public Collection<CertificateCache> getIntermediates() {
+		return intermediates;
+	}
+
+	/**
+	 * @param uri an SIA URI of a CA in the generation
+	 * @return the digest of the content the CA's subjects were discovered from, or null if none was recorded
+	 */
+	public String getSiaDigest(URI uri) {
+		return siaDigests.get(uri);
+	}
+
+	/**
+	 * @return the digest of the SIA content of each URI
+	 */
+	public Map<URI, String> getSiaDigests() {
+		return siaDigests;
+	}
+
+	/**
+	 * @return the trust anchor for PKIX validation
+	 */
+	public TrustAnchor getTrustAnchor() {
+		return trustAnchor;
+	}
+
+	/**
+	 * @return a CertStore holding the intermediates for PKIX validation
+	 */
+	public CertStore getIntermediateStore() {
+		return intermediateStore;
+	}
+
+	/**
+	 * Finds the cache entries (including the trust anchor) that may
+	 * have issued a certificate, using the authority key identifier of
+	 * the certificate if it has one, and the issuer DN otherwise.  The
+	 * caller is expected to verify the signature of the certificate
+	 * with each candidate.
+	 * 
+	 * @param cert
+	 * @return the candidate issuers, which may be empty
+	 */
+	public Collection<CertificateCache> getCandidateIssuers(X509Certificate cert) {
+		Set<CertificateCache> candidates = new LinkedHashSet<CertificateCache>();
+		byte[] aki = ValidationUtils.getAssertedAKI(cert);
+		if (aki != null) {
+			List<CertificateCache> bySki = this.bySki.get(ByteBuffer.wrap(aki));
+			if (bySki != null) {
+				candidates.addAll(bySki);
+			}
+		}
+		/*
+		 * Fall back to the issuer DN if there is no AKI, or if the
+		 * AKI does not match any SKI (e.g., a calculated SKI that
+		 * differs from the one the issuer asserted).
+		 */
+		if (candidates.isEmpty()) {
+			List<CertificateCache> bySubject = this.bySubject.get(cert.getIssuerX500Principal());
+			if (bySubject != null) {
+				candidates.addAll(bySubject);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @param ski
+	 * @return the cache entries with the given subject key identifier
+	 */
+	public Collection<CertificateCache> getBySubjectKeyIdentifier(byte[] ski) {
+		return get(this.bySki, ByteBuffer.wrap(ski));
+	}
+
+	/**
+	 * @param subject
+	 * @return the cache entries with the given subject DN
+	 */
+	public Collection<CertificateCache> getBySubject(X500Principal subject) {
+		return get(this.bySubject, subject);
+	}
+
+	/**
+	 * Finds the CAs that the issuerNameHash of a CertID (using SHA-1)
+	 * may refer to, such as the issuer named in an OCSP request.
+	 * 
+	 * @param issuerNameHash the SHA-1 hash of the DER encoded issuer DN
+	 * @return the cache entries whose subject DN hashes to the given value
+	 */
+	public Collection<CertificateCache> getByIssuerNameHash(byte[] issuerNameHash) {
+		return get(this.bySubjectNameHash, ByteBuffer.wrap(issuerNameHash));
+	}
+
+	private static Map<URI, String> collectSiaDigests(List<CertificateCache> entries, Map<URI, String> known) {
+		URICache uriCache = UriCacheManager.getInstance().getUriCache();
+		Map<URI, String> digests = new HashMap<URI, String>();
+		for (CertificateCache entry: entries) {
+			PkiUri[] siaUris = entry.getParsedCertificate().getHttpSiaUris();
+			if (siaUris == null) {
+				continue;
+			}
+			for (PkiUri uri: siaUris) {
+				String digest = null;
+				if (known != null && known.containsKey(uri.getUri())) {
+					digest = known.get(uri.getUri());
+				} else {
+					URICacheEntry uce = uriCache.getUriCacheEntry(uri);
+					digest = (uce == null) ? null : uce.getDigest();
+				}
+				if (digest != null) {
+					digests.put(uri.getUri(), digest);
+				}
+			}
+		}
+		return digests;
+	}
+
+	private static <K> void put(Map<K, List<CertificateCache>> index, K key, CertificateCache entry) {
+		List<CertificateCache> entries = index.get(key);
+		if (entries == null) {
+			entries = new ArrayList<CertificateCache>(1);
+			index.put(key, entries);
+		}
+		entries.add(entry);
+	}
+
+	private static <K> Collection<CertificateCache> get(Map<K, List<CertificateCache>> index, K key) {
+		List<CertificateCache> entries = index.get(key);
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(entries);
+	}
+
+	public String toString() {
+		return "[Generation: " + generation + ", Created: " + created + ", Intermediates: " + intermediates.size() + "]";
+	}
+
+}
@@ -0,0 +1,478 @@
+package org.keysupport.pki.validation.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.keysupport.httpclient.PkiUri;
+
+/**
+ * Writes the cache to local disk, and reads it back at startup, so a
+ * restart can serve from the last cache we built instead of waiting for
+ * discovery, and does not need to download every CRL again.
+ *
+ * A snapshot holds the cache tree, the digests of the SIA content it
+ * was discovered from, the CRL indexes and the URI cache metadata (including the ETag and Last-Modified validators, so the
+ * first refresh of each URI after a restart is a conditional request,
+ * and the digest of the content in the ArtifactStore).
+ *
+ * The snapshot is a versioned binary file, followed by a SHA-256 digest
+ * of its contents.  It is written to a temporary file and renamed into
+ * place, so a crash during a write leaves the previous snapshot intact.
+ * A snapshot that is truncated, fails its digest, has another version,
+ * or was built from another trust anchor is ignored.
+ *
+ * The digest only detects damage, so the snapshot is not trusted as it
+ * is read.  Every certificate must verify with the key of its parent in
+ * the tree, or the snapshot is ignored, and a CRL index is only restored
+ * if the key it was verified with belongs to a CA in the tree.
+ *
+ * The policy trees from validation are not kept, so the restored cache
+ * is revalidated in the background by the CertificateCacheManager.
+ */
+public class CacheSnapshot {
+
+	private static final Log LOG = LogFactory.getLog(CacheSnapshot.class);
+
+	/*
+	 * "KSCS"
+	 */
+	private static final int MAGIC = 0x4B534353;
+	private static final int VERSION = 5;
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/*
+	 * The default is under the home directory of the user the service
+	 * runs as, rather than the shared temporary directory, since anyone
+	 * who can write the snapshot can change what the cache holds.
+	 */
+	private static final File SNAPSHOT_DIRECTORY = new File(System.getProperty("org.keysupport.pki.validation.cache.dir",
+			new File(System.getProperty("user.home"), ".KSValidationService").getPath()));
+	private static final String SNAPSHOT_FILE = "cache.snapshot";
+
+	private CacheSnapshot() {
+		/*
+		 * Hidden Constructor.  All utility methods must be static.
+		 */
+	}
+
+	/**
+	 * @return the directory the snapshot (and other local cache files) are kept in
+	 */
+	public static File getSnapshotDirectory() {
+		return SNAPSHOT_DIRECTORY;
+	}
+
+	/**
+	 * @return the snapshot file
+	 */
+	public static File getSnapshotFile() {
+		return new File(SNAPSHOT_DIRECTORY, SNAPSHOT_FILE);
+	}
+
+	/**
+	 * Writes a snapshot of the given generation, and of the current CRL
+	 * and URI caches, replacing the previous snapshot.
+	 *
+	 * @param generation
+	 * @throws IOException
+	 */
+	public static void save(CacheGeneration generation) throws IOException {
+		if (!SNAPSHOT_DIRECTORY.isDirectory() && !SNAPSHOT_DIRECTORY.mkdirs()) {
+			throw new IOException("Unable to create snapshot directory: " + SNAPSHOT_DIRECTORY.getPath());
+		}
+		File snapshot = getSnapshotFile();
+		File temp = new File(SNAPSHOT_DIRECTORY, SNAPSHOT_FILE + ".tmp");
+		MessageDigest md = getDigest();
+		DigestOutputStream dos = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), md);
+		DataOutputStream out = new DataOutputStream(dos);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			writeCertificate(out, generation.getCache().getCertificate());
+			writeTree(out, generation.getCache());
+			writeSiaDigests(out, generation.getSiaDigests());
+			writeCRLs(out, CRLCacheManager.getInstance().getCRLCache());
+			writeURIs(out, UriCacheManager.getInstance().getUriCache());
+			out.flush();
+			dos.on(false);
+			out.write(md.digest());
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Wrote cache snapshot to " + snapshot.getPath() + " (" + snapshot.length() + " bytes)");
+	}
+
+	/**
+	 * Reads the snapshot, if there is a usable one for the trust anchor.
+	 *
+	 * The CRL and URI caches are only restored once the whole snapshot
+	 * has been read and its digest verified.  CRLs that are no longer
+	 * current are not restored, so they are fetched again.
+	 *
+	 * @param trustAnchor
+	 * @return the restored cache generation, or null if there is no usable snapshot
+	 */
+	public static CacheGeneration load(X509Certificate trustAnchor) {
+		File snapshot = getSnapshotFile();
+		if (!snapshot.isFile()) {
+			LOG.info("No cache snapshot found at " + snapshot.getPath());
+			return null;
+		}
+		LOG.info("Reading cache snapshot from " + snapshot.getPath());
+		CertificateCache cache = null;
+		Map<URI, String> siaDigests = null;
+		Map<PkiUri, CRLRevocationIndex> crls = null;
+		List<HttpURICacheEntry> uris = null;
+		DataInputStream in = null;
+		try {
+			MessageDigest md = getDigest();
+			DigestInputStream dis = new DigestInputStream(new BufferedInputStream(new FileInputStream(snapshot)), md);
+			in = new DataInputStream(dis);
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a cache snapshot");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version: " + version);
+			}
+			Date created = new Date(in.readLong());
+			CertificateFactory cf = CertificateFactory.getInstance("X509");
+			X509Certificate snapshotAnchor = readCertificate(in, cf);
+			if (!snapshotAnchor.equals(trustAnchor)) {
+				LOG.info("Cache snapshot was built from another trust anchor, ignoring it");
+				return null;
+			}
+			cache = readTree(in, cf, null);
+			siaDigests = readSiaDigests(in);
+			crls = readCRLs(in);
+			uris = readURIs(in);
+			dis.on(false);
+			byte[] expected = md.digest();
+			byte[] actual = new byte[expected.length];
+			in.readFully(actual);
+			if (!MessageDigest.isEqual(expected, actual)) {
+				throw new IOException("Snapshot digest does not match");
+			}
+			LOG.info("Read cache snapshot created " + created);
+		} catch (IOException | CertificateException | RuntimeException e) {
+			LOG.fatal("Unable to read cache snapshot, ignoring it: " + e.getMessage(), e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOG.warn("Error closing cache snapshot: " + e.getMessage());
+				}
+			}
+		}
+		CacheGeneration generation = null;
+		try {
+			generation = new CacheGeneration(cache, siaDigests);
+		} catch (CertificateCacheException e) {
+			LOG.fatal("Unable to restore cache snapshot, ignoring it: " + e.getMessage(), e);
+			return null;
+		}
+		UriCacheManager uriCm = UriCacheManager.getInstance();
+		for (HttpURICacheEntry entry: uris) {
+			uriCm.update(entry.getPkiUri(), entry);
+		}
+		CRLCacheManager crlManager = CRLCacheManager.getInstance();
+		Date now = new Date();
+		for (Map.Entry<PkiUri, CRLRevocationIndex> crl: crls.entrySet()) {
+			String uri = crl.getKey().getUri().toASCIIString();
+			if (!isSignedByCA(generation, crl.getValue())) {
+				LOG.warn("CRL from " + uri + " in snapshot is not signed by a CA in the cache, not restoring it");
+			} else if (crl.getValue().isCurrent(now)) {
+				crlManager.restoreCRL(crl.getKey(), crl.getValue());
+			} else {
+				LOG.info("CRL from " + uri + " in snapshot is not current, not restoring it");
+			}
+		}
+		LOG.info("Restored cache " + generation.toString() + " with " + crls.size() + " CRLs and " + uris.size() + " URIs from snapshot");
+		return generation;
+	}
+
+	private static void writeTree(DataOutputStream out, CertificateCache entry) throws IOException {
+		writeCertificate(out, entry.getCertificate());
+		writeBytes(out, (entry.getSubjectCertId() == null) ? null : entry.getSubjectCertId().getEncoded());
+		writeBytes(out, (entry.getIssuerCertId() == null) ? null : entry.getIssuerCertId().getEncoded());
+		ArrayList<CertificateCache> subjects = entry.getSubjects();
+		int count = (subjects == null) ? 0 : subjects.size();
+		out.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			writeTree(out, subjects.get(i));
+		}
+	}
+
+	/*
+	 * The trust anchor is compared to the one we were given, and every
+	 * other certificate must be signed by its parent.
+	 */
+	private static CertificateCache readTree(DataInputStream in, CertificateFactory cf, X509Certificate parent) throws IOException, CertificateException {
+		X509Certificate cert = readCertificate(in, cf);
+		if (parent != null && (!cert.getIssuerX500Principal().equals(parent.getSubjectX500Principal()) ||
+				!SignatureVerificationCache.getInstance().verify(cert, parent.getPublicKey()))) {
+			throw new IOException("Certificate for " + cert.getSubjectX500Principal().getName() + " in snapshot is not signed by " + parent.getSubjectX500Principal().getName());
+		}
+		CertificateCache entry = new CertificateCache(cert);
+		byte[] subjectCertId = readBytes(in);
+		if (subjectCertId != null) {
+			entry.setSubjectCertId(CertID.getInstance(subjectCertId));
+		}
+		byte[] issuerCertId = readBytes(in);
+		if (issuerCertId != null) {
+			entry.setIssuerCertId(CertID.getInstance(issuerCertId));
+		}
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			entry.addSubject(readTree(in, cf, cert));
+		}
+		return entry;
+	}
+
+	private static boolean isSignedByCA(CacheGeneration generation, CRLRevocationIndex crl) {
+		for (CertificateCache ca: generation.getBySubject(crl.getIssuer())) {
+			if (crl.isSignedBy(ca.getCertificate().getPublicKey())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void writeSiaDigests(DataOutputStream out, Map<URI, String> siaDigests) throws IOException {
+		out.writeInt(siaDigests.size());
+		for (Map.Entry<URI, String> digest: siaDigests.entrySet()) {
+			out.writeUTF(digest.getKey().toASCIIString());
+			out.writeUTF(digest.getValue());
+		}
+	}
+
+	private static Map<URI, String> readSiaDigests(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Corrupt SIA digest count in snapshot: " + count);
+		}
+		Map<URI, String> siaDigests = new LinkedHashMap<URI, String>();
+		for (int i = 0; i < count; i++) {
+			URI uri = readUri(in);
+			siaDigests.put(uri, in.readUTF());
+		}
+		return siaDigests;
+	}
+
+	private static void writeCRLs(DataOutputStream out, CRLCache crlCache) throws IOException {
+		/*
+		 * Take the entries first, since CRLs may be refreshed while we write.
+		 */
+		Map<URI, CRLRevocationIndex> crls = new LinkedHashMap<URI, CRLRevocationIndex>();
+		for (URI uri: crlCache.getURIs()) {
+			CRLRevocationIndex crl = crlCache.getUriCacheEntry(uri);
+			if (crl != null) {
+				crls.put(uri, crl);
+			}
+		}
+		URICache uriCache = UriCacheManager.getInstance().getUriCache();
+		out.writeInt(crls.size());
+		for (Map.Entry<URI, CRLRevocationIndex> crl: crls.entrySet()) {
+			/*
+			 * The URI cache has the reasons from the CDP the CRL
+			 * was fetched for.
+			 */
+			PkiUri uri = new PkiUri(crl.getKey(), PkiUri.CDP, PkiUri.NOREASON);
+			URICacheEntry entry = uriCache.getUriCacheEntry(uri);
+			if (entry != null && entry.getPkiUri() != null) {
+				uri = entry.getPkiUri();
+			}
+			out.writeUTF(crl.getKey().toASCIIString());
+			out.writeInt(uri.getReason());
+			out.writeInt(uri.getSubReason());
+			crl.getValue().writeTo(out);
+		}
+	}
+
+	private static Map<PkiUri, CRLRevocationIndex> readCRLs(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		Map<PkiUri, CRLRevocationIndex> crls = new LinkedHashMap<PkiUri, CRLRevocationIndex>();
+		for (int i = 0; i < count; i++) {
+			URI uri = readUri(in);
+			int reason = in.readInt();
+			int subReason = in.readInt();
+			crls.put(new PkiUri(uri, reason, subReason), CRLRevocationIndex.readFrom(in));
+		}
+		return crls;
+	}
+
+	private static void writeURIs(DataOutputStream out, URICache uriCache) throws IOException {
+		List<URICacheEntry> entries = new ArrayList<URICacheEntry>();
+		for (PkiUri uri: uriCache.getURIs()) {
+			URICacheEntry entry = uriCache.getUriCacheEntry(uri);
+			if (entry != null) {
+				entries.add(entry);
+			}
+		}
+		out.writeInt(entries.size());
+		for (URICacheEntry entry: entries) {
+			PkiUri uri = entry.getPkiUri();
+			out.writeUTF(uri.getUri().toASCIIString());
+			out.writeInt(uri.getReason());
+			out.writeInt(uri.getSubReason());
+			writeDate(out, entry.getLastChecked());
+			out.writeLong(entry.getLastNumBytes());
+			writeDate(out, entry.getNextUpdate());
+			out.writeLong(entry.getLastResponseTime());
+			writeString(out, entry.getProtocolVersion());
+			writeString(out, entry.getReasonPhrase());
+			out.writeInt(entry.getStatusCode());
+			writeString(out, entry.getETag());
+			writeString(out, entry.getLastModified());
+			writeString(out, entry.getDigest());
+		}
+	}
+
+	private static List<HttpURICacheEntry> readURIs(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<HttpURICacheEntry> entries = new ArrayList<HttpURICacheEntry>();
+		for (int i = 0; i < count; i++) {
+			URI uri = readUri(in);
+			int reason = in.readInt();
+			int subReason = in.readInt();
+			HttpURICacheEntry entry = new HttpURICacheEntry();
+			entry.setPkiUri(new PkiUri(uri, reason, subReason));
+			entry.setLastChecked(readDate(in));
+			entry.setLastNumBytes(in.readLong());
+			entry.setNextUpdate(readDate(in));
+			entry.setLastResponseTime(in.readLong());
+			entry.setProtocolVersion(readString(in));
+			entry.setReasonPhrase(readString(in));
+			entry.setStatusCode(in.readInt());
+			entry.setETag(readString(in));
+			entry.setLastModified(readString(in));
+			entry.setDigest(readString(in));
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	private static void writeCertificate(DataOutputStream out, X509Certificate cert) throws IOException {
+		try {
+			writeBytes(out, cert.getEncoded());
+		} catch (CertificateEncodingException e) {
+			throw new IOException("Error encoding certificate: " + e.getMessage(), e);
+		}
+	}
+
+	private static X509Certificate readCertificate(DataInputStream in, CertificateFactory cf) throws IOException, CertificateException {
+		byte[] encoded = readBytes(in);
+		if (encoded == null) {
+			throw new IOException("Missing certificate in snapshot");
+		}
+		return (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(encoded));
+	}
+
+	private static URI readUri(DataInputStream in) throws IOException {
+		try {
+			return new URI(in.readUTF());
+		} catch (URISyntaxException e) {
+			throw new IOException("Corrupt URI in snapshot: " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * A length of -1 marks a null array.
+	 */
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		/*
+		 * Read in chunks, so a corrupt length cannot make us
+		 * allocate more than the file actually holds.
+		 */
+		byte[] bytes = new byte[Math.min(length, 65536)];
+		int read = 0;
+		while (read < length) {
+			if (read == bytes.length) {
+				bytes = Arrays.copyOf(bytes, (int) Math.min(length, bytes.length * 2L));
+			}
+			int n = in.read(bytes, read, bytes.length - read);
+			if (n < 0) {
+				throw new IOException("Unexpected end of snapshot");
+			}
+			read += n;
+		}
+		return bytes;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		if (in.readBoolean()) {
+			return in.readUTF();
+		}
+		return null;
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException {
+		out.writeLong((date == null) ? -1 : date.getTime());
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException {
+		long time = in.readLong();
+		return (time < 0) ? null : new Date(time);
+	}
+
+	private static MessageDigest getDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
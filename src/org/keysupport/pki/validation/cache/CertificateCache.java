@@ -2,24 +2,28 @@ package org.keysupport.pki.validation.cache;
 
 import java.io.Serializable;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
 import java.security.cert.CRLException;
-import java.security.cert.CertificateException;
 import java.security.cert.PolicyNode;
 import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.security.auth.x500.X500Principal;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.keysupport.httpclient.PkiUri;
-import org.keysupport.pki.validation.ValidationUtils;
+import org.keysupport.pki.validation.ParsedCertificate;
 
 /*
  * This class represents our certificate cache.
@@ -48,7 +52,36 @@ public class CertificateCache implements Serializable {
 
 	private static final Log LOG = LogFactory.getLog(CertificateCache.class);
 
+	/*
+	 * The certificate is kept in the CertificateStore, and decoded
+	 * when needed.  It is only held here if the store is not available.
+	 */
 	private volatile X509Certificate caCert = null;
+	private transient volatile CertificateStore.Record storeRecord = null;
+	/*
+	 * Fields we use often enough that we keep them, rather
+	 * than decoding the certificate for them.
+	 */
+	private volatile X500Principal subject = null;
+	private volatile X500Principal issuer = null;
+	private volatile long notAfter = 0;
+	private volatile boolean selfSigned = false;
+	/*
+	 * Serial number encoding used for CRL index lookups
+	 */
+	private volatile byte[] serialNumber = null;
+	/*
+	 * The subject key identifier (asserted or calculated), and the
+	 * SHA-1 of the subjectPublicKey, used to index a generation and
+	 * to find the CA named in an OCSP CertID.
+	 */
+	private volatile byte[] subjectKeyIdentifier = null;
+	private volatile byte[] keyHash = null;
+	/*
+	 * The decoded extensions of the certificate.  Not serialized, it is
+	 * obtained again from the certificate when needed.
+	 */
+	private transient volatile ParsedCertificate parsed = null;
 	private volatile ArrayList<CertificateCache> issuedByThisCa = null;
 	private volatile CertID subjectCertId = null;
 	private volatile CertID issuerCertId = null;
@@ -56,7 +89,6 @@ public class CertificateCache implements Serializable {
 	private volatile PkiUri[] ocspUri = null;
 	private volatile boolean hasHttpCDP = false;
 	private volatile PkiUri[] httpCDPUri = null;
-	private volatile ConcurrentHashMap<CertID, CertificateCache> fCache = null;
 	/*
 	 * Working to store policy OIDs in the cache.
 	 * 
@@ -67,18 +99,30 @@ public class CertificateCache implements Serializable {
 	private volatile Set<ASN1ObjectIdentifier> validPolicies = null;
 	private volatile PolicyNode policyTree = null;
 	
-	@SuppressWarnings("unused")
 	private CertificateCache() {
 		//Hiding the default constructor
 	}
 	
 	public CertificateCache(X509Certificate caCert) {
 		LOG.debug("Creating cache entry for: " + caCert.getSubjectX500Principal().getName());
-		this.caCert = caCert;
+		CertificateStore.Record record = CertificateStore.getInstance().put(caCert);
+		if (record == null) {
+			this.caCert = caCert;
+		} else {
+			this.storeRecord = record;
+		}
+		this.subject = caCert.getSubjectX500Principal();
+		this.issuer = caCert.getIssuerX500Principal();
+		this.notAfter = caCert.getNotAfter().getTime();
+		this.selfSigned = (this.subject.equals(this.issuer) && SignatureVerificationCache.getInstance().verify(caCert, caCert.getPublicKey()));
+		this.serialNumber = caCert.getSerialNumber().toByteArray();
 		this.issuedByThisCa = new ArrayList<CertificateCache>();
-		this.ocspUri = ValidationUtils.getOcspUris(this.caCert);
+		this.parsed = ParsedCertificate.parse(caCert);
+		this.subjectKeyIdentifier = this.parsed.getSubjectKeyIdentifier();
+		this.keyHash = computeKeyHash(caCert);
+		this.ocspUri = this.parsed.getOcspUris();
 		this.hasIdOcsp = (this.ocspUri != null && this.ocspUri.length >= 1);
-		this.httpCDPUri = ValidationUtils.getHttpCdpUris(this.caCert);
+		this.httpCDPUri = this.parsed.getHttpCdpUris();
 		this.hasHttpCDP = (this.httpCDPUri != null && this.httpCDPUri.length >= 1);
 		/*
 		 * For now, we are not supporting LDAP URI for revocation checking,
@@ -92,45 +136,28 @@ public class CertificateCache implements Serializable {
 	}
 
 	public boolean isSignedBy(X509Certificate caCert) {
-		try {
-			this.caCert.verify(caCert.getPublicKey());
-		} catch (InvalidKeyException | CertificateException
-				| NoSuchAlgorithmException | NoSuchProviderException
-				| SignatureException e) {
-			return false;
-		}
-		return true;
+		return SignatureVerificationCache.getInstance().verify(this.getCertificate(), caCert.getPublicKey());
 	}
 
 	public boolean isSignerOf(X509Certificate caCert) {
-		try {
-			caCert.verify(this.caCert.getPublicKey());
-		} catch (InvalidKeyException | CertificateException
-				| NoSuchAlgorithmException | NoSuchProviderException
-				| SignatureException e) {
-			return false;
-		}
-		return true;
+		return SignatureVerificationCache.getInstance().verify(caCert, this.getCertificate().getPublicKey());
 	}
 
 	public boolean isSelfSigned() {
-		try {
-			this.caCert.verify(this.caCert.getPublicKey());
-		} catch (InvalidKeyException | CertificateException
-				| NoSuchAlgorithmException | NoSuchProviderException
-				| SignatureException e) {
-			return false;
-		}
-		return true;
+		return this.selfSigned;
 	}
 
 	public boolean isRevoked(X509CRL crl) {
-		return crl.isRevoked(this.caCert);
+		return crl.isRevoked(this.getCertificate());
+	}
+
+	public boolean isRevoked(CRLRevocationIndex crl) {
+		return crl.isRevoked(this.serialNumber);
 	}
 
 	public boolean isSignerOf(X509CRL crl) {
 		try {
-			crl.verify(caCert.getPublicKey());
+			crl.verify(this.getCertificate().getPublicKey());
 		} catch (InvalidKeyException | CRLException | NoSuchAlgorithmException
 				| NoSuchProviderException | SignatureException e) {
 			return false;
@@ -138,14 +165,105 @@ public class CertificateCache implements Serializable {
 		return true;
 	}
 
+	/*
+	 * The record of the certificate in the CertificateStore, or null
+	 * if it is kept here.
+	 */
+	CertificateStore.Record getStoreRecord() {
+		return this.storeRecord;
+	}
+
+	/*
+	 * Called by the CertificateStore when it moves the certificate
+	 * to a compacted file.
+	 */
+	void setStoreRecord(CertificateStore.Record storeRecord) {
+		this.storeRecord = storeRecord;
+	}
+
 	/**
-	 * Returns the certificate held in this object.
+	 * Returns the certificate held in this object, decoding it from
+	 * the CertificateStore if it is not already decoded.
 	 * @return
 	 */
 	public X509Certificate getCertificate() {
-		return this.caCert;
+		X509Certificate cert = this.caCert;
+		if (cert != null) {
+			return cert;
+		}
+		return CertificateStore.getInstance().getCertificate(this.storeRecord);
+	}
+
+	/**
+	 * @return the subject of the certificate held in this object
+	 */
+	public X500Principal getSubject() {
+		return this.subject;
+	}
+
+	/**
+	 * @return the issuer of the certificate held in this object
+	 */
+	public X500Principal getIssuer() {
+		return this.issuer;
+	}
+
+	/**
+	 * @return the notAfter of the certificate held in this object
+	 */
+	public Date getNotAfter() {
+		return new Date(this.notAfter);
 	}
 	
+	/**
+	 * @return the subject key identifier of the certificate held in this object, calculated if it does not assert one
+	 */
+	public byte[] getSubjectKeyIdentifier() {
+		byte[] ski = this.subjectKeyIdentifier;
+		if (ski == null) {
+			ski = this.getParsedCertificate().getSubjectKeyIdentifier();
+			this.subjectKeyIdentifier = ski;
+		}
+		return ski;
+	}
+
+	/**
+	 * The issuerKeyHash of an OCSP CertID for certificates issued by
+	 * this CA, which is the SHA-1 of the subjectPublicKey BIT STRING
+	 * alone, not of the SubjectPublicKeyInfo.
+	 * 
+	 * @return the SHA-1 hash of the public key of the certificate held in this object
+	 */
+	public byte[] getKeyHash() {
+		byte[] hash = this.keyHash;
+		if (hash == null) {
+			hash = computeKeyHash(this.getCertificate());
+			this.keyHash = hash;
+		}
+		return hash;
+	}
+
+	private static byte[] computeKeyHash(X509Certificate cert) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(
+					SubjectPublicKeyInfo.getInstance(cert.getPublicKey().getEncoded()).getPublicKeyData().getBytes());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	/**
+	 * @return the decoded extensions of the certificate held in this object
+	 */
+	public ParsedCertificate getParsedCertificate() {
+		ParsedCertificate parsed = this.parsed;
+		if (parsed == null) {
+			parsed = ParsedCertificate.parse(this.getCertificate());
+			this.parsed = parsed;
+		}
+		return parsed;
+	}
+
 	/**
 	 * Get the CertID for the CA that signed the CA represented
 	 * in this certificate cache entry.
@@ -192,7 +310,7 @@ public class CertificateCache implements Serializable {
 	 * @param subject
 	 */
 	public void addSubject(CertificateCache subject) {
-		LOG.debug("Adding subject: " + subject.getCertificate().getSubjectX500Principal().getName() + " to this cache entry: " + this.caCert.getSubjectX500Principal().getName());
+		LOG.debug("Adding subject: " + subject.getCertificate().getSubjectX500Principal().getName() + " to this cache entry: " + this.subject.getName());
 		this.issuedByThisCa.add(subject);
 	}
 
@@ -211,6 +329,39 @@ public class CertificateCache implements Serializable {
 		this.issuedByThisCa = issuedByThisCa;
 	}
 
+	/**
+	 * Copies this entry with a different list of subjects, for changing
+	 * a cache tree that is already published.  Everything else about
+	 * the entry is shared with this one, and the certificate is not
+	 * decoded again.
+	 * 
+	 * @param issuedByThisCa the subjects of the copy
+	 * @return the copy
+	 */
+	public CertificateCache withSubjects(ArrayList<CertificateCache> issuedByThisCa) {
+		CertificateCache copy = new CertificateCache();
+		copy.caCert = this.caCert;
+		copy.storeRecord = this.storeRecord;
+		copy.subject = this.subject;
+		copy.issuer = this.issuer;
+		copy.notAfter = this.notAfter;
+		copy.selfSigned = this.selfSigned;
+		copy.serialNumber = this.serialNumber;
+		copy.subjectKeyIdentifier = this.subjectKeyIdentifier;
+		copy.keyHash = this.keyHash;
+		copy.parsed = this.parsed;
+		copy.issuedByThisCa = issuedByThisCa;
+		copy.subjectCertId = this.subjectCertId;
+		copy.issuerCertId = this.issuerCertId;
+		copy.hasIdOcsp = this.hasIdOcsp;
+		copy.ocspUri = this.ocspUri;
+		copy.hasHttpCDP = this.hasHttpCDP;
+		copy.httpCDPUri = this.httpCDPUri;
+		copy.validPolicies = this.validPolicies;
+		copy.policyTree = this.policyTree;
+		return copy;
+	}
+
 	/**
 	 * @return the hasIdOcsp
 	 */
@@ -245,16 +396,17 @@ public class CertificateCache implements Serializable {
 	 * @return A String representation of this object.
 	 */
 	public String toString() {
+		X509Certificate caCert = this.getCertificate();
 		StringBuffer sb = new StringBuffer();
 		sb.append("[\n");
-		sb.append("  Version: V" + this.caCert.getVersion() + "\n");
-		sb.append("  Subject: " + this.caCert.getSubjectX500Principal().toString() + "\n");
-		sb.append("  Signature Algorithm: " + this.caCert.getSigAlgName() + ", OID = " + this.caCert.getSigAlgOID() + "\n");
-		sb.append("  Key:  " + this.caCert.getPublicKey().toString() + "\n");
-		sb.append("  Validity: [From: " + this.caCert.getNotBefore().toString() + ",\n");
-		sb.append("               To: " + this.caCert.getNotAfter().toString() + "]\n");
-		sb.append("  Issuer: " + this.caCert.getIssuerX500Principal().toString() + "\n");
-		sb.append("  SerialNumber: " + this.caCert.getSerialNumber().toString() + ", HEX=" + DataUtil.byteArrayToString(this.caCert.getSerialNumber().toByteArray()) + "\n");
+		sb.append("  Version: V" + caCert.getVersion() + "\n");
+		sb.append("  Subject: " + caCert.getSubjectX500Principal().toString() + "\n");
+		sb.append("  Signature Algorithm: " + caCert.getSigAlgName() + ", OID = " + caCert.getSigAlgOID() + "\n");
+		sb.append("  Key:  " + caCert.getPublicKey().toString() + "\n");
+		sb.append("  Validity: [From: " + caCert.getNotBefore().toString() + ",\n");
+		sb.append("               To: " + caCert.getNotAfter().toString() + "]\n");
+		sb.append("  Issuer: " + caCert.getIssuerX500Principal().toString() + "\n");
+		sb.append("  SerialNumber: " + caCert.getSerialNumber().toString() + ", HEX=" + DataUtil.byteArrayToString(caCert.getSerialNumber().toByteArray()) + "\n");
 		if (this.hasIdOcsp) {
 			for (PkiUri uri: this.ocspUri) {
 				sb.append("  HTTP: " + uri + "\n");
@@ -323,17 +475,24 @@ public class CertificateCache implements Serializable {
 	 * @param cache
 	 * @return HashMap of with CertID as the key, and CertificateCache
 	 */
-	protected synchronized ConcurrentHashMap<CertID, CertificateCache> getFlattentedCache() {
-		this.fCache = new ConcurrentHashMap<CertID, CertificateCache>();
+	protected ConcurrentHashMap<CertID, CertificateCache> getFlattentedCache() {
+		ConcurrentHashMap<CertID, CertificateCache> fCache = new ConcurrentHashMap<CertID, CertificateCache>();
+		this.flattenInto(fCache);
+		return fCache;
+	}
+
+	/*
+	 * Builds the flattened cache without modifying any cache entry,
+	 * so entries that are already published may be flattened again
+	 * at any time.
+	 */
+	private void flattenInto(ConcurrentHashMap<CertID, CertificateCache> fCache) {
 		/*
 		 * Get the CA in the CertificateCache, unless it is the
 		 * Trust Anchor.
 		 */
 		if (!this.isSelfSigned()) {
-			CertificateCache entryNoSub = this;
-			if (entryNoSub != null) {
-				this.fCache.put(this.getSubjectCertId(), entryNoSub);
-			}
+			fCache.put(this.getSubjectCertId(), this);
 		}
 		/*
 		 * Now that we placed this CertificateCache entry
@@ -342,10 +501,8 @@ public class CertificateCache implements Serializable {
 		 */
 		ArrayList<CertificateCache> subjects = this.getSubjects();
 		for (CertificateCache entry: subjects) {
-			ConcurrentHashMap<CertID, CertificateCache> subEntries = entry.getFlattentedCache();
-			this.fCache.putAll(subEntries);
+			entry.flattenInto(fCache);
 		}
-		return this.fCache;
 	}
 
 }
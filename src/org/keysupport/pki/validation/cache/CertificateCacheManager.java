@@ -1,22 +1,36 @@
 package org.keysupport.pki.validation.cache;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.security.Security;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.BasicFuture;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.bouncycastle.asn1.ocsp.CertID;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.keysupport.httpclient.ArtifactStore;
+import org.keysupport.httpclient.FetchScheduler;
+import org.keysupport.pki.ocsp.OCSPResponder;
+import org.keysupport.pki.ocsp.OCSPResponderTrustCache;
+import org.keysupport.pki.validation.IncrementalDiscovery;
+import org.keysupport.pki.validation.IssuedToThisCADiscovery;
 import org.keysupport.pki.validation.PKIXValidatorException;
 import org.keysupport.pki.validation.ValidationException;
 import org.keysupport.pki.validation.ValidationUtils;
@@ -24,13 +38,29 @@ import org.keysupport.pki.validation.ValidationUtils;
 public class CertificateCacheManager {
 
 	private volatile static CertificateCacheManager instance = null;
-	private volatile CertificateCache cache = null;
-	private volatile ConcurrentHashMap<CertID, CertificateCache> fCache = null;
+	/*
+	 * The current cache generation.  Readers take this reference once
+	 * and work from that snapshot, without locking.  Rebuilds are
+	 * serialized on the manager, and publish a new generation.
+	 */
+	private volatile CacheGeneration generation = null;
+	private ScheduledExecutorService refresher = null;
+	private final List<PendingGraft> pendingGrafts = new ArrayList<PendingGraft>();
 	private static final Log LOG = LogFactory.getLog(CertificateCacheManager.class);
 
 	/*
 	 * TODO: Move the following to properties
 	 */
+	/*
+	 * How often each CA's SIA is checked for changes.  URIs whose
+	 * server asked for a longer max-age are not fetched until then.
+	 */
+	private static final long REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(15);
+	/*
+	 * How long a path found by issuedToThisCA discovery waits for other
+	 * paths, so a burst of new CAs is published in one generation.
+	 */
+	private static final long GRAFT_DELAY = TimeUnit.SECONDS.toMillis(2);
 	private static String COMMON_SHA2_PEM = "-----BEGIN CERTIFICATE-----\n"
 			+ "MIIEYDCCA0igAwIBAgICATAwDQYJKoZIhvcNAQELBQAwWTELMAkGA1UEBhMCVVMx\n"
 			+ "GDAWBgNVBAoTD1UuUy4gR292ZXJubWVudDENMAsGA1UECxMERlBLSTEhMB8GA1UE\n"
@@ -59,12 +89,18 @@ public class CertificateCacheManager {
 			+ "-----END CERTIFICATE-----";
 	
 
-	public static synchronized CertificateCacheManager getInstance() {
-		if (instance == null) {
-			instance = new CertificateCacheManager(null);
+	public static CertificateCacheManager getInstance() {
+		CertificateCacheManager result = instance;
+		if (result == null) {
+			synchronized (CertificateCacheManager.class) {
+				result = instance;
+				if (result == null) {
+					result = new CertificateCacheManager(null);
+					instance = result;
+				}
+			}
 		}
-		instance.flattenCache();
-		return instance;
+		return result;
 	}
 
 	private CertificateCacheManager(X509Certificate trustAnchor) {
@@ -82,47 +118,95 @@ public class CertificateCacheManager {
 			CertificateFactory cf = CertificateFactory.getInstance("X509");
 			ByteArrayInputStream bais = new ByteArrayInputStream(COMMON_SHA2_PEM.getBytes());
 			trustAnchor = (X509Certificate) cf.generateCertificate(bais);
-			this.cache = new CertificateCache(trustAnchor);
+			/*
+			 * If we have a snapshot of the cache from our last run,
+			 * serve from it right away, and revalidate it in the
+			 * background.  Otherwise, build the cache now.
+			 */
+			CacheGeneration restored = CacheSnapshot.load(trustAnchor);
+			if (restored != null) {
+				this.generation = restored;
+				LOG.info("Published cache " + restored.toString() + " from snapshot");
+				final X509Certificate anchor = trustAnchor;
+				Thread revalidate = new Thread(new Runnable() {
+					public void run() {
+						rebuild(anchor);
+					}
+				}, "cache-revalidate");
+				revalidate.setDaemon(true);
+				revalidate.start();
+			} else {
+				this.rebuild(trustAnchor);
+			}
+		} catch(CertificateException e) {
+			LOG.fatal("Problem with Trust Anchor.", e);
+		}
+		this.scheduleRefresh();
+	}
+
+	/**
+	 * Builds a new cache generation from the trust anchor, and publishes
+	 * it once it is complete.  Readers continue to use the previous
+	 * generation until then.
+	 * 
+	 * @param trustAnchor
+	 */
+	public synchronized void rebuild(X509Certificate trustAnchor) {
+		try {
+			CertificateCache cache = new CertificateCache(trustAnchor);
 			/*
 			 * Since this is our Trust Anchor, we are going to set the
 			 * issuer CertID to match the subject
 			 */
-			this.cache.setSubjectCertId(ValidationUtils.getCertIdentifier(this.cache.getCertificate(), this.cache.getCertificate()).toASN1Object());
+			cache.setSubjectCertId(ValidationUtils.getCertIdentifier(cache.getCertificate(), cache.getCertificate()).toASN1Object());
 			
-			this.cache.setIssuerCertId(this.cache.getSubjectCertId());
+			cache.setIssuerCertId(cache.getSubjectCertId());
 			/*
 			 * Now that we are just creating the cache, lets perform
 			 * issuedByThisCA discovery to find all of our possible subjects
 			 * and then add them to the cache.  Recursively perform this
 			 * discovery until there are no more to be discovered.
 			 */
-			this.issuedByThisCaDiscovery();
+			cache = this.issuedByThisCaDiscovery(cache);
 			/*
-			 * Flatten the cache. NOTE: Any updates to the Cache
-			 * SHALL require the flattend cache representation
-			 * to be updated.
+			 * Flatten the cache into a working generation. NOTE: Any
+			 * updates to the Cache SHALL produce a new generation, so
+			 * the flattend cache representation is always current.
 			 */
-			this.flattenCache();
+			CacheGeneration discovered = new CacheGeneration(cache);
 			/*
 			 * Now, discover and download all of the CRLs for the
 			 * certificates in our cache.
 			 */
-			this.getCRLs();
+			ValidationUtils.getCRLs(discovered.getCache(), discovered.getFlattenedCache());
 			/*
 			 * Start path building with each of the certificates
 			 * and use the CRLs in the path.  We will cache all
 			 * of the valid policies from each CA and rely on them
 			 * for cached validation.
 			 * 
+			 * The discovered generation is used for the validation,
+			 * since it is not published yet.
+			 * 
 			 * TODO: PKIXValidation for every cert in the cache!
 			 */
-			this.validateCache();
-			this.flattenCache();
+			CacheGeneration validated = new CacheGeneration(ValidationUtils.getValidatedCache(discovered));
+			/*
+			 * If discovery came back empty (e.g., the SIA could not
+			 * be fetched) keep the cache we are serving from, rather
+			 * than replacing it with just the trust anchor.
+			 */
+			CacheGeneration current = this.generation;
+			if (current != null && validated.getIntermediates().isEmpty() && !current.getIntermediates().isEmpty()) {
+				LOG.fatal("Rebuild found no intermediates, keeping cache " + current.toString());
+				return;
+			}
+			this.publish(validated);
 			/*
-			 * Then perform reverse discovery all the way back to the Trust
-			 * Anchor from each of the leaves.
+			 * Reverse (issuedToThisCA) discovery is performed on demand,
+			 * for each certificate whose issuer was not reached from the
+			 * Trust Anchor.  See IssuedToThisCADiscovery.
 			 */
-			//TODO: Reverse Discovery
 			/*
 			 * For any new certificates, this will look familiar...
 			 * 
@@ -145,79 +229,246 @@ public class CertificateCacheManager {
 			 * 
 			 * THEN, we can provide a response back to the client.
 			 */
-		} catch(CertificateException e) {
-			LOG.fatal("Problem with Trust Anchor.", e);
 		} catch (ValidationException e) {
 			LOG.fatal("Problem with Trust Anchor.", e);
+		} catch (CertificateCacheException e) {
+			LOG.fatal("Error building cache.", e);
 		} catch (PKIXValidatorException e) {
 			LOG.fatal("Error validating cache.", e);
 		}
 	}
 	
-	public synchronized void issuedByThisCaDiscovery() {
-		LOG.info("Performing issuedByThisCA Discovery");
-		/*
-		 * TODO: Add: cache.reset();
-		 */
-		this.cache = ValidationUtils.issuedByThisCADiscovery(this.cache, null);
+	/**
+	 * Refreshes the current cache generation from the SIA of each CA,
+	 * fetching only the SIA URIs whose nextUpdate has passed.  Only the
+	 * subtrees below CAs whose SIA changed are discovered and validated
+	 * again; the rest of the generation is shared with the new one.
+	 */
+	public synchronized void refresh() {
+		CacheGeneration current = this.generation;
+		if (current == null) {
+			return;
+		}
+		try {
+			CacheGeneration refreshed = IncrementalDiscovery.refresh(current);
+			if (refreshed == null) {
+				LOG.info("No SIA changes for cache " + current.toString());
+				return;
+			}
+			this.publish(refreshed);
+		} catch (CertificateCacheException e) {
+			LOG.fatal("Error refreshing cache.", e);
+		} catch (PKIXValidatorException e) {
+			LOG.fatal("Error validating cache.", e);
+		}
 	}
-	
-	public synchronized CertificateCache getCache() {
-		return this.cache;
+
+	/**
+	 * Queues a path of CAs found through issuedToThisCA (AIA) discovery
+	 * to be added to the current cache generation.  The paths queued
+	 * within GRAFT_DELAY of each other are grafted together on the
+	 * refresh thread, and published in a single generation.
+	 * 
+	 * @param path the CAs, starting with the one issued by a CA in the cache
+	 * @return a future for the published generation, which is null if the path could not be added
+	 */
+	public Future<CacheGeneration> addIssuedToThisCaPath(List<X509Certificate> path) {
+		BasicFuture<CacheGeneration> result = new BasicFuture<CacheGeneration>(null);
+		boolean first = false;
+		synchronized (this.pendingGrafts) {
+			first = this.pendingGrafts.isEmpty();
+			this.pendingGrafts.add(new PendingGraft(path, result));
+		}
+		if (first) {
+			this.refresher.schedule(new Runnable() {
+				public void run() {
+					graftPending();
+				}
+			}, GRAFT_DELAY, TimeUnit.MILLISECONDS);
+		}
+		return result;
+	}
+
+	/*
+	 * Grafts every queued path onto the current generation, and
+	 * publishes the result once.
+	 */
+	private synchronized void graftPending() {
+		List<PendingGraft> batch = null;
+		synchronized (this.pendingGrafts) {
+			batch = new ArrayList<PendingGraft>(this.pendingGrafts);
+			this.pendingGrafts.clear();
+		}
+		CacheGeneration current = this.generation;
+		CacheGeneration working = current;
+		List<PendingGraft> added = new ArrayList<PendingGraft>(batch.size());
+		try {
+			for (PendingGraft graft: batch) {
+				if (working == null) {
+					break;
+				}
+				try {
+					CertificateCache grafted = IssuedToThisCADiscovery.graft(working, graft.path);
+					if (grafted == null) {
+						continue;
+					}
+					if (grafted != working.getCache()) {
+						working = new CacheGeneration(grafted, current.getSiaDigests());
+					}
+					added.add(graft);
+				} catch (CertificateCacheException e) {
+					LOG.fatal("Error adding issuedToThisCA path.", e);
+				} catch (PKIXValidatorException e) {
+					LOG.fatal("Error validating issuedToThisCA path.", e);
+				}
+			}
+			if (working != current) {
+				LOG.info("Grafted " + added.size() + " of " + batch.size() + " issuedToThisCA paths");
+				this.publish(working);
+			}
+			for (PendingGraft graft: added) {
+				graft.result.completed(working);
+			}
+		} finally {
+			/*
+			 * The paths that could not be added, if any.
+			 */
+			for (PendingGraft graft: batch) {
+				graft.result.completed(null);
+			}
+		}
 	}
 
-	private synchronized void flattenCache() {
-		this.fCache = null;
-		this.fCache = this.cache.getFlattentedCache();
+	/*
+	 * Swaps in a new generation, then saves it, and drops the
+	 * artifacts that are no longer referred to.
+	 */
+	private void publish(CacheGeneration validated) {
+		this.generation = validated;
+		LOG.info("Published cache " + validated.toString());
+		LOG.info(SignatureVerificationCache.getInstance().toString());
+		LOG.info(CertificateStore.getInstance().toString());
+		CertificateStore.getInstance().retain(validated);
+		LOG.info(FetchScheduler.getInstance().toString());
+		LOG.info(IssuedToThisCADiscovery.getInstance().toString());
+		try {
+			CacheSnapshot.save(validated);
+		} catch (IOException e) {
+			LOG.warn("Unable to write cache snapshot: " + e.getMessage(), e);
+		}
+		ArtifactStore.getInstance().prune();
+		LOG.info(ArtifactStore.getInstance().toString());
+		LOG.info(OCSPResponder.getInstance().toString());
+		LOG.info(OCSPResponderTrustCache.getInstance().toString());
+		OCSPResponder.getInstance().preProduce(validated);
 	}
 
+	/*
+	 * Runs refresh() periodically, once the first generation is
+	 * published.
+	 */
+	private void scheduleRefresh() {
+		this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cache-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				} catch (RuntimeException e) {
+					/*
+					 * An exception would cancel the schedule.
+					 */
+					LOG.fatal("Error refreshing cache.", e);
+				}
+			}
+		}, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
 
-	private synchronized void validateCache() throws PKIXValidatorException {
-		CertificateCache oldCache = this.cache;
-		this.cache = null;
-		this.cache = ValidationUtils.getValidatedCache(oldCache);
+	private CertificateCache issuedByThisCaDiscovery(CertificateCache cache) {
+		LOG.info("Performing issuedByThisCA Discovery");
+		return ValidationUtils.issuedByThisCADiscovery(cache, null);
 	}
 
-	public synchronized void putfCacheEntry(CertificateCache ce) {
-		this.fCache.put(ce.getSubjectCertId(), ce);
+	/**
+	 * @return the current cache generation
+	 */
+	public CacheGeneration getGeneration() {
+		return this.generation;
 	}
 	
-	public synchronized Collection<CertificateCache> getAllIntermediateEntries() {
-		this.flattenCache();
-		return this.fCache.values();
+	/**
+	 * @return the cache tree, or null if the first generation is not built yet
+	 */
+	public CertificateCache getCache() {
+		CacheGeneration gen = this.generation;
+		return (gen == null) ? null : gen.getCache();
 	}
 
-	public synchronized CertificateCache getSigner(CertID subject) throws CertificateCacheException {
-		if (subject.equals(this.cache.getSubjectCertId())) {
+	/**
+	 * @return the intermediates, which are empty until the first generation is built
+	 */
+	public Collection<CertificateCache> getAllIntermediateEntries() {
+		CacheGeneration gen = this.generation;
+		if (gen == null) {
+			return Collections.emptyList();
+		}
+		return gen.getIntermediates();
+	}
+
+	public CertificateCache getSigner(CertID subject) throws CertificateCacheException {
+		return getSigner(getPublishedGeneration(), subject);
+	}
+
+	private CacheGeneration getPublishedGeneration() throws CertificateCacheException {
+		CacheGeneration gen = this.generation;
+		if (gen == null) {
+			throw new CertificateCacheException("Cache Not Ready");
+		}
+		return gen;
+	}
+
+	private CertificateCache getSigner(CacheGeneration gen, CertID subject) throws CertificateCacheException {
+		if (subject.equals(gen.getCache().getSubjectCertId())) {
 			//Clone the Trust Anchor Entry
 			//CertificateCache clone = new CertificateCache(this.cache.getCertificate());
 			//clone.setIssuerCertId(cache.getIssuerCertId());
 			//clone.setSubjectCertId(cache.getSubjectCertId());
 			//return clone;
 			return null;
-		} else 
-		if (this.fCache.containsKey(subject)) {
-			return this.fCache.get(subject);
+		}
+		CertificateCache signer = gen.getFlattenedCache().get(subject);
+		if (signer != null) {
+			return signer;
 		} else {
 			throw new CertificateCacheException("Cache Entry Not Found");
 		}
 	}
 	
-	public synchronized Iterator<CertificateCache> getSignerPath(CertID subject) throws CertificateCacheException {
+	public Iterator<CertificateCache> getSignerPath(CertID subject) throws CertificateCacheException {
+		/*
+		 * Walk a single generation, so the path is consistent
+		 * even if a rebuild is published while we walk it.
+		 */
+		CacheGeneration gen = getPublishedGeneration();
 		ArrayList<CertificateCache> path = new ArrayList<CertificateCache>();
-		if (subject.equals(this.cache.getSubjectCertId())) {
+		if (subject.equals(gen.getCache().getSubjectCertId())) {
 			return null;
 		}
 		/*
 		 * Get the subject
 		 */
-		CertificateCache currentCc = getSigner(subject);
+		CertificateCache currentCc = getSigner(gen, subject);
 		path.add(currentCc);
 		/*
 		 * Get all intermediates to the trust anchor
 		 */
-		while (currentCc != null && !currentCc.getCertificate().equals(this.cache.getCertificate())) {
-			currentCc = getSigner(currentCc.getIssuerCertId());
+		while (currentCc != null && !currentCc.getCertificate().equals(gen.getCache().getCertificate())) {
+			currentCc = getSigner(gen, currentCc.getIssuerCertId());
 			if (currentCc != null) {
 				path.add(currentCc);
 			}
@@ -225,13 +476,22 @@ public class CertificateCacheManager {
 		return path.iterator();
 	}
 	
-	public synchronized Iterator<CertificateCache> getFlattenedCache() {
-		return fCache.values().iterator();
+	public Iterator<CertificateCache> getFlattenedCache() {
+		return getAllIntermediateEntries().iterator();
 	}
-	
-	private synchronized void getCRLs() {
-		ValidationUtils.getCRLs(this.fCache);
+
+	/**
+	 * A path waiting to be grafted, and the future of its caller.
+	 */
+	private static class PendingGraft {
+
+		private final List<X509Certificate> path;
+		private final BasicFuture<CacheGeneration> result;
+
+		private PendingGraft(List<X509Certificate> path, BasicFuture<CacheGeneration> result) {
+			this.path = path;
+			this.result = result;
+		}
 	}
-	
-	
+
 }
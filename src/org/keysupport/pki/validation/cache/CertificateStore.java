@@ -0,0 +1,670 @@
+package org.keysupport.pki.validation.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An append-only file of DER encoded certificates, mapped into memory,
+ * so the certificate cache does not need to keep every certificate
+ * decoded on the heap.
+ *
+ * Certificates are written once, and identified by a Record, which is
+ * the mapped file and the offset of the certificate in it.  A
+ * certificate is decoded from the mapped file when it is asked for,
+ * and an LRU, sized from the last published generation, keeps the
+ * most recently used certificates decoded.  The same certificate is
+ * only stored once in a file.
+ *
+ * The file is a header followed by records of a 4 byte length and the
+ * DER encoding.  A length of zero marks the end of the records, since
+ * the file is extended ahead of the records in chunks.  The file is
+ * kept across restarts, and the index of the records is rebuilt from
+ * it when it is opened.
+ *
+ * When a generation is published, and most of the file is no longer
+ * used by it, the records it uses are copied to a new file, which
+ * replaces the old one, and its cache entries are pointed at the new
+ * records.  Records are never moved within a file, and a replaced
+ * file stays mapped for as long as an entry (of an older generation,
+ * or of a build in progress) still refers to it, so a reader always
+ * finds its certificate where its Record says.  The offsets used by
+ * each published generation are also written to a list of live
+ * records, so that a file left behind by an earlier run is compacted
+ * when the store is opened at the next start.
+ *
+ * If the file cannot be opened (or is in use by another instance), a
+ * temporary file is used instead.  If that fails too, the store is not
+ * available, and cache entries keep their certificates on the heap.
+ */
+public class CertificateStore {
+
+	private static CertificateStore instance = null;
+	private static final Log LOG = LogFactory.getLog(CertificateStore.class);
+
+	/*
+	 * "KSCD"
+	 */
+	private static final int MAGIC = 0x4B534344;
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 8;
+	private static final String STORE_FILE = "certificates.store";
+	private static final String LIVE_FILE = "certificates.live";
+
+	private static final int INITIAL_SIZE = 1024 * 1024;
+	/*
+	 * The least number of certificates kept decoded.  Once a
+	 * generation is published, room is made for all of its
+	 * certificates, so path building over the whole cache
+	 * does not evict what it is about to use again.
+	 */
+	private static final int DECODED_CACHE_SIZE = 256;
+	/*
+	 * Compact when the live records are less than this fraction of
+	 * the records in the file.
+	 */
+	private static final double COMPACT_THRESHOLD = 0.5;
+
+	private RandomAccessFile file = null;
+	private FileChannel channel = null;
+	private File path = null;
+	private volatile Segment segment = null;
+	private int end = HEADER_LENGTH;
+	private int count = 0;
+	private Map<ByteBuffer, Record> byDigest = new HashMap<ByteBuffer, Record>();
+	private final Map<Record, X509Certificate> decoded;
+	private volatile int decodedCapacity = DECODED_CACHE_SIZE;
+	private long hits = 0;
+	private long misses = 0;
+	private long compactions = 0;
+
+	public static synchronized CertificateStore getInstance() {
+		if (instance == null) {
+			instance = new CertificateStore();
+		}
+		return instance;
+	}
+
+	@SuppressWarnings("serial")
+	private CertificateStore() {
+		LOG.info("Initializing Certificate Store");
+		this.decoded = new LinkedHashMap<Record, X509Certificate>(DECODED_CACHE_SIZE, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Record, X509Certificate> eldest) {
+				return size() > decodedCapacity;
+			}
+		};
+		File directory = CacheSnapshot.getSnapshotDirectory();
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create directory: " + directory.getPath());
+			}
+			File store = new File(directory, STORE_FILE);
+			compact(store, new File(directory, LIVE_FILE));
+			if (!open(store)) {
+				LOG.warn("Certificate store is in use by another instance, using a temporary store");
+				File temp = File.createTempFile("certificates", ".store", directory);
+				temp.deleteOnExit();
+				open(temp);
+			}
+		} catch (IOException e) {
+			LOG.fatal("Unable to open certificate store, certificates will be kept on the heap: " + e.getMessage(), e);
+			close();
+		}
+	}
+
+	/*
+	 * Opens and maps the file, and indexes the records already in it.
+	 * Returns false if the file is locked by another instance.
+	 */
+	private boolean open(File path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		FileChannel channel = file.getChannel();
+		FileLock lock = channel.tryLock();
+		if (lock == null) {
+			file.close();
+			return false;
+		}
+		this.file = file;
+		this.channel = channel;
+		this.path = path;
+		long length = channel.size();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Certificate store is too large: " + length);
+		}
+		Segment segment = new Segment(channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(length, INITIAL_SIZE)));
+		this.segment = segment;
+		MappedByteBuffer mapped = segment.mapped;
+		if (length < HEADER_LENGTH || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+			if (length > 0) {
+				LOG.warn("Certificate store " + path.getPath() + " is not usable, starting a new one");
+			}
+			ByteBuffer w = mapped.duplicate();
+			w.putInt(MAGIC);
+			w.putInt(VERSION);
+			w.putInt(0);
+			this.end = HEADER_LENGTH;
+			return true;
+		}
+		MessageDigest md = getDigest();
+		int capacity = mapped.capacity();
+		int offset = HEADER_LENGTH;
+		while (offset + 4 <= capacity) {
+			int len = mapped.getInt(offset);
+			if (len <= 0 || len > capacity - offset - 4) {
+				break;
+			}
+			ByteBuffer r = mapped.duplicate();
+			r.position(offset + 4);
+			r.limit(offset + 4 + len);
+			md.update(r);
+			this.byDigest.put(ByteBuffer.wrap(md.digest()), new Record(segment, offset));
+			this.count++;
+			offset += 4 + len;
+		}
+		this.end = offset;
+		LOG.info("Opened certificate store " + path.getPath() + " with " + this.count + " certificates");
+		return true;
+	}
+
+	/*
+	 * Rewrites the store with only the records in the live list, if
+	 * enough of it is dead.  This is done before the store is opened,
+	 * so no cache entry holds an offset into it.  Anything dropped by
+	 * mistake is simply appended again when it is next put().
+	 */
+	private static void compact(File store, File live) {
+		if (!store.isFile() || !live.isFile()) {
+			return;
+		}
+		try {
+			Set<Integer> liveOffsets = new HashSet<Integer>();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(live)));
+			try {
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					liveOffsets.add(Integer.valueOf(in.readInt()));
+				}
+			} finally {
+				in.close();
+			}
+			RandomAccessFile file = new RandomAccessFile(store, "rw");
+			File temp = new File(store.getParentFile(), STORE_FILE + ".tmp");
+			try {
+				FileLock lock = file.getChannel().tryLock();
+				if (lock == null) {
+					return;
+				}
+				long length = file.length();
+				if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+					return;
+				}
+				MappedByteBuffer old = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+				if (old.getInt(0) != MAGIC || old.getInt(4) != VERSION) {
+					return;
+				}
+				int capacity = old.capacity();
+				int offset = HEADER_LENGTH;
+				long total = 0;
+				long kept = 0;
+				while (offset + 4 <= capacity) {
+					int len = old.getInt(offset);
+					if (len <= 0 || len > capacity - offset - 4) {
+						break;
+					}
+					total += 4 + len;
+					if (liveOffsets.contains(Integer.valueOf(offset))) {
+						kept += 4 + len;
+					}
+					offset += 4 + len;
+				}
+				if (total == 0 || kept >= total * COMPACT_THRESHOLD) {
+					return;
+				}
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+				try {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					offset = HEADER_LENGTH;
+					while (offset + 4 <= capacity) {
+						int len = old.getInt(offset);
+						if (len <= 0 || len > capacity - offset - 4) {
+							break;
+						}
+						if (liveOffsets.contains(Integer.valueOf(offset))) {
+							byte[] der = new byte[len];
+							ByteBuffer r = old.duplicate();
+							r.position(offset + 4);
+							r.get(der);
+							out.writeInt(len);
+							out.write(der);
+						}
+						offset += 4 + len;
+					}
+					out.writeInt(0);
+				} finally {
+					out.close();
+				}
+				Files.move(temp.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				LOG.info("Compacted certificate store from " + total + " to " + kept + " bytes of records");
+			} finally {
+				file.close();
+				if (temp.exists() && !temp.delete()) {
+					LOG.warn("Unable to delete temporary file: " + temp.getAbsolutePath());
+				}
+			}
+		} catch (IOException e) {
+			LOG.warn("Unable to compact certificate store: " + e.getMessage(), e);
+		}
+		if (!live.delete()) {
+			LOG.warn("Unable to delete " + live.getPath());
+		}
+	}
+
+	/**
+	 * Called when a generation is published.  Makes room for all of
+	 * its certificates in the decoded certificate cache, compacts the
+	 * store down to the certificates it uses if most of the file is no
+	 * longer used, and records which certificates it uses, so the
+	 * others can be dropped from the file at the next start.
+	 *
+	 * @param generation
+	 */
+	public void retain(CacheGeneration generation) {
+		if (!isAvailable()) {
+			return;
+		}
+		Map<Record, List<CertificateCache>> live = new LinkedHashMap<Record, List<CertificateCache>>();
+		addLive(live, generation.getCache());
+		for (CertificateCache entry: generation.getIntermediates()) {
+			addLive(live, entry);
+		}
+		this.decodedCapacity = Math.max(DECODED_CACHE_SIZE, live.size());
+		List<Integer> offsets = compact(live);
+		File directory = this.path.getParentFile();
+		File liveFile = new File(directory, LIVE_FILE);
+		File temp = new File(directory, LIVE_FILE + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(offsets.size());
+				for (Integer offset: offsets) {
+					out.writeInt(offset.intValue());
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), liveFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warn("Unable to write live certificate list: " + e.getMessage(), e);
+		}
+	}
+
+	private static void addLive(Map<Record, List<CertificateCache>> live, CertificateCache entry) {
+		Record record = entry.getStoreRecord();
+		if (record == null) {
+			return;
+		}
+		List<CertificateCache> entries = live.get(record);
+		if (entries == null) {
+			entries = new ArrayList<CertificateCache>();
+			live.put(record, entries);
+		}
+		entries.add(entry);
+	}
+
+	/*
+	 * Copies the live records to a new file and replaces the store
+	 * with it, if they are less than the threshold of the records in
+	 * the current file, then points the live entries at their new
+	 * records.  The new file is written and locked under a temporary
+	 * name, and renamed over the old one, which stays mapped for the
+	 * entries that still refer to it.  If anything fails, the store
+	 * carries on with the current file.
+	 *
+	 * Returns the offsets of the live records in the current file.
+	 */
+	private synchronized List<Integer> compact(Map<Record, List<CertificateCache>> live) {
+		Segment current = this.segment;
+		long kept = 0;
+		for (Record record: live.keySet()) {
+			kept += 4 + record.segment.mapped.getInt(record.offset);
+		}
+		long total = this.end - HEADER_LENGTH;
+		if (total == 0 || kept >= total * COMPACT_THRESHOLD) {
+			return getOffsets(live, current);
+		}
+		File temp = new File(this.path.getParentFile(), this.path.getName() + ".tmp");
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(temp, "rw");
+			FileChannel channel = file.getChannel();
+			if (channel.tryLock() == null) {
+				throw new IOException("Temporary store " + temp.getPath() + " is in use");
+			}
+			channel.truncate(0);
+			long needed = HEADER_LENGTH + kept + 4;
+			if (needed > Integer.MAX_VALUE) {
+				throw new IOException("Certificate store is too large: " + needed);
+			}
+			Segment segment = new Segment(channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(needed, INITIAL_SIZE)));
+			ByteBuffer w = segment.mapped.duplicate();
+			w.putInt(MAGIC);
+			w.putInt(VERSION);
+			MessageDigest md = getDigest();
+			Map<ByteBuffer, Record> byDigest = new HashMap<ByteBuffer, Record>();
+			Map<Record, Record> moved = new HashMap<Record, Record>();
+			for (Record record: live.keySet()) {
+				byte[] der = getEncoded(record);
+				ByteBuffer digest = ByteBuffer.wrap(md.digest(der));
+				Record copy = byDigest.get(digest);
+				if (copy == null) {
+					copy = new Record(segment, w.position());
+					w.putInt(der.length);
+					w.put(der);
+					byDigest.put(digest, copy);
+				}
+				moved.put(record, copy);
+			}
+			int end = w.position();
+			w.putInt(0);
+			Files.move(temp.toPath(), this.path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			RandomAccessFile old = this.file;
+			this.file = file;
+			file = null;
+			this.channel = channel;
+			this.segment = segment;
+			this.end = end;
+			this.count = byDigest.size();
+			this.byDigest = byDigest;
+			try {
+				old.close();
+			} catch (IOException e) {
+				LOG.warn("Error closing replaced certificate store: " + e.getMessage());
+			}
+			for (Map.Entry<Record, List<CertificateCache>> e: live.entrySet()) {
+				Record copy = moved.get(e.getKey());
+				for (CertificateCache entry: e.getValue()) {
+					entry.setStoreRecord(copy);
+				}
+			}
+			synchronized (this.decoded) {
+				Map<Record, X509Certificate> carried = new LinkedHashMap<Record, X509Certificate>();
+				for (Map.Entry<Record, X509Certificate> e: this.decoded.entrySet()) {
+					Record copy = moved.get(e.getKey());
+					if (copy != null) {
+						carried.put(copy, e.getValue());
+					}
+				}
+				this.decoded.clear();
+				this.decoded.putAll(carried);
+				this.compactions++;
+			}
+			LOG.info("Compacted certificate store from " + total + " to " + (end - HEADER_LENGTH) + " bytes of records");
+			return getOffsets(live, segment);
+		} catch (IOException e) {
+			LOG.warn("Unable to compact certificate store: " + e.getMessage(), e);
+			return getOffsets(live, current);
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					LOG.warn("Error closing temporary store: " + e.getMessage());
+				}
+				if (temp.exists() && !temp.delete()) {
+					LOG.warn("Unable to delete temporary file: " + temp.getAbsolutePath());
+				}
+			}
+		}
+	}
+
+	private static List<Integer> getOffsets(Map<Record, List<CertificateCache>> live, Segment segment) {
+		List<Integer> offsets = new ArrayList<Integer>();
+		for (Record record: live.keySet()) {
+			if (record.segment == segment) {
+				offsets.add(Integer.valueOf(record.offset));
+			}
+		}
+		return offsets;
+	}
+
+	private void close() {
+		this.segment = null;
+		if (this.file != null) {
+			try {
+				this.file.close();
+			} catch (IOException e) {
+				LOG.warn("Error closing certificate store: " + e.getMessage());
+			}
+		}
+		this.file = null;
+		this.channel = null;
+	}
+
+	/**
+	 * @return true if certificates can be placed in the store
+	 */
+	public boolean isAvailable() {
+		return this.segment != null;
+	}
+
+	/**
+	 * Places a certificate in the store, unless it is there already.
+	 *
+	 * @param cert
+	 * @return the record of the certificate in the store, or null if the store is not available
+	 */
+	public synchronized Record put(X509Certificate cert) {
+		Segment segment = this.segment;
+		if (segment == null) {
+			return null;
+		}
+		byte[] der = null;
+		try {
+			der = cert.getEncoded();
+		} catch (CertificateEncodingException e) {
+			LOG.fatal("Unable to encode certificate for the store: " + e.getMessage(), e);
+			return null;
+		}
+		ByteBuffer digest = null;
+		try {
+			digest = ByteBuffer.wrap(getDigest().digest(der));
+		} catch (IOException e) {
+			return null;
+		}
+		Record existing = this.byDigest.get(digest);
+		if (existing != null) {
+			return existing;
+		}
+		/*
+		 * Leave room for the record, and the zero length after it.
+		 */
+		long needed = (long) this.end + 4 + der.length + 4;
+		if (needed > Integer.MAX_VALUE) {
+			LOG.fatal("Certificate store is full");
+			return null;
+		}
+		if (needed > segment.mapped.capacity()) {
+			try {
+				int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(needed, segment.mapped.capacity() * 2L));
+				segment.mapped = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			} catch (IOException e) {
+				LOG.fatal("Unable to extend certificate store: " + e.getMessage(), e);
+				return null;
+			}
+		}
+		int offset = this.end;
+		ByteBuffer w = segment.mapped.duplicate();
+		w.position(offset + 4);
+		w.put(der);
+		w.putInt(0);
+		/*
+		 * The length is written last, so a record is never
+		 * visible in the file until it is complete.
+		 */
+		w.putInt(offset, der.length);
+		this.end = offset + 4 + der.length;
+		Record record = new Record(segment, offset);
+		this.byDigest.put(digest, record);
+		this.count++;
+		return record;
+	}
+
+	/**
+	 * @param record a record returned by put()
+	 * @return the DER encoded certificate of the record
+	 */
+	public byte[] getEncoded(Record record) {
+		ByteBuffer r = record.segment.mapped.duplicate();
+		int len = r.getInt(record.offset);
+		byte[] der = new byte[len];
+		r.position(record.offset + 4);
+		r.get(der);
+		return der;
+	}
+
+	/**
+	 * Decodes the certificate of a record, or returns it from the
+	 * decoded certificate cache.
+	 *
+	 * @param record a record returned by put()
+	 * @return the certificate of the record
+	 */
+	public X509Certificate getCertificate(Record record) {
+		synchronized (this.decoded) {
+			X509Certificate cert = this.decoded.get(record);
+			if (cert != null) {
+				this.hits++;
+				return cert;
+			}
+			this.misses++;
+		}
+		X509Certificate cert = null;
+		try {
+			CertificateFactory cf = CertificateFactory.getInstance("X509");
+			cert = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(getEncoded(record)));
+		} catch (CertificateException e) {
+			throw new IllegalStateException("Unable to decode certificate at offset " + record.offset + " in the store: " + e.getMessage(), e);
+		}
+		synchronized (this.decoded) {
+			this.decoded.put(record, cert);
+		}
+		return cert;
+	}
+
+	/**
+	 * @return the number of certificates in the store
+	 */
+	public synchronized int size() {
+		return this.count;
+	}
+
+	/**
+	 * @return the number of bytes used by the records in the store
+	 */
+	public synchronized int getLength() {
+		return this.end;
+	}
+
+	public String toString() {
+		long hits;
+		long misses;
+		long compactions;
+		int decodedSize;
+		synchronized (this.decoded) {
+			hits = this.hits;
+			misses = this.misses;
+			compactions = this.compactions;
+			decodedSize = this.decoded.size();
+		}
+		if (!isAvailable()) {
+			return "[Certificate Store: Not Available]";
+		}
+		return "[Certificate Store: " + this.path.getPath() + ", Certificates: " + size() + ", Length: " + getLength() + " bytes, Compactions: " + compactions + ", Decoded: " + decodedSize + "/" + this.decodedCapacity + ", Decoded Hits: " + hits + ", Decoded Misses: " + misses + "]";
+	}
+
+	private static MessageDigest getDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/*
+	 * A mapped store file.  New records are only written to the
+	 * current one, and one that was replaced by a compaction stays
+	 * mapped until no Record refers to it.
+	 */
+	static final class Segment {
+		/*
+		 * Readers and writers work on duplicates, so the position of
+		 * the mapped buffer itself never changes.  It is replaced by
+		 * a larger mapping of the same file as the store grows.
+		 */
+		private volatile MappedByteBuffer mapped;
+
+		private Segment(MappedByteBuffer mapped) {
+			this.mapped = mapped;
+		}
+	}
+
+	/**
+	 * The location of a certificate in the store: the file it was
+	 * written to, and its offset in that file.
+	 */
+	public static final class Record {
+
+		private final Segment segment;
+		private final int offset;
+
+		private Record(Segment segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Record)) {
+				return false;
+			}
+			Record other = (Record) o;
+			return this.segment == other.segment && this.offset == other.offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(this.segment) + this.offset;
+		}
+	}
+
+}
@@ -24,6 +24,16 @@ public class HttpURICacheEntry implements URICacheEntry {
 	private String reasonPhrase = null;
 	private int statusCode = 0;
 	private PkiUri pkiUri = null;
+	private String eTag = null;
+	private String lastModified = null;
+	private String digest = null;
+
+	/*
+	 * Used to restore an entry from a cache snapshot, where
+	 * the fields are set individually.
+	 */
+	HttpURICacheEntry() {
+	}
 
 	public HttpURICacheEntry(HttpResponse response, long responseTime) {
 		this.lastChecked = Calendar.getInstance().getTime();
@@ -57,6 +67,18 @@ public class HttpURICacheEntry implements URICacheEntry {
 				}
 			}
 		}
+		/*
+		 * Keep the validators so the next refresh can be
+		 * a conditional request.
+		 */
+		Header eTagHeader = response.getFirstHeader(HttpHeaders.ETAG);
+		if (eTagHeader != null) {
+			this.eTag = eTagHeader.getValue();
+		}
+		Header lastModifiedHeader = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+		if (lastModifiedHeader != null) {
+			this.lastModified = lastModifiedHeader.getValue();
+		}
 		this.lastResponseTime = responseTime;
 		StatusLine lastStatus = response.getStatusLine();
 		this.protocolVersion = lastStatus.getProtocolVersion().getProtocol();
@@ -176,4 +198,46 @@ public class HttpURICacheEntry implements URICacheEntry {
 		this.pkiUri = pkiUri;
 	}
 
-}
+	/**
+	 * @return the eTag
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * @param eTag the eTag to set
+	 */
+	public void setETag(String eTag) {
+		this.eTag = eTag;
+	}
+
+	/**
+	 * @return the lastModified
+	 */
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @param lastModified the lastModified to set
+	 */
+	public void setLastModified(String lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return the hex encoded SHA-256 digest of the last content received, as kept in the ArtifactStore
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @param digest the digest to set
+	 */
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+package org.keysupport.pki.validation.cache;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers the result of verifying a certificate signature with a
+ * given public key, so that each (issuer, subject) pair is verified
+ * once, rather than every time discovery, flattening and validation
+ * ask whether one CA signed another.
+ *
+ * Results are keyed by the SHA-256 of the encoded certificate and the
+ * SHA-256 of the encoded issuer public key.  The whole certificate is
+ * hashed rather than just the TBSCertificate, so that a certificate
+ * with the same contents but a different signature value can never
+ * share a result.  Failed verifications are remembered too.
+ *
+ * The cache is a bounded LRU map.
+ */
+public class SignatureVerificationCache {
+
+	private static SignatureVerificationCache instance = null;
+	private static final Log LOG = LogFactory.getLog(SignatureVerificationCache.class);
+
+	private static final int MAX_ENTRIES = 65536;
+
+	private final Map<ByteBuffer, Boolean> results;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	public static synchronized SignatureVerificationCache getInstance() {
+		if (instance == null) {
+			instance = new SignatureVerificationCache();
+		}
+		return instance;
+	}
+
+	private SignatureVerificationCache() {
+		LOG.info("Initializing Signature Verification Cache");
+		this.results = new LinkedHashMap<ByteBuffer, Boolean>(1024, 0.75f, true) {
+			private static final long serialVersionUID = -3958311482702815917L;
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	/**
+	 * @param subject the certificate whose signature is verified
+	 * @param issuerKey the public key of the presumed issuer
+	 * @return true if the signature on the certificate verifies with the key
+	 */
+	public boolean verify(X509Certificate subject, PublicKey issuerKey) {
+		ByteBuffer key = null;
+		try {
+			key = getKey(subject, issuerKey);
+		} catch (CertificateEncodingException | NoSuchAlgorithmException e) {
+			LOG.warn("Unable to cache signature verification result: " + e.getMessage());
+			return doVerify(subject, issuerKey);
+		}
+		Boolean result = null;
+		synchronized (this.results) {
+			result = this.results.get(key);
+		}
+		if (result != null) {
+			this.hits.incrementAndGet();
+			return result.booleanValue();
+		}
+		this.misses.incrementAndGet();
+		/*
+		 * Verify outside the lock.  Two threads may verify the same
+		 * pair at the same time, which is harmless.
+		 */
+		boolean verified = doVerify(subject, issuerKey);
+		synchronized (this.results) {
+			this.results.put(key, Boolean.valueOf(verified));
+		}
+		return verified;
+	}
+
+	/**
+	 * Discards all remembered results.
+	 */
+	public void clear() {
+		synchronized (this.results) {
+			this.results.clear();
+		}
+	}
+
+	/**
+	 * @return the number of remembered results
+	 */
+	public int size() {
+		synchronized (this.results) {
+			return this.results.size();
+		}
+	}
+
+	/**
+	 * @return the number of verifications answered from the cache
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of signatures actually verified
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	public String toString() {
+		return "[Signature Verification Cache: " + size() + " results, Hits: " + getHitCount() + ", Verifications: " + getMissCount() + "]";
+	}
+
+	private static ByteBuffer getKey(X509Certificate subject, PublicKey issuerKey) throws CertificateEncodingException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		byte[] key = new byte[md.getDigestLength() * 2];
+		System.arraycopy(md.digest(subject.getEncoded()), 0, key, 0, md.getDigestLength());
+		System.arraycopy(md.digest(issuerKey.getEncoded()), 0, key, md.getDigestLength(), md.getDigestLength());
+		return ByteBuffer.wrap(key);
+	}
+
+	private static boolean doVerify(X509Certificate subject, PublicKey issuerKey) {
+		try {
+			subject.verify(issuerKey);
+		} catch (InvalidKeyException | CertificateException
+				| NoSuchAlgorithmException | NoSuchProviderException
+				| SignatureException e) {
+			return false;
+		}
+		return true;
+	}
+
+}
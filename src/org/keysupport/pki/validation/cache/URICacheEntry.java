@@ -32,4 +32,13 @@ public interface URICacheEntry {
 	
 	public PkiUri getPkiUri();
 	public void setPkiUri(PkiUri pkiUri);
+
+	public String getETag();
+	public void setETag(String eTag);
+
+	public String getLastModified();
+	public void setLastModified(String lastModified);
+
+	public String getDigest();
+	public void setDigest(String digest);
 }
@@ -32,14 +32,14 @@ public class UriCacheManager {
 	/**
 	 * 
 	 * 
-	 * @return a copy of all URI entries in the cache with a Status Code of 200.
+	 * @return a copy of all URI entries in the cache with a Status Code of 200 or 304.
 	 */
 	public synchronized URICache getSuccessfulURICache() {
 		URICache successful = new URICache();
 		PkiUri[] uris = this.uriCache.getURIs();
 		for (PkiUri uri: uris) {
 			URICacheEntry entry = this.uriCache.getUriCacheEntry(uri);
-			if (entry.getStatusCode() == 200) {
+			if (isSuccessful(entry)) {
 				successful.update(uri, entry);
 			}
 		}
@@ -49,22 +49,62 @@ public class UriCacheManager {
 	/**
 	 * Gets URLs that failed.
 	 * 
-	 * @return a copy of all URI entries in the cache with a Status Code not equal to 200.
+	 * @return a copy of all URI entries in the cache with a Status Code other than 200 or 304.
 	 */
 	public synchronized URICache getFailedUriCache() {
 		URICache failed = new URICache();
 		PkiUri[] uris = this.uriCache.getURIs();
 		for (PkiUri uri: uris) {
 			URICacheEntry entry = this.uriCache.getUriCacheEntry(uri);
-			if (entry.getStatusCode() != 200) {
+			if (!isSuccessful(entry)) {
 				failed.update(uri, entry);
 			}
 		}
 		return failed;
 	}
 
+	/**
+	 * Update the entry for a URI.
+	 * 
+	 * The ETag and Last-Modified values of an entry always come from
+	 * the last successful response.  A 200 keeps only the validators
+	 * it was sent with.  A 304 confirms the content we have, so it
+	 * keeps the previous validators where it sent none.  A failure
+	 * carries the previous validators forward, so the next refresh can
+	 * still be a conditional request.  The digest of the last content
+	 * received is kept the same way.
+	 * 
+	 * @param uri
+	 * @param entry
+	 */
 	public void update(PkiUri uri, URICacheEntry entry) {
+		URICacheEntry previous = this.uriCache.getUriCacheEntry(uri);
+		if (!isSuccessful(entry)) {
+			entry.setETag((previous == null) ? null : previous.getETag());
+			entry.setLastModified((previous == null) ? null : previous.getLastModified());
+		} else if (entry.getStatusCode() == 304 && previous != null) {
+			if (entry.getETag() == null) {
+				entry.setETag(previous.getETag());
+			}
+			if (entry.getLastModified() == null) {
+				entry.setLastModified(previous.getLastModified());
+			}
+		}
+		if (previous != null && entry.getDigest() == null) {
+			entry.setDigest(previous.getDigest());
+		}
 		this.uriCache.update(uri, entry);
 	}
 
+	/**
+	 * A URI is considered successful if the last response was a 200,
+	 * or a 304 confirming that the content we already have is current.
+	 * 
+	 * @param entry
+	 * @return true if the last response for the URI was successful
+	 */
+	public static boolean isSuccessful(URICacheEntry entry) {
+		return (entry.getStatusCode() == 200 || entry.getStatusCode() == 304);
+	}
+
 }
@@ -0,0 +1,56 @@
+package org.keysupport.httpclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+import junit.framework.TestCase;
+
+public class DownloadedArtifactTest extends TestCase {
+
+	private File file;
+	private PkiUri uri;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("artifact", ".tmp");
+		uri = new PkiUri(URI.create("http://example.com/ca.p7c"), 0, 0);
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testFileIsDeletedWhenTheOnlyCallerCloses() {
+		DownloadedArtifact artifact = new DownloadedArtifact(uri, file, 0);
+		artifact.close();
+		assertFalse(file.exists());
+	}
+
+	public void testFileIsKeptUntilEverySharedCallerCloses() {
+		DownloadedArtifact artifact = new DownloadedArtifact(uri, file, 0);
+		artifact.share(3);
+		artifact.close();
+		artifact.close();
+		assertTrue(file.exists());
+		artifact.close();
+		assertFalse(file.exists());
+	}
+
+	public void testReleaseGivesUpTheShareOfACallerThatNeverReceivedIt() {
+		DownloadedArtifact artifact = new DownloadedArtifact(uri, file, 0);
+		artifact.share(2);
+		artifact.release();
+		assertTrue(file.exists());
+		artifact.close();
+		assertFalse(file.exists());
+	}
+
+	public void testStoredFileIsNotDeleted() {
+		DownloadedArtifact artifact = new DownloadedArtifact(uri, file, 0, "digest", false, true);
+		artifact.close();
+		assertTrue(file.exists());
+	}
+
+}
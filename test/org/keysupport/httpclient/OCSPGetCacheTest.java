@@ -0,0 +1,107 @@
+package org.keysupport.httpclient;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.keysupport.pki.validation.cache.HttpURICacheEntry;
+
+public class OCSPGetCacheTest extends TestCase {
+
+	private static final byte[] BODY = { 0x30, 0x03, 0x0a, 0x01, 0x00 };
+
+	private static final String V1 = "\"v1\"";
+	private static final String V2 = "\"v2\"";
+	private static final String MODIFIED_1 = "Mon, 01 Jan 2024 00:00:00 GMT";
+	private static final String MODIFIED_2 = "Tue, 02 Jan 2024 00:00:00 GMT";
+
+	public void testDropsLeastRecentlyUsed() {
+		OCSPGetCache cache = new OCSPGetCache(2);
+		OCSPGetCache.Response a = response("max-age=60", null, null);
+		OCSPGetCache.Response b = response("max-age=60", null, null);
+		OCSPGetCache.Response c = response("max-age=60", null, null);
+		cache.put("a", a);
+		cache.put("b", b);
+		/*
+		 * Using "a" makes "b" the eldest
+		 */
+		assertSame(a, cache.get("a"));
+		cache.put("c", c);
+		assertSame(a, cache.get("a"));
+		assertNull(cache.get("b"));
+		assertSame(c, cache.get("c"));
+	}
+
+	public void testPutReplacesResponse() {
+		OCSPGetCache cache = new OCSPGetCache(1);
+		OCSPGetCache.Response a = response("max-age=60", null, null);
+		OCSPGetCache.Response b = response("max-age=60", null, null);
+		cache.put("a", a);
+		cache.put("a", b);
+		assertSame(b, cache.get("a"));
+	}
+
+	public void testFreshForMaxAge() {
+		long before = System.currentTimeMillis();
+		OCSPGetCache.Response response = response("max-age=60", null, null);
+		assertTrue(response.isFresh(before));
+		assertTrue(response.isFresh(before + 59 * 1000));
+		assertFalse(response.isFresh(System.currentTimeMillis() + 61 * 1000));
+	}
+
+	public void testNotFreshWithoutMaxAge() {
+		OCSPGetCache.Response unspecified = response(null, V1, null);
+		OCSPGetCache.Response noCache = response("no-cache", V1, null);
+		long after = System.currentTimeMillis() + 1;
+		assertFalse(unspecified.isFresh(after));
+		assertFalse(noCache.isFresh(after));
+	}
+
+	public void testRevalidatedKeepsBodyAndTakesNewMaxAge() {
+		OCSPGetCache.Response response = response("no-cache", V1, MODIFIED_1);
+		long now = System.currentTimeMillis() + 1;
+		assertFalse(response.isFresh(now));
+		OCSPGetCache.Response revalidated = response.revalidated(notModified("max-age=60", null, null));
+		assertSame(BODY, revalidated.getBody());
+		assertTrue(revalidated.isFresh(now));
+		/*
+		 * A 304 without validators keeps the ones we had
+		 */
+		assertEquals(V1, revalidated.getETag());
+		assertEquals(MODIFIED_1, revalidated.getLastModified());
+	}
+
+	public void testRevalidatedTakesNewValidators() {
+		OCSPGetCache.Response response = response("max-age=60", V1, MODIFIED_1);
+		OCSPGetCache.Response revalidated = response.revalidated(notModified("max-age=60", V2, MODIFIED_2));
+		assertEquals(V2, revalidated.getETag());
+		assertEquals(MODIFIED_2, revalidated.getLastModified());
+		assertEquals(V1, response.getETag());
+		assertEquals(MODIFIED_1, response.getLastModified());
+	}
+
+	private static OCSPGetCache.Response response(String cacheControl, String eTag, String lastModified) {
+		return new OCSPGetCache.Response(BODY, entry(HttpStatus.SC_OK, "OK", cacheControl, eTag, lastModified));
+	}
+
+	private static HttpURICacheEntry notModified(String cacheControl, String eTag, String lastModified) {
+		return entry(HttpStatus.SC_NOT_MODIFIED, "Not Modified", cacheControl, eTag, lastModified);
+	}
+
+	private static HttpURICacheEntry entry(int status, String reason, String cacheControl, String eTag, String lastModified) {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, reason);
+		if (cacheControl != null) {
+			response.addHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+		}
+		if (eTag != null) {
+			response.addHeader(HttpHeaders.ETAG, eTag);
+		}
+		if (lastModified != null) {
+			response.addHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+		}
+		return new HttpURICacheEntry(response, 0);
+	}
+
+}
@@ -0,0 +1,318 @@
+package org.keysupport.httpclient;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class SingleFlightTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+
+	public void testConcurrentCallsShareOneExecution() throws Exception {
+		final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger(0);
+		Callable<String> call = new Callable<String>() {
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				release.await();
+				return "result";
+			}
+		};
+		Future<String> leader = start(flight, "key", call);
+		awaitInFlight(flight, 1);
+		Future<String> follower = start(flight, "key", call);
+		awaitCoalesced(flight, 1);
+		release.countDown();
+		assertEquals("result", leader.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals("result", follower.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(1, calls.get());
+		assertEquals(1, flight.getExecutedCount());
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	public void testNothingIsKeptAfterTheCallLands() throws Exception {
+		SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+		final AtomicInteger calls = new AtomicInteger(0);
+		Callable<Integer> call = new Callable<Integer>() {
+			public Integer call() {
+				return Integer.valueOf(calls.incrementAndGet());
+			}
+		};
+		assertEquals(Integer.valueOf(1), flight.execute("key", call));
+		assertEquals(Integer.valueOf(2), flight.execute("key", call));
+		assertEquals(2, flight.getExecutedCount());
+		assertEquals(0, flight.getCoalescedCount());
+	}
+
+	public void testDifferentKeysAreNotCoalesced() throws Exception {
+		final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+		final CountDownLatch release = new CountDownLatch(1);
+		Future<String> a = start(flight, "a", blocking("a", release));
+		Future<String> b = start(flight, "b", blocking("b", release));
+		awaitInFlight(flight, 2);
+		release.countDown();
+		assertEquals("a", a.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals("b", b.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(0, flight.getCoalescedCount());
+	}
+
+	public void testFailureIsSeenByEveryCaller() throws Exception {
+		final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<String> call = new Callable<String>() {
+			public String call() throws Exception {
+				release.await();
+				throw new IllegalStateException("failed");
+			}
+		};
+		Future<String> leader = start(flight, "key", call);
+		awaitInFlight(flight, 1);
+		Future<String> follower = start(flight, "key", call);
+		awaitCoalesced(flight, 1);
+		release.countDown();
+		assertFailedWith(leader, IllegalStateException.class);
+		assertFailedWith(follower, IllegalStateException.class);
+	}
+
+	public void testAsyncCallersShareOneExecution() throws Exception {
+		SingleFlight<String, String> flight = new SingleFlight<String, String>();
+		final AtomicReference<SingleFlight.Landing<String>> landing = new AtomicReference<SingleFlight.Landing<String>>();
+		final AtomicInteger starts = new AtomicInteger(0);
+		SingleFlight.AsyncCall<String> call = new SingleFlight.AsyncCall<String>() {
+			public void start(SingleFlight.Landing<String> l) {
+				starts.incrementAndGet();
+				landing.set(l);
+			}
+		};
+		RecordingListener first = new RecordingListener();
+		RecordingListener second = new RecordingListener();
+		flight.executeAsync("key", call, first);
+		flight.executeAsync("key", call, second);
+		assertEquals(1, starts.get());
+		assertEquals(1, flight.getCoalescedCount());
+		landing.get().completed("result");
+		/*
+		 * A second report of the same call is ignored.
+		 */
+		landing.get().failed(new IllegalStateException("late"));
+		assertEquals("result", first.result.get());
+		assertEquals("result", second.result.get());
+		assertNull(first.failure.get());
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	public void testAsyncCallThatThrowsOnStartFails() {
+		SingleFlight<String, String> flight = new SingleFlight<String, String>();
+		RecordingListener listener = new RecordingListener();
+		flight.executeAsync("key", new SingleFlight.AsyncCall<String>() {
+			public void start(SingleFlight.Landing<String> l) {
+				throw new IllegalStateException("refused");
+			}
+		}, listener);
+		assertTrue(listener.failure.get() instanceof IllegalStateException);
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	public void testSharedResultIsToldHowManyCallersReceivedIt() throws Exception {
+		final SingleFlight<String, Shared> flight = new SingleFlight<String, Shared>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final Shared shared = new Shared();
+		Callable<Shared> call = new Callable<Shared>() {
+			public Shared call() throws Exception {
+				release.await();
+				return shared;
+			}
+		};
+		Future<Shared> leader = start(flight, "key", call);
+		awaitInFlight(flight, 1);
+		Future<Shared> follower = start(flight, "key", call);
+		awaitCoalesced(flight, 1);
+		release.countDown();
+		assertSame(shared, leader.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertSame(shared, follower.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(2, shared.shares.get());
+		assertEquals(1, shared.shareCalls.get());
+	}
+
+	public void testInterruptedWaiterIsNotCounted() throws Exception {
+		final SingleFlight<String, Shared> flight = new SingleFlight<String, Shared>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final Shared shared = new Shared();
+		Callable<Shared> call = new Callable<Shared>() {
+			public Shared call() throws Exception {
+				release.await();
+				return shared;
+			}
+		};
+		Future<Shared> leader = start(flight, "key", call);
+		awaitInFlight(flight, 1);
+		FutureTask<Shared> follower = new FutureTask<Shared>(execution(flight, "key", call));
+		Thread thread = new Thread(follower, "single-flight-test");
+		thread.setDaemon(true);
+		thread.start();
+		awaitCoalesced(flight, 1);
+		thread.interrupt();
+		assertInterrupted(follower);
+		release.countDown();
+		assertSame(shared, leader.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(1, shared.shares.get());
+		assertEquals(0, shared.released.get());
+	}
+
+	public void testInterruptedWaiterReleasesItsShareOfALandedResult() throws Exception {
+		final SingleFlight<String, Shared> flight = new SingleFlight<String, Shared>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch sharing = new CountDownLatch(1);
+		final CountDownLatch shared = new CountDownLatch(1);
+		/*
+		 * The result is shared after the flight lands, and before
+		 * the waiters can see it, so a waiter interrupted while
+		 * share() blocks was already counted.
+		 */
+		final Shared result = new Shared() {
+			public void share(int callers) {
+				super.share(callers);
+				sharing.countDown();
+				try {
+					shared.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		Callable<Shared> call = new Callable<Shared>() {
+			public Shared call() throws Exception {
+				release.await();
+				return result;
+			}
+		};
+		Future<Shared> leader = start(flight, "key", call);
+		awaitInFlight(flight, 1);
+		FutureTask<Shared> follower = new FutureTask<Shared>(execution(flight, "key", call));
+		Thread thread = new Thread(follower, "single-flight-test");
+		thread.setDaemon(true);
+		thread.start();
+		awaitCoalesced(flight, 1);
+		release.countDown();
+		assertTrue(sharing.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		thread.interrupt();
+		/*
+		 * The follower clears its interrupt status as it gives up
+		 * waiting, so after that it cannot see the result.
+		 */
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (thread.isInterrupted() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		shared.countDown();
+		assertInterrupted(follower);
+		assertSame(result, leader.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(2, result.shares.get());
+		assertEquals(1, result.released.get());
+	}
+
+	/*
+	 * Runs execute() on a new thread.
+	 */
+	static <V> Future<V> start(SingleFlight<String, V> flight, String key, Callable<V> call) {
+		FutureTask<V> task = new FutureTask<V>(execution(flight, key, call));
+		Thread t = new Thread(task, "single-flight-test");
+		t.setDaemon(true);
+		t.start();
+		return task;
+	}
+
+	static <V> Callable<V> execution(final SingleFlight<String, V> flight, final String key, final Callable<V> call) {
+		return new Callable<V>() {
+			public V call() throws Exception {
+				return flight.execute(key, call);
+			}
+		};
+	}
+
+	static Callable<String> blocking(final String result, final CountDownLatch release) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				release.await();
+				return result;
+			}
+		};
+	}
+
+	static void awaitInFlight(SingleFlight<?, ?> flight, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (flight.getInFlightCount() < count) {
+			assertTrue("Timed out waiting for the call to start", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	static void awaitCoalesced(SingleFlight<?, ?> flight, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (flight.getCoalescedCount() < count) {
+			assertTrue("Timed out waiting for the caller to join", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void assertFailedWith(Future<?> future, Class<? extends Throwable> type) throws Exception {
+		try {
+			future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("Expected " + type.getName());
+		} catch (ExecutionException e) {
+			/*
+			 * The task wraps the ExecutionException from execute().
+			 */
+			assertTrue(e.getCause() instanceof ExecutionException);
+			assertTrue(type.isInstance(e.getCause().getCause()));
+		}
+	}
+
+	private static void assertInterrupted(Future<?> future) throws Exception {
+		try {
+			future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("Expected " + InterruptedException.class.getName());
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof InterruptedException);
+		}
+	}
+
+	static class Shared implements SingleFlight.SharedResult {
+
+		final AtomicInteger shares = new AtomicInteger(0);
+		final AtomicInteger shareCalls = new AtomicInteger(0);
+		final AtomicInteger released = new AtomicInteger(0);
+
+		public void share(int callers) {
+			shareCalls.incrementAndGet();
+			shares.set(callers);
+		}
+
+		public void release() {
+			released.incrementAndGet();
+		}
+	}
+
+	private static class RecordingListener implements SingleFlight.Listener<String> {
+
+		final AtomicReference<String> result = new AtomicReference<String>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		public void completed(String r) {
+			result.set(r);
+		}
+
+		public void failed(Throwable t) {
+			failure.set(t);
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.keysupport.pki;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Generates keys, certificates and CRLs for the unit tests.
+ */
+public class TestPki {
+
+	public static final long DAY = 24L * 60 * 60 * 1000;
+
+	private TestPki() {
+	}
+
+	/**
+	 * @return a new RSA key pair
+	 */
+	public static KeyPair generateKeyPair() {
+		try {
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+			kpg.initialize(1024);
+			return kpg.generateKeyPair();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the current time, truncated to the second as encoded in certificates and CRLs
+	 */
+	public static Date now() {
+		return new Date((System.currentTimeMillis() / 1000) * 1000);
+	}
+
+	/**
+	 * Issues a certificate valid from a day ago until a year from now.
+	 *
+	 * @param subject the subject name
+	 * @param subjectKey the subject public key
+	 * @param issuer the issuer name
+	 * @param issuerKey the key to sign with
+	 * @param serialNumber the serial number
+	 * @param ca true if the certificate is for a CA
+	 * @return the certificate
+	 */
+	public static X509Certificate issue(String subject, PublicKey subjectKey, String issuer, KeyPair issuerKey, BigInteger serialNumber, boolean ca) {
+		Date now = now();
+		JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(issuer), serialNumber,
+				new Date(now.getTime() - DAY), new Date(now.getTime() + 365 * DAY), new X500Name(subject), subjectKey);
+		try {
+			JcaX509ExtensionUtils utils = new JcaX509ExtensionUtils();
+			builder.addExtension(Extension.subjectKeyIdentifier, false, utils.createSubjectKeyIdentifier(subjectKey));
+			builder.addExtension(Extension.authorityKeyIdentifier, false, utils.createAuthorityKeyIdentifier(issuerKey.getPublic()));
+			if (ca) {
+				builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+				builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+			}
+			return new JcaX509CertificateConverter().getCertificate(builder.build(signer(issuerKey.getPrivate())));
+		} catch (CertIOException | NoSuchAlgorithmException | CertificateException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param issuer the issuer name
+	 * @param subjectKey the key to certify and sign with
+	 * @return a self signed CA certificate
+	 */
+	public static X509Certificate selfSigned(String issuer, KeyPair subjectKey) {
+		return issue(issuer, subjectKey.getPublic(), issuer, subjectKey, BigInteger.ONE, true);
+	}
+
+	/**
+	 * @param issuer the issuer name
+	 * @return a CRL builder, current from now until a day from now
+	 */
+	public static X509v2CRLBuilder newCrl(String issuer) {
+		Date now = now();
+		X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name(issuer), now);
+		builder.setNextUpdate(new Date(now.getTime() + DAY));
+		return builder;
+	}
+
+	/**
+	 * @param builder the CRL to sign
+	 * @param key the key to sign with
+	 * @return the DER encoded CRL
+	 */
+	public static byte[] sign(X509v2CRLBuilder builder, PrivateKey key) {
+		try {
+			return builder.build(signer(key)).getEncoded();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static ContentSigner signer(PrivateKey key) {
+		try {
+			return new JcaContentSignerBuilder("SHA256withRSA").build(key);
+		} catch (OperatorCreationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
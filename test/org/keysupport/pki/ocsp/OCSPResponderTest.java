@@ -0,0 +1,111 @@
+package org.keysupport.pki.ocsp;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.keysupport.pki.TestPki;
+import org.keysupport.pki.validation.cache.CRLCacheManager;
+import org.keysupport.pki.validation.cache.CRLRevocationIndex;
+import org.keysupport.pki.validation.cache.CertificateCache;
+
+public class OCSPResponderTest extends TestCase {
+
+	private static final KeyPair CA_KEY = TestPki.generateKeyPair();
+
+	private CertificateCache ca;
+
+	@Override
+	protected void setUp() {
+		if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+			Security.addProvider(new BouncyCastleProvider());
+		}
+		/*
+		 * CRLs can not be removed from the CRL cache, so each test
+		 * has a CA of its own.
+		 */
+		ca = new CertificateCache(TestPki.selfSigned("CN=" + getName() + ",O=KeySupport,C=US", CA_KEY));
+	}
+
+	public void testMalformedRequest() throws Exception {
+		assertMalformed(new byte[] { 0x30, 0x03, 0x02, 0x01 });
+		assertMalformed("This is not an OCSP request".getBytes("US-ASCII"));
+	}
+
+	public void testIssuerHashesMatchCertificateID() throws Exception {
+		X509Certificate cert = ca.getCertificate();
+		CertificateID id = new CertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+				new JcaX509CertificateHolder(cert), BigInteger.TEN);
+		assertTrue(Arrays.equals(id.getIssuerNameHash(), OCSPResponder.getNameHash(ca)));
+		assertTrue(Arrays.equals(id.getIssuerKeyHash(), OCSPResponder.getKeyHash(ca)));
+		assertTrue(Arrays.equals(id.getIssuerKeyHash(), OCSPResponder.getKeyHash(cert.getPublicKey())));
+	}
+
+	public void testNoCRL() {
+		assertNull(OCSPResponder.getCRL(ca, new Date()));
+	}
+
+	public void testUsesNewestCurrentCRL() {
+		long now = System.currentTimeMillis();
+		CRLRevocationIndex older = newCrl(now - 2 * TestPki.DAY, now + TestPki.DAY).build();
+		CRLRevocationIndex newer = newCrl(now - TestPki.DAY, now + TestPki.DAY).build();
+		CRLRevocationIndex expired = newCrl(now - 3 * TestPki.DAY, now - 1).build();
+		CRLRevocationIndex future = newCrl(now + TestPki.DAY, now + 2 * TestPki.DAY).build();
+		put("older", older);
+		put("newer", newer);
+		put("expired", expired);
+		put("future", future);
+		assertSame(newer, OCSPResponder.getCRL(ca, new Date(now)));
+	}
+
+	public void testIgnoresPartialCRLs() {
+		long now = System.currentTimeMillis();
+		put("idp", newCrl(now, now + TestPki.DAY).setIssuingDistributionPoint(new byte[] { 0x30, 0x00 }).build());
+		put("delta", newCrl(now, now + TestPki.DAY).setDeltaCrl(true).build());
+		put("indirect", newCrl(now, now + TestPki.DAY).setIndirect(true).build());
+		put("critical", newCrl(now, now + TestPki.DAY).setUnrecognizedCriticalExtension(true).build());
+		assertNull(OCSPResponder.getCRL(ca, new Date(now + 1)));
+		CRLRevocationIndex full = newCrl(now - 1, now + TestPki.DAY).build();
+		put("full", full);
+		assertSame(full, OCSPResponder.getCRL(ca, new Date(now + 1)));
+	}
+
+	public void testIgnoresCRLFromOtherKey() {
+		long now = System.currentTimeMillis();
+		put("other", newCrl(now, now + TestPki.DAY).setSignerKey(TestPki.generateKeyPair().getPublic()).build());
+		assertNull(OCSPResponder.getCRL(ca, new Date(now + 1)));
+	}
+
+	private static void assertMalformed(byte[] request) throws Exception {
+		OCSPResponder.ProducedResponse response = OCSPResponder.getInstance().respond(request);
+		assertEquals(OCSPRespBuilder.MALFORMED_REQUEST, new OCSPResp(response.getEncoded()).getStatus());
+		assertFalse(response.isCacheable());
+		assertNull(response.getProducedAt());
+		assertNull(response.getExpires());
+	}
+
+	private CRLRevocationIndex.Builder newCrl(long thisUpdate, long nextUpdate) {
+		return new CRLRevocationIndex.Builder()
+				.setIssuer(ca.getSubject())
+				.setThisUpdate(new Date(thisUpdate))
+				.setNextUpdate(new Date(nextUpdate))
+				.setSignerKey(CA_KEY.getPublic());
+	}
+
+	private void put(String name, CRLRevocationIndex crl) {
+		CRLCacheManager.getInstance().getCRLCache().update(URI.create("http://example.com/" + getName() + "/" + name + ".crl"), crl);
+	}
+
+}
@@ -0,0 +1,112 @@
+package org.keysupport.pki.ocsp;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+
+public class OCSPResponseCacheTest extends TestCase {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	private OCSPResponseCache cache;
+
+	@Override
+	protected void setUp() {
+		cache = OCSPResponseCache.getInstance();
+		cache.clear();
+	}
+
+	@Override
+	protected void tearDown() {
+		cache.clear();
+	}
+
+	public void testKeepsStatusUntilNextUpdate() {
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.GOOD, new Date(now), new Date(now + HOUR));
+		cache.putStatus(certId(2), OCSPClient.REVOKED, new Date(now), new Date(now + HOUR));
+		assertEquals(Integer.valueOf(OCSPClient.GOOD), cache.getStatus(certId(1)));
+		assertEquals(Integer.valueOf(OCSPClient.REVOKED), cache.getStatus(certId(2)));
+		assertNull(cache.getStatus(certId(3)));
+		assertEquals(2, cache.size());
+	}
+
+	public void testCountsHitsAndMisses() {
+		long hits = cache.getHitCount();
+		long misses = cache.getMissCount();
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.GOOD, new Date(now), new Date(now + HOUR));
+		cache.getStatus(certId(1));
+		cache.getStatus(certId(1));
+		cache.getStatus(certId(2));
+		assertEquals(hits + 2, cache.getHitCount());
+		assertEquals(misses + 1, cache.getMissCount());
+	}
+
+	public void testDropsStatusAtNextUpdate() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.GOOD, new Date(now), new Date(now + 50));
+		Thread.sleep(100);
+		assertNull(cache.getStatus(certId(1)));
+		assertEquals(0, cache.size());
+	}
+
+	public void testIgnoresExpiredResponse() {
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.GOOD, new Date(now - 2 * HOUR), new Date(now - HOUR));
+		assertEquals(0, cache.size());
+		assertNull(cache.getStatus(certId(1)));
+	}
+
+	public void testMaxAgeWithoutNextUpdate() {
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.GOOD, new Date(now), null);
+		assertEquals(Integer.valueOf(OCSPClient.GOOD), cache.getStatus(certId(1)));
+		/*
+		 * Produced more than the maximum age ago
+		 */
+		cache.putStatus(certId(2), OCSPClient.GOOD, new Date(now - 2 * HOUR), null);
+		assertNull(cache.getStatus(certId(2)));
+	}
+
+	public void testMaxAgeWithoutNextUpdateRunsFromThisUpdate() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.GOOD, new Date(now - HOUR + 50), null);
+		assertEquals(Integer.valueOf(OCSPClient.GOOD), cache.getStatus(certId(1)));
+		Thread.sleep(100);
+		assertNull(cache.getStatus(certId(1)));
+	}
+
+	public void testKeepsUnknownStatus() {
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.UNKNOWN, new Date(now), new Date(now + HOUR));
+		assertEquals(Integer.valueOf(OCSPClient.UNKNOWN), cache.getStatus(certId(1)));
+	}
+
+	public void testReplacesStatus() {
+		long now = System.currentTimeMillis();
+		cache.putStatus(certId(1), OCSPClient.GOOD, new Date(now), new Date(now + HOUR));
+		cache.putStatus(certId(1), OCSPClient.REVOKED, new Date(now), new Date(now + HOUR));
+		assertEquals(Integer.valueOf(OCSPClient.REVOKED), cache.getStatus(certId(1)));
+		assertEquals(1, cache.size());
+	}
+
+	/*
+	 * Equal CertIDs are built for equal serial numbers, as they are
+	 * for repeated checks of the same certificate.
+	 */
+	private static CertID certId(long serialNumber) {
+		AlgorithmIdentifier sha1 = new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1, DERNull.INSTANCE);
+		return new CertID(sha1, new DEROctetString(new byte[20]), new DEROctetString(new byte[20]), new ASN1Integer(BigInteger.valueOf(serialNumber)));
+	}
+
+}
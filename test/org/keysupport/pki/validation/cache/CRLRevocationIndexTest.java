@@ -0,0 +1,207 @@
+package org.keysupport.pki.validation.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+import org.keysupport.pki.TestPki;
+
+public class CRLRevocationIndexTest extends TestCase {
+
+	private static final X500Principal ISSUER = new X500Principal("CN=Test CA,O=KeySupport,C=US");
+
+	private static final KeyPair CA_KEY = TestPki.generateKeyPair();
+
+	public void testLookupIgnoresEntryOrder() {
+		CRLRevocationIndex.Builder builder = newBuilder();
+		long[] serials = { 300, 1, 0x7fffffffL, 128, 2, 255, 70000 };
+		for (long serial: serials) {
+			builder.addEntry(BigInteger.valueOf(serial).toByteArray(), serial * 1000, (int) (serial % 10));
+		}
+		CRLRevocationIndex index = builder.build();
+		assertEquals(serials.length, index.size());
+		for (long serial: serials) {
+			int i = index.indexOf(BigInteger.valueOf(serial).toByteArray());
+			assertTrue(i >= 0);
+			assertEquals(BigInteger.valueOf(serial), index.getSerialNumber(i));
+			assertEquals(new Date(serial * 1000), index.getRevocationDate(i));
+			assertEquals(serial % 10, index.getRevocationReason(i));
+		}
+		for (long serial: new long[] { 0, 3, 127, 256, 0x80000000L }) {
+			assertFalse(index.isRevoked(BigInteger.valueOf(serial)));
+		}
+	}
+
+	public void testDuplicateSerialKeepsFirstEntry() {
+		CRLRevocationIndex.Builder builder = newBuilder();
+		builder.addEntry(new byte[] { 5 }, 1000, 1);
+		builder.addEntry(new byte[] { 6 }, 2000, 2);
+		builder.addEntry(new byte[] { 5 }, 3000, 3);
+		CRLRevocationIndex index = builder.build();
+		assertEquals(2, index.size());
+		int i = index.indexOf(new byte[] { 5 });
+		assertEquals(new Date(1000), index.getRevocationDate(i));
+		assertEquals(1, index.getRevocationReason(i));
+	}
+
+	public void testAddEntryCopiesFromBuffer() {
+		CRLRevocationIndex.Builder builder = newBuilder();
+		byte[] buffer = { 9, 9, 0x12, 0x34, 9 };
+		builder.addEntry(buffer, 2, 2, 0, CRLRevocationIndex.NO_REASON);
+		Arrays.fill(buffer, (byte) 0);
+		CRLRevocationIndex index = builder.build();
+		assertTrue(index.isRevoked(BigInteger.valueOf(0x1234)));
+		assertEquals(CRLRevocationIndex.NO_REASON, index.getRevocationReason(0));
+	}
+
+	public void testGrowsPastInitialCapacity() {
+		CRLRevocationIndex.Builder builder = newBuilder();
+		for (int i = 0; i < 5000; i++) {
+			builder.addEntry(BigInteger.valueOf(i * 7919L).toByteArray(), i, CRLRevocationIndex.NO_REASON);
+		}
+		CRLRevocationIndex index = builder.build();
+		assertEquals(5000, index.size());
+		assertTrue(index.isRevoked(BigInteger.valueOf(4999 * 7919L)));
+		assertFalse(index.isRevoked(BigInteger.valueOf(7920)));
+	}
+
+	public void testRoundTrip() throws IOException {
+		CRLRevocationIndex.Builder builder = newBuilder();
+		builder.setCrlNumber(BigInteger.valueOf(17));
+		builder.setIssuingDistributionPoint(new byte[] { 0x30, 0x03, (byte) 0x81, 0x01, (byte) 0xff });
+		builder.setDeltaCrl(true);
+		builder.setIndirect(true);
+		builder.setUnrecognizedCriticalExtension(true);
+		builder.addEntry(new byte[] { 1 }, 1000, 1);
+		builder.addEntry(new byte[] { 0x01, 0x00 }, 2000, CRLRevocationIndex.NO_REASON);
+		CRLRevocationIndex index = builder.build();
+		CRLRevocationIndex copy = CRLRevocationIndex.readFrom(new DataInputStream(new ByteArrayInputStream(write(index))));
+
+		assertEquals(index.getIssuer(), copy.getIssuer());
+		assertEquals(index.getThisUpdate(), copy.getThisUpdate());
+		assertEquals(index.getNextUpdate(), copy.getNextUpdate());
+		assertEquals(BigInteger.valueOf(17), copy.getCrlNumber());
+		assertTrue(Arrays.equals(index.getIssuingDistributionPoint(), copy.getIssuingDistributionPoint()));
+		assertTrue(copy.isDeltaCrl());
+		assertTrue(copy.isIndirect());
+		assertTrue(copy.hasUnrecognizedCriticalExtension());
+		assertTrue(copy.isSignedBy(CA_KEY.getPublic()));
+		assertEquals(2, copy.size());
+		int i = copy.indexOf(new byte[] { 0x01, 0x00 });
+		assertEquals(new Date(2000), copy.getRevocationDate(i));
+		assertEquals(CRLRevocationIndex.NO_REASON, copy.getRevocationReason(i));
+		assertEquals(index.getTableSize(), copy.getTableSize());
+	}
+
+	public void testRoundTripWithoutOptionalFields() throws IOException {
+		CRLRevocationIndex index = new CRLRevocationIndex.Builder()
+				.setIssuer(ISSUER)
+				.setThisUpdate(new Date(1000))
+				.setSignerKey(CA_KEY.getPublic())
+				.build();
+		CRLRevocationIndex copy = CRLRevocationIndex.readFrom(new DataInputStream(new ByteArrayInputStream(write(index))));
+		assertEquals(0, copy.size());
+		assertNull(copy.getCrlNumber());
+		assertNull(copy.getIssuingDistributionPoint());
+		assertNull(copy.getNextUpdate());
+		assertTrue(copy.isCurrent(new Date()));
+	}
+
+	public void testRejectsCountLargerThanSerials() throws IOException {
+		assertCorrupt(3, new byte[] { 1, 2 }, new int[] { 0, 1, 2, 2 });
+		assertCorrupt(Integer.MAX_VALUE, new byte[] { 1 }, new int[] { 0, 1 });
+	}
+
+	public void testRejectsNegativeCount() throws IOException {
+		assertCorrupt(-1, new byte[] { 1 }, new int[0]);
+	}
+
+	public void testRejectsMissingSerials() throws IOException {
+		assertCorrupt(0, null, new int[] { 0 });
+	}
+
+	public void testRejectsFirstOffsetNotZero() throws IOException {
+		assertCorrupt(2, new byte[] { 1, 2, 3 }, new int[] { 1, 2, 3 });
+	}
+
+	public void testRejectsOffsetsOutOfOrder() throws IOException {
+		assertCorrupt(2, new byte[] { 1, 2, 3 }, new int[] { 0, 2, 2 });
+		assertCorrupt(2, new byte[] { 1, 2, 3 }, new int[] { 0, -1, 3 });
+	}
+
+	public void testRejectsLastOffsetNotSerialsLength() throws IOException {
+		assertCorrupt(2, new byte[] { 1, 2, 3 }, new int[] { 0, 1, 2 });
+		assertCorrupt(2, new byte[] { 1, 2, 3 }, new int[] { 0, 1, 4 });
+	}
+
+	public void testAcceptsHandWrittenTables() throws IOException {
+		CRLRevocationIndex index = read(2, new byte[] { 1, 2, 3 }, new int[] { 0, 1, 3 });
+		assertEquals(2, index.size());
+		assertTrue(index.isRevoked(new byte[] { 2, 3 }));
+	}
+
+	private static CRLRevocationIndex.Builder newBuilder() {
+		return new CRLRevocationIndex.Builder()
+				.setIssuer(ISSUER)
+				.setThisUpdate(new Date(1000))
+				.setNextUpdate(new Date(2000))
+				.setSignerKey(CA_KEY.getPublic());
+	}
+
+	private static byte[] write(CRLRevocationIndex index) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		index.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Writes the tables as writeTo() would, with the given
+	 * count, serials and offsets, and reads them back.
+	 */
+	private static CRLRevocationIndex read(int count, byte[] serials, int[] offsets) throws IOException {
+		CRLRevocationIndex empty = newBuilder().build();
+		byte[] header = write(empty);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		/*
+		 * The empty index ends with its count, serials and one offset
+		 */
+		out.write(header, 0, header.length - 12);
+		out.writeInt(count);
+		CacheSnapshot.writeBytes(out, serials);
+		for (int offset: offsets) {
+			out.writeInt(offset);
+		}
+		int entries = Math.min(Math.max(count, 0), 16);
+		for (int i = 0; i < entries; i++) {
+			out.writeLong(i);
+		}
+		for (int i = 0; i < entries; i++) {
+			out.writeByte(CRLRevocationIndex.NO_REASON);
+		}
+		out.flush();
+		return CRLRevocationIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	private static void assertCorrupt(int count, byte[] serials, int[] offsets) {
+		try {
+			read(count, serials, offsets);
+			fail("Expected IOException");
+		} catch (IOException e) {
+			/* expected */
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package org.keysupport.pki.validation.cache;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.CRLException;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.keysupport.pki.TestPki;
+
+public class CRLStreamParserTest extends TestCase {
+
+	private static final String ISSUER = "CN=Test CA,O=KeySupport,C=US";
+
+	private static final KeyPair CA_KEY = TestPki.generateKeyPair();
+
+	public void testParsesEntriesAndReasons() throws Exception {
+		X509v2CRLBuilder builder = TestPki.newCrl(ISSUER);
+		Date revoked = new Date(TestPki.now().getTime() - TestPki.DAY);
+		BigInteger large = new BigInteger("7fedcba98765432100112233445566778899", 16);
+		builder.addCRLEntry(BigInteger.valueOf(1000), revoked, CRLReason.keyCompromise);
+		builder.addCRLEntry(BigInteger.valueOf(5), revoked, CRLReason.unspecified);
+		builder.addCRLEntry(large, revoked, CRLReason.superseded);
+		builder.addExtension(Extension.cRLNumber, false, new ASN1Integer(BigInteger.valueOf(42)));
+		CRLRevocationIndex index = parse(TestPki.sign(builder, CA_KEY.getPrivate()));
+
+		assertEquals(3, index.size());
+		assertEquals(new X500Principal(new X500Name(ISSUER).getEncoded()), index.getIssuer());
+		assertEquals(BigInteger.valueOf(42), index.getCrlNumber());
+		assertTrue(index.isCurrent(new Date()));
+		assertTrue(index.isSignedBy(CA_KEY.getPublic()));
+		assertFalse(index.isDeltaCrl());
+		assertFalse(index.isIndirect());
+		assertFalse(index.hasUnrecognizedCriticalExtension());
+
+		int i = index.indexOf(BigInteger.valueOf(1000).toByteArray());
+		assertTrue(i >= 0);
+		assertEquals(BigInteger.valueOf(1000), index.getSerialNumber(i));
+		assertEquals(revoked, index.getRevocationDate(i));
+		assertEquals(CRLReason.keyCompromise, index.getRevocationReason(i));
+		/*
+		 * An unspecified reason is not encoded at all.
+		 */
+		i = index.indexOf(BigInteger.valueOf(5).toByteArray());
+		assertEquals(CRLRevocationIndex.NO_REASON, index.getRevocationReason(i));
+		i = index.indexOf(large.toByteArray());
+		assertEquals(CRLReason.superseded, index.getRevocationReason(i));
+		assertFalse(index.isRevoked(BigInteger.valueOf(6)));
+	}
+
+	public void testParsesEmptyCRL() throws Exception {
+		CRLRevocationIndex index = parse(TestPki.sign(TestPki.newCrl(ISSUER), CA_KEY.getPrivate()));
+		assertEquals(0, index.size());
+		assertNull(index.getCrlNumber());
+		assertFalse(index.isRevoked(BigInteger.ONE));
+	}
+
+	public void testRejectsOtherSigner() throws Exception {
+		byte[] crl = TestPki.sign(newCrl(), CA_KEY.getPrivate());
+		try {
+			CRLStreamParser.parse(new ByteArrayInputStream(crl), TestPki.generateKeyPair().getPublic());
+			fail("Expected CRLException");
+		} catch (CRLException e) {
+			/* expected */
+		}
+	}
+
+	public void testRejectsModifiedEntry() throws Exception {
+		byte[] crl = TestPki.sign(newCrl(), CA_KEY.getPrivate());
+		/*
+		 * Change the last byte of the serial number 0x1234 in the
+		 * signed revokedCertificates.
+		 */
+		byte[] serial = { 0x02, 0x02, 0x12, 0x34 };
+		int at = find(crl, serial);
+		assertTrue(at > 0);
+		crl[at + serial.length - 1] ^= 0x01;
+		assertRejected(crl);
+	}
+
+	public void testRejectsModifiedSignature() throws Exception {
+		byte[] crl = TestPki.sign(newCrl(), CA_KEY.getPrivate());
+		crl[crl.length - 1] ^= 0x01;
+		assertRejected(crl);
+	}
+
+	public void testRejectsTruncatedCRL() throws Exception {
+		byte[] crl = TestPki.sign(newCrl(), CA_KEY.getPrivate());
+		for (int length: new int[] { 0, 1, 2, 10, crl.length / 2, crl.length - 1 }) {
+			assertRejected(Arrays.copyOf(crl, length));
+		}
+	}
+
+	public void testRejectsGarbage() throws Exception {
+		assertRejected("This is not a CRL".getBytes("US-ASCII"));
+		/*
+		 * A SEQUENCE claiming a length far past the end of the data
+		 */
+		assertRejected(new byte[] { 0x30, (byte) 0x84, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x30, 0x00 });
+	}
+
+	public void testMarksDeltaCRL() throws Exception {
+		X509v2CRLBuilder builder = newCrl();
+		builder.addExtension(Extension.deltaCRLIndicator, true, new ASN1Integer(BigInteger.valueOf(7)));
+		CRLRevocationIndex index = parse(TestPki.sign(builder, CA_KEY.getPrivate()));
+		assertTrue(index.isDeltaCrl());
+		assertFalse(index.hasUnrecognizedCriticalExtension());
+	}
+
+	public void testKeepsIssuingDistributionPoint() throws Exception {
+		X509v2CRLBuilder builder = newCrl();
+		IssuingDistributionPoint idp = new IssuingDistributionPoint(null, true, false, null, false, false);
+		builder.addExtension(Extension.issuingDistributionPoint, true, idp);
+		CRLRevocationIndex index = parse(TestPki.sign(builder, CA_KEY.getPrivate()));
+		assertTrue(Arrays.equals(idp.getEncoded("DER"), index.getIssuingDistributionPoint()));
+		assertFalse(index.hasUnrecognizedCriticalExtension());
+	}
+
+	public void testMarksUnrecognizedCriticalExtension() throws Exception {
+		X509v2CRLBuilder builder = newCrl();
+		builder.addExtension(new ASN1ObjectIdentifier("1.3.6.1.4.1.99999.1"), true, new DERUTF8String("critical"));
+		CRLRevocationIndex index = parse(TestPki.sign(builder, CA_KEY.getPrivate()));
+		assertTrue(index.hasUnrecognizedCriticalExtension());
+		assertEquals(1, index.size());
+	}
+
+	public void testMarksIndirectCRL() throws Exception {
+		X509v2CRLBuilder builder = newCrl();
+		ExtensionsGenerator exts = new ExtensionsGenerator();
+		exts.addExtension(Extension.certificateIssuer, true, new GeneralNames(new GeneralName(new X500Name("CN=Other CA"))));
+		builder.addCRLEntry(BigInteger.valueOf(99), TestPki.now(), exts.generate());
+		CRLRevocationIndex index = parse(TestPki.sign(builder, CA_KEY.getPrivate()));
+		assertTrue(index.isIndirect());
+		assertEquals(2, index.size());
+	}
+
+	private static X509v2CRLBuilder newCrl() {
+		X509v2CRLBuilder builder = TestPki.newCrl(ISSUER);
+		builder.addCRLEntry(BigInteger.valueOf(0x1234), TestPki.now(), CRLReason.cessationOfOperation);
+		return builder;
+	}
+
+	private static CRLRevocationIndex parse(byte[] crl) throws CRLException {
+		return CRLStreamParser.parse(new ByteArrayInputStream(crl), CA_KEY.getPublic());
+	}
+
+	private static void assertRejected(byte[] crl) {
+		try {
+			parse(crl);
+			fail("Expected CRLException");
+		} catch (CRLException e) {
+			/* expected */
+		}
+	}
+
+	private static int find(byte[] data, byte[] pattern) {
+		for (int i = 0; i + pattern.length <= data.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,152 @@
+package org.keysupport.pki.validation.cache;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.keysupport.pki.TestPki;
+import org.keysupport.pki.validation.ValidationUtils;
+
+public class CacheSnapshotTest extends TestCase {
+
+	private static final String ROOT = "CN=Test Root CA,O=KeySupport,C=US";
+	private static final String SUB = "CN=Test Sub CA,O=KeySupport,C=US";
+
+	private static final KeyPair ROOT_KEY = TestPki.generateKeyPair();
+	private static final KeyPair SUB_KEY = TestPki.generateKeyPair();
+
+	/*
+	 * The version follows the magic number at the start of the file.
+	 */
+	private static final int VERSION_OFFSET = 4;
+	private static final int DIGEST_LENGTH = 32;
+
+	private X509Certificate root;
+	private X509Certificate sub;
+
+	@Override
+	protected void setUp() throws Exception {
+		if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+			Security.addProvider(new BouncyCastleProvider());
+		}
+		root = TestPki.selfSigned(ROOT, ROOT_KEY);
+		sub = TestPki.issue(SUB, SUB_KEY.getPublic(), ROOT, ROOT_KEY, BigInteger.valueOf(2), true);
+		CacheSnapshot.getSnapshotFile().delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		CacheSnapshot.getSnapshotFile().delete();
+	}
+
+	public void testNoSnapshot() {
+		assertNull(CacheSnapshot.load(root));
+	}
+
+	public void testRoundTrip() throws Exception {
+		CacheSnapshot.save(newGeneration(root, sub));
+		CacheGeneration restored = CacheSnapshot.load(root);
+		assertNotNull(restored);
+		assertEquals(root, restored.getCache().getCertificate());
+		assertEquals(1, restored.getCache().getSubjects().size());
+		CertificateCache child = restored.getCache().getSubjects().get(0);
+		assertEquals(sub, child.getCertificate());
+		assertNotNull(child.getSubjectCertId());
+		assertEquals(1, restored.getIntermediates().size());
+		assertEquals(1, restored.getBySubject(sub.getSubjectX500Principal()).size());
+	}
+
+	public void testIgnoresOtherTrustAnchor() throws Exception {
+		CacheSnapshot.save(newGeneration(root, sub));
+		assertNull(CacheSnapshot.load(TestPki.selfSigned("CN=Other Root CA", TestPki.generateKeyPair())));
+	}
+
+	public void testIgnoresOtherVersion() throws Exception {
+		CacheSnapshot.save(newGeneration(root, sub));
+		byte[] snapshot = read();
+		snapshot[VERSION_OFFSET + 3]++;
+		/*
+		 * With a good digest, so only the version is wrong
+		 */
+		write(redigest(snapshot));
+		assertNull(CacheSnapshot.load(root));
+		snapshot[VERSION_OFFSET + 3]--;
+		write(redigest(snapshot));
+		assertNotNull(CacheSnapshot.load(root));
+	}
+
+	public void testIgnoresDigestMismatch() throws Exception {
+		CacheSnapshot.save(newGeneration(root, sub));
+		byte[] snapshot = read();
+		snapshot[snapshot.length - 1] ^= 0x01;
+		write(snapshot);
+		assertNull(CacheSnapshot.load(root));
+	}
+
+	public void testIgnoresModifiedContent() throws Exception {
+		CacheSnapshot.save(newGeneration(root, sub));
+		byte[] snapshot = read();
+		/*
+		 * The last byte before the digest is part of the URI cache
+		 * section, which has no other check.
+		 */
+		snapshot[snapshot.length - DIGEST_LENGTH - 1] ^= 0x01;
+		write(snapshot);
+		assertNull(CacheSnapshot.load(root));
+	}
+
+	public void testIgnoresTruncatedSnapshot() throws Exception {
+		CacheSnapshot.save(newGeneration(root, sub));
+		byte[] snapshot = read();
+		for (int length: new int[] { 0, 3, VERSION_OFFSET + 4, snapshot.length / 2, snapshot.length - 1 }) {
+			write(Arrays.copyOf(snapshot, length));
+			assertNull(CacheSnapshot.load(root));
+		}
+	}
+
+	public void testIgnoresCertificateNotSignedByParent() throws Exception {
+		/*
+		 * The same names, but signed with another key, and the
+		 * digest is good, since it only detects damage.
+		 */
+		X509Certificate forged = TestPki.issue(SUB, SUB_KEY.getPublic(), ROOT, TestPki.generateKeyPair(), BigInteger.valueOf(2), true);
+		CacheSnapshot.save(newGeneration(root, forged));
+		assertNull(CacheSnapshot.load(root));
+	}
+
+	private static CacheGeneration newGeneration(X509Certificate root, X509Certificate sub) throws Exception {
+		CertificateCache rootEntry = new CertificateCache(root);
+		rootEntry.setSubjectCertId(ValidationUtils.getCertIdentifier(root, root).toASN1Object());
+		rootEntry.setIssuerCertId(rootEntry.getSubjectCertId());
+		CertificateCache subEntry = new CertificateCache(sub);
+		subEntry.setSubjectCertId(ValidationUtils.getCertIdentifier(root, sub).toASN1Object());
+		subEntry.setIssuerCertId(rootEntry.getSubjectCertId());
+		rootEntry.addSubject(subEntry);
+		return new CacheGeneration(rootEntry);
+	}
+
+	private static byte[] read() throws IOException {
+		return Files.readAllBytes(CacheSnapshot.getSnapshotFile().toPath());
+	}
+
+	private static void write(byte[] snapshot) throws IOException {
+		Files.write(CacheSnapshot.getSnapshotFile().toPath(), snapshot);
+	}
+
+	private static byte[] redigest(byte[] snapshot) throws Exception {
+		byte[] copy = snapshot.clone();
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(copy, 0, copy.length - DIGEST_LENGTH);
+		System.arraycopy(md.digest(), 0, copy, copy.length - DIGEST_LENGTH, DIGEST_LENGTH);
+		return copy;
+	}
+
+}